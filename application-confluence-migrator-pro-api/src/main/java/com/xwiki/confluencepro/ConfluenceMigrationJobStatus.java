@@ -22,8 +22,11 @@ package com.xwiki.confluencepro;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.xwiki.job.DefaultJobStatus;
 import org.xwiki.job.event.status.CancelableJobStatus;
@@ -43,10 +46,22 @@ public class ConfluenceMigrationJobStatus extends DefaultJobStatus<ConfluenceMig
 
     private CancelableJobStatus filterJobStatus;
 
+    private final List<CancelableJobStatus> parallelFilterJobStatuses = new CopyOnWriteArrayList<>();
+
     private Collection<String> spaces = Collections.emptyList();
 
     private Map<String, String> spaceTargets = Map.of();
 
+    private Map<String, Object> linkMappingMetrics = Map.of();
+
+    private final Map<String, Long> linkMappingPageCounts = new LinkedHashMap<>();
+
+    private transient Collection<String> checkpointSpaces;
+
+    private transient Collection<String> checkpointCompletedSpaces = Collections.emptySet();
+
+    private transient Set<String> checkpointDocuments = Collections.emptySet();
+
     /**
      * @param request the request provided when started the job
      * @param parentJobStatus the status of the parent job
@@ -87,6 +102,40 @@ public class ConfluenceMigrationJobStatus extends DefaultJobStatus<ConfluenceMig
         this.filterJobStatus = filterJobStatus;
     }
 
+    /**
+     * @return the status of the filter job importing the spaces, or null if the spaces are imported by several filter
+     *     jobs in parallel or the filter job was not started yet
+     * @since 1.44.0
+     */
+    public CancelableJobStatus getFilterJobStatus()
+    {
+        return this.filterJobStatus;
+    }
+
+    /**
+     * Add the status of a filter job importing part of the spaces in parallel with other filter jobs, so it can be
+     * canceled. Since it runs in another thread, its log is not part of the log of the migration job.
+     * @param parallelFilterJobStatus the status of the filter job
+     * @since 1.44.0
+     */
+    public void addParallelFilterJobStatus(CancelableJobStatus parallelFilterJobStatus)
+    {
+        this.parallelFilterJobStatuses.add(parallelFilterJobStatus);
+        if (isCanceled()) {
+            parallelFilterJobStatus.cancel();
+        }
+    }
+
+    /**
+     * @return the statuses of the filter jobs importing the spaces in parallel, empty if the spaces are imported by a
+     *     single filter job
+     * @since 1.44.0
+     */
+    public List<CancelableJobStatus> getParallelFilterJobStatuses()
+    {
+        return Collections.unmodifiableList(this.parallelFilterJobStatuses);
+    }
+
     /**
      * Set the list of spaces that are migrated.
      * @param spaces the Confluence keys of the migrated spaces
@@ -128,6 +177,90 @@ public class ConfluenceMigrationJobStatus extends DefaultJobStatus<ConfluenceMig
         return spaceTargets;
     }
 
+    /**
+     * Set the metrics of the link mapping operations done during the migration.
+     * @param linkMappingMetrics the metrics, by operation
+     * @since 1.44.0
+     */
+    public void setLinkMappingMetrics(Map<String, Object> linkMappingMetrics)
+    {
+        this.linkMappingMetrics = linkMappingMetrics;
+    }
+
+    /**
+     * @return the metrics of the link mapping operations done during the migration, by operation
+     * @since 1.44.0
+     */
+    public Map<String, Object> getLinkMappingMetrics()
+    {
+        return linkMappingMetrics;
+    }
+
+    /**
+     * Record pages of which the link mapping was stored for a space. The pages of a space can be stored in several
+     * parts, their counts are added up.
+     * @param spaceKey the Confluence key of the space
+     * @param pageCount the number of pages
+     * @since 1.44.0
+     */
+    public synchronized void addLinkMappingPageCount(String spaceKey, long pageCount)
+    {
+        linkMappingPageCounts.merge(spaceKey, pageCount, Long::sum);
+    }
+
+    /**
+     * @return the number of pages of which the link mapping was stored, by space key
+     * @since 1.44.0
+     */
+    public synchronized Map<String, Long> getLinkMappingPageCounts()
+    {
+        return new LinkedHashMap<>(linkMappingPageCounts);
+    }
+
+    /**
+     * Set the checkpoint of the interrupted migration this migration resumes.
+     * @param spaces the Confluence keys of the spaces migrated by the interrupted migration
+     * @param completedSpaces the Confluence keys of the spaces which were fully imported
+     * @param documents the local references of the documents of which the last revision was saved
+     * @since 1.44.0
+     */
+    public void setCheckpoint(Collection<String> spaces, Collection<String> completedSpaces, Set<String> documents)
+    {
+        this.checkpointSpaces = spaces;
+        this.checkpointCompletedSpaces = completedSpaces;
+        this.checkpointDocuments = documents;
+    }
+
+    /**
+     * @return the Confluence keys of the spaces migrated by the interrupted migration this migration resumes, or null
+     *     if it doesn't resume a migration
+     * @since 1.44.0
+     */
+    public Collection<String> getCheckpointSpaces()
+    {
+        return checkpointSpaces;
+    }
+
+    /**
+     * @return the Confluence keys of the spaces which were fully imported by the interrupted migration this migration
+     *     resumes
+     * @since 1.44.0
+     */
+    public Collection<String> getCheckpointCompletedSpaces()
+    {
+        return checkpointCompletedSpaces;
+    }
+
+    /**
+     * @param localDocumentReference the local reference of a document
+     * @return whether the last revision of this document was saved by the interrupted migration this migration resumes
+     * @since 1.44.0
+     */
+    public boolean isCheckpointDocument(String localDocumentReference)
+    {
+        return checkpointDocuments.contains(localDocumentReference);
+    }
+
     @Override
     public void cancel()
     {
@@ -135,5 +268,8 @@ public class ConfluenceMigrationJobStatus extends DefaultJobStatus<ConfluenceMig
         if (this.filterJobStatus != null) {
             this.filterJobStatus.cancel();
         }
+        for (CancelableJobStatus parallelFilterJobStatus : this.parallelFilterJobStatuses) {
+            parallelFilterJobStatus.cancel();
+        }
     }
 }
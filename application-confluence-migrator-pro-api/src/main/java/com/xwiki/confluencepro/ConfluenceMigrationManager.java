@@ -19,7 +19,13 @@
  */
 package com.xwiki.confluencepro;
 
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
 
 /**
  * Manages the pages of the Confluence Migrator.
@@ -38,6 +44,121 @@ public interface ConfluenceMigrationManager
      */
     void updateAndSaveMigration(ConfluenceMigrationJobStatus jobStatus);
 
+    /**
+     * Mark the migration identified by the request of the job as waiting for its report, and generate the report in a
+     * separate job so the next migration can start without waiting for it. The report job ends by calling
+     * {@link #updateAndSaveMigration(ConfluenceMigrationJobStatus)}.
+     *
+     * @param jobStatus the status of the executed job.
+     * @since 1.44.0
+     */
+    default void scheduleReport(ConfluenceMigrationJobStatus jobStatus)
+    {
+        updateAndSaveMigration(jobStatus);
+    }
+
+    /**
+     * Start analysing the log of the given migration job while it runs, so the migration report is mostly computed
+     * when {@link #updateAndSaveMigration(ConfluenceMigrationJobStatus)} is called. This doesn't make the log of the
+     * job smaller: the job status still keeps all of it, since it is displayed on the migration page and saved with
+     * the job status.
+     *
+     * @param jobStatus the status of the running job.
+     * @since 1.44.0
+     */
+    default void startLogAnalysis(ConfluenceMigrationJobStatus jobStatus)
+    {
+        // Nothing to do by default, the log is analysed when the migration is saved.
+    }
+
+    /**
+     * Read the value of a key of a JSON object migration report, without reading the whole report when it is
+     * compressed.
+     *
+     * @param migration the migration document
+     * @param report the name of the report, without extension (e.g. confluenceRefWarnings)
+     * @param key the key to look for, usually a page reference
+     * @return the value of the key, or null if it or the report can't be found
+     * @since 1.44.0
+     */
+    default Object getReportEntry(DocumentReference migration, String report, String key)
+    {
+        return null;
+    }
+
+    /**
+     * Read a range of entries of a migration report, without reading the whole report when it is compressed.
+     *
+     * @param migration the migration document
+     * @param report the name of the report, without extension (e.g. docs)
+     * @param offset the index of the first entry to read
+     * @param limit the maximum number of entries to read
+     * @return the entries, as a list for JSON array reports and as a map for JSON object reports, or null if the
+     *     report can't be found
+     * @since 1.44.0
+     */
+    default Object getReportEntries(DocumentReference migration, String report, int offset, int limit)
+    {
+        return null;
+    }
+
+    /**
+     * @param migration the migration document
+     * @param report the name of the report, without extension
+     * @return the plain JSON content of the report, inflated if it is compressed, or null if the report can't be
+     *     found. It needs to be closed by the caller.
+     * @since 1.44.0
+     */
+    default InputStream getReportContent(DocumentReference migration, String report)
+    {
+        return null;
+    }
+
+    /**
+     * @param nameFilter only count the macros whose id contains this string, or all of them if empty
+     * @return the number of distinct macros used in the migrated pages of the current wiki
+     * @since 1.44.0
+     */
+    default long countMigratedMacros(String nameFilter)
+    {
+        return 0;
+    }
+
+    /**
+     * @param nameFilter only return the macros whose id contains this string, or all of them if empty
+     * @param offset the index of the first macro to return
+     * @param limit the maximum number of macros to return
+     * @return the macros used in the migrated pages of the current wiki, sorted by descending number of
+     *     occurrences, as maps with the name, occurrences and pages keys
+     * @since 1.44.0
+     */
+    default List<Map<String, Object>> getMigratedMacros(String nameFilter, int offset, int limit)
+    {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param macroId the macro id
+     * @return the number of migrated pages of the current wiki using this macro
+     * @since 1.44.0
+     */
+    default long countMigratedMacroPages(String macroId)
+    {
+        return 0;
+    }
+
+    /**
+     * @param macroId the macro id
+     * @param offset the index of the first page to return
+     * @param limit the maximum number of pages to return
+     * @return the migrated pages of the current wiki using this macro, sorted by name
+     * @since 1.44.0
+     */
+    default List<String> getMigratedMacroPages(String macroId, int offset, int limit)
+    {
+        return Collections.emptyList();
+    }
+
     /**
      * Disable the prerequisites of the migration.
      */
@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xwiki.job.AbstractRequest;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * The request of the job generating the report of a migration once its pages are imported.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+public class ConfluenceMigrationReportJobRequest extends AbstractRequest
+{
+    private static final long serialVersionUID = 1L;
+
+    // The status of the import job holds the log to analyse. It is only needed while the report is generated.
+    private final transient ConfluenceMigrationJobStatus migrationJobStatus;
+
+    /**
+     * @param migrationJobStatus the status of the job which imported the pages of the migration
+     */
+    public ConfluenceMigrationReportJobRequest(ConfluenceMigrationJobStatus migrationJobStatus)
+    {
+        this.migrationJobStatus = migrationJobStatus;
+        ConfluenceMigrationJobRequest migrationRequest = migrationJobStatus.getRequest();
+        setId(getJobId(migrationRequest.getStatusDocumentReference()));
+        if (migrationRequest.getContext() != null) {
+            setContext(migrationRequest.getContext());
+        }
+    }
+
+    /**
+     * @return the job id of the report job of a migration document
+     * @param statusDocumentReference the migration document for which to get the job id
+     */
+    public static List<String> getJobId(DocumentReference statusDocumentReference)
+    {
+        List<String> jobId = new ArrayList<>();
+        jobId.add("confluence");
+        jobId.add("migrationreport");
+        for (EntityReference er : statusDocumentReference.getReversedReferenceChain()) {
+            jobId.add(er.getName());
+        }
+        return jobId;
+    }
+
+    /**
+     * @return the status of the job which imported the pages of the migration
+     */
+    public ConfluenceMigrationJobStatus getMigrationJobStatus()
+    {
+        return migrationJobStatus;
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Compressed JSON report format allowing to read the entries of a given page, or a given range of entries, without
+ * inflating the whole report.
+ * <p>
+ * The report is written as a series of concatenated gzip members: one for the opening bracket, one per block of
+ * entries and one for the closing bracket. Inflating the whole file with {@link GZIPInputStream} gives back the
+ * plain JSON report. The {@link Index} tells the position of each block in the compressed file, the index of its
+ * first entry and, for JSON objects, the block holding each key, so a single block needs to be inflated to read an
+ * entry.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+public final class IndexedJsonReport
+{
+    /**
+     * The extension of the compressed reports.
+     */
+    public static final String COMPRESSED_EXTENSION = ".json.gz";
+
+    /**
+     * The extension of the indexes of the compressed reports.
+     */
+    public static final String INDEX_EXTENSION = ".idx.json";
+
+    /**
+     * The extension of the plain reports.
+     */
+    public static final String PLAIN_EXTENSION = ".json";
+
+    // Blocks are closed when their uncompressed size reaches this number of bytes.
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final TypeReference<List<Object>> LIST_TYPE_REF = new TypeReference<List<Object>>() { };
+
+    private static final TypeReference<LinkedHashMap<String, Object>> MAP_TYPE_REF =
+        new TypeReference<LinkedHashMap<String, Object>>() { };
+
+    private static final int OFFSET = 0;
+
+    private static final int LENGTH = 1;
+
+    private static final int FIRST = 2;
+
+    private static final int COUNT = 3;
+
+    /**
+     * The side index of a compressed report.
+     */
+    public static final class Index
+    {
+        private boolean array;
+
+        private int size;
+
+        private List<long[]> blocks = new ArrayList<>();
+
+        private Map<String, Integer> keys = new LinkedHashMap<>();
+
+        /**
+         * @return whether the report is a JSON array instead of a JSON object
+         */
+        public boolean isArray()
+        {
+            return array;
+        }
+
+        /**
+         * @param array whether the report is a JSON array instead of a JSON object
+         */
+        public void setArray(boolean array)
+        {
+            this.array = array;
+        }
+
+        /**
+         * @return the number of entries of the report
+         */
+        public int getSize()
+        {
+            return size;
+        }
+
+        /**
+         * @param size the number of entries of the report
+         */
+        public void setSize(int size)
+        {
+            this.size = size;
+        }
+
+        /**
+         * @return the blocks of the report, as (offset, compressed length, first entry, entry count) tuples
+         */
+        public List<long[]> getBlocks()
+        {
+            return blocks;
+        }
+
+        /**
+         * @param blocks the blocks of the report
+         */
+        public void setBlocks(List<long[]> blocks)
+        {
+            this.blocks = blocks;
+        }
+
+        /**
+         * @return the block number of each key of the report, empty for JSON arrays
+         */
+        public Map<String, Integer> getKeys()
+        {
+            return keys;
+        }
+
+        /**
+         * @param keys the block number of each key of the report
+         */
+        public void setKeys(Map<String, Integer> keys)
+        {
+            this.keys = keys;
+        }
+    }
+
+    private IndexedJsonReport()
+    {
+        // Utility class
+    }
+
+    /**
+     * Write a report in the compressed format.
+     * @param report the report, a map or a collection
+     * @param out the stream receiving the compressed report. It is not closed.
+     * @return the index of the written report
+     * @throws IOException if the report can't be written
+     */
+    public static Index write(Object report, OutputStream out) throws IOException
+    {
+        Index index = new Index();
+        index.setArray(!(report instanceof Map));
+        CountingOutputStream counting = new CountingOutputStream(out);
+        writeMember(counting, new byte[] { (byte) (index.isArray() ? '[' : '{') });
+
+        Collection<?> entries = index.isArray() ? (Collection<?>) report : ((Map<?, ?>) report).entrySet();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        int first = 0;
+        int i = 0;
+        for (Object entry : entries) {
+            if (i > 0) {
+                block.write(',');
+            }
+            if (!index.isArray()) {
+                String key = String.valueOf(((Map.Entry<?, ?>) entry).getKey());
+                block.write(OBJECT_MAPPER.writeValueAsBytes(key));
+                block.write(':');
+                block.write(OBJECT_MAPPER.writeValueAsBytes(((Map.Entry<?, ?>) entry).getValue()));
+                index.getKeys().put(key, index.getBlocks().size());
+            } else {
+                block.write(OBJECT_MAPPER.writeValueAsBytes(entry));
+            }
+            i++;
+            if (block.size() >= BLOCK_SIZE) {
+                addBlock(index, counting, block, first, i - first);
+                first = i;
+            }
+        }
+
+        if (block.size() > 0) {
+            addBlock(index, counting, block, first, i - first);
+        }
+        writeMember(counting, new byte[] { (byte) (index.isArray() ? ']' : '}') });
+        index.setSize(i);
+        return index;
+    }
+
+    private static void addBlock(Index index, CountingOutputStream out, ByteArrayOutputStream block, int first,
+        int count) throws IOException
+    {
+        long offset = out.getByteCount();
+        writeMember(out, block.toByteArray());
+        index.getBlocks().add(new long[] { offset, out.getByteCount() - offset, first, count });
+        block.reset();
+    }
+
+    private static void writeMember(OutputStream out, byte[] bytes) throws IOException
+    {
+        try (GZIPOutputStream gzip = new GZIPOutputStream(CloseShieldOutputStream.wrap(out))) {
+            gzip.write(bytes);
+        }
+    }
+
+    /**
+     * @param index the index to serialize
+     * @return the serialized index
+     * @throws IOException if the index can't be serialized
+     */
+    public static byte[] serializeIndex(Index index) throws IOException
+    {
+        return OBJECT_MAPPER.writeValueAsBytes(index);
+    }
+
+    /**
+     * @param in the serialized index
+     * @return the index
+     * @throws IOException if the index can't be read
+     */
+    public static Index readIndex(InputStream in) throws IOException
+    {
+        return OBJECT_MAPPER.readValue(in, Index.class);
+    }
+
+    /**
+     * @param content the compressed report
+     * @return the plain JSON report
+     * @throws IOException if the report can't be read
+     */
+    public static InputStream inflate(InputStream content) throws IOException
+    {
+        return new GZIPInputStream(content);
+    }
+
+    /**
+     * Read the value of a key in a compressed JSON object report.
+     * @param content the compressed report. It is not closed.
+     * @param index the index of the report
+     * @param key the key to look for
+     * @return the value of the key, or null if it is not in the report
+     * @throws IOException if the report can't be read
+     */
+    public static Object readEntry(InputStream content, Index index, String key) throws IOException
+    {
+        Integer blockNumber = index.getKeys().get(key);
+        if (blockNumber == null || index.isArray()) {
+            return null;
+        }
+
+        long[] block = index.getBlocks().get(blockNumber);
+        IOUtils.skipFully(content, block[OFFSET]);
+        Map<?, ?> entries = (Map<?, ?>) readBlock(content, block, false);
+        return entries.get(key);
+    }
+
+    /**
+     * Read a range of entries of a compressed report, only inflating the blocks holding them.
+     * @param content the compressed report. It is not closed.
+     * @param index the index of the report
+     * @param offset the index of the first entry to read
+     * @param limit the maximum number of entries to read
+     * @return the entries, as a list for JSON array reports, and as a map for JSON object reports
+     * @throws IOException if the report can't be read
+     */
+    public static Object readRange(InputStream content, Index index, int offset, int limit) throws IOException
+    {
+        long end = (long) offset + limit;
+        List<Object> list = new ArrayList<>();
+        Map<Object, Object> map = new LinkedHashMap<>();
+        long position = 0;
+        for (long[] block : index.getBlocks()) {
+            if (block[FIRST] + block[COUNT] <= offset) {
+                continue;
+            }
+
+            if (block[FIRST] >= end) {
+                break;
+            }
+
+            IOUtils.skipFully(content, block[OFFSET] - position);
+            position = block[OFFSET] + block[LENGTH];
+            Object entries = readBlock(content, block, index.isArray());
+            Collection<?> entryCollection = index.isArray() ? (List<?>) entries : ((Map<?, ?>) entries).entrySet();
+            long i = block[FIRST];
+            for (Object entry : entryCollection) {
+                if (i >= offset && i < end) {
+                    addEntry(entry, list, map);
+                }
+                i++;
+            }
+        }
+
+        return index.isArray() ? list : map;
+    }
+
+    private static Object readBlock(InputStream content, long[] block, boolean array) throws IOException
+    {
+        byte[] compressed = IOUtils.toByteArray(content, (int) block[LENGTH]);
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        json.write(array ? '[' : '{');
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] entries = IOUtils.toByteArray(in);
+            // All the blocks except the first one start with the separator of their first entry
+            int start = entries.length > 0 && entries[0] == ',' ? 1 : 0;
+            json.write(entries, start, entries.length - start);
+        }
+        json.write(array ? ']' : '}');
+        return array
+            ? OBJECT_MAPPER.readValue(json.toByteArray(), LIST_TYPE_REF)
+            : OBJECT_MAPPER.readValue(json.toByteArray(), MAP_TYPE_REF);
+    }
+
+    /**
+     * @param document the migration document
+     * @param report the name of the report, without extension
+     * @param context the XWiki context
+     * @return the plain JSON content of the report, inflated if it is compressed, or null if the report is missing.
+     *     It needs to be closed by the caller.
+     * @throws XWikiException if the attachment content can't be loaded
+     * @throws IOException if the report can't be read
+     */
+    public static InputStream openReport(XWikiDocument document, String report, XWikiContext context)
+        throws XWikiException, IOException
+    {
+        XWikiAttachment compressed = document.getAttachment(report + COMPRESSED_EXTENSION);
+        if (compressed != null) {
+            return inflate(compressed.getAttachmentContent(context).getContentInputStream());
+        }
+
+        XWikiAttachment plain = document.getAttachment(report + PLAIN_EXTENSION);
+        return plain == null ? null : plain.getAttachmentContent(context).getContentInputStream();
+    }
+
+    /**
+     * Call the consumer for each entry of a plain JSON object report, one entry at a time.
+     * @param content the plain report. It is not closed.
+     * @param consumer the consumer of the keys and values of the report
+     * @throws IOException if the report can't be read
+     */
+    public static void forEachEntry(InputStream content, BiConsumer<String, Object> consumer) throws IOException
+    {
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(CloseShieldInputStream.wrap(content))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                parser.nextToken();
+                consumer.accept(key, parser.readValueAs(Object.class));
+            }
+        }
+    }
+
+    /**
+     * Read the value of a key in a plain JSON object report, without building the other entries.
+     * @param content the plain report. It is not closed.
+     * @param key the key to look for
+     * @return the value of the key, or null if it is not in the report
+     * @throws IOException if the report can't be read
+     */
+    public static Object readPlainEntry(InputStream content, String key) throws IOException
+    {
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(CloseShieldInputStream.wrap(content))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                boolean found = key.equals(parser.getCurrentName());
+                parser.nextToken();
+                if (found) {
+                    return parser.readValueAs(Object.class);
+                }
+                parser.skipChildren();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read a range of entries of a plain JSON report, without building the other entries.
+     * @param content the plain report. It is not closed.
+     * @param offset the index of the first entry to read
+     * @param limit the maximum number of entries to read
+     * @return the entries, as a list for JSON array reports, and as a map for JSON object reports
+     * @throws IOException if the report can't be read
+     */
+    public static Object readPlainRange(InputStream content, int offset, int limit) throws IOException
+    {
+        long end = (long) offset + limit;
+        List<Object> list = new ArrayList<>();
+        Map<Object, Object> map = new LinkedHashMap<>();
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(CloseShieldInputStream.wrap(content))) {
+            JsonToken start = parser.nextToken();
+            boolean array = start == JsonToken.START_ARRAY;
+            if (!array && start != JsonToken.START_OBJECT) {
+                return map;
+            }
+
+            long i = 0;
+            JsonToken endToken = array ? JsonToken.END_ARRAY : JsonToken.END_OBJECT;
+            for (JsonToken token = parser.nextToken(); token != null && token != endToken && i < end;
+                token = parser.nextToken()) {
+                String key = array ? null : parser.getCurrentName();
+                if (!array) {
+                    parser.nextToken();
+                }
+                if (i >= offset) {
+                    Object value = parser.readValueAs(Object.class);
+                    addEntry(array ? value : new AbstractMap.SimpleEntry<>(key, value), list, map);
+                } else {
+                    parser.skipChildren();
+                }
+                i++;
+            }
+            return array ? list : map;
+        }
+    }
+
+    private static void addEntry(Object entry, List<Object> list, Map<Object, Object> map)
+    {
+        if (entry instanceof Map.Entry) {
+            map.put(((Map.Entry<?, ?>) entry).getKey(), ((Map.Entry<?, ?>) entry).getValue());
+        } else {
+            list.add(entry);
+        }
+    }
+}
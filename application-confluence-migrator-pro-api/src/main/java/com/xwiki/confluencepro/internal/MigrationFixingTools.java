@@ -57,6 +57,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.pro.internal.resolvers.LinkMappingReadSession;
+import com.xwiki.pro.internal.resolvers.LinkMappingStore;
 
 /**
  * Tools to write post migration fixes.
@@ -71,6 +73,8 @@ public class MigrationFixingTools
     private static final Marker UNCHANGED_MARKER = MarkerFactory.getMarker("confluencemigrationfixer.unchanged");
     private static final TypeReference<Map<String, Object>> INPUT_PROPERTIES_TYPE_REF =
         new TypeReference<Map<String, Object>>() { };
+    // Short read sessions, so the database doesn't keep a transaction open during the whole fixing job
+    private static final int DOCUMENTS_PER_READ_SESSION = 100;
 
     @Inject
     private Logger logger;
@@ -97,6 +101,9 @@ public class MigrationFixingTools
     @Inject
     private QueryManager queryManager;
 
+    @Inject
+    private LinkMappingStore linkMappingStore;
+
     /**
      * Fix the documents of this migration.
      * @param migrationDoc the migration document to consider
@@ -235,16 +242,30 @@ public class MigrationFixingTools
         progressManager.pushLevelProgress(docRefs.size(), this);
         int size = docRefs.size();
         int n = 0;
-        for (String migratedDocRefStr : docRefs) {
-            progressManager.startStep(this);
-            EntityReference migratedDocRef = resolver.resolve(migratedDocRefStr, EntityType.DOCUMENT);
-            logger.info("Handling document [{}] ({}/{})", migratedDocRef, ++n, size);
-            XWikiDocument migratedDoc = getDocument(migratedDocRef);
-            if (migratedDoc == null) {
-                continue;
+        // The fixers resolve a lot of Confluence references, let the documents of a chunk share a database session
+        LinkMappingReadSession readSession = null;
+        try {
+            for (String migratedDocRefStr : docRefs) {
+                if (n % DOCUMENTS_PER_READ_SESSION == 0) {
+                    if (readSession != null) {
+                        readSession.close();
+                    }
+                    readSession = linkMappingStore.openReadSession();
+                }
+                progressManager.startStep(this);
+                EntityReference migratedDocRef = resolver.resolve(migratedDocRefStr, EntityType.DOCUMENT);
+                logger.info("Handling document [{}] ({}/{})", migratedDocRef, ++n, size);
+                XWikiDocument migratedDoc = getDocument(migratedDocRef);
+                if (migratedDoc == null) {
+                    continue;
+                }
+                documentFixer.accept(migratedDoc);
+                progressManager.endStep(this);
+            }
+        } finally {
+            if (readSession != null) {
+                readSession.close();
             }
-            documentFixer.accept(migratedDoc);
-            progressManager.endStep(this);
         }
         progressManager.popLevelProgress(this);
     }
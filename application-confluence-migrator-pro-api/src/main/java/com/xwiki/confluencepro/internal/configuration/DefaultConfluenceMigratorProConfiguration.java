@@ -53,4 +53,15 @@ public class DefaultConfluenceMigratorProConfiguration
         String value = this.configDocument.getProperty("extensionIDs");
         return List.of(value.split(","));
     }
+
+    /**
+     * @return the maximum size, in MB, of the extracted Confluence packages kept in the permanent directory, 0 if
+     *     the packages are not cached
+     * @since 1.44.0
+     */
+    public long getPackageCacheSize()
+    {
+        Long value = this.configDocument.getProperty("packageCacheSize", Long.class);
+        return value == null ? 0 : Math.max(0, value);
+    }
 }
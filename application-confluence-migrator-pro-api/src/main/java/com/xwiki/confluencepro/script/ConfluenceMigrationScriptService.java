@@ -19,16 +19,20 @@
  */
 package com.xwiki.confluencepro.script;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.concurrent.ContextStoreManager;
@@ -41,7 +45,9 @@ import org.xwiki.security.authorization.ContextualAuthorizationManager;
 import org.xwiki.security.authorization.Right;
 
 import com.xwiki.confluencepro.ConfluenceMigrationJobRequest;
+import com.xwiki.confluencepro.ConfluenceMigrationManager;
 import com.xwiki.confluencepro.ConfluenceMigrationPrerequisites;
+import com.xwiki.confluencepro.ConfluenceMigrationReportJobRequest;
 
 /**
  * Expose various FilterStream related APIs to scripts.
@@ -61,6 +67,8 @@ public class ConfluenceMigrationScriptService implements ScriptService
 
     private static final String TRUE = "true";
     private static final String FALSE = "false";
+    private static final String ZERO = "0";
+    private static final String ONE = "1";
 
     /**
      * Default input filter stream migration parameter values.
@@ -78,10 +86,18 @@ public class ConfluenceMigrationScriptService implements ScriptService
      * Default output filter stream migration parameter values.
      * @since 1.19.0
      */
-    public static final Map<String, String> PREFILLED_OUTPUT_PARAMETERS = Map.of(
-        "saveLinkMapping", TRUE,
-        "versionPreserved", TRUE,
-        "stoppedWhenSaveFail", FALSE
+    public static final Map<String, String> PREFILLED_OUTPUT_PARAMETERS = Map.ofEntries(
+        Map.entry("saveLinkMapping", TRUE),
+        Map.entry("linkMappingFlushSize", "1000"),
+        Map.entry("linkMappingCommitInterval", ZERO),
+        Map.entry("linkMappingCommitPerSpace", FALSE),
+        Map.entry("linkMappingParallelism", ONE),
+        Map.entry("versionPreserved", TRUE),
+        Map.entry("stoppedWhenSaveFail", FALSE),
+        Map.entry("compressReports", FALSE),
+        Map.entry("importParallelism", ONE),
+        Map.entry("documentWriterThreads", ZERO),
+        Map.entry("documentQueueSize", "100")
     );
 
     @Inject
@@ -99,6 +115,9 @@ public class ConfluenceMigrationScriptService implements ScriptService
     @Inject
     private ContextStoreManager contextStoreManager;
 
+    @Inject
+    private ConfluenceMigrationManager migrationManager;
+
     /**
      * @param documentReference the reference of the document that performs the migration.
      * @param confluencePackage the input stream for the package that will be used for the migration.
@@ -138,6 +157,16 @@ public class ConfluenceMigrationScriptService implements ScriptService
         return jobExecutor.getJob(ConfluenceMigrationJobRequest.getJobId(documentReference));
     }
 
+    /**
+     * @param documentReference the migration document
+     * @return the job generating the report of the migration, if it is waiting or running
+     * @since 1.44.0
+     */
+    public Job getReportJob(DocumentReference documentReference)
+    {
+        return jobExecutor.getJob(ConfluenceMigrationReportJobRequest.getJobId(documentReference));
+    }
+
     /**
      * Check if the maximum memory and the initial memory are at least half of the machine memory.
      *
@@ -252,4 +281,119 @@ public class ConfluenceMigrationScriptService implements ScriptService
         prefilledValues.put("output", new HashMap<>(PREFILLED_OUTPUT_PARAMETERS));
         return prefilledValues;
     }
+
+    /**
+     * @param nameFilter only count the macros whose id contains this string, or all of them if empty
+     * @return the number of distinct macros used in the migrated pages of the current wiki
+     * @since 1.44.0
+     */
+    public long countMigratedMacros(String nameFilter)
+    {
+        if (!authorization.hasAccess(Right.ADMIN)) {
+            return 0;
+        }
+        return migrationManager.countMigratedMacros(nameFilter);
+    }
+
+    /**
+     * @param nameFilter only return the macros whose id contains this string, or all of them if empty
+     * @param offset the index of the first macro to return
+     * @param limit the maximum number of macros to return
+     * @return the macros used in the migrated pages of the current wiki, sorted by descending number of
+     *     occurrences, with their name, number of occurrences and number of pages
+     * @since 1.44.0
+     */
+    public List<Map<String, Object>> getMigratedMacros(String nameFilter, int offset, int limit)
+    {
+        if (!authorization.hasAccess(Right.ADMIN)) {
+            return Collections.emptyList();
+        }
+        return migrationManager.getMigratedMacros(nameFilter, offset, limit);
+    }
+
+    /**
+     * @param macroId the macro id
+     * @return the number of migrated pages of the current wiki using this macro
+     * @since 1.44.0
+     */
+    public long countMigratedMacroPages(String macroId)
+    {
+        if (!authorization.hasAccess(Right.ADMIN)) {
+            return 0;
+        }
+        return migrationManager.countMigratedMacroPages(macroId);
+    }
+
+    /**
+     * @param macroId the macro id
+     * @param offset the index of the first page to return
+     * @param limit the maximum number of pages to return
+     * @return the migrated pages of the current wiki using this macro
+     * @since 1.44.0
+     */
+    public List<String> getMigratedMacroPages(String macroId, int offset, int limit)
+    {
+        if (!authorization.hasAccess(Right.ADMIN)) {
+            return Collections.emptyList();
+        }
+        return migrationManager.getMigratedMacroPages(macroId, offset, limit);
+    }
+
+    /**
+     * @param migration the migration document
+     * @param report the name of the report, without extension (e.g. confluenceRefWarnings)
+     * @param key the key to look for, usually a page reference
+     * @return the value of the key in this JSON object report, or null if it can't be found
+     * @since 1.44.0
+     */
+    public Object getReportEntry(DocumentReference migration, String report, String key)
+    {
+        if (!authorization.hasAccess(Right.VIEW, migration)) {
+            return null;
+        }
+        return migrationManager.getReportEntry(migration, report, key);
+    }
+
+    /**
+     * @param migration the migration document
+     * @param report the name of the report, without extension (e.g. docs)
+     * @param offset the index of the first entry to read
+     * @param limit the maximum number of entries to read
+     * @return the entries, as a list for JSON array reports and as a map for JSON object reports, or null if the
+     *     report can't be found
+     * @since 1.44.0
+     */
+    public Object getReportEntries(DocumentReference migration, String report, int offset, int limit)
+    {
+        if (!authorization.hasAccess(Right.VIEW, migration)) {
+            return null;
+        }
+        return migrationManager.getReportEntries(migration, report, offset, limit);
+    }
+
+    /**
+     * Write the plain JSON content of a migration report, whether it is compressed or not.
+     * @param migration the migration document
+     * @param report the name of the report, without extension
+     * @param out the stream to write to
+     * @return whether the report was found and written
+     * @since 1.44.0
+     */
+    public boolean writeReport(DocumentReference migration, String report, OutputStream out)
+    {
+        if (!authorization.hasAccess(Right.VIEW, migration)) {
+            return false;
+        }
+
+        try (InputStream content = migrationManager.getReportContent(migration, report)) {
+            if (content == null) {
+                return false;
+            }
+            IOUtils.copy(content, out);
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to write the report [{}] of migration [{}]", report, migration, e);
+        }
+        return false;
+    }
 }
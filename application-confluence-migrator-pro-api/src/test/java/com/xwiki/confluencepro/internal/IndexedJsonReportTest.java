@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IndexedJsonReportTest
+{
+    // Enough entries for the report to be split in several blocks
+    private static final int ENTRIES = 20000;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static List<Object> arrayReport()
+    {
+        List<Object> report = new ArrayList<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            report.add("Space.Page " + i);
+        }
+        return report;
+    }
+
+    private static Map<String, Object> objectReport()
+    {
+        Map<String, Object> report = new LinkedHashMap<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            report.put("Space.Page " + i, List.of("warning " + i, i));
+        }
+        return report;
+    }
+
+    @Test
+    void readRangeOfArray() throws IOException
+    {
+        List<Object> report = arrayReport();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IndexedJsonReport.Index index = IndexedJsonReport.write(report, out);
+        byte[] content = out.toByteArray();
+
+        assertTrue(index.isArray());
+        assertEquals(ENTRIES, index.getSize());
+        assertTrue(index.getBlocks().size() > 2);
+        assertTrue(index.getKeys().isEmpty());
+
+        // Ranges at the start, across blocks, at the end and after the end
+        long[] second = index.getBlocks().get(1);
+        int boundary = (int) second[2];
+        assertEquals(report.subList(0, 10), IndexedJsonReport.readRange(in(content), index, 0, 10));
+        assertEquals(report.subList(boundary - 5, boundary + 5),
+            IndexedJsonReport.readRange(in(content), index, boundary - 5, 10));
+        assertEquals(report.subList(ENTRIES - 3, ENTRIES),
+            IndexedJsonReport.readRange(in(content), index, ENTRIES - 3, 10));
+        assertEquals(List.of(), IndexedJsonReport.readRange(in(content), index, ENTRIES, 10));
+    }
+
+    @Test
+    void readEntryAndRangeOfObject() throws IOException
+    {
+        Map<String, Object> report = objectReport();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IndexedJsonReport.Index index = IndexedJsonReport.write(report, out);
+        // The index is saved next to the report
+        index = IndexedJsonReport.readIndex(new ByteArrayInputStream(IndexedJsonReport.serializeIndex(index)));
+        byte[] content = out.toByteArray();
+
+        assertFalse(index.isArray());
+        assertEquals(ENTRIES, index.getKeys().size());
+        assertEquals(List.of("warning 0", 0), IndexedJsonReport.readEntry(in(content), index, "Space.Page 0"));
+        assertEquals(List.of("warning 19999", 19999),
+            IndexedJsonReport.readEntry(in(content), index, "Space.Page 19999"));
+        assertNull(IndexedJsonReport.readEntry(in(content), index, "Space.Missing"));
+
+        Map<?, ?> range = (Map<?, ?>) IndexedJsonReport.readRange(in(content), index, 5000, 3);
+        assertEquals(List.of("Space.Page 5000", "Space.Page 5001", "Space.Page 5002"),
+            new ArrayList<>(range.keySet()));
+        assertEquals(List.of("warning 5001", 5001), range.get("Space.Page 5001"));
+    }
+
+    @Test
+    void inflate() throws IOException
+    {
+        Map<String, Object> report = objectReport();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IndexedJsonReport.write(report, out);
+
+        // The blocks are gzip members, so the whole report can still be read as plain JSON
+        try (InputStream plain = IndexedJsonReport.inflate(in(out.toByteArray()))) {
+            assertEquals(OBJECT_MAPPER.writeValueAsString(report), IOUtils.toString(plain, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void readPlain() throws IOException
+    {
+        byte[] array = OBJECT_MAPPER.writeValueAsBytes(arrayReport());
+        assertEquals(List.of("Space.Page 10", "Space.Page 11"), IndexedJsonReport.readPlainRange(in(array), 10, 2));
+
+        byte[] object = OBJECT_MAPPER.writeValueAsBytes(objectReport());
+        assertEquals(List.of("warning 42", 42), IndexedJsonReport.readPlainEntry(in(object), "Space.Page 42"));
+        assertNull(IndexedJsonReport.readPlainEntry(in(object), "Space.Missing"));
+        assertEquals(Map.of("Space.Page 0", List.of("warning 0", 0)),
+            IndexedJsonReport.readPlainRange(in(object), 0, 1));
+    }
+
+    private static InputStream in(byte[] content)
+    {
+        return new ByteArrayInputStream(content);
+    }
+}
@@ -22,11 +22,8 @@ package com.xwiki.confluencepro.internal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.inject.Inject;
@@ -37,10 +34,11 @@ import com.xwiki.confluencepro.ConfluenceMigrationJobStatus;
 import com.xwiki.pro.internal.resolvers.LinkMappingStore;
 
 import org.apache.commons.configuration2.ex.ConfigurationException;
-import org.hibernate.Session;
 import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
 import org.xwiki.contrib.confluence.filter.event.ConfluenceFilteringEvent;
 import org.xwiki.contrib.confluence.filter.input.ConfluenceXMLPackage;
 import org.xwiki.contrib.confluence.filter.input.LinkMapper;
@@ -73,6 +71,28 @@ public class ConfluenceFilteringListener extends AbstractEventListener
 
     static final String ONLY_LINK_MAPPING = "onlyLinkMapping";
 
+    static final String LINK_MAPPING_FLUSH_SIZE = "linkMappingFlushSize";
+
+    static final String LINK_MAPPING_COMMIT_INTERVAL = "linkMappingCommitInterval";
+
+    static final String LINK_MAPPING_COMMIT_PER_SPACE = "linkMappingCommitPerSpace";
+
+    static final String LINK_MAPPING_PARALLELISM = "linkMappingParallelism";
+
+    static final String SPACE_PARTITION = "confluencepro.spacePartition";
+
+    static final String SPACE_PARTITION_COUNT = "confluencepro.spacePartitionCount";
+
+    private static final int DEFAULT_LINK_MAPPING_FLUSH_SIZE = 1000;
+
+    private static final int LINK_MAPPING_SPACE_RETRIES = 2;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
     @Inject
     private JobContext jobContext;
 
@@ -112,6 +132,9 @@ public class ConfluenceFilteringListener extends AbstractEventListener
 
         ConfluenceFilteringEvent ev = (ConfluenceFilteringEvent) event;
         setSpaces(confluencePackage, status, ev, job);
+        // When the spaces are imported by several filter jobs in parallel, this one only handles its share of them
+        Collection<String> onlySpaces = keepSpacePartition(confluencePackage, ev, job, status.getSpaces());
+        skipCompletedSpaces(confluencePackage, ev, status, onlySpaces == null ? status.getSpaces() : onlySpaces);
 
         LinkMappingStore lms = linkMappingStore.isSupported() ? linkMappingStore : null;
 
@@ -119,7 +142,16 @@ public class ConfluenceFilteringListener extends AbstractEventListener
             ev.cancel();
         } else if (isOutputPropertyEnabled(status, ONLY_LINK_MAPPING)) {
             // This is a link mapping only phase, let's store the link mapping and cancel the import
-            updateLinkMappingAndLookForCollisions(lms);
+            if (lms == null) {
+                updateLinkMappingAndLookForCollisions(null, status, onlySpaces);
+            } else {
+                lms.beginBulkLoad();
+                try {
+                    updateLinkMappingAndLookForCollisions(lms, status, onlySpaces);
+                } finally {
+                    lms.endBulkLoad();
+                }
+            }
             ev.cancel();
         } else if (isInputPropertyEnabled(status, "storeConfluenceDetailsEnabled")) {
             // This is the happy path / normal situation.
@@ -128,17 +160,17 @@ public class ConfluenceFilteringListener extends AbstractEventListener
             // We clean up the link mapping which may have been imported in a link-mapping only phase, we don't want
             // this data hanging around for nothing.
             if (lms != null) {
-                lms.removeSpaces(status.getSpaces());
+                lms.removeSpaces(onlySpaces == null ? status.getSpaces() : onlySpaces);
             }
-            updateLinkMappingAndLookForCollisions(null);
+            updateLinkMappingAndLookForCollisions(null, status, onlySpaces);
         } else if (isOutputPropertyEnabled(status, "saveLinkMapping")) {
             // We are asked to save the link mapping and storeConfluenceDetailsEnabled is disabled, let's store the
             // link mapping
             if (lms != null) {
-                updateLinkMappingAndLookForCollisions(lms);
+                updateLinkMappingAndLookForCollisions(lms, status, onlySpaces);
             }
         } else {
-            updateLinkMappingAndLookForCollisions(null);
+            updateLinkMappingAndLookForCollisions(null, status, onlySpaces);
         }
 
         try {
@@ -163,13 +195,64 @@ public class ConfluenceFilteringListener extends AbstractEventListener
             }
         }
 
+        Collection<String> checkpointSpaces = status.getCheckpointSpaces();
+        if (checkpointSpaces != null) {
+            // The migration is resumed, the spaces were selected when it was started
+            for (String spaceKey : new ArrayList<>(spaces)) {
+                if (!checkpointSpaces.contains(spaceKey)) {
+                    ev.disableSpace(confluencePackage.getSpaceId(spaceKey));
+                    spaces.remove(spaceKey);
+                }
+            }
+        }
+
         status.setSpaces(spaces);
 
-        if (shouldAskQuestions(status, job, spaces)) {
+        if (checkpointSpaces == null && shouldAskQuestions(status, job, spaces)) {
             askSpacesQuestion(ev, confluencePackage, status, spaces);
         }
     }
 
+    private void skipCompletedSpaces(ConfluenceXMLPackage confluencePackage, ConfluenceFilteringEvent ev,
+        ConfluenceMigrationJobStatus status, Collection<String> importedSpaces)
+    {
+        // The spaces stay in the list of migrated spaces, they are part of the migration
+        for (String spaceKey : status.getCheckpointCompletedSpaces()) {
+            if (importedSpaces.contains(spaceKey)) {
+                logger.info("Skipping space [{}], it was fully imported before the migration was interrupted",
+                    spaceKey);
+                ev.disableSpace(confluencePackage.getSpaceId(spaceKey));
+            }
+        }
+    }
+
+    private Collection<String> keepSpacePartition(ConfluenceXMLPackage confluencePackage, ConfluenceFilteringEvent ev,
+        Job job, Collection<String> spaces)
+    {
+        Request request = job.getRequest();
+        Integer partition = request == null ? null : request.getProperty(SPACE_PARTITION);
+        Integer partitionCount = request == null ? null : request.getProperty(SPACE_PARTITION_COUNT);
+        if (partition == null || partitionCount == null) {
+            return null;
+        }
+
+        // Every filter job sees the same spaces, so they all compute the same partitions
+        List<String> sortedSpaces = new ArrayList<>(spaces);
+        Collections.sort(sortedSpaces);
+        List<String> keptSpaces = new ArrayList<>();
+        for (int i = 0; i < sortedSpaces.size(); i++) {
+            String spaceKey = sortedSpaces.get(i);
+            if (i % partitionCount == partition) {
+                keptSpaces.add(spaceKey);
+            } else {
+                ev.disableSpace(confluencePackage.getSpaceId(spaceKey));
+            }
+        }
+
+        logger.info("Importing spaces [{}] ([{}] of [{}])", keptSpaces, partition + 1, partitionCount);
+        return keptSpaces;
+    }
+
     private boolean shouldAskQuestions(ConfluenceMigrationJobStatus status, Job job, Collection<String> spaces)
     {
         if (spaces.size() < 2) {
@@ -194,6 +277,29 @@ public class ConfluenceFilteringListener extends AbstractEventListener
         return isPropertyEnabled(jobStatusToAsk.getRequest().getOutputProperties(), propertyName);
     }
 
+    private int getLinkMappingFlushSize(ConfluenceMigrationJobStatus jobStatusToAsk)
+    {
+        return getIntOutputProperty(jobStatusToAsk, LINK_MAPPING_FLUSH_SIZE, DEFAULT_LINK_MAPPING_FLUSH_SIZE);
+    }
+
+    private int getIntOutputProperty(ConfluenceMigrationJobStatus jobStatusToAsk, String propertyName, int def)
+    {
+        Object v = jobStatusToAsk.getRequest().getOutputProperties().get(propertyName);
+        if (v instanceof Number) {
+            return ((Number) v).intValue();
+        }
+
+        if (v instanceof String && !((String) v).isEmpty()) {
+            try {
+                return Integer.parseInt((String) v);
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value [{}] for [{}], will use [{}]", v, propertyName, def);
+            }
+        }
+
+        return def;
+    }
+
     private boolean isInputPropertyEnabled(ConfluenceMigrationJobStatus jobStatusToAsk, String propertyName)
     {
         return isPropertyEnabled(jobStatusToAsk.getRequest().getInputProperties(), propertyName);
@@ -250,7 +356,8 @@ public class ConfluenceFilteringListener extends AbstractEventListener
         return null;
     }
 
-    private void updateLinkMappingAndLookForCollisions(LinkMappingStore store)
+    private void updateLinkMappingAndLookForCollisions(LinkMappingStore store,
+        ConfluenceMigrationJobStatus status, Collection<String> onlySpaces)
     {
         if (store == null) {
             logger.info("Looking for collisions…");
@@ -258,47 +365,78 @@ public class ConfluenceFilteringListener extends AbstractEventListener
             logger.info("Computing the link mapping and looking for collisions…");
         }
 
-        AtomicReference<String> currentSpace = new AtomicReference<>();
-
-        Map<String, List<String>> reverseMapping = new HashMap<>();
-        Set<String> collidingReferences = new HashSet<>();
-        Map<String, String> spaceByRef = new HashMap<>();
-
-        Session session = store == null ? null : store.beginTransaction();
-        ConfluenceLinkMappingReceiver mapper = new MyConfluenceLinkMappingReceiver(store, currentSpace, session,
-            reverseMapping, collidingReferences, spaceByRef);
-        linkMapper.getLinkMapping(mapper);
-        for (String collidingReference : collidingReferences) {
-            String spaceKey = spaceByRef.get(collidingReference);
-            List<String> pageTitles = reverseMapping.get(collidingReference);
-            logger.error(COLLISION_MARKER, "Reference [{}] collides in space [{}] for pages [{}]",
-                collidingReference, spaceKey, pageTitles);
+        ReferenceCollisionDetector detector = new ReferenceCollisionDetector();
+
+        int parallelism = store == null ? 1 : getIntOutputProperty(status, LINK_MAPPING_PARALLELISM, 1);
+        if (parallelism > 1) {
+            // The tables are created beforehand so the workers don't all try to create them
+            store.createTables();
+            ParallelLinkMappingReceiver receiver = new ParallelLinkMappingReceiver(parallelism,
+                () -> newLinkMappingCommitter(store, status, onlySpaces, true), serializer, execution,
+                executionContextManager, logger);
+            Collection<String> failedSpaces;
+            try {
+                try {
+                    linkMapper.getLinkMapping(receiver);
+                } finally {
+                    failedSpaces = receiver.finish(detector);
+                }
+            } catch (InterruptedException e) {
+                // The spaces which may not be stored were logged, the collisions are not looked for
+                Thread.currentThread().interrupt();
+                return;
+            }
+            reportFailedSpaces(failedSpaces);
+        } else {
+            LinkMappingCommitter committer = store == null
+                ? null
+                : newLinkMappingCommitter(store, status, onlySpaces,
+                    isOutputPropertyEnabled(status, LINK_MAPPING_COMMIT_PER_SPACE));
+            linkMapper.getLinkMapping(
+                new MyConfluenceLinkMappingReceiver(committer, new AtomicReference<>(), detector));
+            if (committer != null) {
+                reportFailedSpaces(committer.close());
+            }
+        }
+        if (detector.hasSuspects()) {
+            // Only the pages of which the reference hash was seen twice are looked at during this second pass
+            logger.info("Checking the references which may collide in spaces [{}]…", detector.getSuspectSpaces());
+            linkMapper.getLinkMapping(new CollisionVerifyingReceiver(detector));
+            for (Map.Entry<String, List<String>> collision : detector.getCollisions().entrySet()) {
+                String collidingReference = collision.getKey();
+                logger.error(COLLISION_MARKER, "Reference [{}] collides in space [{}] for pages [{}]",
+                    collidingReference, detector.getSpace(collidingReference), collision.getValue());
+            }
         }
-        if (session != null) {
-            store.endTransaction(true);
+    }
+
+    private LinkMappingCommitter newLinkMappingCommitter(LinkMappingStore store, ConfluenceMigrationJobStatus status,
+        Collection<String> onlySpaces, boolean commitPerSpace)
+    {
+        return new LinkMappingCommitter(store, getLinkMappingFlushSize(status),
+            getIntOutputProperty(status, LINK_MAPPING_COMMIT_INTERVAL, 0), commitPerSpace, LINK_MAPPING_SPACE_RETRIES,
+            onlySpaces, status, logger);
+    }
+
+    private void reportFailedSpaces(Collection<String> failedSpaces)
+    {
+        if (!failedSpaces.isEmpty()) {
+            logger.error("Failed to store the link mapping of spaces [{}]", failedSpaces);
         }
     }
 
     private final class MyConfluenceLinkMappingReceiver implements ConfluenceLinkMappingReceiver
     {
         private final AtomicReference<String> currentSpace;
-        private final Session session;
-        private final Map<String, List<String>> reverseMapping;
-        private final Set<String> collidingReferences;
-        private final Map<String, String> spaceByRef;
-        private final LinkMappingStore store;
-
-        private MyConfluenceLinkMappingReceiver(LinkMappingStore store, AtomicReference<String> currentSpace,
-            Session session,
-            Map<String, List<String>> reverseMapping, Set<String> collidingReferences,
-            Map<String, String> spaceByRef)
+        private final ReferenceCollisionDetector detector;
+        private final LinkMappingCommitter committer;
+
+        private MyConfluenceLinkMappingReceiver(LinkMappingCommitter committer, AtomicReference<String> currentSpace,
+            ReferenceCollisionDetector detector)
         {
             this.currentSpace = currentSpace;
-            this.session = session;
-            this.reverseMapping = reverseMapping;
-            this.collidingReferences = collidingReferences;
-            this.spaceByRef = spaceByRef;
-            this.store = store;
+            this.detector = detector;
+            this.committer = committer;
         }
 
         @Override
@@ -307,9 +445,8 @@ public class ConfluenceFilteringListener extends AbstractEventListener
             if (!spaceKey.equals(currentSpace.get())) {
                 currentSpace.set(spaceKey);
             }
-            String serialized = serializer.serialize(reference);
-            if (store != null && session != null) {
-                store.add(session, pageId, serialized);
+            if (committer != null && committer.accepts(spaceKey)) {
+                committer.add(spaceKey, pageId, serializer.serialize(reference));
             }
         }
 
@@ -320,20 +457,37 @@ public class ConfluenceFilteringListener extends AbstractEventListener
                 currentSpace.set(spaceKey);
             }
             String serialized = serializer.serialize(reference);
-            if (store != null && session != null) {
-                store.add(session, spaceKey, pageTitle, serialized);
+            if (committer != null && committer.accepts(spaceKey)) {
+                committer.add(spaceKey, pageTitle, serialized);
             }
 
             // for collision checking
-            List<String> list = reverseMapping.get(serialized);
-            if (list == null) {
-                list = new ArrayList<>(1);
-                reverseMapping.put(serialized, list);
-            } else {
-                collidingReferences.add(serialized);
-                spaceByRef.put(serialized, spaceKey);
+            detector.add(spaceKey, pageTitle, serialized);
+        }
+    }
+
+    private final class CollisionVerifyingReceiver implements ConfluenceLinkMappingReceiver
+    {
+        private final ReferenceCollisionDetector detector;
+
+        private CollisionVerifyingReceiver(ReferenceCollisionDetector detector)
+        {
+            this.detector = detector;
+        }
+
+        @Override
+        public void addPage(String spaceKey, long pageId, EntityReference reference)
+        {
+            // Collisions are only looked for among pages found by title
+        }
+
+        @Override
+        public void addPage(String spaceKey, String pageTitle, EntityReference reference)
+        {
+            // Only the references of the pages which may collide are serialized again
+            if (detector.isSuspect(spaceKey, pageTitle)) {
+                detector.verify(spaceKey, pageTitle, serializer.serialize(reference));
             }
-            list.add(pageTitle);
         }
     }
 }
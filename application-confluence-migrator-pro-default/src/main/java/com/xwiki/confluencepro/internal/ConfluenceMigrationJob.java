@@ -19,6 +19,7 @@
  */
 package com.xwiki.confluencepro.internal;
 
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -50,6 +51,7 @@ import org.xwiki.query.QueryManager;
 import com.xwiki.confluencepro.ConfluenceMigrationJobRequest;
 import com.xwiki.confluencepro.ConfluenceMigrationJobStatus;
 import com.xwiki.confluencepro.ConfluenceMigrationManager;
+import com.xwiki.pro.internal.resolvers.LinkMappingMetrics;
 
 /**
  * The job that will migrate the confluence package into XWiki.
@@ -82,6 +84,8 @@ public class ConfluenceMigrationJob
 
     private static final String SOURCE = "source";
 
+    private static final String IMPORT_PARALLELISM = "importParallelism";
+
     private static final JobGroupPath GROUP = new JobGroupPath(Arrays.asList("confluencemigratorpro", "migration"));
 
     @Inject
@@ -105,6 +109,15 @@ public class ConfluenceMigrationJob
     @Inject
     private QueryManager queryManager;
 
+    @Inject
+    private LinkMappingMetrics linkMappingMetrics;
+
+    @Inject
+    private ParallelFilterJobRunner parallelFilterJobRunner;
+
+    @Inject
+    private ConfluencePackageCache packageCache;
+
     private ConfluenceMigrationJobStatus jobStatus;
 
     /**
@@ -134,6 +147,7 @@ public class ConfluenceMigrationJob
         boolean rightOnly = isGeneralParameterEnabled("rightOnly");
         boolean attachmentsOnly = isGeneralParameterEnabled("attachmentsOnly");
         migrationManager.disablePrerequisites();
+        migrationManager.startLogAnalysis(getStatus());
         Map<String, Object> inputProperties = getFilterInputProperties();
 
         Map<String, Object> outputProperties = getFilterOutputProperties();
@@ -149,25 +163,97 @@ public class ConfluenceMigrationJob
 
         maybeReducePageCount(inputProperties);
 
-        FilterStreamConverterJobRequest filterJobRequest = new FilterStreamConverterJobRequest(
-            FilterStreamType.unserialize(CONFLUENCE_XML_ROLEHINT), inputProperties,
-            FilterStreamType.unserialize(outputStreamRoleHint), outputProperties);
         boolean interactive = !isGeneralParameterEnabled("skipQuestions")
-            && !isGeneralParameterEnabled("onlyLinkMapping");
-        filterJobRequest.setInteractive(interactive);
+            && !isGeneralParameterEnabled(ConfluenceFilteringListener.ONLY_LINK_MAPPING);
+        int parallelism = getImportParallelism(inputProperties);
+        if (parallelism > 1) {
+            // The spaces to import can't be selected in each of the filter jobs
+            interactive = false;
+        }
         request.setInteractive(interactive);
         progressManager.pushLevelProgress(1, this);
-        logger.info("Starting Filter Job");
         progressManager.startStep(this);
-        Job filterJob = this.filterJobProvider.get();
-        filterJob.initialize(filterJobRequest);
-        setCancelable(filterJob);
-        filterJob.run();
+        String cachedSource = packageCache.acquire(inputProperties.get(SOURCE));
+        if (cachedSource != null) {
+            inputProperties.put(SOURCE, cachedSource);
+        }
+        try (LinkMappingMetrics.Scope linkMappingMetricsScope = linkMappingMetrics.openScope()) {
+            if (parallelism > 1) {
+                logger.info("Starting [{}] Filter Jobs importing the spaces in parallel", parallelism);
+                parallelFilterJobRunner.run(this.jobStatus, parallelism, () -> createFilterJobRequest(
+                    new HashMap<>(inputProperties), outputStreamRoleHint, new HashMap<>(outputProperties)));
+            } else {
+                logger.info("Starting Filter Job");
+                FilterStreamConverterJobRequest filterJobRequest =
+                    createFilterJobRequest(inputProperties, outputStreamRoleHint, outputProperties);
+                filterJobRequest.setInteractive(interactive);
+                Job filterJob = this.filterJobProvider.get();
+                filterJob.initialize(filterJobRequest);
+                setCancelable(filterJob);
+                filterJob.run();
+            }
+            this.jobStatus.setLinkMappingMetrics(linkMappingMetricsScope.snapshot().toMap());
+        } finally {
+            packageCache.release(cachedSource);
+        }
 
         progressManager.popLevelProgress(this);
 
-        migrationManager.updateAndSaveMigration(getStatus());
         migrationManager.enablePrerequisites();
+        migrationManager.scheduleReport(getStatus());
+    }
+
+    private static FilterStreamConverterJobRequest createFilterJobRequest(Map<String, Object> inputProperties,
+        String outputStreamRoleHint, Map<String, Object> outputProperties)
+    {
+        return new FilterStreamConverterJobRequest(
+            FilterStreamType.unserialize(CONFLUENCE_XML_ROLEHINT), inputProperties,
+            FilterStreamType.unserialize(outputStreamRoleHint), outputProperties);
+    }
+
+    private int getImportParallelism(Map<String, Object> inputProperties)
+    {
+        int parallelism = getIntGeneralParameter(IMPORT_PARALLELISM);
+        if (parallelism <= 1) {
+            return 1;
+        }
+
+        if (isGeneralParameterEnabled(ConfluenceFilteringListener.ONLY_LINK_MAPPING)) {
+            // Nothing is imported
+            return 1;
+        }
+
+        if (inputProperties.get(SOURCE) instanceof InputStream) {
+            logger.warn("The package can't be read by parallel filter jobs from a stream, importing the spaces "
+                + "using a single filter job");
+            return 1;
+        }
+
+        if (getMaxPageCount(inputProperties) > -1) {
+            logger.warn("The maximum number of pages to import is global, importing the spaces using a single "
+                + "filter job");
+            return 1;
+        }
+
+        return parallelism;
+    }
+
+    private int getIntGeneralParameter(String parameterName)
+    {
+        Object value = request.getOutputProperties().get(parameterName);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+
+        if (value instanceof String && !((String) value).isEmpty()) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value [{}] for [{}], ignoring it", value, parameterName);
+            }
+        }
+
+        return 0;
     }
 
     private void setCancelable(Job filterJob)
@@ -181,7 +267,7 @@ public class ConfluenceMigrationJob
 
     private void maybeReducePageCount(Map<String, Object> inputProperties)
     {
-        int maxPageCount = getMaxPageCount(request);
+        int maxPageCount = getMaxPageCount(request.getInputProperties());
 
         if (maxPageCount > -1 && maxPageCount <= TRIAL_PAGE_COUNT) {
             return;
@@ -211,10 +297,10 @@ public class ConfluenceMigrationJob
         }
     }
 
-    private static int getMaxPageCount(ConfluenceMigrationJobRequest request)
+    private static int getMaxPageCount(Map<String, Object> inputProperties)
     {
         int maxPageCount = -1;
-        Object maxPageCountObject = request.getInputProperties().get(MAX_PAGE_COUNT);
+        Object maxPageCountObject = inputProperties.get(MAX_PAGE_COUNT);
         if (maxPageCountObject instanceof String) {
             try {
                 maxPageCount = Integer.parseInt((String) maxPageCountObject);
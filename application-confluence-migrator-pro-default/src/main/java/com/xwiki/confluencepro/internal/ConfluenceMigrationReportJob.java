@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+
+import com.xwiki.confluencepro.ConfluenceMigrationManager;
+import com.xwiki.confluencepro.ConfluenceMigrationReportJobRequest;
+
+/**
+ * The job that generates the report of a migration once its pages are imported. It runs in its own group so the
+ * next migration doesn't need to wait for it.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+@Component
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+@Named(ConfluenceMigrationReportJob.JOBTYPE)
+public class ConfluenceMigrationReportJob
+    extends AbstractJob<ConfluenceMigrationReportJobRequest, DefaultJobStatus<ConfluenceMigrationReportJobRequest>>
+    implements GroupedJob
+{
+    /**
+     * The identifier for the job.
+     */
+    public static final String JOBTYPE = "confluence.migrationreport";
+
+    private static final JobGroupPath GROUP = new JobGroupPath(Arrays.asList("confluencemigratorpro", "report"));
+
+    @Inject
+    private ConfluenceMigrationManager migrationManager;
+
+    @Override
+    protected void runInternal()
+    {
+        logger.info("Generating the migration report");
+        migrationManager.updateAndSaveMigration(request.getMigrationJobStatus());
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        return GROUP;
+    }
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.comparator.LastModifiedFileComparator;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.environment.Environment;
+
+import com.xwiki.confluencepro.internal.configuration.DefaultConfluenceMigratorProConfiguration;
+
+/**
+ * Keeps the extracted Confluence packages in the permanent directory, so importing the same package again (for
+ * instance a link mapping only migration followed by the actual migration, or several filter jobs importing the spaces
+ * in parallel) reads the extracted directory instead of extracting the package each time. The packages are identified
+ * by the SHA-256 of their content, and the least recently used ones are removed when the size of the cache goes over
+ * the configured limit.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+@Component(roles = ConfluencePackageCache.class)
+@Singleton
+public class ConfluencePackageCache
+{
+    private static final String CACHE_PATH = "confluence-migrator-pro/packages";
+
+    private static final String FILE_PREFIX = "file:";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final long MB = 1024L * 1024L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_HASHES = 100;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final int LOCK_STRIPES = 32;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private DefaultConfluenceMigratorProConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    // The hashes of the most recently used package files
+    private final Map<String, String> hashes = Collections.synchronizedMap(new LinkedHashMap<>(MAX_HASHES, LOAD_FACTOR, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            return size() > MAX_HASHES;
+        }
+    });
+
+    // Guarded by this
+    private final Map<String, Integer> usages = new HashMap<>();
+
+    // A package is extracted, acquired and evicted while holding the lock of its hash
+    private final Object[] locks = Stream.generate(Object::new).limit(LOCK_STRIPES).toArray();
+
+    private final Object evictionLock = new Object();
+
+    /**
+     * The package doesn't fit in the cache once extracted.
+     */
+    private static final class PackageTooBigException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Extract the package if it is not in the cache yet, and protect it from eviction until it is released. Several
+     * packages can be hashed and extracted at the same time.
+     *
+     * @param source the source input property of the Confluence input filter stream
+     * @return the source to use instead, pointing to the extracted package, or null if the package is not cached (the
+     *     cache is disabled, the source is not a zip file or the package doesn't fit in the cache)
+     */
+    public String acquire(Object source)
+    {
+        long limit = configuration.getPackageCacheSize() * MB;
+        if (limit <= 0 || !(source instanceof String) || !((String) source).startsWith(FILE_PREFIX)) {
+            return null;
+        }
+
+        File packageFile = new File(((String) source).substring(FILE_PREFIX.length()));
+        if (!packageFile.isFile()) {
+            return null;
+        }
+
+        try {
+            String hash = getHash(packageFile);
+            File directory = new File(getCacheDirectory(), hash);
+            synchronized (getLock(hash)) {
+                if (!getExtractedPackage(packageFile, directory, limit)) {
+                    return null;
+                }
+                use(directory);
+            }
+            evict(limit);
+            return FILE_PREFIX + "//" + directory.getAbsolutePath();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.warn("Failed to cache the Confluence package [{}], it will be extracted by the migration",
+                packageFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Allow the eviction of a package returned by {@link #acquire(Object)}.
+     *
+     * @param cachedSource the source returned by {@link #acquire(Object)}, can be null
+     */
+    public synchronized void release(String cachedSource)
+    {
+        if (cachedSource != null) {
+            String path = new File(cachedSource.substring(FILE_PREFIX.length())).getAbsolutePath();
+            usages.computeIfPresent(path, (k, v) -> v > 1 ? v - 1 : null);
+        }
+    }
+
+    private synchronized void use(File directory)
+    {
+        usages.merge(directory.getAbsolutePath(), 1, Integer::sum);
+    }
+
+    private synchronized boolean isUsed(File directory)
+    {
+        return usages.containsKey(directory.getAbsolutePath());
+    }
+
+    private Object getLock(String hash)
+    {
+        return locks[Math.floorMod(hash.hashCode(), locks.length)];
+    }
+
+    private boolean getExtractedPackage(File packageFile, File directory, long limit) throws IOException
+    {
+        if (directory.isDirectory()) {
+            logger.info("Using the Confluence package [{}] already extracted in [{}]", packageFile, directory);
+            // The modification date of the directory is used to remove the least recently used packages first
+            if (!directory.setLastModified(System.currentTimeMillis())) {
+                logger.debug("Failed to update the modification date of [{}]", directory);
+            }
+            return true;
+        }
+
+        // Extract in a temporary directory first so an interrupted extraction is never used
+        File tmpDirectory = new File(directory.getParentFile(), directory.getName() + TMP_SUFFIX);
+        try (ZipFile zip = new ZipFile(packageFile)) {
+            if (getExtractedSize(zip) > limit) {
+                throw new PackageTooBigException();
+            }
+
+            FileUtils.deleteDirectory(tmpDirectory);
+            logger.info("Extracting the Confluence package [{}] in [{}]", packageFile, directory);
+            extract(zip, tmpDirectory, limit);
+            if (!tmpDirectory.renameTo(directory)) {
+                throw new IOException(String.format("Failed to move [%s] to [%s]", tmpDirectory, directory));
+            }
+            return true;
+        } catch (PackageTooBigException e) {
+            logger.info("The Confluence package [{}] is bigger than the package cache once extracted, it will "
+                + "not be cached", packageFile);
+            FileUtils.deleteDirectory(tmpDirectory);
+            return false;
+        } catch (ZipException e) {
+            logger.debug("[{}] is not a zip file, it will not be cached", packageFile, e);
+            return false;
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(tmpDirectory);
+            throw e;
+        }
+    }
+
+    private static long getExtractedSize(ZipFile zip)
+    {
+        // The declared sizes can be missing or wrong, the extracted bytes are counted as well
+        long size = 0;
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            size += Math.max(0, entries.nextElement().getSize());
+        }
+        return size;
+    }
+
+    private static void extract(ZipFile zip, File directory, long limit) throws IOException
+    {
+        Path root = directory.toPath().toAbsolutePath().normalize();
+        long remaining = limit;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            Path target = root.resolve(entry.getName()).normalize();
+            if (!target.startsWith(root)) {
+                throw new IOException(String.format("The entry [%s] is outside of the package", entry.getName()));
+            }
+            if (entry.isDirectory()) {
+                Files.createDirectories(target);
+            } else {
+                Files.createDirectories(target.getParent());
+                try (InputStream in = zip.getInputStream(entry); OutputStream out = Files.newOutputStream(target,
+                    StandardOpenOption.CREATE_NEW)) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        remaining -= read;
+                        if (remaining < 0) {
+                            throw new PackageTooBigException();
+                        }
+                        out.write(buffer, 0, read);
+                    }
+                }
+            }
+        }
+    }
+
+    private String getHash(File packageFile) throws IOException, NoSuchAlgorithmException
+    {
+        // Hashing a big package takes time, so the hash is kept as long as the file doesn't change
+        String key = packageFile.getAbsolutePath() + ':' + packageFile.length() + ':' + packageFile.lastModified();
+        String hash = hashes.get(key);
+        if (hash == null) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = Files.newInputStream(packageFile.toPath())) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            hash = String.format("%064x", new BigInteger(1, digest.digest()));
+            hashes.put(key, hash);
+        }
+        return hash;
+    }
+
+    private void evict(long limit) throws IOException
+    {
+        synchronized (evictionLock) {
+            File[] directories = getCacheDirectory().listFiles(File::isDirectory);
+            if (directories == null) {
+                return;
+            }
+
+            LastModifiedFileComparator.LASTMODIFIED_REVERSE.sort(directories);
+            long size = 0;
+            for (File directory : directories) {
+                String hash = StringUtils.removeEnd(directory.getName(), TMP_SUFFIX);
+                synchronized (getLock(hash)) {
+                    size += evict(directory, hash, size, limit);
+                }
+            }
+        }
+    }
+
+    private long evict(File directory, String hash, long size, long limit) throws IOException
+    {
+        if (!directory.isDirectory()) {
+            return 0;
+        }
+
+        if (directory.getName().endsWith(TMP_SUFFIX)) {
+            // Left by an interrupted extraction, since extractions hold the lock of their hash
+            FileUtils.deleteDirectory(directory);
+            return 0;
+        }
+
+        long directorySize = FileUtils.sizeOfDirectory(directory);
+        if (size + directorySize > limit && !isUsed(directory)) {
+            logger.info("Removing the extracted Confluence package [{}] from the package cache", directory);
+            FileUtils.deleteDirectory(directory);
+            hashes.values().removeIf(hash::equals);
+            return 0;
+        }
+        return directorySize;
+    }
+
+    private File getCacheDirectory()
+    {
+        return new File(environment.getPermanentDirectory(), CACHE_PATH);
+    }
+}
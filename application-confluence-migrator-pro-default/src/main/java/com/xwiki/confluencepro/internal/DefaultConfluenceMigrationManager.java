@@ -21,6 +21,8 @@ package com.xwiki.confluencepro.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -29,33 +31,49 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiAttachmentContent;
 import com.xpn.xwiki.store.DatabaseProduct;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
-import org.slf4j.Marker;
-import org.slf4j.MarkerFactory;
-import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.contrib.confluence.filter.internal.ConfluenceFilter;
-import org.xwiki.logging.LogLevel;
-import org.xwiki.logging.event.LogEvent;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.context.concurrent.ContextStoreManager;
+import org.xwiki.job.JobException;
+import org.xwiki.job.JobExecutor;
+import org.xwiki.job.event.status.CancelableJobStatus;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.logging.tail.LogTail;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
@@ -69,6 +87,7 @@ import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xwiki.confluencepro.ConfluenceMigrationJobStatus;
 import com.xwiki.confluencepro.ConfluenceMigrationManager;
+import com.xwiki.confluencepro.ConfluenceMigrationReportJobRequest;
 import com.xwiki.confluencepro.MigrationExtraDetails;
 
 import org.xwiki.query.QueryException;
@@ -78,6 +97,9 @@ import static com.xwiki.confluencepro.internal.ConfluenceFilteringListener.ONLY_
 import static com.xwiki.confluencepro.internal.ConfluenceFilteringListener.isTrue;
 import static com.xwiki.confluencepro.script.ConfluenceMigrationScriptService.PREFILLED_INPUT_PARAMETERS;
 import static com.xwiki.confluencepro.script.ConfluenceMigrationScriptService.PREFILLED_OUTPUT_PARAMETERS;
+import static com.xwiki.confluencepro.internal.IndexedJsonReport.COMPRESSED_EXTENSION;
+import static com.xwiki.confluencepro.internal.IndexedJsonReport.INDEX_EXTENSION;
+import static com.xwiki.confluencepro.internal.IndexedJsonReport.PLAIN_EXTENSION;
 import static org.xwiki.query.Query.HQL;
 
 /**
@@ -88,47 +110,47 @@ import static org.xwiki.query.Query.HQL;
  */
 @Component
 @Singleton
-public class DefaultConfluenceMigrationManager implements ConfluenceMigrationManager
+public class DefaultConfluenceMigrationManager implements ConfluenceMigrationManager, Disposable
 {
-    private static final String OCCURRENCES_KEY = "occurrences";
-
-    private static final String PAGES_KEY = "pages";
-
     private static final List<String> CONFLUENCE_MIGRATOR_SPACE = Arrays.asList("ConfluenceMigratorPro", "Code");
 
     private static final LocalDocumentReference MIGRATION_OBJECT =
         new LocalDocumentReference(CONFLUENCE_MIGRATOR_SPACE, "MigrationClass");
 
-    private static final Marker CONFLUENCE_REF_MARKER = MarkerFactory.getMarker("confluenceRef");
-
     private static final String EXECUTED = "executed";
 
-    private static final String AN_EXCEPTION_OCCURRED = "An exception occurred";
+    private static final int REPORT_PENDING = 5;
+
+    private static final int REPORT_PARALLELISM = 4;
 
-    private static final String DATA_JSON = "data.json";
+    private static final String AN_EXCEPTION_OCCURRED = "An exception occurred";
 
     private static final TypeReference<Map<String, String>> STRING_MAP_TYPE_REF =
         new TypeReference<Map<String, String>>() { };
-    private static final TypeReference<Map<String, Map<String, Integer>>> COUNT_MAP_TYPE_REF =
-        new TypeReference<Map<String, Map<String, Integer>>>() { };
-    private static final TypeReference<Map<String, Map<String, Set<?>>>> DOCS_MAP_TYPE_REF =
-        new TypeReference<Map<String, Map<String, Set<?>>>>() { };
 
-    private static final String PAGE_ID = "pageId";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final ObjectWriter JSON_WRITER = OBJECT_MAPPER.writer();
+
+    private static final JsonFactory JSON_FACTORY = OBJECT_MAPPER.getFactory();
+
+    private static final long LOG_ANALYSIS_DELAY = 2;
+
+    private static final int SUBJECT_QUERY_CHUNK_SIZE = 1000;
 
-    private static final Marker SEND_PAGE_MARKER = MarkerFactory.getMarker("ConfluenceSendingPage");
+    private static final String COMPRESS_REPORTS = "compressReports";
 
-    private static final Marker SEND_TEMPLATE_MARKER = MarkerFactory.getMarker("ConfluenceSendingTemplate");
+    private static final String FAILED_TO_READ_REPORT = "Failed to read the report [{}] of migration [{}]";
 
-    private static final Marker UNHANDLED_PARAMETER_MARKER = MarkerFactory.getMarker("unhandledConfluenceParameter");
-    private static final Marker UNHANDLED_PARAMETER_VALUE_MARKER =
-        MarkerFactory.getMarker("unhandledConfluenceParameterValue");
+    private static final String COULD_NOT_SAVE = "Could not save [{}]";
 
-    private static final String OTHER_ISSUES = "otherIssues";
-    private static final String SKIPPED = "skipped";
-    private static final String CONFLUENCE_REF_WARNINGS = "confluenceRefWarnings";
-    private static final String UNHANDLED_PARAMETERS = "unhandledParameters";
-    private static final String UNHANDLED_PARAMETER_VALUES = "unhandledParameterValues";
+    private static final String DOCS = "docs";
+
+    private static final String SPACES = "spaces";
+
+    private static final String RESUME = "resume";
+
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
 
     @Inject
     private Provider<XWikiContext> contextProvider;
@@ -155,6 +177,90 @@ public class DefaultConfluenceMigrationManager implements ConfluenceMigrationMan
     @Inject
     private MigrationExtraDetails migrationExtraDetails;
 
+    @Inject
+    private MacroUsageStore macroUsageStore;
+
+    @Inject
+    private JobExecutor jobExecutor;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private ContextStoreManager contextStoreManager;
+
+    @Inject
+    private MigrationCheckpointStore checkpointStore;
+
+    private final Map<ConfluenceMigrationJobStatus, LogAnalysis> logAnalyses = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService logAnalysisExecutor;
+
+    private ExecutorService reportExecutor;
+
+    @FunctionalInterface
+    private interface ReportReader
+    {
+        Object read(InputStream content, IndexedJsonReport.Index index) throws IOException;
+    }
+
+    private static final class LogAnalysis
+    {
+        private final MigrationLogAnalyzer analyzer;
+
+        private final DocumentReference migration;
+
+        // The context of the migration job, used to save the checkpoints
+        private final Map<String, Serializable> context;
+
+        private ScheduledFuture<?> future;
+
+        private long lastCheckpoint = System.currentTimeMillis();
+
+        private boolean stopped;
+
+        private LogAnalysis(MigrationLogAnalyzer analyzer, DocumentReference migration,
+            Map<String, Serializable> context)
+        {
+            this.analyzer = analyzer;
+            this.migration = migration;
+            this.context = context;
+        }
+    }
+
+    @Override
+    public void scheduleReport(ConfluenceMigrationJobStatus jobStatus)
+    {
+        XWikiContext context = contextProvider.get();
+        XWiki wiki = context.getWiki();
+        DocumentReference statusDocumentReference = jobStatus.getRequest().getStatusDocumentReference();
+        try {
+            // The report job finishes the analysis of the log. Stop following it, the import job is about to end.
+            LogAnalysis analysis = logAnalyses.get(jobStatus);
+            if (analysis != null) {
+                stopLogAnalysis(analysis);
+            }
+
+            XWikiDocument document = wiki.getDocument(statusDocumentReference, context).clone();
+            BaseObject object = document.getXObject(MIGRATION_OBJECT);
+            object.set(EXECUTED, REPORT_PENDING, context);
+            object.setStringListValue(SPACES, new ArrayList<>(jobStatus.getSpaces()));
+            wiki.saveDocument(document, "Migration imported, generating the report", context);
+
+            jobExecutor.execute(ConfluenceMigrationReportJob.JOBTYPE,
+                new ConfluenceMigrationReportJobRequest(jobStatus));
+            return;
+        } catch (XWikiException | JobException e) {
+            logger.error("Failed to start the report job of migration [{}], generating the report now",
+                statusDocumentReference, e);
+        }
+
+        updateAndSaveMigration(jobStatus);
+    }
+
     @Override
     public void updateAndSaveMigration(ConfluenceMigrationJobStatus jobStatus)
     {
@@ -167,7 +273,7 @@ public class DefaultConfluenceMigrationManager implements ConfluenceMigrationMan
             document = wiki.getDocument(statusDocumentReference, context).clone();
             object = document.getXObject(MIGRATION_OBJECT);
             object.set(EXECUTED, jobStatus.isCanceled() ? 3 : 1, context);
-            object.setStringListValue("spaces", new ArrayList<>(jobStatus.getSpaces()));
+            object.setStringListValue(SPACES, new ArrayList<>(jobStatus.getSpaces()));
             completeExtraDetails(object, context);
             String root = updateMigrationPropertiesAndGetRoot(object);
             Map<String, Map<String, Integer>> macroPages = analyseLogs(jobStatus, object, document, root);
@@ -179,14 +285,17 @@ public class DefaultConfluenceMigrationManager implements ConfluenceMigrationMan
                         macroCounts.put(macroName, entry.getValue() + macroCounts.computeIfAbsent(macroName, k -> 0));
                     }
                 }
-                object.setLargeStringValue("macros", new ObjectMapper().writeValueAsString(macroCounts));
-                persistMacroMap(macroPages);
+                object.setLargeStringValue("macros", JSON_WRITER.writeValueAsString(macroCounts));
+                macroUsageStore.addUsage(macroPages);
             }
 
             if (StringUtils.isEmpty(document.getTitle())) {
                 document.setTitle(statusDocumentReference.getName());
             }
+            // The migration can't be resumed anymore
+            object.setLargeStringValue(MigrationCheckpointStore.CHECKPOINT, "");
             wiki.saveDocument(document, "Migration executed!", context);
+            checkpointStore.clear(statusDocumentReference);
             logger.info("Migration finished and saved");
         } catch (Exception e) {
             if (object != null) {
@@ -225,7 +334,7 @@ public class DefaultConfluenceMigrationManager implements ConfluenceMigrationMan
     {
         boolean update = false;
         String value = object.getLargeStringValue(field);
-        Map<String, String> props = new ObjectMapper().readValue(value, STRING_MAP_TYPE_REF);
+        Map<String, String> props = OBJECT_MAPPER.readValue(value, STRING_MAP_TYPE_REF);
         for (Map.Entry<String, String> def : defaults.entrySet()) {
             String key = def.getKey();
             String v = props.get(key);
@@ -235,285 +344,262 @@ public class DefaultConfluenceMigrationManager implements ConfluenceMigrationMan
             }
         }
         if (update) {
-            object.setLargeStringValue(field, new ObjectMapper().writeValueAsString(props));
+            object.setLargeStringValue(field, JSON_WRITER.writeValueAsString(props));
         }
         return props;
     }
 
-    private void replaceKey(Map<String, List<LogLine<SimpleLog>>> m, CurrentPage currentPage)
+    @Override
+    public void startLogAnalysis(ConfluenceMigrationJobStatus jobStatus)
     {
-        String oldKey = toString(currentPage.id);
-        String newKey = currentPage.ref;
-        if (m.containsKey(oldKey)) {
-            List<LogLine<SimpleLog>> l = m.get(newKey);
-            if (l == null) {
-                m.put(newKey, m.remove(oldKey));
-            } else {
-                l.addAll(m.remove(oldKey));
-            }
+        MigrationLogAnalyzer analyzer = new MigrationLogAnalyzer(serializer, localSerializer, logger);
+        DocumentReference migration = jobStatus.getRequest().getStatusDocumentReference();
+        if (isTrue(jobStatus.getRequest().getOutputProperties().getOrDefault(RESUME, "0").toString())) {
+            resume(analyzer, jobStatus, migration);
+        } else {
+            // Forget the checkpoints of a previous run of this migration
+            checkpointStore.clear(migration);
         }
-    }
 
-    private static final class LogLine<T>
-    {
-        // Keep the fields public: it's important for the JSON serialization.
-        public Long pageId;
-        public Long originalVersion;
-        public String spaceKey;
-        public String pageTitle;
-        public T data;
+        Map<String, Serializable> context;
+        try {
+            context = contextStoreManager.save(contextStoreManager.getSupportedEntries());
+        } catch (ComponentLookupException e) {
+            logger.error("Failed to save the context of the migration, checkpoints won't be saved", e);
+            context = null;
+        }
+
+        LogAnalysis analysis = new LogAnalysis(analyzer, migration, context);
+        analysis.future = getLogAnalysisExecutor().scheduleWithFixedDelay(() -> {
+            try {
+                analyse(analysis, jobStatus);
+            } catch (Exception e) {
+                // An exception would cancel the next runs
+                logger.error("Failed to analyse the log of migration [{}]", migration, e);
+            }
+        }, LOG_ANALYSIS_DELAY, LOG_ANALYSIS_DELAY, TimeUnit.SECONDS);
+        logAnalyses.put(jobStatus, analysis);
     }
 
-    private static final class SimpleLog
+    private void resume(MigrationLogAnalyzer analyzer, ConfluenceMigrationJobStatus jobStatus,
+        DocumentReference migration)
     {
-        // Keep the fields public: it's important for the JSON serialization.
-        public String level;
-        public String marker;
-        public String msg;
-        public Object[] args;
+        MigrationLogAnalyzer.Checkpoint checkpoint = checkpointStore.load(migration);
+        if (checkpoint == null) {
+            logger.warn("No checkpoint was found for migration [{}], all the pages will be imported", migration);
+            checkpointStore.clear(migration);
+            return;
+        }
+
+        analyzer.restore(checkpoint);
+        jobStatus.setCheckpoint(checkpoint.spaces == null || checkpoint.spaces.isEmpty() ? null : checkpoint.spaces,
+            checkpoint.completedSpaces, new HashSet<>(checkpoint.savedPages));
+        logger.info("Resuming the migration: [{}] spaces were fully imported and [{}] pages were saved",
+            checkpoint.completedSpaces.size(), checkpoint.savedPages.size());
     }
 
-    private static final class CurrentPage
+    private void analyse(LogAnalysis analysis, ConfluenceMigrationJobStatus jobStatus)
     {
-        private Long id;
-        private Long originalVersion;
-        private String spaceKey;
-        private String pageTitle;
-        private String ref;
-
-        private boolean isCurrentRevision()
-        {
-            return originalVersion == null || (originalVersion.equals(id));
-        }
-
-        private <T> LogLine<T> toLogLine(T data)
-        {
-            LogLine<T> logLine = new LogLine<>();
-            logLine.data = data;
-            logLine.pageId = id;
-            logLine.originalVersion = originalVersion;
-            logLine.spaceKey = spaceKey;
-            logLine.pageTitle = pageTitle;
-            return logLine;
+        if (JobStatus.State.FINISHED.equals(jobStatus.getState())) {
+            // The job ended without saving the migration, the analysis is not needed anymore
+            if (logAnalyses.remove(jobStatus) != null) {
+                stopLogAnalysis(analysis);
+            }
+            return;
         }
 
-        private LogLine<SimpleLog> toLogLine(LogEvent e)
-        {
-            SimpleLog cl = new SimpleLog();
-            cl.args = e.getArgumentArray();
-            cl.marker = e.getMarker() == null ? "" : e.getMarker().getName();
-            cl.msg = e.getMessage();
-            cl.level = e.getLevel().name();
-            return toLogLine(cl);
+        // The analysis is not stopped while the log is being read or a checkpoint is being saved
+        synchronized (analysis) {
+            if (!analysis.stopped) {
+                catchUp(analysis.analyzer, jobStatus);
+                checkpoint(analysis, jobStatus);
+            }
         }
     }
 
-    private boolean ignoredIssue(LogEvent event)
+    private void checkpoint(LogAnalysis analysis, ConfluenceMigrationJobStatus jobStatus)
     {
-        if ("Failed to send event [{}] to listener [{}]".equals(event.getMessage())) {
-            // Let's ignore useless but scary warnings that clutter reports
-            // See https://github.com/xwikisas/application-confluence-migrator-pro/issues/88
-            // See https://github.com/xwikisas/application-confluence-migrator-pro/issues/214
-            Object[] args = event.getArgumentArray();
-            return args.length == 2
-                && args[0] instanceof DocumentUpdatedEvent
-                && args[1] instanceof String
-                && ((String) args[1]).startsWith("com.xpn.xwiki.internal.event.AttachmentEventGeneratorListener@");
+        long now = System.currentTimeMillis();
+        if (analysis.context == null || now - analysis.lastCheckpoint < CHECKPOINT_INTERVAL) {
+            return;
         }
-        return false;
-    }
-
-    private static final class DocCounts
-    {
-        private long templateCount;
-        private long docCount;
-        private long revisionCount;
-    }
 
-    Map<String, Map<String, Integer>> analyseLogs(ConfluenceMigrationJobStatus jobStatus,
-        BaseObject object, XWikiDocument document, String root)
-    {
-        Map<String, Map<String, List<LogLine<SimpleLog>>>> logCategories = Map.of(
-            OTHER_ISSUES, new TreeMap<>(),
-            SKIPPED, new TreeMap<>(),
-            CONFLUENCE_REF_WARNINGS, new TreeMap<>(),
-            UNHANDLED_PARAMETERS, new TreeMap<>(),
-            UNHANDLED_PARAMETER_VALUES, new TreeMap<>()
-        );
-        Map<String, Map<String, Integer>> macroPages = new HashMap<>();
-        Map<String, Map<String, List<String>>> collisions = new HashMap<>();
-
-        CurrentPage currentPage = new CurrentPage();
-        DocCounts counts = new DocCounts();
-        Collection<String> docs = new TreeSet<>();
-
-        for (LogEvent event : jobStatus.getLogTail()) {
-            if (event == null) {
-                logger.warn("Found a null event. This is unexpected.");
-                continue;
-            }
-
-            analyseLogEvent(event, currentPage, docs, logCategories, macroPages, counts, collisions);
+        analysis.lastCheckpoint = now;
+        MigrationLogAnalyzer.Checkpoint checkpoint = analysis.analyzer.takeCheckpoint(jobStatus.getSpaces());
+        if (checkpoint == null) {
+            return;
         }
 
-        for (Map.Entry<String, Map<String, List<LogLine<SimpleLog>>>> catEntry : logCategories.entrySet()) {
-            addAttachment(catEntry.getKey() + ".json", catEntry.getValue(), document);
+        boolean saved = false;
+        try {
+            executionContextManager.initialize(new ExecutionContext());
+            contextStoreManager.restore(analysis.context);
+            saved = checkpointStore.save(analysis.migration, checkpoint);
+        } catch (Exception e) {
+            logger.error("Failed to save the checkpoint of migration [{}]", analysis.migration, e);
+        } finally {
+            execution.removeContext();
         }
 
-        addAttachment("missingUsersGroups.json", getPermissionIssues(root, docs), document);
-        addAttachment("collisions.json", collisions, document);
-        addAttachment("spaceTargets.json", jobStatus.getSpaceTargets(), document);
-        addAttachment("macroPages.json", macroPages, document);
-        addAttachment("docs.json", docs, document);
-        object.setLongValue("imported", counts.docCount);
-        object.setLongValue("templates", counts.templateCount);
-        object.setLongValue("revisions", counts.revisionCount);
-        return macroPages;
-    }
-
-    private void analyseLogEvent(LogEvent event, CurrentPage currentPage, Collection<String> docs,
-        Map<String, Map<String, List<LogLine<SimpleLog>>>> logCategories, Map<String, Map<String, Integer>> macroPages,
-        DocCounts counts, Map<String, Map<String, List<String>>> collisions)
-    {
-        Marker marker = event.getMarker();
-        if (isADocumentOutputFilterEvent(marker)) {
-            updateCurrentPage(event, currentPage, docs, logCategories);
-        } else if (ConfluenceFilter.LOG_MACROS_FOUND.equals(marker)) {
-            addMacros(currentPage, event.getArgumentArray(), macroPages);
-        } else if (SEND_PAGE_MARKER.equals(marker)) {
-            updateCountsAndRef(event, currentPage, counts);
-        } else if (SEND_TEMPLATE_MARKER.equals(marker)) {
-            counts.templateCount++;
-        } else if (UNHANDLED_PARAMETER_MARKER.equals(marker)) {
-            addEventToCat(event, logCategories.get(UNHANDLED_PARAMETERS), currentPage);
-        } else if (UNHANDLED_PARAMETER_VALUE_MARKER.equals(marker)) {
-            addEventToCat(event, logCategories.get(UNHANDLED_PARAMETER_VALUES), currentPage);
-        } else if (CONFLUENCE_REF_MARKER.equals(event.getMarker())) {
-            addEventToCat(event, logCategories.get(CONFLUENCE_REF_WARNINGS), currentPage);
-        } else if (LogLevel.WARN.equals(event.getLevel())) {
-            addEventToCat(event, logCategories.get(OTHER_ISSUES), currentPage);
-        } else if (LogLevel.ERROR.equals(event.getLevel())) {
-            updateErrors(event, logCategories.get(SKIPPED), collisions, currentPage);
-        }
-    }
-
-    private void updateCurrentPage(LogEvent event, CurrentPage currentPage, Collection<String> docs,
-        Map<String, Map<String, List<LogLine<SimpleLog>>>> logCategories)
-    {
-        Object[] args = event.getArgumentArray();
-        if (args.length > 0 && (args[0] instanceof DocumentReference)) {
-            DocumentReference docRef = (DocumentReference) args[0];
-            currentPage.ref = serializer.serialize(docRef);
-            docs.add(localSerializer.serialize(docRef));
-            if (currentPage.id != null) {
-                for (Map<String, List<LogLine<SimpleLog>>> cat : logCategories.values()) {
-                    replaceKey(cat, currentPage);
-                }
-            }
+        if (!saved) {
+            // Keep the changes for the next checkpoint
+            analysis.analyzer.checkpointNotSaved(checkpoint);
         }
     }
 
-    private void updateErrors(LogEvent event, Map<String, List<LogLine<SimpleLog>>> skipped,
-        Map<String, Map<String, List<String>>> collisions, CurrentPage currentPage)
+    private static void stopLogAnalysis(LogAnalysis analysis)
     {
-        Object[] args = event.getArgumentArray();
-        if (isACollisionError(event, args)) {
-            String collidingReference = (String) args[0];
-            String spaceKey = (String) args[1];
-            List<String> pages = (List<String>) args[2];
-            Map<String, List<String>> spaceEntry = collisions.computeIfAbsent(spaceKey, k -> new HashMap<>());
-            spaceEntry.put(collidingReference, pages);
-        } else if (!ignoredIssue(event)) {
-            addEventToCat(event, skipped, currentPage);
+        analysis.future.cancel(false);
+        // Wait for the run in progress, if any: once stopped, the analyzer is only used by the caller
+        synchronized (analysis) {
+            analysis.stopped = true;
         }
     }
 
-    private static boolean isACollisionError(LogEvent event, Object[] args)
+    private synchronized ExecutorService getReportExecutor()
     {
-        if (Objects.equals(event.getMarker(), ConfluenceFilteringListener.COLLISION_MARKER)) {
-            return args.length == 3
-                && args[0] instanceof String
-                && args[1] instanceof String
-                && args[2] instanceof List;
+        if (reportExecutor == null) {
+            reportExecutor = Executors.newFixedThreadPool(REPORT_PARALLELISM, new BasicThreadFactory.Builder()
+                .namingPattern("Confluence migration report %d")
+                .daemon(true)
+                .build());
         }
-        return false;
+        return reportExecutor;
     }
 
-    private static void addMacros(CurrentPage currentPage, Object[] args, Map<String, Map<String, Integer>> macroPages)
+    private synchronized ScheduledExecutorService getLogAnalysisExecutor()
     {
-        if (currentPage.ref != null && currentPage.isCurrentRevision() && args[0] instanceof Map) {
-            Map<String, Integer> macrosIds = (Map<String, Integer>) args[0];
-            macroPages.put(currentPage.ref, mergeMacroIds(macrosIds, macroPages.get(currentPage.ref)));
+        if (logAnalysisExecutor == null) {
+            logAnalysisExecutor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern("Confluence migration log analysis")
+                .daemon(true)
+                .build());
         }
+        return logAnalysisExecutor;
     }
 
-    private static Map<String, Integer> mergeMacroIds(Map<String, Integer> newMacrosIds,
-        Map<String, Integer> oldMacrosIds)
+    @Override
+    public synchronized void dispose() throws ComponentLifecycleException
     {
-        if (oldMacrosIds == null) {
-            return newMacrosIds;
+        if (logAnalysisExecutor != null) {
+            logAnalysisExecutor.shutdownNow();
         }
 
-        // We merge the counts of the different document translations because that's what seems to be the most intuitive
-        // We expect translations to have about the same macro counts, but we don't want to miss some macro usage if
-        // it's not the case
-        // summing would provide surprisingly high numbers.
-
-        Map<String, Integer> macroIds = new LinkedHashMap<>(newMacrosIds);
-        for (Map.Entry<String, Integer> entry : oldMacrosIds.entrySet()) {
-            String id = entry.getKey();
-            macroIds.put(entry.getKey(), Math.max(entry.getValue(), macroIds.getOrDefault(id, 0)));
+        if (reportExecutor != null) {
+            reportExecutor.shutdownNow();
         }
-        return macroIds;
     }
 
-    private static boolean isADocumentOutputFilterEvent(Marker marker)
+    private MigrationLogAnalyzer finishLogAnalysis(ConfluenceMigrationJobStatus jobStatus)
     {
-        String markerName = (marker == null || marker.getName() == null) ? "" : marker.getName();
-        return markerName.equals("filter.instance.log.document.updated")
-            || markerName.equals("filter.instance.log.document.created");
+        MigrationLogAnalyzer analyzer;
+        LogAnalysis analysis = logAnalyses.remove(jobStatus);
+        if (analysis == null) {
+            // The analysis was not started with the migration, the whole log is analysed now
+            analyzer = new MigrationLogAnalyzer(serializer, localSerializer, logger);
+        } else {
+            stopLogAnalysis(analysis);
+            analyzer = analysis.analyzer;
+        }
+
+        catchUp(analyzer, jobStatus);
+        return analyzer;
     }
 
-    private static <T> T getPageIdentifierField(Map<?, ?> pageIdentifier, String field, Class<T> clazz)
+    private static void catchUp(MigrationLogAnalyzer analyzer, ConfluenceMigrationJobStatus jobStatus)
     {
-        Object f = pageIdentifier.get(field);
-        if (clazz.isInstance(f)) {
-            return clazz.cast(f);
+        catchUp(analyzer, jobStatus.getLogTail(), jobStatus.getFilterJobStatus());
+        // The filter jobs importing the spaces in parallel log from their own threads, so their logs are not part of
+        // the log of the migration job.
+        for (CancelableJobStatus filterJobStatus : jobStatus.getParallelFilterJobStatuses()) {
+            catchUp(analyzer, filterJobStatus.getLogTail(), filterJobStatus);
         }
-
-        return null;
     }
 
-    private static void updateCountsAndRef(LogEvent event, CurrentPage currentPage, DocCounts counts)
+    private static void catchUp(MigrationLogAnalyzer analyzer, LogTail logTail, CancelableJobStatus filterJobStatus)
     {
-        currentPage.ref = null;
-        counts.revisionCount++;
-        if (tryUpdateCurrentPage(currentPage, event.getArgumentArray())) {
-            counts.docCount++;
+        // Checked before reading the log, so that all the events of the filter job are analysed when it ended
+        boolean ended = filterJobStatus != null && JobStatus.State.FINISHED.equals(filterJobStatus.getState())
+            && filterJobStatus.getError() == null && !filterJobStatus.isCanceled();
+        analyzer.catchUp(logTail);
+        if (ended) {
+            analyzer.endLog(logTail);
         }
     }
 
-    private static boolean tryUpdateCurrentPage(CurrentPage currentPage, Object[] args)
-    {
-        if (args.length > 0 && args[0] instanceof Map) {
-            Map<?, ?> pageIdentifier = (Map<?, ?>) args[0];
-            currentPage.id = getPageIdentifierField(pageIdentifier, PAGE_ID, Long.class);
-            currentPage.originalVersion = getPageIdentifierField(pageIdentifier, "originalVersion", Long.class);
-            currentPage.spaceKey = getPageIdentifierField(pageIdentifier, "spaceKey", String.class);
-            currentPage.pageTitle = getPageIdentifierField(pageIdentifier, "pageTitle", String.class);
-            return currentPage.originalVersion == null || currentPage.originalVersion.equals(currentPage.id);
+    Map<String, Map<String, Integer>> analyseLogs(ConfluenceMigrationJobStatus jobStatus,
+        BaseObject object, XWikiDocument document, String root) throws InterruptedException
+    {
+        MigrationLogAnalyzer analyzer = finishLogAnalysis(jobStatus);
+        Map<String, Map<String, Integer>> macroPages = analyzer.getMacroPages();
+        Collection<String> docs = analyzer.getDocs();
+        boolean compress = isTrue(jobStatus.getRequest().getOutputProperties().getOrDefault(COMPRESS_REPORTS, "0")
+            .toString());
+
+        Map<String, Object> reports = new LinkedHashMap<>(analyzer.getLogCategories());
+        reports.put("collisions", analyzer.getCollisions());
+        reports.put("macroPages", macroPages);
+        reports.put(DOCS, docs);
+
+        // The attachments don't depend on each other, so they are written in parallel while the database is queried
+        // from the other threads. They are only added to the document at the end, XWikiDocument is not thread safe.
+        List<Future<List<XWikiAttachment>>> attachments = new ArrayList<>();
+        for (Map.Entry<String, Object> report : reports.entrySet()) {
+            removeOtherFormat(report.getKey(), document, compress);
+            attachments.add(getReportExecutor().submit(
+                () -> createReport(report.getKey(), report.getValue(), document, compress)));
+        }
+        attachments.add(getReportExecutor().submit(
+            () -> List.of(createAttachment("spaceTargets.json", jobStatus.getSpaceTargets(), document))));
+        attachments.add(getReportExecutor().submit(
+            () -> List.of(createAttachment("linkMappingMetrics.json", jobStatus.getLinkMappingMetrics(), document))));
+
+        String wiki = contextProvider.get().getWikiId();
+        DocumentReference migration = document.getDocumentReference();
+        Future<?> migrationMacros = submitInNewContext(wiki, () -> {
+            macroUsageStore.setMigrationMacros(migration, macroPages);
+            return null;
+        });
+        Future<List<XWikiAttachment>> permissionIssues = submitInNewContext(wiki,
+            () -> List.of(createAttachment("missingUsersGroups.json", getPermissionIssues(root, docs), document)));
+        attachments.add(permissionIssues);
+
+        for (Future<List<XWikiAttachment>> future : attachments) {
+            try {
+                for (XWikiAttachment attachment : future.get()) {
+                    document.setAttachment(attachment);
+                }
+            } catch (ExecutionException e) {
+                logger.error("Could not create a report of the migration", e.getCause());
+            }
         }
-        return false;
+
+        waitFor(migrationMacros, "Could not index the macros of the migration");
+        object.setLongValue("imported", analyzer.getDocCount());
+        object.setLongValue("templates", analyzer.getTemplateCount());
+        object.setLongValue("revisions", analyzer.getRevisionCount());
+        return macroPages;
     }
 
-    private static void addEventToCat(LogEvent e, Map<String, List<LogLine<SimpleLog>>> cat, CurrentPage currentPage)
+    private <T> Future<T> submitInNewContext(String wiki, Callable<T> task)
     {
-        if (cat != null) {
-            String pageIdOrFullName = getPageIdOrFullName(e, currentPage);
-            if (pageIdOrFullName != null) {
-                List<LogLine<SimpleLog>> logLines = cat.computeIfAbsent(pageIdOrFullName, k -> new ArrayList<>());
-                logLines.add(currentPage.toLogLine(e));
+        return getReportExecutor().submit(() -> {
+            executionContextManager.initialize(new ExecutionContext());
+            try {
+                contextProvider.get().setWikiId(wiki);
+                return task.call();
+            } finally {
+                execution.removeContext();
             }
+        });
+    }
+
+    private void waitFor(Future<?> future, String error) throws InterruptedException
+    {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            logger.error(error, e.getCause());
         }
     }
 
@@ -579,19 +665,23 @@ public class DefaultConfluenceMigrationManager implements ConfluenceMigrationMan
         // wiki.
         Set<String> subjects = getSubjects(field, wiki, docs);
         if (!subjects.isEmpty()) {
-            // We assume the users and groups are in the current wiki.
-            List<String> foundSubjects = queryManager.createQuery(
-                    String.format(
-                        "select o.name from BaseObject o where o.name in (:refs) and o.className = 'XWiki.XWiki%s'",
-                        StringUtils.capitalize(field)),
-                    HQL)
-                .bindValue("refs", subjects)
-                .execute();
-            subjects.removeIf(foundSubjects::contains);
+            // We assume the users and groups are in the current wiki. They are all loaded once, which is much cheaper
+            // than looking them up with huge "in" clauses.
+            subjects.removeAll(getExistingSubjects(field));
         }
         return subjects;
     }
 
+    private Set<String> getExistingSubjects(String field) throws QueryException
+    {
+        List<String> existingSubjects = queryManager.createQuery(
+                String.format("select distinct o.name from BaseObject o where o.className = 'XWiki.XWiki%s'",
+                    StringUtils.capitalize(field)),
+                HQL)
+            .execute();
+        return new HashSet<>(existingSubjects);
+    }
+
     private Set<String> getSubjects(String field, String wiki, Collection<String> docs) throws QueryException
     {
         // Computes the list of right object 'users' and 'groups' containing a comma or for which there aren't any
@@ -605,32 +695,41 @@ public class DefaultConfluenceMigrationManager implements ConfluenceMigrationMan
     private void addSubjects(Set<String> subjects, String wiki, Collection<String> docs, String field,
         String rightObjectName) throws QueryException
     {
-        // Select the users (or groups) in right objects without a corresponding XWikiUsers (or XWikiGroups) object.
-        // This will also select users and groups fields that contains commas (which should not really happen with
-        // current versions of confluence-xml at the time of writing, it does not do such clever things as grouping
-        // right objects for different users or groups yet)
-        // We handle those fields with comma later with a split and then a second query.
+        // Select the users (or groups) in right objects. This will also select users and groups fields that contains
+        // commas (which should not really happen with current versions of confluence-xml at the time of writing, it
+        // does not do such clever things as grouping right objects for different users or groups yet)
+        // We handle those fields with comma later with a split. The existing users and groups are removed afterward.
         // I wanted to write this in XWQL but https://jira.xwiki.org/browse/XWIKI-22621 prevents this here.
-
-        // If documents were imported in the current wiki where we assume the users and groups to be, we can optimize
-        // and already filter out known users and groups. Otherwise, we'd need a join with a separate database, which
-        // is not possible.
-        String optimizedFilter = contextProvider.get().getWikiId().equals(wiki)
-            ? "p.value not in (select o.name from BaseObject o where o.className = 'XWiki.XWiki%3$s') and "
-            : "";
-
         String queryString = String.format(
             "select distinct p.value from BaseObject obj, LargeStringProperty p where "
                 + "obj.name in (:docs) and "
                 + "p.value <> '' and "
-                + "%4$s"
                 + "obj.className = '%1$s' and "
                 + "p.id.id = obj.id and "
-                + "p.id.name = '%2$s'", rightObjectName, field, StringUtils.capitalize(field), optimizedFilter);
+                + "p.id.name = '%2$s'", rightObjectName, field);
+
+        // The documents are bound in chunks to stay below the parameter limits of the databases and keep the query
+        // plans small
+        List<String> chunk = new ArrayList<>(SUBJECT_QUERY_CHUNK_SIZE);
+        for (String doc : docs) {
+            chunk.add(doc);
+            if (chunk.size() == SUBJECT_QUERY_CHUNK_SIZE) {
+                addSubjects(subjects, wiki, queryString, chunk);
+                chunk.clear();
+            }
+        }
 
+        if (!chunk.isEmpty()) {
+            addSubjects(subjects, wiki, queryString, chunk);
+        }
+    }
+
+    private void addSubjects(Set<String> subjects, String wiki, String queryString, List<String> docs)
+        throws QueryException
+    {
         Collection<String> entries = queryManager.createQuery(queryString, HQL)
             .setWiki(wiki)
-            .bindValue("docs", docs)
+            .bindValue(DOCS, docs)
             .execute();
 
         for (String subjectsWithCommas : entries) {
@@ -638,161 +737,137 @@ public class DefaultConfluenceMigrationManager implements ConfluenceMigrationMan
         }
     }
 
-    private void addAttachment(String name, Object obj, XWikiDocument document)
+    private static void removeOtherFormat(String name, XWikiDocument document, boolean compress)
     {
-        XWikiAttachment a = new XWikiAttachment(document, name);
+        // Remove the report saved in the other format by a previous run of the migration
+        removeAttachment(document, name + (compress ? PLAIN_EXTENSION : COMPRESSED_EXTENSION));
+        if (!compress) {
+            removeAttachment(document, name + INDEX_EXTENSION);
+        }
+    }
+
+    private List<XWikiAttachment> createReport(String name, Object report, XWikiDocument document, boolean compress)
+    {
+        if (!compress) {
+            return List.of(createAttachment(name + PLAIN_EXTENSION, report, document));
+        }
+
+        List<XWikiAttachment> attachments = new ArrayList<>(2);
+        XWikiAttachment a = new XWikiAttachment(document, name + COMPRESSED_EXTENSION);
         XWikiAttachmentContent content = new XWikiAttachmentContent(a);
-        try {
-            new ObjectMapper().writeValue(content.getContentOutputStream(), obj);
+        try (OutputStream out = content.getContentOutputStream()) {
+            IndexedJsonReport.Index index = IndexedJsonReport.write(report, out);
+            attachments.add(createAttachment(name + INDEX_EXTENSION, index, document));
         } catch (IOException e) {
-            logger.error("Could not save [{}]", name, e);
+            logger.error(COULD_NOT_SAVE, name, e);
         }
         a.setAttachment_content(content);
-        document.setAttachment(a);
+        attachments.add(a);
+        return attachments;
     }
 
-    private static String toString(Long id)
+    private static void removeAttachment(XWikiDocument document, String name)
     {
-        if (id == null) {
-            return null;
+        XWikiAttachment attachment = document.getAttachment(name);
+        if (attachment != null) {
+            document.removeAttachment(attachment);
         }
-        return id.toString();
     }
 
-    private static String getPageIdOrFullName(LogEvent logEvent, CurrentPage currentPage)
+    @Override
+    public Object getReportEntry(DocumentReference migration, String report, String key)
     {
-        if (currentPage.ref == null) {
-            for (Object arg : logEvent.getArgumentArray()) {
-                if (arg instanceof Map) {
-                    return ((Map<?, ?>) arg).get(PAGE_ID).toString();
-                }
-            }
-
-            return toString(currentPage.id);
-        }
+        return readReport(migration, report, (content, index) -> index == null
+            ? IndexedJsonReport.readPlainEntry(content, key)
+            : IndexedJsonReport.readEntry(content, index, key));
+    }
 
-        return currentPage.ref;
+    @Override
+    public Object getReportEntries(DocumentReference migration, String report, int offset, int limit)
+    {
+        return readReport(migration, report, (content, index) -> index == null
+            ? IndexedJsonReport.readPlainRange(content, offset, limit)
+            : IndexedJsonReport.readRange(content, index, offset, limit));
     }
 
-    private void persistMacroMap(Map<String, Map<String, Integer>> macroPages)
+    @Override
+    public InputStream getReportContent(DocumentReference migration, String report)
     {
-        Map<String, Map<String, Object>> macroMap = computeMacroMap(macroPages);
         XWikiContext context = contextProvider.get();
-        DocumentReference migratedMacrosCountJSONDocRef = new DocumentReference(
-            context.getWikiId(), CONFLUENCE_MIGRATOR_SPACE, "MigratedMacrosCountJSON");
-        DocumentReference migratedMacrosDocsJSONDocRef = new DocumentReference(
-            context.getWikiId(), CONFLUENCE_MIGRATOR_SPACE, "MigratedMacrosDocsJSON");
-        logger.info("Saving the macro usage statistics in [{}] and [{}]",
-            migratedMacrosCountJSONDocRef, migratedMacrosDocsJSONDocRef);
         try {
-            XWikiDocument macroCountDoc = context.getWiki().getDocument(migratedMacrosCountJSONDocRef, context).clone();
-            Map<String, Map<String, Integer>> countMap = contentToMap(macroCountDoc, COUNT_MAP_TYPE_REF);
-            XWikiDocument macroDocsDoc = context.getWiki().getDocument(migratedMacrosDocsJSONDocRef, context).clone();
-            Map<String, Map<String, Set<?>>> docsMap = contentToMap(macroDocsDoc, DOCS_MAP_TYPE_REF);
-
-            prepareMacroMap(macroMap, countMap, docsMap);
-            Map<String, Map<String, Integer>> sortedCounts = countMap.entrySet()
-                .stream()
-                .sorted((o1, o2) -> Integer.compare(o2.getValue().getOrDefault(OCCURRENCES_KEY, 0),
-                    o1.getValue().getOrDefault(OCCURRENCES_KEY, 0)))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (o1, o2) -> o2, LinkedHashMap::new));
-            saveMacroData(macroCountDoc, sortedCounts);
-            saveMacroData(macroDocsDoc, docsMap);
+            return IndexedJsonReport.openReport(context.getWiki().getDocument(migration, context), report, context);
         } catch (XWikiException | IOException e) {
-            logger.error("Failed to save the macro usage statistics", e);
+            logger.error(FAILED_TO_READ_REPORT, report, migration, e);
+            return null;
         }
     }
 
-    private <T> void saveMacroData(XWikiDocument d, T data) throws XWikiException, IOException
+    @Override
+    public long countMigratedMacros(String nameFilter)
     {
-        XWikiAttachment attachment = new XWikiAttachment(d, DATA_JSON);
-        XWikiAttachmentContent content = new XWikiAttachmentContent(attachment);
-        new ObjectMapper().writeValue(content.getContentOutputStream(), data);
-        attachment.setAttachment_content(content);
-        d.setAttachment(attachment);
-        d.setHidden(true);
-        XWikiContext context = contextProvider.get();
-        context.getWiki().saveDocument(d, context);
+        return macroUsageStore.countMacros(nameFilter);
     }
 
-    private void prepareMacroMap(Map<String, Map<String, Object>> macroMap,
-        Map<String, Map<String, Integer>> occurenceMap, Map<String, Map<String, Set<?>>> pagesMap)
+    @Override
+    public List<Map<String, Object>> getMigratedMacros(String nameFilter, int offset, int limit)
     {
-        for (Map.Entry<String, Map<String, Object>> macroEntry : macroMap.entrySet()) {
-            String macroId = macroEntry.getKey();
-            Map<String, Object> macroSpacesData = macroEntry.getValue();
-            for (Map.Entry<String, Object> macroData : macroSpacesData.entrySet()) {
-                String spaceKey = macroData.getKey();
-                Map<String, Integer> macroOccurenceMap =
-                    occurenceMap.computeIfAbsent(macroId, k -> new HashMap<>());
-
-                if (macroData.getValue() instanceof Integer) {
-                    int occurrences = macroOccurenceMap.getOrDefault(OCCURRENCES_KEY, 0);
-                    int oldSpaceOccurrences = macroOccurenceMap.getOrDefault(spaceKey, 0);
-                    int newSpaceOccurrences = (Integer) macroData.getValue();
-
-                    macroOccurenceMap.put(OCCURRENCES_KEY, occurrences - oldSpaceOccurrences + newSpaceOccurrences);
-                    macroOccurenceMap.put(spaceKey, newSpaceOccurrences);
-                } else if (macroData.getValue() instanceof Set) {
-                    Set<?> pages = (Set<?>) macroData.getValue();
+        return macroUsageStore.getMacros(nameFilter, offset, limit);
+    }
 
-                    int pagesCount = macroOccurenceMap.getOrDefault(PAGES_KEY, 0);
-                    int oldPagesCount = macroOccurenceMap.getOrDefault(spaceKey, 0);
-                    int newPagesCount = pages.size();
-                    macroOccurenceMap.put(PAGES_KEY, pagesCount - oldPagesCount + newPagesCount);
-                    macroOccurenceMap.put(spaceKey, newPagesCount);
+    @Override
+    public long countMigratedMacroPages(String macroId)
+    {
+        return macroUsageStore.countPages(macroId);
+    }
 
-                    pagesMap.computeIfAbsent(macroId, k -> new HashMap<>()).put(spaceKey, pages);
-                }
-            }
-        }
+    @Override
+    public List<String> getMigratedMacroPages(String macroId, int offset, int limit)
+    {
+        return macroUsageStore.getPages(macroId, offset, limit);
     }
 
-    private <T> Map<String, T> contentToMap(XWikiDocument doc, TypeReference<Map<String, T>> typeRef)
+    private Object readReport(DocumentReference migration, String report, ReportReader reader)
     {
+        XWikiContext context = contextProvider.get();
         try {
-            String dataStr = doc.getContent();
-            if (!dataStr.isEmpty()) {
-                // Old versions of the Confluence migrator saved the data in the document content, which causes
-                // performance issues. We migrate the content to an attachment.
-                doc.setContent("");
-                return new ObjectMapper().readValue(dataStr, typeRef);
+            XWikiDocument doc = context.getWiki().getDocument(migration, context);
+            XWikiAttachment compressed = doc.getAttachment(report + COMPRESSED_EXTENSION);
+            XWikiAttachment indexAttachment = doc.getAttachment(report + INDEX_EXTENSION);
+            if (compressed != null && indexAttachment != null) {
+                IndexedJsonReport.Index index;
+                try (InputStream in = indexAttachment.getContentInputStream(context)) {
+                    index = IndexedJsonReport.readIndex(in);
+                }
+                try (InputStream in = compressed.getContentInputStream(context)) {
+                    return reader.read(in, index);
+                }
             }
 
-            XWikiAttachment dataAttachment = doc.getAttachment(DATA_JSON);
-            if (dataAttachment != null) {
-                InputStream data = dataAttachment.getAttachmentContent(contextProvider.get()).getContentInputStream();
-                return new ObjectMapper().readValue(data, typeRef);
+            XWikiAttachment plain = doc.getAttachment(report + PLAIN_EXTENSION);
+            if (plain != null) {
+                try (InputStream in = plain.getContentInputStream(context)) {
+                    return reader.read(in, null);
+                }
             }
         } catch (XWikiException | IOException e) {
-            logger.warn("Failed to read existing macro usage statistics from [{}]", doc, e);
+            logger.error(FAILED_TO_READ_REPORT, report, migration, e);
         }
-
-        return new HashMap<>();
+        return null;
     }
 
-    private Map<String, Map<String, Object>> computeMacroMap(Map<String, Map<String, Integer>> macroPages)
+    private XWikiAttachment createAttachment(String name, Object obj, XWikiDocument document)
     {
-        Map<String, Map<String, Object>> macroMap = new HashMap<>();
-
-        for (Map.Entry<String, Map<String, Integer>> macroPage : macroPages.entrySet()) {
-            Map<String, Integer> pageMacroCount = macroPage.getValue();
-            String page = macroPage.getKey();
-            String space = page.substring(0, page.indexOf('.') > -1 ? page.indexOf('.') : page.length() - 1);
-            for (Map.Entry<String, Integer> macroEntry : pageMacroCount.entrySet()) {
-                Map<String, Object> serializableMacro =
-                    macroMap.computeIfAbsent(macroEntry.getKey(), k -> new HashMap<>());
-                String keyCount = String.format("%s_oc", space);
-                serializableMacro.put(keyCount,
-                    (Integer) serializableMacro.getOrDefault(keyCount, 0) + macroEntry.getValue());
-                String keyPages = String.format("%s_pg", space);
-                Object pagesObj = serializableMacro.computeIfAbsent(keyPages, k -> new HashSet<>());
-                if (pagesObj instanceof Set) {
-                    ((Set<Object>) pagesObj).add(page);
-                }
-            }
+        XWikiAttachment a = new XWikiAttachment(document, name);
+        XWikiAttachmentContent content = new XWikiAttachmentContent(a);
+        // The JSON is streamed to the attachment content, which is backed by a temporary file when it gets large,
+        // instead of being built in memory first.
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(content.getContentOutputStream())) {
+            JSON_WRITER.writeValue(generator, obj);
+        } catch (IOException e) {
+            logger.error(COULD_NOT_SAVE, name, e);
         }
-        return macroMap;
+        a.setAttachment_content(content);
+        return a;
     }
 
     @Override
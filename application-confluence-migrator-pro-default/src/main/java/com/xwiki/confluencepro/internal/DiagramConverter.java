@@ -79,6 +79,11 @@ public class DiagramConverter
 
     private static final String[] DIAGRAM_MACRO_NAMES = { GLIFFY, DRAWIO };
 
+    private static final String CONFLUENCE_UNDERSCORE = "confluence_";
+
+    private static final List<String> DIAGRAM_MACRO_IDS = List.of(GLIFFY, DRAWIO,
+        CONFLUENCE_UNDERSCORE + GLIFFY, CONFLUENCE_UNDERSCORE + DRAWIO);
+
     private static final EntityReference DIAGRAM_CLASS_REFERENCE =
         new LocalDocumentReference("Diagram", DIAGRAM_CLASS);
 
@@ -88,12 +93,14 @@ public class DiagramConverter
     private static final TypeReference<Map<String, Map<String, Integer>>> MACRO_PAGES_TYPE_REF =
         new TypeReference<Map<String, Map<String, Integer>>>() { };
 
-    private static final String CONFLUENCE_UNDERSCORE = "confluence_";
     private static final String DIAGRAM_NAME = "diagramName";
 
     @Inject
     private MigrationFixingTools migrationFixingTools;
 
+    @Inject
+    private MacroUsageStore macroUsageStore;
+
     @Inject
     private Logger logger;
 
@@ -139,41 +146,47 @@ public class DiagramConverter
 
     private void fixDocumentsOfMigration(Stats s, XWikiDocument migrationDoc, boolean updateInPlace, boolean dryRun)
     {
-        Map<String, Map<String, Integer>> macroPages = null;
-        XWikiAttachment macroPagesAttachment = migrationDoc.getAttachment("macroPages.json");
-        if (macroPagesAttachment != null) {
-            XWikiAttachmentContent attachmentContent = null;
-            try {
-                attachmentContent = macroPagesAttachment.getAttachmentContent(contextProvider.get());
-            } catch (XWikiException e) {
-                logger.error("Failed get macro pages data", e);
-            }
-            if (attachmentContent != null) {
-                try {
-                    InputStream contentInputStream = attachmentContent.getContentInputStream();
-                    macroPages = new ObjectMapper().readValue(contentInputStream, MACRO_PAGES_TYPE_REF);
-                } catch (IOException e) {
-                    logger.error("Failed to read macro pages", e);
-                }
-            }
+        List<String> docs = macroUsageStore.findPagesUsingMacros(migrationDoc.getDocumentReference(),
+            DIAGRAM_MACRO_IDS);
+        if (docs == null) {
+            docs = getDiagramPagesFromMacroPages(migrationDoc);
         }
 
-        if (macroPages == null) {
+        if (docs == null) {
             logger.warn("Failed to find the list of affected pages in macroPages.json, will browse all the documents");
             migrationFixingTools.fixDocumentsOfMigration(migrationDoc,
                 migratedDoc -> fixDocument(s, migratedDoc, updateInPlace, dryRun));
         } else {
-            List<String> docs = new ArrayList<>();
-            for (Map.Entry<String, Map<String, Integer>> macroPageEntry : macroPages.entrySet()) {
-                Map<String, Integer> macroInfo = macroPageEntry.getValue();
-                if (hasDiagram(macroInfo)) {
-                    docs.add(macroPageEntry.getKey());
-                }
-            }
             migrationFixingTools.fixDocuments(docs, migratedDoc -> fixDocument(s, migratedDoc, updateInPlace, dryRun));
         }
     }
 
+    private List<String> getDiagramPagesFromMacroPages(XWikiDocument migrationDoc)
+    {
+        // Migrations run before the macros of each migration were indexed
+        Map<String, Map<String, Integer>> macroPages = null;
+        try (InputStream content = IndexedJsonReport.openReport(migrationDoc, "macroPages", contextProvider.get())) {
+            if (content != null) {
+                macroPages = new ObjectMapper().readValue(content, MACRO_PAGES_TYPE_REF);
+            }
+        } catch (XWikiException | IOException e) {
+            logger.error("Failed to read macro pages", e);
+        }
+
+        if (macroPages == null) {
+            return null;
+        }
+
+        List<String> docs = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Integer>> macroPageEntry : macroPages.entrySet()) {
+            Map<String, Integer> macroInfo = macroPageEntry.getValue();
+            if (hasDiagram(macroInfo)) {
+                docs.add(macroPageEntry.getKey());
+            }
+        }
+        return docs;
+    }
+
     private static boolean hasDiagram(Map<String, Integer> macroInfo)
     {
         for (String macroName : DIAGRAM_MACRO_NAMES) {
@@ -21,21 +21,29 @@ package com.xwiki.confluencepro.internal;
 
 import java.io.IOException;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 
 import org.slf4j.Logger;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
 import org.xwiki.filter.FilterDescriptorManager;
 import org.xwiki.filter.FilterEventParameters;
 import org.xwiki.filter.FilterException;
 import org.xwiki.filter.event.model.WikiDocumentFilter;
 import org.xwiki.filter.instance.output.DocumentInstanceOutputProperties;
 import org.xwiki.filter.output.AbstractBeanOutputFilterStream;
+import org.xwiki.job.AbstractJobStatus;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobContext;
+import org.xwiki.job.event.status.JobStatus;
 import org.xwiki.logging.marker.TranslationMarker;
 import org.xwiki.model.document.DocumentAuthors;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.user.UserReference;
 import org.xwiki.user.UserReferenceResolver;
 
@@ -44,11 +52,14 @@ import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.doc.XWikiDocumentArchive;
 import com.xpn.xwiki.internal.filter.output.EntityOutputFilterStream;
+import com.xwiki.confluencepro.ConfluenceMigrationJobStatus;
 
 /**
  * This is a copy of {@link com.xpn.xwiki.internal.filter.output.DocumentInstanceOutputFilterStream} from version
  * 15.10.6 of XWiki. This version contains the fix to XWIKI-21801: Duplicate versions in history of documents not based
- * on JRCS.
+ * on JRCS. When a Confluence migration is resumed, it also skips the documents which were saved before the migration
+ * was interrupted. During a Confluence migration, the documents can also be saved by writer threads (see
+ * {@link DocumentSavePipeline}).
  *
  * @version $Id$
  * @since 1.8.3
@@ -66,6 +77,14 @@ public class DocumentInstanceOutputFilterStream extends AbstractBeanOutputFilter
     private static final TranslationMarker LOG_DOCUMENT_FAILSAVE =
         new TranslationMarker("filter.instance.log.document.failsave", WikiDocumentFilter.LOG_DOCUMENT_ERROR);
 
+    static final Marker LOG_DOCUMENT_RESUMED = MarkerFactory.getMarker("confluenceproResumedDocument");
+
+    private static final String DOCUMENT_WRITER_THREADS = "documentWriterThreads";
+
+    private static final String DOCUMENT_QUEUE_SIZE = "documentQueueSize";
+
+    private static final int DEFAULT_DOCUMENT_QUEUE_SIZE = 100;
+
     @Inject
     private FilterDescriptorManager filterManager;
 
@@ -82,6 +101,20 @@ public class DocumentInstanceOutputFilterStream extends AbstractBeanOutputFilter
     @Inject
     private Logger logger;
 
+    @Inject
+    private JobContext jobContext;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private Provider<DocumentSavePipeline> savePipelineProvider;
+
+    private ConfluenceMigrationJobStatus migrationJobStatus;
+
+    private DocumentSavePipeline savePipeline;
+
     private boolean firstVersion;
 
     private FilterEventParameters currentLocaleParameters;
@@ -97,7 +130,15 @@ public class DocumentInstanceOutputFilterStream extends AbstractBeanOutputFilter
     @Override
     public void close() throws IOException
     {
-        // Nothing to close
+        if (this.savePipeline != null) {
+            try {
+                this.savePipeline.close();
+            } catch (FilterException e) {
+                throw new IOException("Failed to save the queued documents", e);
+            } finally {
+                this.savePipeline = null;
+            }
+        }
     }
 
     @Override
@@ -106,6 +147,52 @@ public class DocumentInstanceOutputFilterStream extends AbstractBeanOutputFilter
         super.setProperties(properties);
 
         this.documentListener.setProperties(properties);
+
+        this.migrationJobStatus = getConfluenceMigrationJobStatus();
+
+        if (this.migrationJobStatus != null) {
+            Map<String, Object> migrationProperties = this.migrationJobStatus.getRequest().getOutputProperties();
+            int writers = getIntParameter(migrationProperties, DOCUMENT_WRITER_THREADS, 0);
+            if (writers > 0) {
+                int queueSize = Math.max(1,
+                    getIntParameter(migrationProperties, DOCUMENT_QUEUE_SIZE, DEFAULT_DOCUMENT_QUEUE_SIZE));
+                this.savePipeline = this.savePipelineProvider.get();
+                this.savePipeline.start(writers, queueSize, properties.isVerbose(), this::saveDocument);
+            }
+        }
+    }
+
+    private int getIntParameter(Map<String, Object> migrationProperties, String name, int defaultValue)
+    {
+        Object value = migrationProperties.get(name);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+
+        if (value instanceof String && !((String) value).isEmpty()) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                this.logger.warn("Invalid value [{}] for [{}], ignoring it", value, name);
+            }
+        }
+
+        return defaultValue;
+    }
+
+    private ConfluenceMigrationJobStatus getConfluenceMigrationJobStatus()
+    {
+        Job job = this.jobContext.getCurrentJob();
+        JobStatus jobStatus = job == null ? null : job.getStatus();
+        while (jobStatus != null) {
+            if (jobStatus instanceof ConfluenceMigrationJobStatus) {
+                return (ConfluenceMigrationJobStatus) jobStatus;
+            }
+            jobStatus = jobStatus instanceof AbstractJobStatus
+                ? ((AbstractJobStatus<?>) jobStatus).getParentJobStatus()
+                : null;
+        }
+        return null;
     }
 
     // Events
@@ -177,6 +264,24 @@ public class DocumentInstanceOutputFilterStream extends AbstractBeanOutputFilter
             return;
         }
 
+        if (this.migrationJobStatus != null && this.migrationJobStatus.isCheckpointDocument(
+            this.localSerializer.serialize(inputDocument.getDocumentReference())))
+        {
+            this.logger.info(LOG_DOCUMENT_RESUMED,
+                "Skipped document [{}], it was saved before the migration was interrupted",
+                inputDocument.getDocumentReferenceWithLocale());
+            return;
+        }
+
+        if (this.savePipeline != null) {
+            this.savePipeline.submit(inputDocument, this.firstVersion);
+        } else {
+            saveDocument(inputDocument, this.firstVersion);
+        }
+    }
+
+    private void saveDocument(XWikiDocument inputDocument, boolean firstVersion) throws FilterException
+    {
         boolean hasJRCSHistory = inputDocument.getDocumentArchive() != null;
 
         XWikiContext xcontext = this.xcontextProvider.get();
@@ -192,7 +297,7 @@ public class DocumentInstanceOutputFilterStream extends AbstractBeanOutputFilter
             databaseDocument.loadAttachmentsContentSafe(xcontext);
 
             XWikiDocument document;
-            if (this.firstVersion && this.properties.isPreviousDeleted()) {
+            if (firstVersion && this.properties.isPreviousDeleted()) {
                 // We want to replace the existing document
                 document = inputDocument;
 
@@ -0,0 +1,381 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.context.concurrent.ContextStoreManager;
+import org.xwiki.filter.FilterException;
+import org.xwiki.logging.LoggerManager;
+import org.xwiki.logging.event.LogEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Saves the documents converted by a {@link DocumentInstanceOutputFilterStream} in writer threads, so the conversion
+ * of the next pages goes on while the previous ones are saved. Each writer has its own execution context, initialized
+ * from the context of the filter job, and its own bounded queue: the filter job waits when the queue is full. All the
+ * revisions and translations of a document are saved by the same writer, in the order they were converted.
+ * <p>
+ * The log of the filter job is used to build the migration report, so the logs of each save are captured in the
+ * writer thread and logged again by the filter job once the save is done, in the order the documents were queued.
+ * <p>
+ * Once a save failed, the writers don't save anything anymore but keep emptying their queue, and the filter job stops
+ * with an error. The filter job also stops if a writer thread ends unexpectedly, instead of waiting for it forever.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+@Component(roles = DocumentSavePipeline.class)
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+public class DocumentSavePipeline
+{
+    /**
+     * Logged by the filter job when a document is handed to a writer, before it is saved.
+     */
+    static final Marker LOG_DOCUMENT_QUEUED = MarkerFactory.getMarker("confluenceproQueuedDocument");
+
+    private static final String INTERRUPTED = "Interrupted while waiting for the documents to be saved";
+
+    private static final SaveTask END = new SaveTask(-1, null, false);
+
+    private static final long DEFAULT_WAIT_MILLIS = 10000;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private ContextStoreManager contextStoreManager;
+
+    @Inject
+    private LoggerManager loggerManager;
+
+    @Inject
+    private Logger logger;
+
+    // Only used by the filter job thread
+    private final Deque<SaveTask> pendingTasks = new ArrayDeque<>();
+
+    private final List<BlockingQueue<SaveTask>> queues = new ArrayList<>();
+
+    private final List<Future<?>> writerFutures = new ArrayList<>();
+
+    private ExecutorService executor;
+
+    private Saver saver;
+
+    private boolean verbose;
+
+    private int capacity;
+
+    private volatile FilterException failure;
+
+    // How long the filter job waits for a writer before checking it is still running
+    private long waitMillis = DEFAULT_WAIT_MILLIS;
+
+    /**
+     * Saves a converted document, in a writer thread.
+     */
+    @FunctionalInterface
+    interface Saver
+    {
+        /**
+         * @param inputDocument the converted document
+         * @param firstVersion whether it is the first revision of the document sent by the input stream
+         * @throws FilterException if the save failed and the migration should stop
+         */
+        void save(XWikiDocument inputDocument, boolean firstVersion) throws FilterException;
+    }
+
+    /**
+     * Start the writers. Must be called from the filter job.
+     *
+     * @param writers the number of writer threads
+     * @param queueSize the maximum number of documents waiting to be saved by each writer
+     * @param verboseLogs whether the queued documents are logged
+     * @param documentSaver saves the documents
+     */
+    public void start(int writers, int queueSize, boolean verboseLogs, Saver documentSaver)
+    {
+        this.saver = documentSaver;
+        this.verbose = verboseLogs;
+        this.capacity = writers * (queueSize + 1);
+
+        Map<String, Serializable> context;
+        try {
+            context = contextStoreManager.save(contextStoreManager.getSupportedEntries());
+        } catch (ComponentLookupException e) {
+            logger.error("Failed to save the context of the filter job, the writers will use a default context", e);
+            context = null;
+        }
+
+        executor = Executors.newFixedThreadPool(writers, new BasicThreadFactory.Builder()
+            .namingPattern("Confluence migration document writer %d")
+            .daemon(true)
+            .build());
+        for (int i = 0; i < writers; i++) {
+            BlockingQueue<SaveTask> queue = new ArrayBlockingQueue<>(queueSize);
+            queues.add(queue);
+            Map<String, Serializable> writerContext = context;
+            writerFutures.add(executor.submit(() -> write(queue, writerContext)));
+        }
+    }
+
+    /**
+     * Queue a converted document, waiting if the queue of its writer is full. Must be called from the filter job.
+     *
+     * @param inputDocument the converted document
+     * @param firstVersion whether it is the first revision of the document sent by the input stream
+     * @throws FilterException if the save of a previous document failed and the migration should stop, or if the
+     *     filter job is interrupted
+     */
+    public void submit(XWikiDocument inputDocument, boolean firstVersion) throws FilterException
+    {
+        checkFailure();
+
+        // The revisions and translations of a document are saved in order by the same writer
+        DocumentReference reference = inputDocument.getDocumentReference();
+        int writer = Math.floorMod(reference.hashCode(), queues.size());
+        if (verbose) {
+            logger.info(LOG_DOCUMENT_QUEUED, "Queued document [{}] for saving",
+                inputDocument.getDocumentReferenceWithLocale());
+        }
+
+        SaveTask task = new SaveTask(writer, inputDocument, firstVersion);
+        try {
+            put(writer, task);
+            pendingTasks.add(task);
+            replayLogs(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FilterException(INTERRUPTED, e);
+        }
+    }
+
+    private void put(int writer, SaveTask task) throws InterruptedException, FilterException
+    {
+        // Don't wait forever for a writer which stopped
+        while (!queues.get(writer).offer(task, waitMillis, TimeUnit.MILLISECONDS)) {
+            checkWriter(writer, null);
+        }
+    }
+
+    private void checkWriter(int writer, SaveTask waitedTask) throws FilterException
+    {
+        // A writer ends after the task it took is done, unless it died
+        if (writerFutures.get(writer).isDone() && (waitedTask == null || !waitedTask.isDone())) {
+            throw new FilterException(String.format("The document writer [%d] stopped unexpectedly", writer));
+        }
+    }
+
+    /**
+     * Wait for the queued documents to be saved and stop the writers. Must be called from the filter job.
+     *
+     * @throws FilterException if the save of a document failed and the migration should stop, or if the filter job
+     *     is interrupted
+     */
+    public void close() throws FilterException
+    {
+        try {
+            for (int i = 0; i < queues.size(); i++) {
+                put(i, END);
+            }
+            replayLogs(true);
+            executor.shutdown();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new FilterException(INTERRUPTED, e);
+        } catch (FilterException e) {
+            executor.shutdownNow();
+            throw e;
+        }
+
+        checkFailure();
+    }
+
+    private void checkFailure() throws FilterException
+    {
+        if (failure != null) {
+            throw new FilterException("Failed to save document", failure);
+        }
+    }
+
+    private void replayLogs(boolean all) throws InterruptedException, FilterException
+    {
+        while (!pendingTasks.isEmpty()) {
+            SaveTask task = pendingTasks.peek();
+            if (!task.isDone()) {
+                if (!all && pendingTasks.size() <= capacity) {
+                    return;
+                }
+                // Too many saved documents are waiting for a slow one, wait for it
+                while (!task.await(waitMillis)) {
+                    checkWriter(task.writer, task);
+                }
+            }
+            pendingTasks.poll();
+            for (LogEvent event : task.logs) {
+                event.log(logger);
+            }
+        }
+    }
+
+    private void write(BlockingQueue<SaveTask> queue, Map<String, Serializable> context)
+    {
+        try {
+            executionContextManager.initialize(new ExecutionContext());
+            if (context != null) {
+                contextStoreManager.restore(context);
+            }
+        } catch (ExecutionContextException | ComponentLookupException e) {
+            logger.error("Failed to initialize the context of the document writer", e);
+        }
+
+        try {
+            for (SaveTask task = queue.take(); task != END; task = queue.take()) {
+                save(task);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            execution.removeContext();
+        }
+    }
+
+    private void save(SaveTask task)
+    {
+        LogCapture capture = new LogCapture();
+        loggerManager.pushLogListener(capture);
+        try {
+            // Like in the filter job, nothing is saved anymore once a save failed and the migration should stop
+            if (failure == null) {
+                saver.save(task.document, task.firstVersion);
+            }
+        } catch (FilterException e) {
+            failure = e;
+        } catch (Throwable e) {
+            // The next documents are not saved either, but the queue is still drained so the filter job never waits
+            // for this writer
+            logger.error("Unexpected error while saving document [{}]",
+                task.document.getDocumentReferenceWithLocale(), e);
+            failure = new FilterException("Unexpected error while saving document", e);
+        } finally {
+            loggerManager.popLogListener();
+            task.done(capture.events);
+        }
+    }
+
+    private static final class SaveTask
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private final int writer;
+
+        private final boolean firstVersion;
+
+        private XWikiDocument document;
+
+        private List<LogEvent> logs = Collections.emptyList();
+
+        SaveTask(int writer, XWikiDocument document, boolean firstVersion)
+        {
+            this.writer = writer;
+            this.document = document;
+            this.firstVersion = firstVersion;
+        }
+
+        private void done(List<LogEvent> events)
+        {
+            this.logs = events;
+            // The document is not needed anymore, don't keep it in memory until the logs are replayed
+            this.document = null;
+            this.done.countDown();
+        }
+
+        private boolean isDone()
+        {
+            return done.getCount() == 0;
+        }
+
+        private boolean await(long millis) throws InterruptedException
+        {
+            return done.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static final class LogCapture implements EventListener
+    {
+        private final List<LogEvent> events = new ArrayList<>();
+
+        @Override
+        public String getName()
+        {
+            return LogCapture.class.getName();
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Collections.singletonList(new LogEvent());
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            if (event instanceof LogEvent) {
+                events.add((LogEvent) event);
+            }
+        }
+    }
+}
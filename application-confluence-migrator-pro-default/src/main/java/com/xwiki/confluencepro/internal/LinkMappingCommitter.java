@@ -0,0 +1,291 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+
+import com.xwiki.confluencepro.ConfluenceMigrationJobStatus;
+import com.xwiki.pro.internal.resolvers.LinkMappingBatchWriter;
+import com.xwiki.pro.internal.resolvers.LinkMappingStore;
+
+/**
+ * Writes the link mapping of a package, committing the transaction after each space and / or every given number of
+ * pages instead of once at the end. The spaces for which a commit fails are rolled back and stored again from the
+ * pages kept in memory, so the package doesn't need to be read again. The spaces which still can't be stored are
+ * remembered and skipped.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+final class LinkMappingCommitter
+{
+    private final LinkMappingStore store;
+
+    private final int flushSize;
+
+    private final int commitInterval;
+
+    private final boolean commitPerSpace;
+
+    private final int retries;
+
+    private final Collection<String> onlySpaces;
+
+    private final ConfluenceMigrationJobStatus status;
+
+    private final Logger logger;
+
+    private final Set<String> failedSpaces = new LinkedHashSet<>();
+
+    private LinkMappingBatchWriter writer;
+
+    private String currentSpace;
+
+    // The writes of the current space, kept to retry it
+    private List<Runnable> spaceWrites;
+
+    private boolean currentSpaceFailed;
+
+    private long uncommittedPages;
+
+    private long spacePages;
+
+    /**
+     * @param store the link mapping store
+     * @param flushSize the number of rows after which the buffered rows are sent to the database
+     * @param commitInterval the number of pages after which the transaction is committed, 0 to disable
+     * @param commitPerSpace whether the transaction is committed after each space. This is also the case when a
+     *     commit interval is set, so a failure only affects one space
+     * @param retries the number of times a space which could not be stored is stored again, when committing after
+     *     each space. The pages of the current space are kept in memory for this
+     * @param onlySpaces the spaces to store, null to store all of them
+     * @param status the status of the migration, in which the number of stored pages are recorded
+     * @param logger the logger
+     */
+    LinkMappingCommitter(LinkMappingStore store, int flushSize, int commitInterval, boolean commitPerSpace,
+        int retries, Collection<String> onlySpaces, ConfluenceMigrationJobStatus status, Logger logger)
+    {
+        this.store = store;
+        this.flushSize = flushSize;
+        this.commitInterval = commitInterval;
+        this.commitPerSpace = commitPerSpace;
+        this.retries = retries;
+        this.onlySpaces = onlySpaces;
+        this.status = status;
+        this.logger = logger;
+    }
+
+    /**
+     * @return whether the link mapping is committed in several transactions, and failed spaces can be retried
+     */
+    boolean isChunked()
+    {
+        return commitPerSpace || commitInterval > 0;
+    }
+
+    /**
+     * @param spaceKey a space key
+     * @return whether the pages of this space are to be stored
+     */
+    boolean accepts(String spaceKey)
+    {
+        return (onlySpaces == null || onlySpaces.contains(spaceKey)) && !failedSpaces.contains(spaceKey);
+    }
+
+    /**
+     * Add the following page to the link mapping.
+     * @param spaceKey the space key
+     * @param pageId the page id
+     * @param reference the serialized XWiki reference
+     */
+    void add(String spaceKey, long pageId, String reference)
+    {
+        add(spaceKey, () -> writer.add(pageId, reference));
+    }
+
+    /**
+     * Add the following page to the link mapping.
+     * @param spaceKey the space key
+     * @param pageTitle the page title
+     * @param reference the serialized XWiki reference
+     */
+    void add(String spaceKey, String pageTitle, String reference)
+    {
+        add(spaceKey, () -> writer.add(spaceKey, pageTitle, reference));
+    }
+
+    private void add(String spaceKey, Runnable write)
+    {
+        if (!spaceKey.equals(currentSpace)) {
+            endSpace();
+            currentSpace = spaceKey;
+            spacePages = 0;
+            currentSpaceFailed = false;
+            spaceWrites = isChunked() && retries > 0 ? new ArrayList<>() : null;
+        }
+
+        if (!accepts(spaceKey)) {
+            return;
+        }
+
+        if (spaceWrites != null) {
+            spaceWrites.add(write);
+        }
+
+        if (currentSpaceFailed) {
+            // The space will be stored again from the kept pages
+            return;
+        }
+
+        if (!isChunked()) {
+            if (openWriter()) {
+                write.run();
+                spacePages++;
+            }
+            return;
+        }
+
+        try {
+            write(write);
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private boolean openWriter()
+    {
+        if (writer == null) {
+            Session session = store.beginTransaction();
+            writer = store.openBatchWriter(session, flushSize);
+        }
+        return writer != null;
+    }
+
+    private void write(Runnable write)
+    {
+        if (!openWriter()) {
+            return;
+        }
+
+        write.run();
+        spacePages++;
+        uncommittedPages++;
+        if (commitInterval > 0 && uncommittedPages >= commitInterval) {
+            commit();
+        }
+    }
+
+    /**
+     * Store the remaining pages and end the transaction.
+     * @return the spaces which could not be stored
+     */
+    Set<String> close()
+    {
+        endSpace();
+        if (writer != null) {
+            // Not chunked: everything is committed at once
+            writer.close();
+            writer = null;
+            store.endTransaction(true);
+        }
+        return failedSpaces;
+    }
+
+    private void endSpace()
+    {
+        String space = currentSpace;
+        if (space == null || !accepts(space)) {
+            return;
+        }
+
+        if (isChunked()) {
+            if (!currentSpaceFailed) {
+                try {
+                    commit();
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+            if (currentSpaceFailed) {
+                retry();
+            }
+            spaceWrites = null;
+            if (currentSpaceFailed) {
+                logger.error("Failed to store the link mapping of space [{}]", space);
+                failedSpaces.add(space);
+                return;
+            }
+        }
+
+        if (spacePages > 0) {
+            status.addLinkMappingPageCount(space, spacePages);
+            logger.info("Stored the link mapping of [{}] pages of space [{}]", spacePages, space);
+        }
+    }
+
+    private void retry()
+    {
+        for (int attempt = 1; attempt <= retries && currentSpaceFailed; attempt++) {
+            logger.info("Storing the link mapping of space [{}] again (attempt [{}])", currentSpace, attempt);
+            currentSpaceFailed = false;
+            spacePages = 0;
+            try {
+                for (Runnable write : spaceWrites) {
+                    write(write);
+                }
+                commit();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private void commit()
+    {
+        if (writer == null) {
+            return;
+        }
+
+        writer.close();
+        writer = null;
+        store.endTransaction(true);
+        uncommittedPages = 0;
+    }
+
+    private void fail(RuntimeException e)
+    {
+        logger.error("Failed to store the link mapping of space [{}]", currentSpace, e);
+        currentSpaceFailed = true;
+        writer = null;
+        uncommittedPages = 0;
+        try {
+            store.endTransaction(false);
+        } catch (RuntimeException rollbackException) {
+            logger.warn("Failed to roll back the link mapping transaction", rollbackException);
+        }
+    }
+}
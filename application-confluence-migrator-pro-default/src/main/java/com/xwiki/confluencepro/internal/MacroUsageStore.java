@@ -0,0 +1,476 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Stores the number of occurrences of each macro in each migrated page, in a table of the current wiki. The macro
+ * usage statistics shown in the application are aggregated from this table with paginated queries, instead of being
+ * read from and written back to large JSON attachments after each migration.
+ * The first time the table is created in a wiki, the statistics saved by previous versions in
+ * ConfluenceMigratorPro.Code.MigratedMacrosCountJSON and MigratedMacrosDocsJSON are imported.
+ * The macros used in the pages of each migration are also indexed, so post migration tools can find the pages they
+ * need to fix without reading the macroPages.json attachment of the migration.
+ * @version $Id$
+ * @since 1.44.0
+ */
+@Component(roles = MacroUsageStore.class)
+@Singleton
+public class MacroUsageStore implements Initializable
+{
+    /**
+     * The key of the macro id in the aggregated rows.
+     */
+    public static final String NAME = "name";
+
+    /**
+     * The key of the number of occurrences in the aggregated rows.
+     */
+    public static final String OCCURRENCES = "occurrences";
+
+    /**
+     * The key of the number of pages in the aggregated rows.
+     */
+    public static final String PAGES = "pages";
+
+    private static final String TABLE = "confluencepro_macro_usage";
+
+    private static final String SELECT = "select ";
+
+    private static final String DISTINCT_PAGE = "distinct page";
+
+    private static final String INSERT_INTO = "insert into ";
+
+    private static final String DELETE = "delete";
+
+    private static final String FROM_KEYWORD = " from ";
+
+    private static final String FROM = FROM_KEYWORD + TABLE;
+
+    private static final String WHERE_MACRO_ID = " where macroId = ?";
+
+    private static final String WHERE_MACRO_ID_LIKE = " where macroId like ? escape '!'";
+
+    private static final String GROUP_BY_MACRO_ID = " group by macroId";
+
+    private static final String INSERT = INSERT_INTO + TABLE
+        + " (macroId, spaceKey, page, occurrences) values (?, ?, ?, ?)";
+
+    private static final String DELETE_PAGE = DELETE + FROM + " where page = ?";
+
+    private static final String MIGRATION_TABLE = "confluencepro_migration_macros";
+
+    private static final String FROM_MIGRATION_TABLE = FROM_KEYWORD + MIGRATION_TABLE;
+
+    private static final String WHERE_MIGRATION = " where migration = ?";
+
+    private static final String INSERT_MIGRATION = INSERT_INTO + MIGRATION_TABLE
+        + " (migration, page, macroId, occurrences) values (?, ?, ?, ?)";
+
+    private static final String DATA_JSON = "data.json";
+
+    private static final List<String> CONFLUENCE_MIGRATOR_SPACE = List.of("ConfluenceMigratorPro", "Code");
+
+    private static final String PAGES_SUFFIX = "_pg";
+
+    private static final String OCCURRENCES_SUFFIX = "_oc";
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final TypeReference<Map<String, Map<String, Integer>>> COUNT_MAP_TYPE_REF =
+        new TypeReference<Map<String, Map<String, Integer>>>() { };
+
+    private static final TypeReference<Map<String, Map<String, List<String>>>> DOCS_MAP_TYPE_REF =
+        new TypeReference<Map<String, Map<String, List<String>>>>() { };
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private WikiTables tables;
+
+    private static final class Row
+    {
+        private final String macroId;
+
+        private final String spaceKey;
+
+        private final String page;
+
+        private final int occurrences;
+
+        Row(String macroId, String spaceKey, String page, int occurrences)
+        {
+            this.macroId = macroId;
+            this.spaceKey = spaceKey;
+            this.page = page;
+            this.occurrences = occurrences;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        tables = new WikiTables(logger, "the macro usage statistics", this::createTables,
+            this::importLegacyStatistics);
+    }
+
+    /**
+     * Replace the macro usage statistics of the given pages.
+     * @param macroPages the number of occurrences of each macro, by page
+     */
+    public void addUsage(Map<String, Map<String, Integer>> macroPages)
+    {
+        if (macroPages.isEmpty()) {
+            return;
+        }
+
+        List<Row> rows = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Integer>> pageMacros : macroPages.entrySet()) {
+            String page = pageMacros.getKey();
+            String space = StringUtils.substringBefore(page, ".");
+            for (Map.Entry<String, Integer> macro : pageMacros.getValue().entrySet()) {
+                rows.add(new Row(macro.getKey(), space, page, macro.getValue()));
+            }
+        }
+
+        execute(session -> {
+            session.doWork(connection -> {
+                try (PreparedStatement delete = connection.prepareStatement(DELETE_PAGE)) {
+                    int n = 0;
+                    for (String page : macroPages.keySet()) {
+                        delete.setString(1, page);
+                        delete.addBatch();
+                        if (++n % BATCH_SIZE == 0) {
+                            delete.executeBatch();
+                        }
+                    }
+                    delete.executeBatch();
+                }
+                insert(connection, rows);
+            });
+            return Boolean.TRUE;
+        }, null);
+    }
+
+    /**
+     * Index the macros used in the pages imported by a migration, replacing the ones indexed for a previous run of
+     * this migration.
+     * @param migration the migration document
+     * @param macroPages the number of occurrences of each macro, by page
+     */
+    public void setMigrationMacros(DocumentReference migration, Map<String, Map<String, Integer>> macroPages)
+    {
+        String migrationRef = serializer.serialize(migration);
+        execute(session -> {
+            session.createNativeQuery(DELETE + FROM_MIGRATION_TABLE + WHERE_MIGRATION)
+                .setParameter(1, migrationRef)
+                .executeUpdate();
+            session.doWork(connection -> {
+                try (PreparedStatement insert = connection.prepareStatement(INSERT_MIGRATION)) {
+                    int n = 0;
+                    for (Map.Entry<String, Map<String, Integer>> pageMacros : macroPages.entrySet()) {
+                        for (Map.Entry<String, Integer> macro : pageMacros.getValue().entrySet()) {
+                            insert.setString(1, migrationRef);
+                            insert.setString(2, pageMacros.getKey());
+                            insert.setString(3, macro.getKey());
+                            insert.setInt(4, macro.getValue());
+                            insert.addBatch();
+                            if (++n % BATCH_SIZE == 0) {
+                                insert.executeBatch();
+                            }
+                        }
+                    }
+                    insert.executeBatch();
+                }
+            });
+            return Boolean.TRUE;
+        }, null);
+    }
+
+    /**
+     * @param migration the migration document
+     * @param macroIds the ids of the macros to look for
+     * @return the pages imported by this migration which use at least one of the given macros, or null if the
+     *     macros of this migration were not indexed (e.g. it was run with a previous version, or did not import any
+     *     macro)
+     */
+    public List<String> findPagesUsingMacros(DocumentReference migration, Collection<String> macroIds)
+    {
+        String migrationRef = serializer.serialize(migration);
+        return execute(session -> {
+            Object indexed = session.createNativeQuery(
+                SELECT + "count(*)" + FROM_MIGRATION_TABLE + WHERE_MIGRATION)
+                .setParameter(1, migrationRef)
+                .uniqueResult();
+            if (((Number) indexed).longValue() == 0) {
+                return null;
+            }
+
+            if (macroIds.isEmpty()) {
+                return Collections.<String>emptyList();
+            }
+
+            List<String> pages = new ArrayList<>();
+            for (Object page : session.createNativeQuery(SELECT + DISTINCT_PAGE + FROM_MIGRATION_TABLE
+                + " where migration = :migration and macroId in (:macroIds) and occurrences > 0")
+                .setParameter("migration", migrationRef)
+                .setParameterList("macroIds", macroIds)
+                .list()) {
+                pages.add((String) page);
+            }
+            return pages;
+        }, null);
+    }
+
+    /**
+     * @param nameFilter only count the macros whose id contains this string, or all of them if empty
+     * @return the number of distinct macros used in the migrated pages
+     */
+    public long countMacros(String nameFilter)
+    {
+        boolean filtered = StringUtils.isNotEmpty(nameFilter);
+        return execute(session -> {
+            NativeQuery<?> query = session.createNativeQuery(
+                SELECT + "count(distinct macroId)" + FROM + (filtered ? WHERE_MACRO_ID_LIKE : ""));
+            if (filtered) {
+                query.setParameter(1, toLikePattern(nameFilter));
+            }
+            return ((Number) query.uniqueResult()).longValue();
+        }, 0L);
+    }
+
+    /**
+     * @param nameFilter only return the macros whose id contains this string, or all of them if empty
+     * @param offset the index of the first macro to return
+     * @param limit the maximum number of macros to return
+     * @return the macros, sorted by descending number of occurrences, as maps with the {@link #NAME},
+     *     {@link #OCCURRENCES} and {@link #PAGES} keys
+     */
+    public List<Map<String, Object>> getMacros(String nameFilter, int offset, int limit)
+    {
+        boolean filtered = StringUtils.isNotEmpty(nameFilter);
+        return execute(session -> {
+            NativeQuery<?> query = session.createNativeQuery(
+                SELECT + "macroId, sum(occurrences), count(distinct page)" + FROM
+                    + (filtered ? WHERE_MACRO_ID_LIKE : "") + GROUP_BY_MACRO_ID
+                    + " order by sum(occurrences) desc, macroId");
+            if (filtered) {
+                query.setParameter(1, toLikePattern(nameFilter));
+            }
+            query.setFirstResult(Math.max(0, offset)).setMaxResults(limit);
+            List<Map<String, Object>> macros = new ArrayList<>();
+            for (Object result : query.list()) {
+                Object[] row = (Object[]) result;
+                Map<String, Object> macro = new LinkedHashMap<>(3);
+                macro.put(NAME, row[0]);
+                macro.put(OCCURRENCES, ((Number) row[1]).longValue());
+                macro.put(PAGES, ((Number) row[2]).longValue());
+                macros.add(macro);
+            }
+            return macros;
+        }, Collections.emptyList());
+    }
+
+    /**
+     * @param macroId the macro id
+     * @return the number of migrated pages using this macro
+     */
+    public long countPages(String macroId)
+    {
+        return execute(session -> ((Number) session.createNativeQuery(
+            SELECT + "count(distinct page)" + FROM + WHERE_MACRO_ID)
+            .setParameter(1, macroId)
+            .uniqueResult()).longValue(), 0L);
+    }
+
+    /**
+     * @param macroId the macro id
+     * @param offset the index of the first page to return
+     * @param limit the maximum number of pages to return
+     * @return the migrated pages using this macro, sorted by name
+     */
+    public List<String> getPages(String macroId, int offset, int limit)
+    {
+        return execute(session -> {
+            List<String> pages = new ArrayList<>();
+            for (Object page : session.createNativeQuery(
+                SELECT + DISTINCT_PAGE + FROM + WHERE_MACRO_ID + " order by page")
+                .setParameter(1, macroId)
+                .setFirstResult(Math.max(0, offset))
+                .setMaxResults(limit)
+                .list()) {
+                pages.add((String) page);
+            }
+            return pages;
+        }, Collections.emptyList());
+    }
+
+    private static String toLikePattern(String s)
+    {
+        return '%' + s.replace("!", "!!").replace("%", "!%").replace("_", "!_") + '%';
+    }
+
+    private <T> T execute(Function<Session, T> work, T fallback)
+    {
+        return tables.execute(contextProvider.get(), work, fallback);
+    }
+
+    private Boolean createTables(Session session)
+    {
+        // Each table and index is checked on its own, in case a previous attempt was interrupted
+        WikiTables.createTable(session, MIGRATION_TABLE, "migration varchar(768) not null, "
+            + "page varchar(768) not null, macroId varchar(255) not null, occurrences integer not null");
+        // MySQL limits index keys to 3072 bytes, so the macro id can't be added to this index
+        WikiTables.createIndex(session, MIGRATION_TABLE, "by_migration", "migration");
+
+        boolean created = WikiTables.createTable(session, TABLE, "macroId varchar(255) not null, "
+            + "spaceKey varchar(255), page varchar(768) not null, occurrences integer not null");
+        WikiTables.createIndex(session, TABLE, "by_macro", "macroId");
+        WikiTables.createIndex(session, TABLE, "by_page", "page");
+        return created;
+    }
+
+    private void importLegacyStatistics(XWikiContext context)
+    {
+        List<Row> rows = readLegacyStatistics(context);
+        if (!rows.isEmpty()) {
+            logger.info("Importing [{}] macro usage statistics rows saved by a previous version", rows.size());
+            tables.executeInTransaction(context, session -> {
+                session.doWork(connection -> insert(connection, rows));
+                return Boolean.TRUE;
+            }, null);
+        }
+    }
+
+    private static void insert(Connection connection, Collection<Row> rows) throws SQLException
+    {
+        try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+            int n = 0;
+            for (Row row : rows) {
+                insert.setString(1, row.macroId);
+                insert.setString(2, row.spaceKey);
+                insert.setString(3, row.page);
+                insert.setInt(4, row.occurrences);
+                insert.addBatch();
+                if (++n % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private List<Row> readLegacyStatistics(XWikiContext context)
+    {
+        Map<String, Map<String, Integer>> counts =
+            readLegacyDocument(context, "MigratedMacrosCountJSON", COUNT_MAP_TYPE_REF);
+        Map<String, Map<String, List<String>>> docs =
+            readLegacyDocument(context, "MigratedMacrosDocsJSON", DOCS_MAP_TYPE_REF);
+
+        // The legacy statistics only have the number of occurrences of each macro per space. It is spread over the
+        // pages of the space so that the totals and the page counts stay the same.
+        List<Row> rows = new ArrayList<>();
+        for (Map.Entry<String, Map<String, List<String>>> macro : docs.entrySet()) {
+            String macroId = macro.getKey();
+            Map<String, Integer> macroCounts = counts.getOrDefault(macroId, Collections.emptyMap());
+            for (Map.Entry<String, List<String>> spacePages : macro.getValue().entrySet()) {
+                List<String> pages = spacePages.getValue();
+                if (pages == null || pages.isEmpty() || !spacePages.getKey().endsWith(PAGES_SUFFIX)) {
+                    continue;
+                }
+
+                String space = StringUtils.removeEnd(spacePages.getKey(), PAGES_SUFFIX);
+                int occurrences = macroCounts.getOrDefault(space + OCCURRENCES_SUFFIX, pages.size());
+                int perPage = occurrences / pages.size();
+                int remainder = occurrences % pages.size();
+                for (int i = 0; i < pages.size(); i++) {
+                    rows.add(new Row(macroId, space, pages.get(i), perPage + (i < remainder ? 1 : 0)));
+                }
+            }
+        }
+        return rows;
+    }
+
+    private <T> Map<String, T> readLegacyDocument(XWikiContext context, String name,
+        TypeReference<Map<String, T>> typeRef)
+    {
+        DocumentReference reference = new DocumentReference(context.getWikiId(), CONFLUENCE_MIGRATOR_SPACE, name);
+        try {
+            XWikiDocument doc = context.getWiki().getDocument(reference, context);
+            String content = doc.getContent();
+            if (StringUtils.isNotEmpty(content)) {
+                // Very old versions saved the statistics in the document content
+                return OBJECT_MAPPER.readValue(content, typeRef);
+            }
+
+            XWikiAttachment attachment = doc.getAttachment(DATA_JSON);
+            if (attachment != null) {
+                try (InputStream data = attachment.getAttachmentContent(context).getContentInputStream()) {
+                    return OBJECT_MAPPER.readValue(data, typeRef);
+                }
+            }
+        } catch (XWikiException | IOException e) {
+            logger.warn("Failed to read the macro usage statistics saved in [{}]", reference, e);
+        }
+
+        return Collections.emptyMap();
+    }
+}
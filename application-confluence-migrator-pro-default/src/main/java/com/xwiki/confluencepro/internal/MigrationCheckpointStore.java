@@ -0,0 +1,339 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.LocalDocumentReference;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.store.DatabaseProduct;
+
+/**
+ * Stores the checkpoints of the running migrations, so a migration interrupted by a restart or a crash can be resumed
+ * without importing again the pages it saved. The pages of which the last revision was saved and the spaces which were
+ * fully imported are added to a table of the current wiki at each checkpoint, and the entries of the report
+ * aggregates which changed since the previous checkpoint to another one. The counts of the report are saved in the
+ * checkpoint property of the migration object, with the number of the checkpoint: the rows added by a later
+ * checkpoint which could not be completed are ignored.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+@Component(roles = MigrationCheckpointStore.class)
+@Singleton
+public class MigrationCheckpointStore implements Initializable
+{
+    /**
+     * The property of the migration object holding the last checkpoint.
+     */
+    static final String CHECKPOINT = "checkpoint";
+
+    private static final LocalDocumentReference MIGRATION_OBJECT =
+        new LocalDocumentReference(List.of("ConfluenceMigratorPro", "Code"), "MigrationClass");
+
+    private static final String TABLE = "confluencepro_migration_checkpoint";
+
+    private static final String CHANGES_TABLE = "confluencepro_migration_checkpoint_changes";
+
+    private static final String INSERT_INTO = "insert into ";
+
+    private static final String INSERT = INSERT_INTO + TABLE
+        + " (migration, checkpointNumber, spaceKey, page) values (?, ?, ?, ?)";
+
+    private static final String INSERT_CHANGES = INSERT_INTO + CHANGES_TABLE
+        + " (migration, checkpointNumber, aggregateChanges) values (?, ?, ?)";
+
+    private static final String DELETE = "delete from ";
+
+    private static final String WHERE_MIGRATION = " where migration = ?";
+
+    private static final String AFTER_CHECKPOINT = " and checkpointNumber > ?";
+
+    private static final String BY_MIGRATION = "by_migration";
+
+    private static final String MIGRATION = "migration";
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private WikiTables tables;
+
+    /**
+     * The entries of the report aggregates which changed in a checkpoint.
+     */
+    private static final class AggregateChanges
+    {
+        // Keep the fields public: it's important for the JSON serialization.
+        public Map<String, Map<String, List<MigrationLogAnalyzer.LogLine<MigrationLogAnalyzer.SimpleLog>>>> categories;
+        public Map<String, Map<String, Integer>> macroPages;
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        tables = new WikiTables(logger, "the migration checkpoints", this::createTables, null);
+    }
+
+    /**
+     * Save a checkpoint of a migration.
+     * @param migration the migration document
+     * @param checkpoint the checkpoint
+     * @return whether the checkpoint was saved
+     */
+    public boolean save(DocumentReference migration, MigrationLogAnalyzer.Checkpoint checkpoint)
+    {
+        String migrationRef = serializer.serialize(migration);
+        AggregateChanges changes = new AggregateChanges();
+        changes.categories = checkpoint.categories;
+        changes.macroPages = checkpoint.macroPages;
+        String serializedChanges;
+        try {
+            serializedChanges = OBJECT_MAPPER.writeValueAsString(changes);
+        } catch (IOException e) {
+            logger.error("Failed to serialize the checkpoint of migration [{}]", migration, e);
+            return false;
+        }
+
+        boolean saved = execute(session -> {
+            session.doWork(connection -> {
+                try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+                    int n = 0;
+                    for (String space : checkpoint.completedSpaces) {
+                        n = addRow(insert, migrationRef, checkpoint.sequence, space, null, n);
+                    }
+                    for (String page : checkpoint.savedPages) {
+                        n = addRow(insert, migrationRef, checkpoint.sequence, null, page, n);
+                    }
+                    insert.executeBatch();
+                }
+                try (PreparedStatement insert = connection.prepareStatement(INSERT_CHANGES)) {
+                    insert.setString(1, migrationRef);
+                    insert.setInt(2, checkpoint.sequence);
+                    insert.setCharacterStream(3, new StringReader(serializedChanges), serializedChanges.length());
+                    insert.executeUpdate();
+                }
+            });
+            return Boolean.TRUE;
+        }, Boolean.FALSE);
+
+        // The rows are only taken into account once the checkpoint is saved in the migration object
+        return saved && saveState(migration, checkpoint);
+    }
+
+    private static int addRow(PreparedStatement insert, String migration, int sequence, String space, String page,
+        int n) throws SQLException
+    {
+        insert.setString(1, migration);
+        insert.setInt(2, sequence);
+        insert.setString(3, space);
+        insert.setString(4, page);
+        insert.addBatch();
+        if ((n + 1) % BATCH_SIZE == 0) {
+            insert.executeBatch();
+        }
+        return n + 1;
+    }
+
+    private boolean saveState(DocumentReference migration, MigrationLogAnalyzer.Checkpoint checkpoint)
+    {
+        XWikiContext context = contextProvider.get();
+        try {
+            XWikiDocument document = context.getWiki().getDocument(migration, context).clone();
+            BaseObject object = document.getXObject(MIGRATION_OBJECT);
+            if (object == null) {
+                return false;
+            }
+            object.setLargeStringValue(CHECKPOINT, OBJECT_MAPPER.writeValueAsString(checkpoint));
+            // Don't add a revision to the migration document at each checkpoint
+            document.setMetaDataDirty(false);
+            document.setContentDirty(false);
+            context.getWiki().saveDocument(document, "Migration checkpoint", true, context);
+            return true;
+        } catch (XWikiException | IOException e) {
+            logger.error("Failed to save the checkpoint of migration [{}]", migration, e);
+            return false;
+        }
+    }
+
+    /**
+     * @param migration the migration document
+     * @return the last checkpoint of the migration, with the changes of all its checkpoints, or null if it doesn't
+     *     have any
+     */
+    public MigrationLogAnalyzer.Checkpoint load(DocumentReference migration)
+    {
+        XWikiContext context = contextProvider.get();
+        MigrationLogAnalyzer.Checkpoint checkpoint;
+        try {
+            BaseObject object = context.getWiki().getDocument(migration, context).getXObject(MIGRATION_OBJECT);
+            String state = object == null ? null : object.getLargeStringValue(CHECKPOINT);
+            if (StringUtils.isEmpty(state)) {
+                return null;
+            }
+            checkpoint = OBJECT_MAPPER.readValue(state, MigrationLogAnalyzer.Checkpoint.class);
+        } catch (XWikiException | IOException e) {
+            logger.error("Failed to read the checkpoint of migration [{}]", migration, e);
+            return null;
+        }
+
+        String migrationRef = serializer.serialize(migration);
+        List<String> serializedChanges = execute(session -> {
+            // Forget the rows of a checkpoint that could not be completed
+            for (String table : List.of(TABLE, CHANGES_TABLE)) {
+                session.createNativeQuery(DELETE + table + WHERE_MIGRATION + AFTER_CHECKPOINT)
+                    .setParameter(1, migrationRef)
+                    .setParameter(2, checkpoint.sequence)
+                    .executeUpdate();
+            }
+            for (Object result : session.createNativeQuery("select spaceKey, page from " + TABLE + WHERE_MIGRATION)
+                .setParameter(1, migrationRef)
+                .list()) {
+                Object[] row = (Object[]) result;
+                if (row[1] == null) {
+                    checkpoint.completedSpaces.add((String) row[0]);
+                } else {
+                    checkpoint.savedPages.add((String) row[1]);
+                }
+            }
+            return session.doReturningWork(connection -> {
+                List<String> rows = new ArrayList<>();
+                try (PreparedStatement select = connection.prepareStatement("select aggregateChanges from "
+                    + CHANGES_TABLE + WHERE_MIGRATION + " order by checkpointNumber")) {
+                    select.setString(1, migrationRef);
+                    try (ResultSet results = select.executeQuery()) {
+                        while (results.next()) {
+                            rows.add(results.getString(1));
+                        }
+                    }
+                }
+                return rows;
+            });
+        }, null);
+
+        if (serializedChanges == null) {
+            return null;
+        }
+
+        try {
+            // Each checkpoint only has the entries which changed since the previous one
+            for (String serialized : serializedChanges) {
+                AggregateChanges changes = OBJECT_MAPPER.readValue(serialized, AggregateChanges.class);
+                if (changes.categories != null) {
+                    changes.categories.forEach((category, pages) ->
+                        checkpoint.categories.computeIfAbsent(category, k -> new HashMap<>()).putAll(pages));
+                }
+                if (changes.macroPages != null) {
+                    checkpoint.macroPages.putAll(changes.macroPages);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read the checkpoint of migration [{}]", migration, e);
+            return null;
+        }
+
+        return checkpoint;
+    }
+
+    /**
+     * Remove the checkpoints of a migration from the tables. The checkpoint property of the migration object is
+     * expected to be cleared by the caller.
+     * @param migration the migration document
+     */
+    public void clear(DocumentReference migration)
+    {
+        String migrationRef = serializer.serialize(migration);
+        execute(session -> {
+            for (String table : List.of(TABLE, CHANGES_TABLE)) {
+                session.createNativeQuery(DELETE + table + WHERE_MIGRATION)
+                    .setParameter(1, migrationRef)
+                    .executeUpdate();
+            }
+            return Boolean.TRUE;
+        }, Boolean.FALSE);
+    }
+
+    private <T> T execute(Function<Session, T> work, T fallback)
+    {
+        return tables.execute(contextProvider.get(), work, fallback);
+    }
+
+    private Boolean createTables(Session session)
+    {
+        boolean created = WikiTables.createTable(session, TABLE, "migration varchar(768) not null, "
+            + "checkpointNumber integer not null, spaceKey varchar(255), page varchar(768)");
+        WikiTables.createIndex(session, TABLE, BY_MIGRATION, MIGRATION);
+
+        WikiTables.createTable(session, CHANGES_TABLE, "migration varchar(768) not null, "
+            + "checkpointNumber integer not null, aggregateChanges " + getTextType() + " not null");
+        WikiTables.createIndex(session, CHANGES_TABLE, BY_MIGRATION, MIGRATION);
+        return created;
+    }
+
+    private String getTextType()
+    {
+        DatabaseProduct db = contextProvider.get().getWiki().getHibernateStore().getDatabaseProductName();
+        if (DatabaseProduct.MYSQL.equals(db) || "MariaDB".equals(db.getProductName())) {
+            return "longtext";
+        }
+        if (DatabaseProduct.POSTGRESQL.equals(db)) {
+            return "text";
+        }
+        if (DatabaseProduct.MSSQL.equals(db)) {
+            return "nvarchar(max)";
+        }
+        return "clob";
+    }
+}
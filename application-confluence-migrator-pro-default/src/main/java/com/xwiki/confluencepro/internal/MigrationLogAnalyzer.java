@@ -0,0 +1,781 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.contrib.confluence.filter.internal.ConfluenceFilter;
+import org.xwiki.logging.LogLevel;
+import org.xwiki.logging.event.LogEvent;
+import org.xwiki.logging.tail.LogTail;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+/**
+ * Builds the aggregates of the migration report (issues, skipped pages, collisions, macro usage, document counts)
+ * from the log of a migration job. The log is analysed incrementally: each call to {@link #catchUp(LogTail)} only
+ * looks at the events logged since the previous call, so this can be done regularly while the migration runs and the
+ * report is ready as soon as it ends. Several logs can be followed, for instance the ones of filter jobs importing
+ * spaces in parallel: each of them is read from its own position, and their aggregates are merged.
+ * The pages of which the last revision was saved and the spaces which were fully imported are tracked so checkpoints
+ * of the migration can be taken regularly, and the aggregates can be restored from a checkpoint when an interrupted
+ * migration is resumed. When the documents are saved by writer threads (see {@link DocumentSavePipeline}), the logs of
+ * a save come after the ones of the next pages, so they are matched with the page the document was queued for.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+final class MigrationLogAnalyzer
+{
+    static final String OTHER_ISSUES = "otherIssues";
+
+    static final String SKIPPED = "skipped";
+
+    static final String CONFLUENCE_REF_WARNINGS = "confluenceRefWarnings";
+
+    static final String UNHANDLED_PARAMETERS = "unhandledParameters";
+
+    static final String UNHANDLED_PARAMETER_VALUES = "unhandledParameterValues";
+
+    private static final Marker CONFLUENCE_REF_MARKER = MarkerFactory.getMarker("confluenceRef");
+
+    private static final String PAGE_ID = "pageId";
+
+    private static final Marker SEND_PAGE_MARKER = MarkerFactory.getMarker("ConfluenceSendingPage");
+
+    private static final Marker SEND_TEMPLATE_MARKER = MarkerFactory.getMarker("ConfluenceSendingTemplate");
+
+    private static final Marker UNHANDLED_PARAMETER_MARKER = MarkerFactory.getMarker("unhandledConfluenceParameter");
+    private static final Marker UNHANDLED_PARAMETER_VALUE_MARKER =
+        MarkerFactory.getMarker("unhandledConfluenceParameterValue");
+
+    private final EntityReferenceSerializer<String> serializer;
+
+    private final EntityReferenceSerializer<String> localSerializer;
+
+    private final Logger logger;
+
+    private final Map<String, ChangeTrackingMap<List<LogLine<SimpleLog>>>> categories = Map.of(
+        OTHER_ISSUES, new ChangeTrackingMap<>(),
+        SKIPPED, new ChangeTrackingMap<>(),
+        CONFLUENCE_REF_WARNINGS, new ChangeTrackingMap<>(),
+        UNHANDLED_PARAMETERS, new ChangeTrackingMap<>(),
+        UNHANDLED_PARAMETER_VALUES, new ChangeTrackingMap<>()
+    );
+
+    private final ChangeTrackingMap<Map<String, Integer>> macrosByPage = new ChangeTrackingMap<>();
+
+    private final Map<String, Map<String, List<String>>> collidingReferences = new HashMap<>();
+
+    private final DocCounts docCounts = new DocCounts();
+
+    private final Collection<String> documents = new TreeSet<>();
+
+    private final Map<LogTail, LogCursor> cursors = new IdentityHashMap<>();
+
+    private final Collection<String> savedPagesSinceCheckpoint = new HashSet<>();
+
+    private final Collection<String> completedSpacesSinceCheckpoint = new HashSet<>();
+
+    // The documents queued by the filter jobs saving them in writer threads, and the pages they were converted from
+    private final Map<String, Deque<CurrentPage>> pendingSaves = new HashMap<>();
+
+    // The number of documents of each space in pendingSaves
+    private final Map<String, Integer> pendingSavesBySpace = new HashMap<>();
+
+    // The spaces which were fully converted, but of which some documents are still being saved
+    private final Collection<String> spacesBeingSaved = new HashSet<>();
+
+    private int checkpointSequence;
+
+    /**
+     * @param serializer the serializer used for the references of the reported pages
+     * @param localSerializer the serializer used for the list of imported documents
+     * @param logger the logger
+     */
+    MigrationLogAnalyzer(EntityReferenceSerializer<String> serializer,
+        EntityReferenceSerializer<String> localSerializer, Logger logger)
+    {
+        this.serializer = serializer;
+        this.localSerializer = localSerializer;
+        this.logger = logger;
+    }
+
+    /**
+     * Analyse the events added to the log since the previous call with the same log.
+     * @param logTail the log of the migration job, or of one of its parallel filter jobs
+     */
+    synchronized void catchUp(LogTail logTail)
+    {
+        LogCursor cursor = cursors.computeIfAbsent(logTail, k -> new LogCursor());
+        int size = logTail.size();
+        for (; cursor.analysedEvents < size; cursor.analysedEvents++) {
+            LogEvent event = logTail.getLogEvent(cursor.analysedEvents);
+            if (event == null) {
+                logger.warn("Found a null event. This is unexpected.");
+                continue;
+            }
+
+            analyseLogEvent(event, cursor.page, documents, categories, macrosByPage, docCounts, collidingReferences);
+            updateCurrentSpace(cursor);
+        }
+    }
+
+    /**
+     * Record that the filter job writing the given log ended successfully, once all the events of its log were
+     * analysed. No other space follows the last space it imported, so this space is complete once the documents
+     * queued for saving are saved.
+     * @param logTail the log of the filter job
+     */
+    synchronized void endLog(LogTail logTail)
+    {
+        LogCursor cursor = cursors.get(logTail);
+        if (cursor != null && !cursor.ended) {
+            cursor.ended = true;
+            completeSpace(cursor.space);
+        }
+    }
+
+    /**
+     * Take a checkpoint of the migration, if pages were saved or spaces were completed since the previous one. Only
+     * the entries of the aggregates which changed since the previous checkpoint are included. If the checkpoint can't
+     * be saved, {@link #checkpointNotSaved(Checkpoint)} must be called so its changes are part of the next one.
+     * @param spaces the spaces being migrated
+     * @return the checkpoint, or null if nothing changed since the previous one
+     */
+    synchronized Checkpoint takeCheckpoint(Collection<String> spaces)
+    {
+        if (savedPagesSinceCheckpoint.isEmpty() && completedSpacesSinceCheckpoint.isEmpty()) {
+            return null;
+        }
+
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.sequence = ++checkpointSequence;
+        checkpoint.spaces = new ArrayList<>(spaces);
+        // The analysis goes on while the checkpoint is saved, so the mutable parts of the aggregates are copied
+        checkpoint.categories = new HashMap<>(categories.size());
+        for (Map.Entry<String, ChangeTrackingMap<List<LogLine<SimpleLog>>>> category : categories.entrySet()) {
+            checkpoint.categories.put(category.getKey(), category.getValue().takeChanges(ArrayList::new));
+        }
+        // The macros of a page are replaced, never modified
+        checkpoint.macroPages = macrosByPage.takeChanges(macros -> macros);
+        checkpoint.docCount = docCounts.docCount;
+        checkpoint.templateCount = docCounts.templateCount;
+        checkpoint.revisionCount = docCounts.revisionCount;
+        checkpoint.savedPages = new ArrayList<>(savedPagesSinceCheckpoint);
+        checkpoint.completedSpaces = new ArrayList<>(completedSpacesSinceCheckpoint);
+        savedPagesSinceCheckpoint.clear();
+        completedSpacesSinceCheckpoint.clear();
+        return checkpoint;
+    }
+
+    /**
+     * Add the changes of a checkpoint which could not be saved to the next checkpoint.
+     * @param checkpoint the checkpoint returned by {@link #takeCheckpoint(Collection)}
+     */
+    synchronized void checkpointNotSaved(Checkpoint checkpoint)
+    {
+        for (Map.Entry<String, Map<String, List<LogLine<SimpleLog>>>> category : checkpoint.categories.entrySet()) {
+            categories.get(category.getKey()).changedKeys.addAll(category.getValue().keySet());
+        }
+        macrosByPage.changedKeys.addAll(checkpoint.macroPages.keySet());
+        savedPagesSinceCheckpoint.addAll(checkpoint.savedPages);
+        completedSpacesSinceCheckpoint.addAll(checkpoint.completedSpaces);
+    }
+
+    /**
+     * Restore the aggregates saved in the checkpoints of an interrupted migration, before analysing the log of the
+     * migration resuming it.
+     * @param checkpoint the last checkpoint, with the changes of all the checkpoints of the migration
+     */
+    synchronized void restore(Checkpoint checkpoint)
+    {
+        checkpointSequence = checkpoint.sequence;
+        if (checkpoint.categories != null) {
+            for (Map.Entry<String, ChangeTrackingMap<List<LogLine<SimpleLog>>>> category : categories.entrySet()) {
+                category.getValue().restore(checkpoint.categories.get(category.getKey()));
+            }
+        }
+        macrosByPage.restore(checkpoint.macroPages);
+        docCounts.docCount = checkpoint.docCount;
+        docCounts.templateCount = checkpoint.templateCount;
+        docCounts.revisionCount = checkpoint.revisionCount;
+        documents.addAll(checkpoint.savedPages);
+    }
+
+    /**
+     * @return the issues found in the log, by category and then by page
+     */
+    synchronized Map<String, Map<String, List<LogLine<SimpleLog>>>> getLogCategories()
+    {
+        return Collections.unmodifiableMap(categories);
+    }
+
+    /**
+     * @return the macros used by the imported pages, by page
+     */
+    synchronized Map<String, Map<String, Integer>> getMacroPages()
+    {
+        return macrosByPage;
+    }
+
+    /**
+     * @return the colliding references, by space
+     */
+    synchronized Map<String, Map<String, List<String>>> getCollisions()
+    {
+        return collidingReferences;
+    }
+
+    /**
+     * @return the imported documents
+     */
+    synchronized Collection<String> getDocs()
+    {
+        return documents;
+    }
+
+    /**
+     * @return the number of imported pages
+     */
+    synchronized long getDocCount()
+    {
+        return docCounts.docCount;
+    }
+
+    /**
+     * @return the number of imported templates
+     */
+    synchronized long getTemplateCount()
+    {
+        return docCounts.templateCount;
+    }
+
+    /**
+     * @return the number of imported revisions
+     */
+    synchronized long getRevisionCount()
+    {
+        return docCounts.revisionCount;
+    }
+
+    private void replaceKey(Map<String, List<LogLine<SimpleLog>>> m, CurrentPage currentPage)
+    {
+        String oldKey = toString(currentPage.id);
+        String newKey = currentPage.ref;
+        if (m.containsKey(oldKey)) {
+            // Modified through computeIfAbsent so the change of both keys is tracked
+            m.computeIfAbsent(newKey, k -> new ArrayList<>()).addAll(m.remove(oldKey));
+        }
+    }
+
+    static final class LogLine<T>
+    {
+        // Keep the fields public: it's important for the JSON serialization.
+        public Long pageId;
+        public Long originalVersion;
+        public String spaceKey;
+        public String pageTitle;
+        public T data;
+    }
+
+    static final class SimpleLog
+    {
+        // Keep the fields public: it's important for the JSON serialization.
+        public String level;
+        public String marker;
+        public String msg;
+        public Object[] args;
+    }
+
+    private static final class CurrentPage
+    {
+        private Long id;
+        private Long originalVersion;
+        private String spaceKey;
+        private String pageTitle;
+        private String ref;
+
+        private boolean isCurrentRevision()
+        {
+            return originalVersion == null || (originalVersion.equals(id));
+        }
+
+        private CurrentPage copy()
+        {
+            CurrentPage page = new CurrentPage();
+            page.id = id;
+            page.originalVersion = originalVersion;
+            page.spaceKey = spaceKey;
+            page.pageTitle = pageTitle;
+            page.ref = ref;
+            return page;
+        }
+
+        private <T> LogLine<T> toLogLine(T data)
+        {
+            LogLine<T> logLine = new LogLine<>();
+            logLine.data = data;
+            logLine.pageId = id;
+            logLine.originalVersion = originalVersion;
+            logLine.spaceKey = spaceKey;
+            logLine.pageTitle = pageTitle;
+            return logLine;
+        }
+
+        private LogLine<SimpleLog> toLogLine(LogEvent e)
+        {
+            SimpleLog cl = new SimpleLog();
+            cl.args = e.getArgumentArray();
+            cl.marker = e.getMarker() == null ? "" : e.getMarker().getName();
+            cl.msg = e.getMessage();
+            cl.level = e.getLevel().name();
+            return toLogLine(cl);
+        }
+    }
+
+    private boolean ignoredIssue(LogEvent event)
+    {
+        if ("Failed to send event [{}] to listener [{}]".equals(event.getMessage())) {
+            // Let's ignore useless but scary warnings that clutter reports
+            // See https://github.com/xwikisas/application-confluence-migrator-pro/issues/88
+            // See https://github.com/xwikisas/application-confluence-migrator-pro/issues/214
+            Object[] args = event.getArgumentArray();
+            return args.length == 2
+                && args[0] instanceof DocumentUpdatedEvent
+                && args[1] instanceof String
+                && ((String) args[1]).startsWith("com.xpn.xwiki.internal.event.AttachmentEventGeneratorListener@");
+        }
+        return false;
+    }
+
+    private static final class LogCursor
+    {
+        // The events about a page follow the event telling which page is being imported, in the same log
+        private final CurrentPage page = new CurrentPage();
+
+        private int analysedEvents;
+
+        private String space;
+
+        private boolean ended;
+    }
+
+    /**
+     * A checkpoint of a migration: the counts of the report, the entries of the other aggregates which changed, the
+     * pages of which the last revision was saved and the spaces which were fully imported since the previous
+     * checkpoint. A removed entry of the aggregates has a null value.
+     */
+    static final class Checkpoint
+    {
+        // Keep the fields public: it's important for the JSON serialization.
+        public int sequence;
+        public Collection<String> spaces;
+        public long docCount;
+        public long templateCount;
+        public long revisionCount;
+
+        // The changes, pages and spaces are saved separately, they can be numerous
+        @JsonIgnore
+        public Map<String, Map<String, List<LogLine<SimpleLog>>>> categories = new HashMap<>();
+        @JsonIgnore
+        public Map<String, Map<String, Integer>> macroPages = new HashMap<>();
+        @JsonIgnore
+        public Collection<String> savedPages = new ArrayList<>();
+        @JsonIgnore
+        public Collection<String> completedSpaces = new ArrayList<>();
+    }
+
+    /**
+     * Map of an aggregate by page, remembering the pages of which the entry was added, modified or removed since the
+     * previous checkpoint. The entries must be modified with {@link #computeIfAbsent}, {@link #put} and
+     * {@link #remove} to be tracked.
+     * @param <V> the type of the entries
+     */
+    private static final class ChangeTrackingMap<V> extends TreeMap<String, V>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Set<String> changedKeys = new HashSet<>();
+
+        @Override
+        public V put(String key, V value)
+        {
+            changedKeys.add(key);
+            return super.put(key, value);
+        }
+
+        @Override
+        public V computeIfAbsent(String key, Function<? super String, ? extends V> mappingFunction)
+        {
+            changedKeys.add(key);
+            return super.computeIfAbsent(key, mappingFunction);
+        }
+
+        @Override
+        public V remove(Object key)
+        {
+            V removed = super.remove(key);
+            if (removed != null) {
+                changedKeys.add((String) key);
+            }
+            return removed;
+        }
+
+        private Map<String, V> takeChanges(UnaryOperator<V> copy)
+        {
+            Map<String, V> changes = new HashMap<>(changedKeys.size());
+            for (String key : changedKeys) {
+                V value = get(key);
+                changes.put(key, value == null ? null : copy.apply(value));
+            }
+            changedKeys.clear();
+            return changes;
+        }
+
+        private void restore(Map<String, V> entries)
+        {
+            if (entries != null) {
+                for (Map.Entry<String, V> entry : entries.entrySet()) {
+                    if (entry.getValue() != null) {
+                        super.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class DocCounts
+    {
+        private long templateCount;
+        private long docCount;
+        private long revisionCount;
+    }
+
+    private void analyseLogEvent(LogEvent event, CurrentPage currentPage, Collection<String> docs,
+        Map<String, ? extends Map<String, List<LogLine<SimpleLog>>>> logCategories,
+        Map<String, Map<String, Integer>> macroPages,
+        DocCounts counts, Map<String, Map<String, List<String>>> collisions)
+    {
+        Marker marker = event.getMarker();
+        if (isADocumentOutputFilterEvent(marker)) {
+            CurrentPage queuedPage = pollPendingSave(event);
+            if (queuedPage == null) {
+                updateCurrentPage(event, currentPage, docs, logCategories);
+            } else {
+                addSavedPage(event, queuedPage, docs);
+            }
+        } else if (DocumentSavePipeline.LOG_DOCUMENT_QUEUED.equals(marker)) {
+            queueCurrentPage(event, currentPage, logCategories);
+        } else if (DocumentInstanceOutputFilterStream.LOG_DOCUMENT_RESUMED.equals(marker)) {
+            forgetCurrentPage(currentPage, logCategories, counts);
+        } else if (ConfluenceFilter.LOG_MACROS_FOUND.equals(marker)) {
+            addMacros(currentPage, event.getArgumentArray(), macroPages);
+        } else if (SEND_PAGE_MARKER.equals(marker)) {
+            updateCountsAndRef(event, currentPage, counts);
+        } else if (SEND_TEMPLATE_MARKER.equals(marker)) {
+            counts.templateCount++;
+        } else if (UNHANDLED_PARAMETER_MARKER.equals(marker)) {
+            addEventToCat(event, logCategories.get(UNHANDLED_PARAMETERS), currentPage);
+        } else if (UNHANDLED_PARAMETER_VALUE_MARKER.equals(marker)) {
+            addEventToCat(event, logCategories.get(UNHANDLED_PARAMETER_VALUES), currentPage);
+        } else if (CONFLUENCE_REF_MARKER.equals(event.getMarker())) {
+            addEventToCat(event, logCategories.get(CONFLUENCE_REF_WARNINGS), currentPage);
+        } else if (LogLevel.WARN.equals(event.getLevel())) {
+            addEventToCat(event, logCategories.get(OTHER_ISSUES), currentPage);
+        } else if (LogLevel.ERROR.equals(event.getLevel())) {
+            CurrentPage queuedPage = isADocumentSaveFailure(marker) ? pollPendingSave(event) : null;
+            updateErrors(event, logCategories.get(SKIPPED), collisions, queuedPage == null ? currentPage : queuedPage);
+        }
+    }
+
+    private void updateCurrentPage(LogEvent event, CurrentPage currentPage, Collection<String> docs,
+        Map<String, ? extends Map<String, List<LogLine<SimpleLog>>>> logCategories)
+    {
+        Object[] args = event.getArgumentArray();
+        if (args.length > 0 && (args[0] instanceof DocumentReference)) {
+            DocumentReference docRef = (DocumentReference) args[0];
+            currentPage.ref = serializer.serialize(docRef);
+            String localRef = localSerializer.serialize(docRef);
+            docs.add(localRef);
+            if (currentPage.isCurrentRevision()) {
+                // The revisions of a page are sent from the oldest one, the page is now fully saved
+                savedPagesSinceCheckpoint.add(localRef);
+            }
+            if (currentPage.id != null) {
+                for (Map<String, List<LogLine<SimpleLog>>> cat : logCategories.values()) {
+                    replaceKey(cat, currentPage);
+                }
+            }
+        }
+    }
+
+    private void queueCurrentPage(LogEvent event, CurrentPage currentPage,
+        Map<String, ? extends Map<String, List<LogLine<SimpleLog>>>> logCategories)
+    {
+        Object[] args = event.getArgumentArray();
+        if (args.length > 0 && (args[0] instanceof DocumentReference)) {
+            // The document is saved later by a writer thread, its logs will come after the ones of the next pages
+            currentPage.ref = serializer.serialize((DocumentReference) args[0]);
+            if (currentPage.id != null) {
+                for (Map<String, List<LogLine<SimpleLog>>> cat : logCategories.values()) {
+                    replaceKey(cat, currentPage);
+                }
+            }
+            pendingSaves.computeIfAbsent(currentPage.ref, k -> new ArrayDeque<>()).add(currentPage.copy());
+            if (currentPage.spaceKey != null) {
+                pendingSavesBySpace.merge(currentPage.spaceKey, 1, Integer::sum);
+            }
+        }
+    }
+
+    private CurrentPage pollPendingSave(LogEvent event)
+    {
+        Object[] args = event.getArgumentArray();
+        if (pendingSaves.isEmpty() || args.length == 0 || !(args[0] instanceof DocumentReference)) {
+            return null;
+        }
+
+        String ref = serializer.serialize((DocumentReference) args[0]);
+        Deque<CurrentPage> queuedPages = pendingSaves.get(ref);
+        if (queuedPages == null) {
+            return null;
+        }
+        // The revisions of a document are saved in the order they were queued
+        CurrentPage queuedPage = queuedPages.poll();
+        if (queuedPages.isEmpty()) {
+            pendingSaves.remove(ref);
+        }
+        if (queuedPage != null && queuedPage.spaceKey != null) {
+            removePendingSave(queuedPage.spaceKey);
+        }
+        return queuedPage;
+    }
+
+    private void removePendingSave(String space)
+    {
+        if (pendingSavesBySpace.computeIfPresent(space, (k, n) -> n > 1 ? n - 1 : null) == null
+            && spacesBeingSaved.remove(space)) {
+            // The last document queued for this space was saved and its logs analysed
+            completedSpacesSinceCheckpoint.add(space);
+        }
+    }
+
+    private void addSavedPage(LogEvent event, CurrentPage queuedPage, Collection<String> docs)
+    {
+        String localRef = localSerializer.serialize((DocumentReference) event.getArgumentArray()[0]);
+        docs.add(localRef);
+        if (queuedPage.isCurrentRevision()) {
+            savedPagesSinceCheckpoint.add(localRef);
+        }
+    }
+
+    private void forgetCurrentPage(CurrentPage currentPage,
+        Map<String, ? extends Map<String, List<LogLine<SimpleLog>>>> logCategories, DocCounts counts)
+    {
+        // The page was saved before the migration was interrupted, so it is already counted and its issues are in the
+        // restored report. The ones found while converting it again are dropped.
+        counts.revisionCount--;
+        if (currentPage.isCurrentRevision()) {
+            counts.docCount--;
+        }
+        String pageId = toString(currentPage.id);
+        if (pageId != null) {
+            for (Map<String, List<LogLine<SimpleLog>>> cat : logCategories.values()) {
+                cat.remove(pageId);
+            }
+        }
+    }
+
+    private void updateCurrentSpace(LogCursor cursor)
+    {
+        String space = cursor.page.spaceKey;
+        if (space != null && !space.equals(cursor.space)) {
+            // The spaces are imported one after the other, so the previous one is complete once the documents queued
+            // for saving are saved
+            completeSpace(cursor.space);
+            cursor.space = space;
+        }
+    }
+
+    private void completeSpace(String space)
+    {
+        if (space != null) {
+            if (pendingSavesBySpace.containsKey(space)) {
+                spacesBeingSaved.add(space);
+            } else {
+                completedSpacesSinceCheckpoint.add(space);
+            }
+        }
+    }
+
+    private void updateErrors(LogEvent event, Map<String, List<LogLine<SimpleLog>>> skipped,
+        Map<String, Map<String, List<String>>> collisions, CurrentPage currentPage)
+    {
+        Object[] args = event.getArgumentArray();
+        if (isACollisionError(event, args)) {
+            String collidingReference = (String) args[0];
+            String spaceKey = (String) args[1];
+            List<String> pages = (List<String>) args[2];
+            Map<String, List<String>> spaceEntry = collisions.computeIfAbsent(spaceKey, k -> new HashMap<>());
+            spaceEntry.put(collidingReference, pages);
+        } else if (!ignoredIssue(event)) {
+            addEventToCat(event, skipped, currentPage);
+        }
+    }
+
+    private static boolean isACollisionError(LogEvent event, Object[] args)
+    {
+        if (Objects.equals(event.getMarker(), ConfluenceFilteringListener.COLLISION_MARKER)) {
+            return args.length == 3
+                && args[0] instanceof String
+                && args[1] instanceof String
+                && args[2] instanceof List;
+        }
+        return false;
+    }
+
+    private static void addMacros(CurrentPage currentPage, Object[] args, Map<String, Map<String, Integer>> macroPages)
+    {
+        if (currentPage.ref != null && currentPage.isCurrentRevision() && args[0] instanceof Map) {
+            Map<String, Integer> macrosIds = (Map<String, Integer>) args[0];
+            macroPages.put(currentPage.ref, mergeMacroIds(macrosIds, macroPages.get(currentPage.ref)));
+        }
+    }
+
+    private static Map<String, Integer> mergeMacroIds(Map<String, Integer> newMacrosIds,
+        Map<String, Integer> oldMacrosIds)
+    {
+        if (oldMacrosIds == null) {
+            return newMacrosIds;
+        }
+
+        // We merge the counts of the different document translations because that's what seems to be the most intuitive
+        // We expect translations to have about the same macro counts, but we don't want to miss some macro usage if
+        // it's not the case
+        // summing would provide surprisingly high numbers.
+
+        Map<String, Integer> macroIds = new LinkedHashMap<>(newMacrosIds);
+        for (Map.Entry<String, Integer> entry : oldMacrosIds.entrySet()) {
+            String id = entry.getKey();
+            macroIds.put(entry.getKey(), Math.max(entry.getValue(), macroIds.getOrDefault(id, 0)));
+        }
+        return macroIds;
+    }
+
+    private static boolean isADocumentSaveFailure(Marker marker)
+    {
+        return marker != null && "filter.instance.log.document.failsave".equals(marker.getName());
+    }
+
+    private static boolean isADocumentOutputFilterEvent(Marker marker)
+    {
+        String markerName = (marker == null || marker.getName() == null) ? "" : marker.getName();
+        return markerName.equals("filter.instance.log.document.updated")
+            || markerName.equals("filter.instance.log.document.created");
+    }
+
+    private static <T> T getPageIdentifierField(Map<?, ?> pageIdentifier, String field, Class<T> clazz)
+    {
+        Object f = pageIdentifier.get(field);
+        if (clazz.isInstance(f)) {
+            return clazz.cast(f);
+        }
+
+        return null;
+    }
+
+    private static void updateCountsAndRef(LogEvent event, CurrentPage currentPage, DocCounts counts)
+    {
+        currentPage.ref = null;
+        counts.revisionCount++;
+        if (tryUpdateCurrentPage(currentPage, event.getArgumentArray())) {
+            counts.docCount++;
+        }
+    }
+
+    private static boolean tryUpdateCurrentPage(CurrentPage currentPage, Object[] args)
+    {
+        if (args.length > 0 && args[0] instanceof Map) {
+            Map<?, ?> pageIdentifier = (Map<?, ?>) args[0];
+            currentPage.id = getPageIdentifierField(pageIdentifier, PAGE_ID, Long.class);
+            currentPage.originalVersion = getPageIdentifierField(pageIdentifier, "originalVersion", Long.class);
+            currentPage.spaceKey = getPageIdentifierField(pageIdentifier, "spaceKey", String.class);
+            currentPage.pageTitle = getPageIdentifierField(pageIdentifier, "pageTitle", String.class);
+            return currentPage.originalVersion == null || currentPage.originalVersion.equals(currentPage.id);
+        }
+        return false;
+    }
+
+    private static void addEventToCat(LogEvent e, Map<String, List<LogLine<SimpleLog>>> cat, CurrentPage currentPage)
+    {
+        if (cat != null) {
+            String pageIdOrFullName = getPageIdOrFullName(e, currentPage);
+            if (pageIdOrFullName != null) {
+                List<LogLine<SimpleLog>> logLines = cat.computeIfAbsent(pageIdOrFullName, k -> new ArrayList<>());
+                logLines.add(currentPage.toLogLine(e));
+            }
+        }
+    }
+
+    private static String toString(Long id)
+    {
+        if (id == null) {
+            return null;
+        }
+        return id.toString();
+    }
+
+    private static String getPageIdOrFullName(LogEvent logEvent, CurrentPage currentPage)
+    {
+        if (currentPage.ref == null) {
+            for (Object arg : logEvent.getArgumentArray()) {
+                if (arg instanceof Map) {
+                    return ((Map<?, ?>) arg).get(PAGE_ID).toString();
+                }
+            }
+
+            return toString(currentPage.id);
+        }
+
+        return currentPage.ref;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.context.concurrent.ContextStoreManager;
+import org.xwiki.filter.job.FilterStreamConverterJobRequest;
+import org.xwiki.job.AbstractJobStatus;
+import org.xwiki.job.Job;
+import org.xwiki.job.event.status.CancelableJobStatus;
+import org.xwiki.job.event.status.JobStatus;
+
+import com.xwiki.confluencepro.ConfluenceMigrationJobStatus;
+
+/**
+ * Runs several filter jobs at the same time, each of them importing its share of the spaces of the package (see
+ * {@link ConfluenceFilteringListener}). Each filter job runs in its own thread, with its own execution context
+ * initialized from the context of the migration job.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+@Component(roles = ParallelFilterJobRunner.class)
+@Singleton
+public class ParallelFilterJobRunner
+{
+    private static final String FILTER_CONVERTER_ROLEHINT = "filter.converter";
+
+    @Inject
+    @Named(FILTER_CONVERTER_ROLEHINT)
+    private Provider<Job> filterJobProvider;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private ContextStoreManager contextStoreManager;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Run the filter jobs and wait for them. Must be called from the migration job.
+     * @param jobStatus the status of the migration job, which is the parent of the status of the filter jobs and
+     *     cancels them when it is canceled
+     * @param parallelism the number of filter jobs
+     * @param requestFactory gives a new filter job request, the share of the spaces is added to it
+     * @throws InterruptedException if the migration job is interrupted while waiting for the filter jobs
+     */
+    public void run(ConfluenceMigrationJobStatus jobStatus, int parallelism,
+        Supplier<FilterStreamConverterJobRequest> requestFactory) throws InterruptedException
+    {
+        Map<String, Serializable> context;
+        try {
+            context = contextStoreManager.save(contextStoreManager.getSupportedEntries());
+        } catch (ComponentLookupException e) {
+            logger.error("Failed to save the context of the migration, the filter jobs will use a default context", e);
+            context = null;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new BasicThreadFactory.Builder()
+            .namingPattern("Confluence migration import %d")
+            .daemon(true)
+            .build());
+        List<Future<?>> filterJobs = new ArrayList<>(parallelism);
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                FilterStreamConverterJobRequest filterJobRequest = requestFactory.get();
+                filterJobRequest.setInteractive(false);
+                filterJobRequest.setProperty(ConfluenceFilteringListener.SPACE_PARTITION, i);
+                filterJobRequest.setProperty(ConfluenceFilteringListener.SPACE_PARTITION_COUNT, parallelism);
+                Job filterJob = filterJobProvider.get();
+                // Initialized from the thread of the migration job, so its status is the parent of the status of the
+                // filter job
+                filterJob.initialize(filterJobRequest);
+                JobStatus filterJobStatus = filterJob.getStatus();
+                if (filterJobStatus instanceof AbstractJobStatus) {
+                    ((AbstractJobStatus<?>) filterJobStatus).setCancelable(true);
+                    jobStatus.addParallelFilterJobStatus((CancelableJobStatus) filterJobStatus);
+                }
+                Map<String, Serializable> filterJobContext = context;
+                filterJobs.add(executor.submit(() -> {
+                    runInNewContext(filterJob, filterJobContext);
+                    return null;
+                }));
+            }
+
+            for (Future<?> filterJob : filterJobs) {
+                try {
+                    filterJob.get();
+                } catch (ExecutionException e) {
+                    logger.error("A filter job importing part of the spaces failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runInNewContext(Job filterJob, Map<String, Serializable> context)
+        throws ExecutionContextException, ComponentLookupException
+    {
+        executionContextManager.initialize(new ExecutionContext());
+        try {
+            if (context != null) {
+                contextStoreManager.restore(context);
+            }
+            filterJob.run();
+        } finally {
+            execution.removeContext();
+        }
+    }
+}
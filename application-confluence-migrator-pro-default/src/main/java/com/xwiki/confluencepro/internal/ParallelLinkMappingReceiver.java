@@ -0,0 +1,286 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.contrib.confluence.filter.internal.input.ConfluenceLinkMappingReceiver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+/**
+ * Receives the link mapping of a package and stores each space on a bounded pool of worker threads. Each worker has
+ * its own execution context, and thus its own database session, and its own collision detector, which are merged
+ * when calling {@link #finish(ReferenceCollisionDetector)}. The given committers are expected to commit after each
+ * space, so a failure is recorded in the failed spaces instead of being thrown. A space of which the pages are not
+ * contiguous in the package is stored in several parts.
+ * <p>
+ * The pages of a space are buffered until the next space starts. At most twice as many spaces as there are workers
+ * are kept in memory: the reading of the package waits when the workers are late.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+final class ParallelLinkMappingReceiver implements ConfluenceLinkMappingReceiver
+{
+    private final ExecutorService executor;
+
+    private final Semaphore pendingSpaces;
+
+    private final Supplier<LinkMappingCommitter> committerFactory;
+
+    private final EntityReferenceSerializer<String> serializer;
+
+    private final Execution execution;
+
+    private final ExecutionContextManager executionContextManager;
+
+    private final Logger logger;
+
+    private final List<Pair<String, Future<SpaceResult>>> results = new ArrayList<>();
+
+    // The spaces which were not submitted because the thread was interrupted
+    private final Set<String> skippedSpaces = new LinkedHashSet<>();
+
+    private String currentSpace;
+
+    private List<PendingPage> pages;
+
+    private boolean interrupted;
+
+    private static final class PendingPage
+    {
+        private final long pageId;
+
+        private final String pageTitle;
+
+        private final EntityReference reference;
+
+        PendingPage(long pageId, String pageTitle, EntityReference reference)
+        {
+            this.pageId = pageId;
+            this.pageTitle = pageTitle;
+            this.reference = reference;
+        }
+    }
+
+    private static final class SpaceResult
+    {
+        private final ReferenceCollisionDetector detector;
+
+        private final Set<String> failedSpaces;
+
+        SpaceResult(ReferenceCollisionDetector detector, Set<String> failedSpaces)
+        {
+            this.detector = detector;
+            this.failedSpaces = failedSpaces;
+        }
+    }
+
+    /**
+     * @param parallelism the number of worker threads
+     * @param committerFactory gives a new committer for each space
+     * @param serializer the serializer used for the references
+     * @param execution the execution
+     * @param executionContextManager the execution context manager, used to initialize the context of the workers
+     * @param logger the logger
+     */
+    ParallelLinkMappingReceiver(int parallelism, Supplier<LinkMappingCommitter> committerFactory,
+        EntityReferenceSerializer<String> serializer, Execution execution,
+        ExecutionContextManager executionContextManager, Logger logger)
+    {
+        this.executor = Executors.newFixedThreadPool(parallelism, new BasicThreadFactory.Builder()
+            .namingPattern("Confluence link mapping %d")
+            .daemon(true)
+            .build());
+        this.pendingSpaces = new Semaphore(parallelism * 2);
+        this.committerFactory = committerFactory;
+        this.serializer = serializer;
+        this.execution = execution;
+        this.executionContextManager = executionContextManager;
+        this.logger = logger;
+    }
+
+    @Override
+    public void addPage(String spaceKey, long pageId, EntityReference reference)
+    {
+        buffer(spaceKey, new PendingPage(pageId, null, reference));
+    }
+
+    @Override
+    public void addPage(String spaceKey, String pageTitle, EntityReference reference)
+    {
+        buffer(spaceKey, new PendingPage(0, pageTitle, reference));
+    }
+
+    private void buffer(String spaceKey, PendingPage page)
+    {
+        if (!interrupted && !spaceKey.equals(currentSpace)) {
+            submitCurrentSpace();
+            currentSpace = spaceKey;
+            pages = new ArrayList<>();
+        }
+
+        if (interrupted) {
+            skippedSpaces.add(spaceKey);
+            return;
+        }
+
+        pages.add(page);
+    }
+
+    private void submitCurrentSpace()
+    {
+        if (currentSpace == null || interrupted) {
+            return;
+        }
+
+        String spaceKey = currentSpace;
+        List<PendingPage> spacePages = pages;
+        try {
+            pendingSpaces.acquire();
+        } catch (InterruptedException e) {
+            // The remaining spaces are skipped, and reported by finish()
+            Thread.currentThread().interrupt();
+            interrupted = true;
+            skippedSpaces.add(spaceKey);
+            return;
+        }
+
+        results.add(Pair.of(spaceKey, executor.submit(() -> {
+            try {
+                return storeSpaceInNewContext(spaceKey, spacePages);
+            } finally {
+                pendingSpaces.release();
+            }
+        })));
+    }
+
+    private SpaceResult storeSpaceInNewContext(String spaceKey, List<PendingPage> spacePages)
+    {
+        try {
+            executionContextManager.initialize(new ExecutionContext());
+        } catch (ExecutionContextException e) {
+            logger.error("Failed to initialize the context for storing the link mapping of space [{}]", spaceKey, e);
+            // The references are still needed to look for collisions
+            return storeSpace(spaceKey, spacePages, null);
+        }
+
+        try {
+            return storeSpace(spaceKey, spacePages, committerFactory.get());
+        } finally {
+            execution.removeContext();
+        }
+    }
+
+    private SpaceResult storeSpace(String spaceKey, List<PendingPage> spacePages, LinkMappingCommitter committer)
+    {
+        ReferenceCollisionDetector detector = new ReferenceCollisionDetector();
+        for (PendingPage page : spacePages) {
+            String serialized = serializer.serialize(page.reference);
+            if (page.pageTitle != null) {
+                detector.add(spaceKey, page.pageTitle, serialized);
+            }
+
+            if (committer != null && committer.accepts(spaceKey)) {
+                if (page.pageTitle == null) {
+                    committer.add(spaceKey, page.pageId, serialized);
+                } else {
+                    committer.add(spaceKey, page.pageTitle, serialized);
+                }
+            }
+        }
+
+        Set<String> failedSpaces;
+        if (committer == null) {
+            failedSpaces = new LinkedHashSet<>();
+            failedSpaces.add(spaceKey);
+        } else {
+            failedSpaces = committer.close();
+        }
+
+        return new SpaceResult(detector, failedSpaces);
+    }
+
+    /**
+     * Store the last space, wait for the workers and merge their results.
+     * @param detector the collision detector in which the references seen by the workers are added
+     * @return the spaces which could not be stored
+     * @throws InterruptedException if the current thread was interrupted while the spaces were being stored, in which
+     *     case the spaces which were not stored are logged
+     */
+    Collection<String> finish(ReferenceCollisionDetector detector) throws InterruptedException
+    {
+        submitCurrentSpace();
+        executor.shutdown();
+
+        Set<String> failedSpaces = new LinkedHashSet<>();
+        boolean wasInterrupted = interrupted;
+        for (Pair<String, Future<SpaceResult>> result : results) {
+            String spaceKey = result.getLeft();
+            if (wasInterrupted) {
+                // The results are not waited for anymore
+                failedSpaces.add(spaceKey);
+                continue;
+            }
+
+            try {
+                SpaceResult spaceResult = result.getRight().get();
+                detector.merge(spaceResult.detector);
+                failedSpaces.addAll(spaceResult.failedSpaces);
+            } catch (InterruptedException e) {
+                wasInterrupted = true;
+                executor.shutdownNow();
+                failedSpaces.add(spaceKey);
+            } catch (ExecutionException e) {
+                logger.error("Failed to store the link mapping of space [{}]", spaceKey, e.getCause());
+                failedSpaces.add(spaceKey);
+            }
+        }
+
+        if (wasInterrupted) {
+            executor.shutdownNow();
+            failedSpaces.addAll(skippedSpaces);
+            logger.error("Interrupted while storing the link mapping, spaces [{}] may not be stored", failedSpaces);
+            // The interruption is given back by the exception
+            Thread.interrupted();
+            throw new InterruptedException();
+        }
+
+        return failedSpaces;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+/**
+ * Finds the references shared by several Confluence pages without keeping all the references and titles in memory.
+ * <p>
+ * The first pass only records a 64-bit hash of each reference in a primitive open addressing table, with a hash of
+ * the space key and title of the first page having this reference and the index of its space. When a reference hash
+ * is seen again, the pages and spaces having it are remembered as suspects. During the second pass over the link
+ * mapping, only the references of these pages are serialized and compared, which also rules out the rare hash
+ * collisions between different references.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+final class ReferenceCollisionDetector
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ReferenceTable seen = new ReferenceTable();
+
+    private final LongSet suspects = new LongSet();
+
+    private final LongSet suspectPages = new LongSet();
+
+    private final Set<String> suspectSpaces = new HashSet<>();
+
+    private final List<String> spaceKeys = new ArrayList<>();
+
+    private final Map<String, Integer> spaceIndexes = new HashMap<>();
+
+    private final Map<String, List<String>> titlesByReference = new LinkedHashMap<>();
+
+    private final Map<String, String> spaceByReference = new HashMap<>();
+
+    /**
+     * Record a page during the first pass.
+     * @param spaceKey the space of the page
+     * @param pageTitle the title of the page
+     * @param reference the serialized reference of the page
+     */
+    void add(String spaceKey, String pageTitle, String reference)
+    {
+        add(hash(reference), hash(spaceKey, pageTitle), getSpaceIndex(spaceKey));
+    }
+
+    private void add(long referenceHash, long pageHash, int space)
+    {
+        int slot = seen.putIfAbsent(referenceHash, pageHash, space);
+        if (slot >= 0) {
+            // Both this page and the first one seen with this reference hash need to be checked
+            suspects.add(referenceHash);
+            suspectPages.add(pageHash);
+            suspectPages.add(seen.pages[slot]);
+            suspectSpaces.add(spaceKeys.get(space));
+            suspectSpaces.add(spaceKeys.get(seen.spaces[slot]));
+        }
+    }
+
+    private int getSpaceIndex(String spaceKey)
+    {
+        return spaceIndexes.computeIfAbsent(spaceKey, k -> {
+            spaceKeys.add(k);
+            return spaceKeys.size() - 1;
+        });
+    }
+
+    /**
+     * Add the references recorded by another detector during its first pass, for instance one used for another space.
+     * @param other the other detector
+     */
+    void merge(ReferenceCollisionDetector other)
+    {
+        ReferenceTable table = other.seen;
+        for (int i = 0; i < table.keys.length; i++) {
+            if (table.used[i]) {
+                add(table.keys[i], table.pages[i], getSpaceIndex(other.spaceKeys.get(table.spaces[i])));
+            }
+        }
+        other.suspects.forEach(suspects::add);
+        other.suspectPages.forEach(suspectPages::add);
+        suspectSpaces.addAll(other.suspectSpaces);
+    }
+
+    /**
+     * @return whether a second pass is needed
+     */
+    boolean hasSuspects()
+    {
+        return suspects.size() > 0;
+    }
+
+    /**
+     * @return the spaces containing pages of which the reference may collide, only these spaces need to be looked at
+     *     during the second pass
+     */
+    Set<String> getSuspectSpaces()
+    {
+        return suspectSpaces;
+    }
+
+    /**
+     * @param spaceKey the space of a page
+     * @param pageTitle the title of the page
+     * @return whether the reference of the page may collide, and thus needs to be given to
+     *     {@link #verify(String, String, String)} during the second pass
+     */
+    boolean isSuspect(String spaceKey, String pageTitle)
+    {
+        return suspectSpaces.contains(spaceKey) && suspectPages.contains(hash(spaceKey, pageTitle));
+    }
+
+    /**
+     * Record a suspect page during the second pass.
+     * @param spaceKey the space of the page
+     * @param pageTitle the title of the page
+     * @param reference the serialized reference of the page
+     */
+    void verify(String spaceKey, String pageTitle, String reference)
+    {
+        if (!suspects.contains(hash(reference))) {
+            return;
+        }
+
+        List<String> titles = titlesByReference.get(reference);
+        if (titles == null) {
+            titles = new ArrayList<>(2);
+            titlesByReference.put(reference, titles);
+        } else {
+            spaceByReference.put(reference, spaceKey);
+        }
+        titles.add(pageTitle);
+    }
+
+    /**
+     * @return the titles of the pages sharing each colliding reference, once the second pass is done
+     */
+    Map<String, List<String>> getCollisions()
+    {
+        Map<String, List<String>> collisions = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> e : titlesByReference.entrySet()) {
+            if (e.getValue().size() > 1) {
+                collisions.put(e.getKey(), e.getValue());
+            }
+        }
+        return collisions;
+    }
+
+    /**
+     * @param reference a colliding reference
+     * @return the space of the last page found with this reference
+     */
+    String getSpace(String reference)
+    {
+        return spaceByReference.get(reference);
+    }
+
+    private static long hash(String s)
+    {
+        return hash(FNV_OFFSET_BASIS, s);
+    }
+
+    private static long hash(String spaceKey, String pageTitle)
+    {
+        // The separator can't be in a space key
+        return hash(hash(FNV_OFFSET_BASIS, spaceKey) ^ '/', pageTitle);
+    }
+
+    private static long hash(long start, String s)
+    {
+        // 64-bit FNV-1a
+        long h = start;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static int indexOf(long[] table, long key)
+    {
+        return (int) (key ^ (key >>> 32)) & (table.length - 1);
+    }
+
+    /**
+     * Map of reference hashes to the hash and space index of the first page having this reference hash, using open
+     * addressing with linear probing.
+     */
+    private static final class ReferenceTable
+    {
+        private long[] keys = new long[INITIAL_CAPACITY];
+
+        private long[] pages = new long[INITIAL_CAPACITY];
+
+        private int[] spaces = new int[INITIAL_CAPACITY];
+
+        private boolean[] used = new boolean[INITIAL_CAPACITY];
+
+        private int size;
+
+        /**
+         * @return the slot of the key if it was already present, -1 if it was added
+         */
+        int putIfAbsent(long key, long page, int space)
+        {
+            int i = find(key);
+            if (used[i]) {
+                return i;
+            }
+
+            keys[i] = key;
+            pages[i] = page;
+            spaces[i] = space;
+            used[i] = true;
+            size++;
+            if (size * 3 > keys.length * 2) {
+                grow();
+            }
+            return -1;
+        }
+
+        private int find(long key)
+        {
+            int mask = keys.length - 1;
+            int i = indexOf(keys, key);
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void grow()
+        {
+            long[] oldKeys = keys;
+            long[] oldPages = pages;
+            int[] oldSpaces = spaces;
+            boolean[] oldUsed = used;
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            pages = new long[capacity];
+            spaces = new int[capacity];
+            used = new boolean[capacity];
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldUsed[j]) {
+                    int i = find(oldKeys[j]);
+                    keys[i] = oldKeys[j];
+                    pages[i] = oldPages[j];
+                    spaces[i] = oldSpaces[j];
+                    used[i] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Set of longs using open addressing with linear probing.
+     */
+    private static final class LongSet
+    {
+        private long[] keys = new long[INITIAL_CAPACITY];
+
+        private int size;
+
+        // 0 marks free slots, so it is tracked separately
+        private boolean containsZero;
+
+        boolean add(long key)
+        {
+            if (key == 0) {
+                boolean added = !containsZero;
+                containsZero = true;
+                return added;
+            }
+
+            int i = slotOf(keys, key);
+            if (keys[i] == key) {
+                return false;
+            }
+
+            keys[i] = key;
+            size++;
+            if (size * 3 > keys.length * 2) {
+                grow();
+            }
+            return true;
+        }
+
+        boolean contains(long key)
+        {
+            return key == 0 ? containsZero : keys[slotOf(keys, key)] == key;
+        }
+
+        void forEach(LongConsumer action)
+        {
+            if (containsZero) {
+                action.accept(0);
+            }
+            for (long key : keys) {
+                if (key != 0) {
+                    action.accept(key);
+                }
+            }
+        }
+
+        int size()
+        {
+            return containsZero ? size + 1 : size;
+        }
+
+        private void grow()
+        {
+            long[] newKeys = new long[keys.length * 2];
+            for (long key : keys) {
+                if (key != 0) {
+                    newKeys[slotOf(newKeys, key)] = key;
+                }
+            }
+            keys = newKeys;
+        }
+
+        private static int slotOf(long[] table, long key)
+        {
+            int mask = table.length - 1;
+            int i = indexOf(table, key);
+            while (table[i] != 0 && table[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+/**
+ * Accesses tables created by the application in the database of each wiki, creating them the first time they are
+ * needed in a wiki. The tables and indexes are only created if they don't exist yet, so their creation can be run
+ * concurrently from several cluster members, or again after an interrupted attempt.
+ *
+ * @version $Id$
+ * @since 1.44.0
+ */
+final class WikiTables
+{
+    private final Logger logger;
+
+    private final String description;
+
+    private final Function<Session, Boolean> creator;
+
+    private final Consumer<XWikiContext> afterCreation;
+
+    private final Set<String> readyWikis = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param logger the logger of the store using the tables
+     * @param description what the tables hold, for the error messages
+     * @param creator creates the missing tables and indexes, and returns whether the main table was created
+     * @param afterCreation called after the main table was created in a wiki, with the context of this wiki, or null
+     */
+    WikiTables(Logger logger, String description, Function<Session, Boolean> creator,
+        Consumer<XWikiContext> afterCreation)
+    {
+        this.logger = logger;
+        this.description = description;
+        this.creator = creator;
+        this.afterCreation = afterCreation;
+    }
+
+    /**
+     * Run some work in a transaction, after creating the tables in the current wiki if needed.
+     * @param context the context
+     * @param work the work to run
+     * @param fallback the value to return if the work fails
+     * @param <T> the type of the result
+     * @return the result of the work, or the fallback if it failed
+     */
+    <T> T execute(XWikiContext context, Function<Session, T> work, T fallback)
+    {
+        if (!readyWikis.contains(context.getWikiId())) {
+            prepare(context);
+        }
+
+        return executeInTransaction(context, work, fallback);
+    }
+
+    /**
+     * Run some work in a transaction, without checking the tables. If a transaction is already open in the context,
+     * the work runs in it and the transaction is left to its owner to end.
+     * @param context the context
+     * @param work the work to run
+     * @param fallback the value to return if the work fails
+     * @param <T> the type of the result
+     * @return the result of the work, or the fallback if it failed
+     */
+    <T> T executeInTransaction(XWikiContext context, Function<Session, T> work, T fallback)
+    {
+        XWikiHibernateStore store = context.getWiki().getHibernateStore();
+        boolean begun = false;
+        boolean commit = false;
+        try {
+            begun = store.beginTransaction(context);
+            T result = work.apply(store.getSession(context));
+            commit = true;
+            return result;
+        } catch (XWikiException | RuntimeException e) {
+            logger.error("Failed to access {} of wiki [{}]", description, context.getWikiId(), e);
+            return fallback;
+        } finally {
+            if (begun) {
+                store.endTransaction(context, commit);
+            }
+        }
+    }
+
+    private synchronized void prepare(XWikiContext context)
+    {
+        String wiki = context.getWikiId();
+        if (readyWikis.contains(wiki)) {
+            return;
+        }
+
+        Boolean created = executeInTransaction(context, creator, null);
+        if (created == null) {
+            // We'll try again next time
+            return;
+        }
+
+        if (created && afterCreation != null) {
+            afterCreation.accept(context);
+        }
+
+        readyWikis.add(wiki);
+    }
+
+    /**
+     * Create a table if it doesn't exist.
+     * @param session the session to use
+     * @param table the name of the table
+     * @param columns the definition of the columns
+     * @return whether the table was created
+     */
+    static boolean createTable(Session session, String table, String columns)
+    {
+        return createIfNotExists(session, connection -> tableExists(connection, table),
+            String.format("create table %s (%s)", table, columns));
+    }
+
+    /**
+     * Create an index if it doesn't exist.
+     * @param session the session to use
+     * @param table the name of the table
+     * @param name the name of the index, without the table name prefix
+     * @param columns the indexed columns
+     * @return whether the index was created
+     */
+    static boolean createIndex(Session session, String table, String name, String columns)
+    {
+        String index = table + '_' + name;
+        return createIfNotExists(session, connection -> indexExists(connection, table, index),
+            String.format("create index %s on %s (%s)", index, table, columns));
+    }
+
+    private static boolean createIfNotExists(Session session, SQLPredicate exists, String statement)
+    {
+        return session.doReturningWork(connection -> {
+            if (exists.test(connection)) {
+                return false;
+            }
+
+            // Not all databases support "if not exists", and a failed statement aborts the whole transaction on some
+            // of them, hence the savepoint.
+            Savepoint savepoint = connection.setSavepoint();
+            try (Statement create = connection.createStatement()) {
+                create.executeUpdate(statement);
+                return true;
+            } catch (SQLException e) {
+                try {
+                    connection.rollback(savepoint);
+                } catch (SQLException rollbackException) {
+                    // The databases which commit DDL statements implicitly also release the savepoint
+                    e.addSuppressed(rollbackException);
+                }
+                if (exists.test(connection)) {
+                    // Created in the meantime by someone else
+                    return false;
+                }
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * @param connection the connection to use
+     * @param table the name of the table
+     * @return whether the table exists
+     * @throws SQLException if the metadata of the database can't be read
+     */
+    static boolean tableExists(Connection connection, String table) throws SQLException
+    {
+        DatabaseMetaData metaData = connection.getMetaData();
+        // Depending on the database, unquoted identifiers are stored in lower case or in upper case.
+        for (String name : List.of(table, table.toUpperCase(Locale.ROOT))) {
+            try (ResultSet tables = metaData.getTables(connection.getCatalog(), connection.getSchema(), name,
+                null)) {
+                if (tables.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param connection the connection to use
+     * @param table the name of the table
+     * @param index the name of the index
+     * @return whether the index exists
+     * @throws SQLException if the metadata of the database can't be read
+     */
+    static boolean indexExists(Connection connection, String table, String index) throws SQLException
+    {
+        DatabaseMetaData metaData = connection.getMetaData();
+        for (String name : List.of(table, table.toUpperCase(Locale.ROOT))) {
+            try (ResultSet indexes =
+                metaData.getIndexInfo(connection.getCatalog(), connection.getSchema(), name, false, true)) {
+                while (indexes.next()) {
+                    if (index.equalsIgnoreCase(indexes.getString("INDEX_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @FunctionalInterface
+    private interface SQLPredicate
+    {
+        boolean test(Connection connection) throws SQLException;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xwiki.confluencepro.internal.configuration.DefaultConfluenceMigratorProConfiguration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class ConfluencePackageCacheTest
+{
+    private static final String FILE_PREFIX = "file:";
+
+    private static final int HALF_MB = 512 * 1024 + 1;
+
+    @InjectMockComponents
+    private ConfluencePackageCache cache;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private DefaultConfluenceMigratorProConfiguration configuration;
+
+    @TempDir
+    private File tmpDir;
+
+    private File cacheDir;
+
+    @BeforeEach
+    void setUp()
+    {
+        File permanentDir = new File(tmpDir, "permanent");
+        when(environment.getPermanentDirectory()).thenReturn(permanentDir);
+        when(configuration.getPackageCacheSize()).thenReturn(1L);
+        cacheDir = new File(permanentDir, "confluence-migrator-pro/packages");
+    }
+
+    @Test
+    void acquireExtractsOnce() throws IOException
+    {
+        File packageFile = createPackage("package.zip", "entities.xml", 10);
+
+        String source = cache.acquire(FILE_PREFIX + packageFile);
+        assertNotNull(source);
+        File extracted = getDirectory(source);
+        assertTrue(new File(extracted, "entities.xml").isFile());
+        assertEquals(source, cache.acquire(FILE_PREFIX + packageFile));
+    }
+
+    @Test
+    void acquireRejectsEntriesOutsideOfThePackage() throws IOException
+    {
+        File packageFile = createPackage("evil.zip", "../../evil.txt", 10);
+
+        assertNull(cache.acquire(FILE_PREFIX + packageFile));
+        assertFalse(new File(cacheDir.getParentFile(), "evil.txt").exists());
+        assertFalse(new File(tmpDir, "evil.txt").exists());
+        // The partial extraction is removed
+        assertCacheEmpty();
+    }
+
+    @Test
+    void acquireSkipsPackagesBiggerThanTheCache() throws IOException
+    {
+        File packageFile = createPackage("big.zip", "entities.xml", 3 * HALF_MB);
+
+        assertNull(cache.acquire(FILE_PREFIX + packageFile));
+        assertCacheEmpty();
+    }
+
+    @Test
+    void acquireEvictsTheReleasedPackages() throws IOException
+    {
+        String first = cache.acquire(FILE_PREFIX + createPackage("first.zip", "first.xml", HALF_MB));
+        String second = cache.acquire(FILE_PREFIX + createPackage("second.zip", "second.xml", HALF_MB));
+
+        // Both don't fit in the cache, but the first one is still used
+        assertTrue(getDirectory(first).isDirectory());
+        assertTrue(getDirectory(second).isDirectory());
+
+        cache.release(first);
+        cache.release(second);
+        File third = createPackage("third.zip", "third.xml", HALF_MB);
+        // Make sure the third package is the most recently used one
+        assertTrue(getDirectory(second).setLastModified(System.currentTimeMillis() - 10000));
+        assertTrue(getDirectory(first).setLastModified(System.currentTimeMillis() - 20000));
+        String thirdSource = cache.acquire(FILE_PREFIX + third);
+
+        assertTrue(getDirectory(thirdSource).isDirectory());
+        assertFalse(getDirectory(first).exists());
+        assertFalse(getDirectory(second).exists());
+    }
+
+    private File createPackage(String name, String entry, int size) throws IOException
+    {
+        File packageFile = new File(tmpDir, name);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(packageFile))) {
+            zip.putNextEntry(new ZipEntry(entry));
+            // Different content for each package, so they have different hashes
+            byte[] content = new byte[size];
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(nameBytes, 0, content, 0, nameBytes.length);
+            zip.write(content);
+            zip.closeEntry();
+        }
+        return packageFile;
+    }
+
+    private void assertCacheEmpty()
+    {
+        String[] files = cacheDir.list();
+        assertTrue(files == null || files.length == 0);
+    }
+
+    private static File getDirectory(String source)
+    {
+        return new File(source.substring((FILE_PREFIX + "//").length()));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.Invocation;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.filter.FilterException;
+import org.xwiki.logging.LogLevel;
+import org.xwiki.logging.LoggerManager;
+import org.xwiki.logging.event.LogEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class DocumentSavePipelineTest
+{
+    private static final String SAVED = "Saved ";
+
+    private static final String BROKEN = "broken";
+
+    @InjectMockComponents
+    private DocumentSavePipeline pipeline;
+
+    @MockComponent
+    private ExecutionContextManager executionContextManager;
+
+    @MockComponent
+    private LoggerManager loggerManager;
+
+    private final Logger logger = mock(Logger.class);
+
+    private final Map<Thread, EventListener> logListeners = new ConcurrentHashMap<>();
+
+    private final Map<XWikiDocument, String> labels = new ConcurrentHashMap<>();
+
+    private final List<String> saved = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        ReflectionUtils.setFieldValue(pipeline, "logger", logger);
+        ReflectionUtils.setFieldValue(pipeline, "waitMillis", 100L);
+        doAnswer(invocation -> logListeners.put(Thread.currentThread(), invocation.getArgument(0)))
+            .when(loggerManager).pushLogListener(any());
+    }
+
+    @Test
+    void logsAreReplayedInTheOrderTheDocumentsWereQueued() throws Exception
+    {
+        pipeline.start(3, 1, false, (document, firstVersion) -> {
+            sleep(ThreadLocalRandom.current().nextInt(5));
+            save(document);
+        });
+
+        List<String> submitted = List.of("A1", "B1", "A2", "C1", "D1", "A3", "B2", "E1", "C2", "F1");
+        for (String label : submitted) {
+            pipeline.submit(document(label), false);
+        }
+        pipeline.close();
+
+        assertEquals(submitted, getReplayedLogs());
+        // The revisions of a document are saved in order
+        List<String> savedRevisions = new ArrayList<>(saved);
+        savedRevisions.removeIf(label -> !label.startsWith("A"));
+        assertEquals(List.of("A1", "A2", "A3"), savedRevisions);
+    }
+
+    @Test
+    void nothingIsSavedAfterAFailure()
+    {
+        pipeline.start(1, 1, false, (document, firstVersion) -> {
+            if (BROKEN.equals(labels.get(document))) {
+                throw new FilterException("Failed to save");
+            }
+            save(document);
+        });
+
+        assertThrows(FilterException.class, () -> {
+            for (String label : List.of("A", BROKEN, "B", "C", "D", "E", "F")) {
+                pipeline.submit(document(label), false);
+            }
+            pipeline.close();
+        });
+
+        assertEquals(List.of("A"), saved);
+    }
+
+    @Test
+    void unexpectedExceptionsStopTheMigration() throws Exception
+    {
+        pipeline.start(2, 1, false, (document, firstVersion) -> {
+            throw new IllegalStateException(BROKEN);
+        });
+
+        pipeline.submit(document("A"), false);
+        FilterException exception = assertThrows(FilterException.class, () -> pipeline.close());
+
+        assertEquals(IllegalStateException.class, exception.getCause().getCause().getClass());
+    }
+
+    @Test
+    void submitStopsWhenAWriterDies() throws Exception
+    {
+        doThrow(new IllegalStateException(BROKEN)).when(executionContextManager).initialize(any());
+        pipeline.start(1, 1, false, (document, firstVersion) -> save(document));
+
+        assertThrows(FilterException.class, () -> {
+            for (String label : List.of("A", "B", "C", "D")) {
+                pipeline.submit(document(label), false);
+            }
+        });
+        assertThrows(FilterException.class, () -> pipeline.close());
+        assertEquals(List.of(), saved);
+    }
+
+    private void save(XWikiDocument document)
+    {
+        String label = labels.get(document);
+        saved.add(label);
+        logListeners.get(Thread.currentThread())
+            .onEvent(new LogEvent(null, LogLevel.INFO, SAVED + label, new Object[0], null), null, null);
+    }
+
+    private XWikiDocument document(String label)
+    {
+        XWikiDocument document = mock(XWikiDocument.class);
+        // The revisions of a document have the same reference
+        DocumentReference reference = new DocumentReference("wiki", "Space", label.substring(0, 1));
+        when(document.getDocumentReference()).thenReturn(reference);
+        when(document.getDocumentReferenceWithLocale()).thenReturn(reference);
+        labels.put(document, label);
+        return document;
+    }
+
+    private List<String> getReplayedLogs()
+    {
+        List<String> logs = new ArrayList<>();
+        for (Invocation invocation : mockingDetails(logger).getInvocations()) {
+            for (Object argument : invocation.getArguments()) {
+                if (argument instanceof String && ((String) argument).startsWith(SAVED)) {
+                    logs.add(((String) argument).substring(SAVED.length()));
+                }
+            }
+        }
+        return logs;
+    }
+
+    private static void sleep(long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
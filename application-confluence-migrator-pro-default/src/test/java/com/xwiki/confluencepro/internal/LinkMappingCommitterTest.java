@@ -0,0 +1,136 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+
+import com.xwiki.confluencepro.ConfluenceMigrationJobStatus;
+import com.xwiki.pro.internal.resolvers.LinkMappingBatchWriter;
+import com.xwiki.pro.internal.resolvers.LinkMappingStore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LinkMappingCommitterTest
+{
+    private static final String SPACE_A = "A";
+
+    private static final String SPACE_B = "B";
+
+    private static final String SPACE_C = "C";
+
+    private static final String ONE = "One";
+
+    private static final String TWO = "Two";
+
+    private static final String THREE = "Three";
+
+    private final LinkMappingStore store = mock(LinkMappingStore.class);
+
+    private final LinkMappingBatchWriter writer = mock(LinkMappingBatchWriter.class);
+
+    private final ConfluenceMigrationJobStatus status = mock(ConfluenceMigrationJobStatus.class);
+
+    @BeforeEach
+    void setUp()
+    {
+        when(store.openBatchWriter(any(), anyInt())).thenReturn(writer);
+    }
+
+    private LinkMappingCommitter newCommitter(List<String> onlySpaces)
+    {
+        return new LinkMappingCommitter(store, 100, 0, true, 2, onlySpaces, status, mock(Logger.class));
+    }
+
+    @Test
+    void failedSpaceIsStoredAgainFromMemory()
+    {
+        doThrow(new RuntimeException("Deadlock")).doNothing().when(writer).add(SPACE_B, TWO, TWO);
+
+        LinkMappingCommitter committer = newCommitter(null);
+        committer.add(SPACE_A, ONE, ONE);
+        committer.add(SPACE_B, ONE, ONE);
+        committer.add(SPACE_B, TWO, TWO);
+        committer.add(SPACE_B, THREE, THREE);
+
+        assertTrue(committer.close().isEmpty());
+        verify(store).endTransaction(false);
+        verify(writer, times(2)).add(SPACE_B, ONE, ONE);
+        verify(writer, times(2)).add(SPACE_B, TWO, TWO);
+        // Not written after the failure, only when the space is stored again
+        verify(writer).add(SPACE_B, THREE, THREE);
+        verify(status).addLinkMappingPageCount(SPACE_A, 1);
+        verify(status).addLinkMappingPageCount(SPACE_B, 3);
+    }
+
+    @Test
+    void spaceFailingAgain()
+    {
+        doThrow(new RuntimeException("Constraint violation")).when(writer).add(SPACE_B, TWO, TWO);
+
+        LinkMappingCommitter committer = newCommitter(null);
+        committer.add(SPACE_B, ONE, ONE);
+        committer.add(SPACE_B, TWO, TWO);
+        committer.add(SPACE_C, ONE, ONE);
+
+        assertFalse(committer.accepts(SPACE_B));
+        // Later pages of the failed space are skipped
+        committer.add(SPACE_B, THREE, THREE);
+
+        assertEquals(Set.of(SPACE_B), committer.close());
+        verify(writer, times(3)).add(SPACE_B, TWO, TWO);
+        verify(writer, never()).add(SPACE_B, THREE, THREE);
+        verify(status, never()).addLinkMappingPageCount(eq(SPACE_B), anyLong());
+        verify(status).addLinkMappingPageCount(SPACE_C, 1);
+    }
+
+    @Test
+    void noPageCountWhenNothingIsWritten()
+    {
+        LinkMappingCommitter committer = newCommitter(List.of(SPACE_A));
+        committer.add(SPACE_B, ONE, ONE);
+        assertTrue(committer.close().isEmpty());
+
+        when(store.openBatchWriter(any(), anyInt())).thenReturn(null);
+        committer = newCommitter(null);
+        committer.add(SPACE_A, ONE, ONE);
+        assertTrue(committer.close().isEmpty());
+
+        verify(writer, never()).add(anyString(), anyString(), anyString());
+        verify(status, never()).addLinkMappingPageCount(anyString(), anyLong());
+    }
+}
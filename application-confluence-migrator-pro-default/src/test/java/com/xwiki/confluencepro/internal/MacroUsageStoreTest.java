@@ -0,0 +1,232 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.hibernate.query.NativeQuery;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class MacroUsageStoreTest
+{
+    private static final String DELETE_PAGE = "delete from confluencepro_macro_usage where page = ?";
+
+    private static final String INSERT =
+        "insert into confluencepro_macro_usage (macroId, spaceKey, page, occurrences) values (?, ?, ?, ?)";
+
+    private static final String SPACE = "SPACE";
+
+    private static final String PAGE_1 = "SPACE.Page1";
+
+    private static final String PAGE_2 = "SPACE.Page2";
+
+    private static final String INFO = "info";
+
+    private static final String CODE = "code";
+
+    private static final String MIGRATION_REF = "xwiki:ConfluenceMigratorPro.Migrations.M1";
+
+    private static final DocumentReference MIGRATION =
+        new DocumentReference("xwiki", List.of("ConfluenceMigratorPro", "Migrations"), "M1");
+
+    @InjectMockComponents
+    private MacroUsageStore store;
+
+    @MockComponent
+    private Provider<XWikiContext> contextProvider;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    private final XWikiContext context = mock(XWikiContext.class);
+
+    private final XWikiHibernateStore hibernateStore = mock(XWikiHibernateStore.class);
+
+    private final Session session = mock(Session.class);
+
+    // SQL -> rows added to its batches
+    private final Map<String, List<List<Object>>> batches = new HashMap<>();
+
+    // SQL of the executed batches, in order
+    private final List<String> executed = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        XWiki wiki = mock(XWiki.class);
+        when(contextProvider.get()).thenReturn(context);
+        when(context.getWikiId()).thenReturn("xwiki");
+        when(context.getWiki()).thenReturn(wiki);
+        when(wiki.getHibernateStore()).thenReturn(hibernateStore);
+        when(hibernateStore.beginTransaction(context)).thenReturn(true);
+        when(hibernateStore.getSession(context)).thenReturn(session);
+        when(serializer.serialize(MIGRATION)).thenReturn(MIGRATION_REF);
+
+        // The tables already exist
+        when(session.doReturningWork(any())).thenReturn(false);
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenAnswer(invocation -> prepare(invocation.getArgument(0)));
+        doAnswer(invocation -> {
+            ((Work) invocation.getArgument(0)).execute(connection);
+            return null;
+        }).when(session).doWork(any());
+    }
+
+    private PreparedStatement prepare(String sql) throws Exception
+    {
+        PreparedStatement statement = mock(PreparedStatement.class);
+        List<Object> row = new ArrayList<>();
+        doAnswer(invocation -> row.add(invocation.getArgument(1))).when(statement).setString(anyInt(), any());
+        doAnswer(invocation -> row.add(invocation.getArgument(1))).when(statement).setInt(anyInt(), anyInt());
+        doAnswer(invocation -> {
+            batches.computeIfAbsent(sql, k -> new ArrayList<>()).add(new ArrayList<>(row));
+            row.clear();
+            return null;
+        }).when(statement).addBatch();
+        when(statement.executeBatch()).thenAnswer(invocation -> {
+            executed.add(sql);
+            return new int[0];
+        });
+        return statement;
+    }
+
+    private static Map<String, Map<String, Integer>> usage()
+    {
+        Map<String, Map<String, Integer>> usage = new LinkedHashMap<>();
+        Map<String, Integer> page1 = new LinkedHashMap<>();
+        page1.put(INFO, 2);
+        page1.put(CODE, 1);
+        usage.put(PAGE_1, page1);
+        usage.put(PAGE_2, Map.of(INFO, 3));
+        return usage;
+    }
+
+    @Test
+    void addUsageReplacesTheRowsOfThePages() throws Exception
+    {
+        store.addUsage(usage());
+
+        // The previous rows of the pages are deleted before inserting the new ones
+        assertEquals(List.of(DELETE_PAGE, INSERT), executed);
+        assertEquals(List.of(List.of(PAGE_1), List.of(PAGE_2)), batches.get(DELETE_PAGE));
+        assertEquals(List.of(
+            List.of(INFO, SPACE, PAGE_1, 2),
+            List.of(CODE, SPACE, PAGE_1, 1),
+            List.of(INFO, SPACE, PAGE_2, 3)), batches.get(INSERT));
+        // Once to check the tables, once to replace the rows
+        verify(hibernateStore, times(2)).endTransaction(context, true);
+    }
+
+    @Test
+    void addUsageDoesNotEndATransactionItDidNotBegin() throws Exception
+    {
+        when(hibernateStore.beginTransaction(context)).thenReturn(false);
+
+        store.addUsage(usage());
+
+        assertEquals(List.of(DELETE_PAGE, INSERT), executed);
+        verify(hibernateStore, never()).endTransaction(any(XWikiContext.class), anyBoolean());
+    }
+
+    @Test
+    void addUsageWithoutPages()
+    {
+        store.addUsage(Map.of());
+
+        assertTrue(executed.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    private NativeQuery<Object> mockFindQueries(long indexedRows, List<Object> pages)
+    {
+        NativeQuery<Object> count = mock(NativeQuery.class, RETURNS_SELF);
+        when(count.uniqueResult()).thenReturn(indexedRows);
+        NativeQuery<Object> find = mock(NativeQuery.class, RETURNS_SELF);
+        when(find.list()).thenReturn(pages);
+        when(session.createNativeQuery(anyString())).thenAnswer(
+            invocation -> ((String) invocation.getArgument(0)).contains("count(*)") ? count : find);
+        return find;
+    }
+
+    @Test
+    void findPagesUsingMacros()
+    {
+        NativeQuery<Object> find = mockFindQueries(3, List.of(PAGE_1, PAGE_2));
+
+        assertEquals(List.of(PAGE_1, PAGE_2), store.findPagesUsingMacros(MIGRATION, List.of(INFO, CODE)));
+        verify(find).setParameter("migration", MIGRATION_REF);
+        verify(find).setParameterList("macroIds", List.of(INFO, CODE));
+    }
+
+    @Test
+    void findPagesUsingNoMacro()
+    {
+        NativeQuery<Object> find = mockFindQueries(3, List.of(PAGE_1));
+
+        assertEquals(List.of(), store.findPagesUsingMacros(MIGRATION, List.of()));
+        verify(find, never()).list();
+    }
+
+    @Test
+    void findPagesOfNotIndexedMigration()
+    {
+        NativeQuery<Object> find = mockFindQueries(0, List.of(PAGE_1));
+
+        // The caller falls back to the macroPages.json attachment of the migration
+        assertNull(store.findPagesUsingMacros(MIGRATION, List.of(INFO)));
+        verify(find, never()).list();
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.inject.Provider;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
+import org.hibernate.query.NativeQuery;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.store.DatabaseProduct;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class MigrationCheckpointStoreTest
+{
+    private static final String MIGRATION_REF = "xwiki:ConfluenceMigratorPro.Migrations.M1";
+
+    private static final DocumentReference MIGRATION =
+        new DocumentReference("xwiki", List.of("ConfluenceMigratorPro", "Migrations"), "M1");
+
+    private static final String SPACE_A = "A";
+
+    private static final String SPACE_B = "B";
+
+    private static final String PAGE_1 = "A.P1";
+
+    private static final String PAGE_2 = "A.P2";
+
+    private static final String PAGE_3 = "B.P3";
+
+    private static final String REF_1 = "xwiki:A.P1";
+
+    private static final String REF_2 = "xwiki:A.P2";
+
+    private static final String REF_3 = "xwiki:B.P3";
+
+    private static final String CHANGES_TABLE = "_changes";
+
+    @InjectMockComponents
+    private MigrationCheckpointStore store;
+
+    @MockComponent
+    private Provider<XWikiContext> contextProvider;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    private final Session session = mock(Session.class);
+
+    private final Connection connection = mock(Connection.class);
+
+    // The rows of the checkpoint table: migration, checkpoint number, space key, page
+    private final List<Object[]> rows = new ArrayList<>();
+
+    // The rows of the changes table: migration, checkpoint number, aggregate changes
+    private final List<Object[]> changes = new ArrayList<>();
+
+    // The checkpoint property of the saved migration object
+    private String state;
+
+    private String modifiedState;
+
+    private boolean failToSaveState;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        XWikiContext context = mock(XWikiContext.class);
+        XWiki wiki = mock(XWiki.class);
+        XWikiHibernateStore hibernateStore = mock(XWikiHibernateStore.class);
+        when(contextProvider.get()).thenReturn(context);
+        when(context.getWikiId()).thenReturn("xwiki");
+        when(context.getWiki()).thenReturn(wiki);
+        when(wiki.getHibernateStore()).thenReturn(hibernateStore);
+        when(hibernateStore.beginTransaction(context)).thenReturn(true);
+        when(hibernateStore.getSession(context)).thenReturn(session);
+        when(hibernateStore.getDatabaseProductName()).thenReturn(DatabaseProduct.H2);
+        when(serializer.serialize(MIGRATION)).thenReturn(MIGRATION_REF);
+
+        XWikiDocument document = mock(XWikiDocument.class);
+        BaseObject object = mock(BaseObject.class);
+        when(wiki.getDocument(MIGRATION, context)).thenReturn(document);
+        when(document.clone()).thenReturn(document);
+        when(document.getXObject(any(EntityReference.class))).thenReturn(object);
+        doAnswer(invocation -> modifiedState = invocation.getArgument(1))
+            .when(object).setLargeStringValue(eq(MigrationCheckpointStore.CHECKPOINT), anyString());
+        when(object.getLargeStringValue(MigrationCheckpointStore.CHECKPOINT)).thenAnswer(invocation -> state);
+        doAnswer(invocation -> {
+            if (failToSaveState) {
+                throw new XWikiException();
+            }
+            state = modifiedState;
+            return null;
+        }).when(wiki).saveDocument(any(XWikiDocument.class), anyString(), anyBoolean(), any(XWikiContext.class));
+
+        mockTables();
+    }
+
+    private void mockTables() throws Exception
+    {
+        // The tables and their indexes already exist
+        DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        when(connection.getMetaData()).thenReturn(metaData);
+        ResultSet tables = mock(ResultSet.class);
+        when(tables.next()).thenReturn(true);
+        when(metaData.getTables(any(), any(), anyString(), any())).thenReturn(tables);
+        when(metaData.getIndexInfo(any(), any(), anyString(), anyBoolean(), anyBoolean())).thenAnswer(invocation -> {
+            ResultSet indexes = mock(ResultSet.class);
+            when(indexes.next()).thenReturn(true);
+            when(indexes.getString("INDEX_NAME")).thenReturn(invocation.getArgument(2) + "_by_migration");
+            return indexes;
+        });
+
+        when(connection.prepareStatement(anyString())).thenAnswer(invocation -> prepare(invocation.getArgument(0)));
+        doAnswer(invocation -> {
+            ((Work) invocation.getArgument(0)).execute(connection);
+            return null;
+        }).when(session).doWork(any());
+        when(session.doReturningWork(any()))
+            .thenAnswer(invocation -> ((ReturningWork<?>) invocation.getArgument(0)).execute(connection));
+        when(session.createNativeQuery(anyString())).thenAnswer(invocation -> createQuery(invocation.getArgument(0)));
+    }
+
+    private PreparedStatement prepare(String sql) throws Exception
+    {
+        PreparedStatement statement = mock(PreparedStatement.class);
+        Object[] parameters = new Object[4];
+        doAnswer(invocation -> parameters[invocation.<Integer>getArgument(0) - 1] = invocation.getArgument(1))
+            .when(statement).setString(anyInt(), any());
+        doAnswer(invocation -> parameters[invocation.<Integer>getArgument(0) - 1] = invocation.getArgument(1))
+            .when(statement).setInt(anyInt(), anyInt());
+        doAnswer(invocation -> parameters[invocation.<Integer>getArgument(0) - 1] = read(invocation.getArgument(1)))
+            .when(statement).setCharacterStream(anyInt(), any(Reader.class), anyInt());
+        doAnswer(invocation -> rows.add(parameters.clone())).when(statement).addBatch();
+        when(statement.executeUpdate()).thenAnswer(invocation -> {
+            changes.add(parameters.clone());
+            return 1;
+        });
+        when(statement.executeQuery()).thenAnswer(invocation -> {
+            Iterator<Object> aggregateChanges = changes.stream()
+                .filter(row -> row[0].equals(parameters[0]))
+                .sorted(Comparator.comparing(row -> (Integer) row[1]))
+                .map(row -> row[2])
+                .iterator();
+            Object[] current = new Object[1];
+            ResultSet results = mock(ResultSet.class);
+            when(results.next()).thenAnswer(i -> {
+                current[0] = aggregateChanges.hasNext() ? aggregateChanges.next() : null;
+                return current[0] != null;
+            });
+            when(results.getString(1)).thenAnswer(i -> current[0]);
+            return results;
+        });
+        return statement;
+    }
+
+    private static String read(Reader reader) throws IOException
+    {
+        StringBuilder content = new StringBuilder();
+        for (int c = reader.read(); c >= 0; c = reader.read()) {
+            content.append((char) c);
+        }
+        return content.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private NativeQuery<Object> createQuery(String sql)
+    {
+        List<Object[]> table = sql.contains(CHANGES_TABLE) ? changes : rows;
+        Object[] parameters = new Object[2];
+        NativeQuery<Object> query = mock(NativeQuery.class, RETURNS_SELF);
+        when(query.setParameter(anyInt(), any())).thenAnswer(invocation -> {
+            parameters[invocation.<Integer>getArgument(0) - 1] = invocation.getArgument(1);
+            return query;
+        });
+        when(query.executeUpdate()).thenAnswer(invocation -> {
+            int before = table.size();
+            table.removeIf(row -> row[0].equals(parameters[0])
+                && (parameters[1] == null || (Integer) row[1] > (Integer) parameters[1]));
+            return before - table.size();
+        });
+        when(query.list()).thenAnswer(invocation -> table.stream()
+            .filter(row -> row[0].equals(parameters[0]))
+            .map(row -> new Object[] { row[2], row[3] })
+            .collect(Collectors.toList()));
+        return query;
+    }
+
+    private static MigrationLogAnalyzer.Checkpoint checkpoint(int sequence, String page, String ref)
+    {
+        MigrationLogAnalyzer.Checkpoint checkpoint = new MigrationLogAnalyzer.Checkpoint();
+        checkpoint.sequence = sequence;
+        checkpoint.spaces = List.of(SPACE_A, SPACE_B);
+        checkpoint.docCount = sequence;
+        checkpoint.revisionCount = sequence;
+        checkpoint.savedPages.add(page);
+        MigrationLogAnalyzer.SimpleLog log = new MigrationLogAnalyzer.SimpleLog();
+        log.level = "WARN";
+        log.msg = "Issue in " + page;
+        MigrationLogAnalyzer.LogLine<MigrationLogAnalyzer.SimpleLog> line = new MigrationLogAnalyzer.LogLine<>();
+        line.data = log;
+        Map<String, List<MigrationLogAnalyzer.LogLine<MigrationLogAnalyzer.SimpleLog>>> issues = new HashMap<>();
+        issues.put(ref, List.of(line));
+        checkpoint.categories.put(MigrationLogAnalyzer.OTHER_ISSUES, issues);
+        checkpoint.macroPages.put(ref, Map.of("info", sequence));
+        return checkpoint;
+    }
+
+    private static String getIssue(MigrationLogAnalyzer.Checkpoint checkpoint, String ref)
+    {
+        return checkpoint.categories.get(MigrationLogAnalyzer.OTHER_ISSUES).get(ref).get(0).data.msg;
+    }
+
+    @Test
+    void loadMergesTheChangesOfAllTheCheckpoints()
+    {
+        MigrationLogAnalyzer.Checkpoint first = checkpoint(1, PAGE_1, REF_1);
+        first.completedSpaces.add(SPACE_A);
+        assertTrue(store.save(MIGRATION, first));
+        MigrationLogAnalyzer.Checkpoint second = checkpoint(2, PAGE_3, REF_3);
+        // The issues of the first page were removed
+        second.categories.get(MigrationLogAnalyzer.OTHER_ISSUES).put(REF_1, null);
+        assertTrue(store.save(MIGRATION, second));
+
+        MigrationLogAnalyzer.Checkpoint loaded = store.load(MIGRATION);
+
+        assertEquals(2, loaded.sequence);
+        assertEquals(2, loaded.docCount);
+        assertEquals(List.of(SPACE_A, SPACE_B), List.copyOf(loaded.spaces));
+        assertEquals(List.of(PAGE_1, PAGE_3), List.copyOf(loaded.savedPages));
+        assertEquals(List.of(SPACE_A), List.copyOf(loaded.completedSpaces));
+        Map<String, List<MigrationLogAnalyzer.LogLine<MigrationLogAnalyzer.SimpleLog>>> issues =
+            loaded.categories.get(MigrationLogAnalyzer.OTHER_ISSUES);
+        assertTrue(issues.containsKey(REF_1));
+        assertNull(issues.get(REF_1));
+        assertEquals("Issue in " + PAGE_3, getIssue(loaded, REF_3));
+        assertEquals(Map.of(REF_1, Map.of("info", 1), REF_3, Map.of("info", 2)), loaded.macroPages);
+    }
+
+    @Test
+    void loadIgnoresTheRowsOfACheckpointWhichWasNotSaved()
+    {
+        assertTrue(store.save(MIGRATION, checkpoint(1, PAGE_1, REF_1)));
+        failToSaveState = true;
+        assertFalse(store.save(MIGRATION, checkpoint(2, PAGE_2, REF_2)));
+
+        MigrationLogAnalyzer.Checkpoint loaded = store.load(MIGRATION);
+
+        assertEquals(1, loaded.sequence);
+        assertEquals(List.of(PAGE_1), List.copyOf(loaded.savedPages));
+        assertFalse(loaded.categories.get(MigrationLogAnalyzer.OTHER_ISSUES).containsKey(REF_2));
+        assertFalse(loaded.macroPages.containsKey(REF_2));
+        // The rows of the failed checkpoint are removed
+        assertEquals(1, rows.size());
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    void changesOfAFailedCheckpointAreKeptByTheNextOne()
+    {
+        assertTrue(store.save(MIGRATION, checkpoint(1, PAGE_1, REF_1)));
+        failToSaveState = true;
+        MigrationLogAnalyzer.Checkpoint failed = checkpoint(2, PAGE_2, REF_2);
+        assertFalse(store.save(MIGRATION, failed));
+        failToSaveState = false;
+        // The next checkpoint includes the changes of the failed one, see MigrationLogAnalyzer#checkpointNotSaved
+        MigrationLogAnalyzer.Checkpoint next = checkpoint(3, PAGE_3, REF_3);
+        next.savedPages.addAll(failed.savedPages);
+        next.categories.get(MigrationLogAnalyzer.OTHER_ISSUES)
+            .putAll(failed.categories.get(MigrationLogAnalyzer.OTHER_ISSUES));
+        next.macroPages.putAll(failed.macroPages);
+        assertTrue(store.save(MIGRATION, next));
+
+        MigrationLogAnalyzer.Checkpoint loaded = store.load(MIGRATION);
+
+        assertEquals(3, loaded.sequence);
+        assertTrue(loaded.savedPages.containsAll(List.of(PAGE_1, PAGE_2, PAGE_3)));
+        assertEquals("Issue in " + PAGE_2, getIssue(loaded, REF_2));
+        assertEquals(Map.of("info", 2), loaded.macroPages.get(REF_2));
+    }
+
+    @Test
+    void clearRemovesTheCheckpoints()
+    {
+        assertTrue(store.save(MIGRATION, checkpoint(1, PAGE_1, REF_1)));
+
+        store.clear(MIGRATION);
+
+        assertTrue(rows.isEmpty());
+        assertTrue(changes.isEmpty());
+    }
+}
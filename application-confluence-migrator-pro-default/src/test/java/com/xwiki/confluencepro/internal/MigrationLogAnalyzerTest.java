@@ -0,0 +1,252 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.MarkerFactory;
+import org.xwiki.contrib.confluence.filter.internal.ConfluenceFilter;
+import org.xwiki.logging.LogLevel;
+import org.xwiki.logging.event.LogEvent;
+import org.xwiki.logging.tail.LogTail;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MigrationLogAnalyzerTest
+{
+    private static final String SPACE = "S";
+
+    private static final String WIKI = "wiki";
+
+    private static final String PAGE_1 = "P1";
+
+    private static final String PAGE_2 = "P2";
+
+    private static final String REF_1 = "wiki:S.P1";
+
+    private static final String REF_2 = "wiki:S.P2";
+
+    private static final String LOCAL_REF_1 = "S.P1";
+
+    private static final String LOCAL_REF_2 = "S.P2";
+
+    private static final String PAGE_ID_1 = "1";
+
+    private final List<LogEvent> events = new ArrayList<>();
+
+    private final LogTail logTail = mock(LogTail.class);
+
+    private EntityReferenceSerializer<String> serializer;
+
+    private EntityReferenceSerializer<String> localSerializer;
+
+    private MigrationLogAnalyzer analyzer;
+
+    @BeforeEach
+    void setUp()
+    {
+        when(logTail.size()).then(invocation -> events.size());
+        when(logTail.getLogEvent(anyInt())).then(invocation -> events.get(invocation.<Integer>getArgument(0)));
+        serializer = mock(EntityReferenceSerializer.class);
+        when(serializer.serialize(any())).then(invocation -> {
+            DocumentReference reference = invocation.getArgument(0);
+            return reference.getWikiReference().getName() + ':' + localName(reference);
+        });
+        localSerializer = mock(EntityReferenceSerializer.class);
+        when(localSerializer.serialize(any())).then(invocation -> localName(invocation.getArgument(0)));
+        analyzer = newAnalyzer();
+    }
+
+    @Test
+    void takeCheckpointOnlyHasTheChangesSinceThePreviousOne()
+    {
+        importPage(1L, PAGE_1);
+        analyzer.catchUp(logTail);
+
+        MigrationLogAnalyzer.Checkpoint first = analyzer.takeCheckpoint(List.of(SPACE));
+        assertEquals(1, first.sequence);
+        assertEquals(List.of(LOCAL_REF_1), first.savedPages);
+        assertEquals(1, first.docCount);
+        Map<String, List<MigrationLogAnalyzer.LogLine<MigrationLogAnalyzer.SimpleLog>>> issues =
+            first.categories.get(MigrationLogAnalyzer.OTHER_ISSUES);
+        assertEquals(1, issues.get(REF_1).size());
+        // The issue was first added under the page id, which was then replaced by the reference
+        assertTrue(issues.containsKey(PAGE_ID_1));
+        assertNull(issues.get(PAGE_ID_1));
+        assertEquals(Map.of(REF_1, Map.of("info", 1)), first.macroPages);
+
+        assertNull(analyzer.takeCheckpoint(List.of(SPACE)));
+
+        importPage(2L, PAGE_2);
+        analyzer.catchUp(logTail);
+
+        MigrationLogAnalyzer.Checkpoint second = analyzer.takeCheckpoint(List.of(SPACE));
+        assertEquals(2, second.sequence);
+        assertEquals(List.of(LOCAL_REF_2), second.savedPages);
+        assertEquals(2, second.docCount);
+        issues = second.categories.get(MigrationLogAnalyzer.OTHER_ISSUES);
+        assertEquals(1, issues.get(REF_2).size());
+        assertFalse(issues.containsKey(REF_1));
+        assertEquals(Map.of(REF_2, Map.of("info", 1)), second.macroPages);
+    }
+
+    @Test
+    void checkpointNotSavedAddsItsChangesToTheNextOne()
+    {
+        importPage(1L, PAGE_1);
+        analyzer.catchUp(logTail);
+        MigrationLogAnalyzer.Checkpoint failed = analyzer.takeCheckpoint(List.of(SPACE));
+
+        analyzer.checkpointNotSaved(failed);
+
+        importPage(2L, PAGE_2);
+        analyzer.catchUp(logTail);
+        MigrationLogAnalyzer.Checkpoint next = analyzer.takeCheckpoint(List.of(SPACE));
+        assertEquals(2, next.sequence);
+        assertEquals(2, next.savedPages.size());
+        assertTrue(next.savedPages.containsAll(List.of(LOCAL_REF_1, LOCAL_REF_2)));
+        Map<String, List<MigrationLogAnalyzer.LogLine<MigrationLogAnalyzer.SimpleLog>>> issues =
+            next.categories.get(MigrationLogAnalyzer.OTHER_ISSUES);
+        assertNotNull(issues.get(REF_1));
+        assertNotNull(issues.get(REF_2));
+        assertEquals(2, next.macroPages.size());
+    }
+
+    @Test
+    void restoreAppliesTheMergedChanges()
+    {
+        importPage(1L, PAGE_1);
+        analyzer.catchUp(logTail);
+        MigrationLogAnalyzer.Checkpoint checkpoint = analyzer.takeCheckpoint(List.of(SPACE));
+        importPage(2L, PAGE_2);
+        analyzer.catchUp(logTail);
+        MigrationLogAnalyzer.Checkpoint second = analyzer.takeCheckpoint(List.of(SPACE));
+
+        // Merged like MigrationCheckpointStore#load does
+        checkpoint.sequence = second.sequence;
+        checkpoint.docCount = second.docCount;
+        checkpoint.revisionCount = second.revisionCount;
+        second.categories.forEach((category, pages) -> checkpoint.categories.get(category).putAll(pages));
+        checkpoint.macroPages.putAll(second.macroPages);
+        checkpoint.savedPages.addAll(second.savedPages);
+
+        MigrationLogAnalyzer restored = newAnalyzer();
+        restored.restore(checkpoint);
+
+        assertEquals(analyzer.getLogCategories().keySet(), restored.getLogCategories().keySet());
+        Map<String, List<MigrationLogAnalyzer.LogLine<MigrationLogAnalyzer.SimpleLog>>> issues =
+            restored.getLogCategories().get(MigrationLogAnalyzer.OTHER_ISSUES);
+        assertEquals(List.of(REF_1, REF_2), List.copyOf(issues.keySet()));
+        assertEquals(analyzer.getMacroPages(), restored.getMacroPages());
+        assertEquals(List.of(LOCAL_REF_1, LOCAL_REF_2), List.copyOf(restored.getDocs()));
+        assertEquals(2, restored.getDocCount());
+        assertEquals(2, restored.getRevisionCount());
+
+        // The restored entries are already saved
+        assertNull(restored.takeCheckpoint(List.of(SPACE)));
+    }
+
+    @Test
+    void spaceIsCompleteOnceItsQueuedDocumentsAreSaved()
+    {
+        DocumentReference reference = new DocumentReference(WIKI, SPACE, PAGE_1);
+        sendPage(1L, SPACE, PAGE_1);
+        events.add(new LogEvent(DocumentSavePipeline.LOG_DOCUMENT_QUEUED, LogLevel.INFO, "Queued document",
+            new Object[] { reference }, null));
+        sendPage(2L, "T", PAGE_2);
+        analyzer.catchUp(logTail);
+
+        // The document of the previous space is not saved yet
+        assertNull(analyzer.takeCheckpoint(List.of(SPACE)));
+
+        events.add(documentCreated(reference));
+        analyzer.catchUp(logTail);
+
+        MigrationLogAnalyzer.Checkpoint checkpoint = analyzer.takeCheckpoint(List.of(SPACE));
+        assertEquals(List.of(SPACE), checkpoint.completedSpaces);
+        assertEquals(List.of(LOCAL_REF_1), checkpoint.savedPages);
+    }
+
+    @Test
+    void lastSpaceIsCompleteWhenTheFilterJobEnds()
+    {
+        importPage(1L, PAGE_1);
+        analyzer.catchUp(logTail);
+
+        MigrationLogAnalyzer.Checkpoint checkpoint = analyzer.takeCheckpoint(List.of(SPACE));
+        // No other space was started, the space may have other pages to import
+        assertTrue(checkpoint.completedSpaces.isEmpty());
+
+        analyzer.endLog(logTail);
+        checkpoint = analyzer.takeCheckpoint(List.of(SPACE));
+        assertEquals(List.of(SPACE), checkpoint.completedSpaces);
+
+        // Only recorded once
+        analyzer.endLog(logTail);
+        assertNull(analyzer.takeCheckpoint(List.of(SPACE)));
+    }
+
+    private MigrationLogAnalyzer newAnalyzer()
+    {
+        return new MigrationLogAnalyzer(serializer, localSerializer, mock(Logger.class));
+    }
+
+    private void importPage(long id, String title)
+    {
+        DocumentReference reference = new DocumentReference(WIKI, SPACE, title);
+        sendPage(id, SPACE, title);
+        events.add(new LogEvent(null, LogLevel.WARN, "Something to check", new Object[0], null));
+        events.add(documentCreated(reference));
+        events.add(new LogEvent(ConfluenceFilter.LOG_MACROS_FOUND, LogLevel.INFO, "Macros found",
+            new Object[] { Map.of("info", 1) }, null));
+    }
+
+    private static LogEvent documentCreated(DocumentReference reference)
+    {
+        return new LogEvent(MarkerFactory.getMarker("filter.instance.log.document.created"), LogLevel.INFO,
+            "Document created", new Object[] { reference }, null);
+    }
+
+    private void sendPage(long id, String space, String title)
+    {
+        events.add(new LogEvent(MarkerFactory.getMarker("ConfluenceSendingPage"), LogLevel.INFO, "Sending page",
+            new Object[] { Map.of("pageId", id, "spaceKey", space, "pageTitle", title) }, null));
+    }
+
+    private static String localName(DocumentReference reference)
+    {
+        return reference.getLastSpaceReference().getName() + '.' + reference.getName();
+    }
+}
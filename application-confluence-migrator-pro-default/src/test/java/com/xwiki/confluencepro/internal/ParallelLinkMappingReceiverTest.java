@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.xwiki.confluencepro.ConfluenceMigrationJobStatus;
+import com.xwiki.pro.internal.resolvers.LinkMappingBatchWriter;
+import com.xwiki.pro.internal.resolvers.LinkMappingStore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ParallelLinkMappingReceiverTest
+{
+    private static final String SPACE_A = "A";
+
+    private static final String SPACE_B = "B";
+
+    private static final String SPACE_C = "C";
+
+    private static final String BROKEN = "Broken";
+
+    private final LinkMappingStore store = mock(LinkMappingStore.class);
+
+    private final LinkMappingBatchWriter writer = mock(LinkMappingBatchWriter.class);
+
+    private final ConfluenceMigrationJobStatus status = mock(ConfluenceMigrationJobStatus.class);
+
+    private final Logger logger = mock(Logger.class);
+
+    private ParallelLinkMappingReceiver receiver;
+
+    @BeforeEach
+    void setUp()
+    {
+        when(store.openBatchWriter(any(), anyInt())).thenReturn(writer);
+        EntityReferenceSerializer<String> serializer = mock(EntityReferenceSerializer.class);
+        when(serializer.serialize(any())).then(invocation -> {
+            String name = invocation.<EntityReference>getArgument(0).getName();
+            if (BROKEN.equals(name)) {
+                throw new IllegalStateException("Unexpected reference");
+            }
+            return name;
+        });
+        receiver = new ParallelLinkMappingReceiver(2,
+            () -> new LinkMappingCommitter(store, 100, 0, true, 2, null, status, logger), serializer,
+            mock(Execution.class), mock(ExecutionContextManager.class), logger);
+    }
+
+    private static EntityReference page(String name)
+    {
+        return new EntityReference(name, EntityType.DOCUMENT);
+    }
+
+    @Test
+    void nonContiguousSpace() throws Exception
+    {
+        receiver.addPage(SPACE_A, "One", page("Shared"));
+        receiver.addPage(SPACE_B, "One", page("Shared"));
+        receiver.addPage(SPACE_A, "Two", page("A.Two"));
+        receiver.addPage(SPACE_A, 42, page("A.Three"));
+
+        ReferenceCollisionDetector detector = new ReferenceCollisionDetector();
+        assertTrue(receiver.finish(detector).isEmpty());
+
+        // The counts of both parts of space A are added up by the status
+        verify(status).addLinkMappingPageCount(SPACE_A, 1);
+        verify(status).addLinkMappingPageCount(SPACE_A, 2);
+        verify(status).addLinkMappingPageCount(SPACE_B, 1);
+        verify(writer).add(42, "A.Three");
+        assertTrue(detector.hasSuspects());
+        assertEquals(Set.of(SPACE_A, SPACE_B), detector.getSuspectSpaces());
+    }
+
+    @Test
+    void failingWorker() throws Exception
+    {
+        receiver.addPage(SPACE_A, "One", page("A.One"));
+        receiver.addPage(SPACE_B, "One", page(BROKEN));
+        receiver.addPage(SPACE_C, "One", page("C.One"));
+
+        assertEquals(Set.of(SPACE_B), receiver.finish(new ReferenceCollisionDetector()));
+        verify(logger).error(eq("Failed to store the link mapping of space [{}]"), eq(SPACE_B),
+            any(IllegalStateException.class));
+        verify(status, times(1)).addLinkMappingPageCount(SPACE_A, 1);
+        verify(status, times(1)).addLinkMappingPageCount(SPACE_C, 1);
+    }
+
+    @Test
+    void interrupted()
+    {
+        receiver.addPage(SPACE_A, "One", page("A.One"));
+        Thread.currentThread().interrupt();
+        receiver.addPage(SPACE_B, "One", page("B.One"));
+        receiver.addPage(SPACE_C, "One", page("C.One"));
+
+        assertThrows(InterruptedException.class, () -> receiver.finish(new ReferenceCollisionDetector()));
+        assertFalse(Thread.currentThread().isInterrupted());
+        verify(logger).error(anyString(), eq((Object) Set.of(SPACE_A, SPACE_B, SPACE_C)));
+        verify(writer, never()).add(anyString(), anyString(), anyString());
+    }
+}
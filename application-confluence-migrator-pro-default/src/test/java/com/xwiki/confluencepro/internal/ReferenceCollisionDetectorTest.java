@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.internal;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReferenceCollisionDetectorTest
+{
+    private static final String SPACE_A = "A";
+
+    private static final String SPACE_B = "B";
+
+    private static final String SPACE_C = "C";
+
+    private static final String HOME = "Home";
+
+    private static final String SHARED = "A.Shared.WebHome";
+
+    @Test
+    void noCollision()
+    {
+        ReferenceCollisionDetector detector = new ReferenceCollisionDetector();
+        for (int i = 0; i < 5000; i++) {
+            detector.add(SPACE_A, "Page " + i, "A.Page " + i + ".WebHome");
+        }
+
+        assertFalse(detector.hasSuspects());
+        assertTrue(detector.getCollisions().isEmpty());
+    }
+
+    @Test
+    void collisionInOneSpace()
+    {
+        ReferenceCollisionDetector detector = new ReferenceCollisionDetector();
+        detector.add(SPACE_A, HOME, "A.WebHome");
+        detector.add(SPACE_A, "Shared", SHARED);
+        detector.add(SPACE_A, "Shared?", SHARED);
+
+        assertTrue(detector.hasSuspects());
+        assertEquals(Set.of(SPACE_A), detector.getSuspectSpaces());
+        assertFalse(detector.isSuspect(SPACE_A, HOME));
+
+        verifyAll(detector, SPACE_A, HOME, "A.WebHome");
+        verifyAll(detector, SPACE_A, "Shared", SHARED);
+        verifyAll(detector, SPACE_A, "Shared?", SHARED);
+
+        assertEquals(Map.of(SHARED, List.of("Shared", "Shared?")), detector.getCollisions());
+        assertEquals(SPACE_A, detector.getSpace(SHARED));
+    }
+
+    @Test
+    void merge()
+    {
+        // Detectors of several workers, each one for a space
+        ReferenceCollisionDetector a = new ReferenceCollisionDetector();
+        a.add(SPACE_A, HOME, "A.WebHome");
+        a.add(SPACE_A, "Target", "Target.WebHome");
+        ReferenceCollisionDetector b = new ReferenceCollisionDetector();
+        b.add(SPACE_B, HOME, "B.WebHome");
+        b.add(SPACE_B, "Target", "Target.WebHome");
+        ReferenceCollisionDetector c = new ReferenceCollisionDetector();
+        c.add(SPACE_C, HOME, "C.WebHome");
+
+        ReferenceCollisionDetector detector = new ReferenceCollisionDetector();
+        detector.merge(a);
+        detector.merge(b);
+        detector.merge(c);
+
+        assertTrue(detector.hasSuspects());
+        // Only the spaces and pages sharing a reference are looked at again
+        assertEquals(Set.of(SPACE_A, SPACE_B), detector.getSuspectSpaces());
+        assertTrue(detector.isSuspect(SPACE_A, "Target"));
+        assertTrue(detector.isSuspect(SPACE_B, "Target"));
+        assertFalse(detector.isSuspect(SPACE_A, HOME));
+        assertFalse(detector.isSuspect(SPACE_C, HOME));
+
+        verifyAll(detector, SPACE_A, HOME, "A.WebHome");
+        verifyAll(detector, SPACE_A, "Target", "Target.WebHome");
+        verifyAll(detector, SPACE_B, HOME, "B.WebHome");
+        verifyAll(detector, SPACE_B, "Target", "Target.WebHome");
+        verifyAll(detector, SPACE_C, HOME, "C.WebHome");
+
+        assertEquals(Map.of("Target.WebHome", List.of("Target", "Target")), detector.getCollisions());
+        assertEquals(SPACE_B, detector.getSpace("Target.WebHome"));
+    }
+
+    @Test
+    void mergeKeepsSuspects()
+    {
+        ReferenceCollisionDetector a = new ReferenceCollisionDetector();
+        a.add(SPACE_A, "One", SHARED);
+        a.add(SPACE_A, "Two", SHARED);
+
+        ReferenceCollisionDetector detector = new ReferenceCollisionDetector();
+        detector.merge(a);
+
+        assertTrue(detector.isSuspect(SPACE_A, "One"));
+        assertTrue(detector.isSuspect(SPACE_A, "Two"));
+    }
+
+    private static void verifyAll(ReferenceCollisionDetector detector, String spaceKey, String pageTitle,
+        String reference)
+    {
+        // Like the second pass, which only gives the suspect pages
+        if (detector.isSuspect(spaceKey, pageTitle)) {
+            detector.verify(spaceKey, pageTitle, reference);
+        }
+    }
+}
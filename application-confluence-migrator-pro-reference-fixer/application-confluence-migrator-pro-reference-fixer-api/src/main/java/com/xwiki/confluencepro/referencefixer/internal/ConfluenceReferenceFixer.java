@@ -29,8 +29,12 @@ import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiAttachmentContent;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
+import com.xwiki.confluencepro.internal.IndexedJsonReport;
 import com.xwiki.confluencepro.internal.MigrationFixingTools;
 import com.xwiki.confluencepro.referencefixer.BrokenRefType;
+import com.xwiki.pro.internal.resolvers.LinkMappingBatch;
+import com.xwiki.pro.internal.resolvers.LinkMappingBloomFilter;
+import com.xwiki.pro.internal.resolvers.LinkMappingStore;
 import org.apache.commons.collections.IteratorUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -81,6 +85,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -88,7 +93,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 /**
  * Confluence Reference Fixer.
@@ -99,8 +103,11 @@ import java.util.stream.Collectors;
 @Singleton
 public class ConfluenceReferenceFixer
 {
-    private static final String DOCUMENT = "document";
-    private static final Pattern BROKEN_LINK_PATTERN = Pattern.compile(
+    /**
+     * The pattern of the broken links output by former versions of the migrator. Shared with
+     * {@link LinkMappingPrefetcher}, which must find the same pages as the ones resolved while fixing them.
+     */
+    static final Pattern BROKEN_LINK_PATTERN = Pattern.compile(
         "(?<space>[a-zA-Z0-9_~-]+)"
             + "\\."
             + "(?<nameValidatedTitle>[\\s\\S]+?)"
@@ -109,11 +116,16 @@ public class ConfluenceReferenceFixer
             + ")?"
     );
 
-    private static final TypeReference<Map<String, List<Map<String, Object>>>> CONFLUENCE_REF_WARNINGS_TYPE_REF =
-        new TypeReference<Map<String, List<Map<String, Object>>>>() { };
+    static final String WEB_HOME = "WebHome";
+
+    static final String HOME = "@home";
+
+    private static final String DOCUMENT = "document";
+
+    private static final TypeReference<List<Map<String, Object>>> WARNING_LIST_TYPE_REF =
+        new TypeReference<List<Map<String, Object>>>() { };
     private static final TypeReference<Map<String, Object>> CONFLUENCE_BROKEN_LINK_PAGES_REF =
         new TypeReference<Map<String, Object>>() { };
-    private static final String WEB_HOME = "WebHome";
 
     private static final Marker FAILED_REFERENCE_CONVERSION_MARKER =
         MarkerFactory.getMarker("confluencereferencefixer.failedrefconversion");
@@ -143,7 +155,10 @@ public class ConfluenceReferenceFixer
 
     private static final String BROKEN_LINKS_PAGES_JSON = "brokenLinksPages.json";
 
-    private static final String CONFLUENCE_REF_WARNINGS_JSON = "confluenceRefWarnings.json";
+    private static final String CONFLUENCE_REF_WARNINGS = "confluenceRefWarnings";
+
+    private static final String CONFLUENCE_REF_WARNINGS_JSON = CONFLUENCE_REF_WARNINGS + ".json";
+
 
     private static final String BROKEN_LINKS_PAGES = "brokenLinksPages";
 
@@ -175,6 +190,12 @@ public class ConfluenceReferenceFixer
     @Inject
     private MigrationFixingTools migrationFixingTools;
 
+    @Inject
+    private LinkMappingPrefetcher linkMappingPrefetcher;
+
+    @Inject
+    private LinkMappingStore linkMappingStore;
+
     /**
      * Fix broken references in all documents of the given space.
      * @param baseURLs the baseURLs to use when fixing absolute links. If not provided, will be guessed from migration
@@ -195,13 +216,20 @@ public class ConfluenceReferenceFixer
         BrokenRefType b = brokenRefType == null ? BrokenRefType.UNKNOWN : brokenRefType;
         Stats s = new Stats();
         String[] baseURLsNotNull = baseURLs == null ? new String[0] : baseURLs;
-        migrationFixingTools.fixDocuments(
-            s,
-            migrationReferences,
-            spaceReferences,
-            migratedDoc -> fixDocument(s, migratedDoc, baseURLsNotNull, updateInPlace, b, dryRun),
-            migrationDoc -> fixDocumentsOfMigration(s, migrationDoc, baseURLs, exhaustive, updateInPlace, dryRun)
-        );
+        // Most candidate references are not in the link mapping, the Bloom filter avoids querying the database for
+        // them
+        try (LinkMappingBloomFilter filter = linkMappingStore.openBloomFilter()) {
+            migrationFixingTools.fixDocuments(
+                s,
+                migrationReferences,
+                spaceReferences,
+                migratedDoc -> fixDocument(s, migratedDoc, baseURLsNotNull, updateInPlace, b, dryRun),
+                migrationDoc -> fixDocumentsOfMigration(s, migrationDoc, baseURLs, exhaustive, updateInPlace, dryRun)
+            );
+            if (filter != null) {
+                s.setLinkMappingFilterStats(filter.getSkippedCount(), filter.getFalsePositiveCount());
+            }
+        }
         return s;
     }
 
@@ -237,7 +265,8 @@ public class ConfluenceReferenceFixer
 
     private static BrokenRefType getBrokenRefType(XWikiDocument migrationDoc)
     {
-        if (migrationDoc.getAttachment(CONFLUENCE_REF_WARNINGS_JSON) != null) {
+        if (migrationDoc.getAttachment(CONFLUENCE_REF_WARNINGS_JSON) != null
+            || migrationDoc.getAttachment(CONFLUENCE_REF_WARNINGS + IndexedJsonReport.COMPRESSED_EXTENSION) != null) {
             return BrokenRefType.CONFLUENCE_REFS;
         }
 
@@ -253,30 +282,30 @@ public class ConfluenceReferenceFixer
     private boolean fixDocumentsListedInRefWarnings(Stats s, XWikiDocument migrationDoc, String[] baseURLs,
         boolean updateInPlace, boolean dryRun)
     {
-        XWikiContext context = contextProvider.get();
-        XWikiAttachment refWarningsAttachment = migrationDoc.getAttachment(CONFLUENCE_REF_WARNINGS_JSON);
-        if (refWarningsAttachment == null) {
-            return false;
-        }
+        // The warnings are streamed one page at a time, so large (possibly compressed) reports are never loaded as
+        // a whole
+        Collection<String> docRefs = new ArrayList<>();
+        try (InputStream content = IndexedJsonReport.openReport(migrationDoc, CONFLUENCE_REF_WARNINGS,
+            contextProvider.get())) {
+            if (content == null) {
+                return false;
+            }
 
-        Map<String, List<Map<String, Object>>> refWarnings;
-        try {
-            XWikiAttachmentContent attachmentContent = refWarningsAttachment.getAttachmentContent(context);
-            InputStream contentInputStream = attachmentContent.getContentInputStream();
-            refWarnings = new ObjectMapper().readValue(contentInputStream, CONFLUENCE_REF_WARNINGS_TYPE_REF);
+            ObjectMapper objectMapper = new ObjectMapper();
+            IndexedJsonReport.forEachEntry(content, (page, warnings) -> {
+                List<Map<String, Object>> warningList = objectMapper.convertValue(warnings, WARNING_LIST_TYPE_REF);
+                if (warningList != null && warningList.stream().anyMatch(warning -> {
+                    Object originalVersion = warning.get("originalVersion");
+                    return originalVersion == null || originalVersion.equals(warning.get("pageId"));
+                })) {
+                    docRefs.add(page);
+                }
+            });
         } catch (IOException | XWikiException e) {
             logger.error("Failed to get the list of broken references", e);
             return false;
         }
 
-        Collection<String> docRefs = refWarnings.entrySet().stream().filter(warningListEntries -> {
-            List<Map<String, Object>> warningList = warningListEntries.getValue();
-            return warningList.stream().anyMatch(warning -> {
-                Object originalVersion = warning.get("originalVersion");
-                return originalVersion == null || originalVersion.equals(warning.get("pageId"));
-            });
-        }).map(Map.Entry::getKey).collect(Collectors.toList());
-
         migrationFixingTools.fixDocuments(docRefs,
             migratedDoc -> fixDocument(s, migratedDoc, baseURLs, updateInPlace, BrokenRefType.CONFLUENCE_REFS, dryRun));
         return true;
@@ -773,7 +802,7 @@ public class ConfluenceReferenceFixer
         return prefix + newRef.getReference();
     }
 
-    private static boolean containsUnescapedChar(String str, char character)
+    static boolean containsUnescapedChar(String str, char character)
     {
         int i = 0;
         int len = str.length();
@@ -792,7 +821,7 @@ public class ConfluenceReferenceFixer
     private EntityReference tryResolvingBrokenLinkDoc(String nameValidatedTitle, String space)
         throws ConfluenceResolverException
     {
-        if ("@home".equals(nameValidatedTitle)) {
+        if (HOME.equals(nameValidatedTitle)) {
             EntityReference spaceRef = spaceKeyResolver.getSpaceByKey(space);
             if (spaceRef == null) {
                 return null;
@@ -949,7 +978,7 @@ public class ConfluenceReferenceFixer
         return true;
     }
 
-    private static int getReferencePrefixLength(String p)
+    static int getReferencePrefixLength(String p)
     {
         if (p.startsWith("page:")) {
             return 5;
@@ -1016,8 +1045,10 @@ public class ConfluenceReferenceFixer
         );
 
         List<Block> blocks = xdom.getBlocks(matcher, Block.Axes.DESCENDANT_OR_SELF);
-        for (Block b : blocks) {
-            updated = visitBlockToFixRefs(s, b, syntaxId, migratedDocRef, baseURLs, brokenRefType) || updated;
+        try (LinkMappingBatch batch = linkMappingPrefetcher.prefetch(blocks, brokenRefType)) {
+            for (Block b : blocks) {
+                updated = visitBlockToFixRefs(s, b, syntaxId, migratedDocRef, baseURLs, brokenRefType) || updated;
+            }
         }
 
         return updated;
@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.confluencepro.referencefixer.internal;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ImageBlock;
+import org.xwiki.rendering.block.LinkBlock;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.listener.reference.ResourceReference;
+
+import com.xwiki.confluencepro.referencefixer.BrokenRefType;
+import com.xwiki.pro.internal.resolvers.LinkMappingBatch;
+import com.xwiki.pro.internal.resolvers.LinkMappingBulkResolver;
+
+/**
+ * Collects the Confluence pages referenced in a list of blocks and loads their link mapping all at once, so the link
+ * mapping lookups done afterward while fixing each reference are answered from a {@link LinkMappingBatch} instead of
+ * issuing one database query each.
+ * @since 1.44.0
+ * @version $Id$
+ */
+@Component(roles = LinkMappingPrefetcher.class)
+@Singleton
+public class LinkMappingPrefetcher
+{
+    private static final Pattern ID_PATTERN = Pattern.compile("id:(?<id>\\d+)");
+
+    private static final String CONFLUENCE = "confluence";
+
+    private static final List<String> MACRO_PARAMETERS = List.of("page", "reference", "document");
+
+    @Inject
+    @Named("prolinkmapping")
+    private LinkMappingBulkResolver bulkResolver;
+
+    /**
+     * Load the link mapping of the pages referenced by the given blocks.
+     * @param blocks the link, image and macro blocks of a document
+     * @param brokenRefType the type of the broken references to look for
+     * @return the batch holding the link mapping of the referenced pages, to close once the references are fixed, or
+     *     null if there was nothing worth prefetching
+     */
+    public LinkMappingBatch prefetch(List<Block> blocks, BrokenRefType brokenRefType)
+    {
+        boolean confluenceRefs = brokenRefType == BrokenRefType.CONFLUENCE_REFS
+            || brokenRefType == BrokenRefType.UNKNOWN;
+        boolean brokenLinks = brokenRefType == BrokenRefType.BROKEN_LINKS || brokenRefType == BrokenRefType.UNKNOWN;
+
+        Set<Long> ids = new HashSet<>();
+        Set<Pair<String, String>> pages = new HashSet<>();
+        for (Block b : blocks) {
+            if (b instanceof LinkBlock) {
+                collect(((LinkBlock) b).getReference(), ids, pages, confluenceRefs, brokenLinks);
+            } else if (b instanceof ImageBlock) {
+                collect(((ImageBlock) b).getReference(), ids, pages, confluenceRefs, brokenLinks);
+            } else if (b instanceof MacroBlock) {
+                for (String parameter : MACRO_PARAMETERS) {
+                    collect(((MacroBlock) b).getParameter(parameter), ids, pages, confluenceRefs, brokenLinks);
+                }
+            }
+        }
+
+        // A single reference is resolved as fast without prefetching it
+        if (ids.size() + pages.size() <= 1) {
+            return null;
+        }
+
+        return bulkResolver.prefetch(ids, pages);
+    }
+
+    private static void collect(ResourceReference reference, Set<Long> ids, Set<Pair<String, String>> pages,
+        boolean confluenceRefs, boolean brokenLinks)
+    {
+        if (reference == null) {
+            return;
+        }
+
+        if (reference.getType().getScheme().startsWith(CONFLUENCE)) {
+            if (confluenceRefs) {
+                collectConfluenceReference(reference.getReference(), ids, pages);
+            }
+        } else if (brokenLinks) {
+            collectPage(reference.getReference(), pages);
+        }
+    }
+
+    private static void collect(String reference, Set<Long> ids, Set<Pair<String, String>> pages,
+        boolean confluenceRefs, boolean brokenLinks)
+    {
+        if (StringUtils.isEmpty(reference)) {
+            return;
+        }
+
+        if (reference.startsWith(CONFLUENCE)) {
+            int colon = reference.indexOf(':');
+            if (confluenceRefs && colon != -1) {
+                collectConfluenceReference(reference.substring(colon + 1), ids, pages);
+            }
+        } else if (brokenLinks) {
+            collectPage(reference, pages);
+        }
+    }
+
+    private static void collectConfluenceReference(String reference, Set<Long> ids, Set<Pair<String, String>> pages)
+    {
+        Matcher m = ID_PATTERN.matcher(reference);
+        if (m.lookingAt()) {
+            try {
+                ids.add(Long.parseLong(m.group("id")));
+            } catch (NumberFormatException ignored) {
+                // Not a page id we can look up
+            }
+        } else {
+            collectPage(reference, pages);
+        }
+    }
+
+    private static void collectPage(String reference, Set<Pair<String, String>> pages)
+    {
+        // Same parsing as ConfluenceReferenceFixer#maybeConvertUnprefixedBrokenLink
+        String ref = reference.substring(ConfluenceReferenceFixer.getReferencePrefixLength(reference));
+        Matcher m = ConfluenceReferenceFixer.BROKEN_LINK_PATTERN.matcher(ref);
+        if (m.matches()) {
+            String title = m.group("nameValidatedTitle");
+            // Dotted titles and WebHome are regular XWiki references, and @home is resolved using the space key
+            // resolver.
+            if (!ConfluenceReferenceFixer.containsUnescapedChar(title, '.')
+                && !ConfluenceReferenceFixer.WEB_HOME.equals(title)
+                && !ConfluenceReferenceFixer.HOME.equals(title)) {
+                pages.add(Pair.of(m.group("space"), title));
+            }
+        }
+    }
+}
@@ -19,11 +19,14 @@
  */
 package com.xwiki.confluencepro.referencefixer.internal;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiAttachmentContent;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xwiki.pro.internal.resolvers.LinkMappingMetrics;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
@@ -71,6 +74,8 @@ public class ReferenceFixingJob
     @Inject
     private Provider<XWikiContext> contextProvider;
 
+    @Inject
+    private LinkMappingMetrics linkMappingMetrics;
 
     @Override
     protected void runInternal() throws Exception
@@ -84,6 +89,7 @@ public class ReferenceFixingJob
 
         logger.info("Starting reference fixing job");
         Stats s = null;
+        LinkMappingMetrics.Scope linkMappingMetricsScope = linkMappingMetrics.openScope();
         try {
             s = referenceFixer.fixDocuments(
                 request.getMigrationReferences(),
@@ -106,11 +112,22 @@ public class ReferenceFixingJob
                 addAttachment("stats.json", s.toJSON(), document);
                 addAttachment("failedReferences.tsv", s.getFailedReferencesTSV(), document);
             }
+            linkMappingMetricsScope.close();
+            addLinkMappingMetrics(linkMappingMetricsScope.snapshot(), document);
             wiki.saveDocument(document, "End session", context);
         }
         logger.info("Finished reference fixing job");
     }
 
+    private void addLinkMappingMetrics(LinkMappingMetrics.Snapshot metrics, XWikiDocument document)
+    {
+        try {
+            addAttachment("linkMappingMetrics.json", new ObjectMapper().writeValueAsString(metrics.toMap()), document);
+        } catch (JsonProcessingException e) {
+            logger.error("Could not serialize the link mapping metrics", e);
+        }
+    }
+
     private void addAttachment(String name, String content, XWikiDocument document)
     {
         XWikiAttachment a = new XWikiAttachment(document, name);
@@ -38,6 +38,8 @@ public final class Stats implements MigrationFixingStats
     private long successfulDocs;
     private long unchangedDocs;
     private Map<String, Integer> failedReferences;
+    private long linkMappingFilterSkippedLookups;
+    private long linkMappingFilterFalsePositives;
 
     /**
      * Contructor.
@@ -55,7 +57,9 @@ public final class Stats implements MigrationFixingStats
             + "\"unchangedDocs\": " + unchangedDocs + ','
             + "\"failedDocs\": " + failedDocs + ','
             + "\"successfulRefs\": " + successfulRefs + ','
-            + "\"failedRefs\": " + failedRefs
+            + "\"failedRefs\": " + failedRefs + ','
+            + "\"linkMappingFilterSkippedLookups\": " + linkMappingFilterSkippedLookups + ','
+            + "\"linkMappingFilterFalsePositives\": " + linkMappingFilterFalsePositives
             + "}";
     }
 
@@ -101,4 +105,11 @@ public final class Stats implements MigrationFixingStats
     {
         this.successfulRefs += c;
     }
+
+    void setLinkMappingFilterStats(long skippedLookups, long falsePositives)
+    {
+        // Counts rather than a rate, so the statistics of several sessions can be added up
+        this.linkMappingFilterSkippedLookups = skippedLookups;
+        this.linkMappingFilterFalsePositives = falsePositives;
+    }
 }
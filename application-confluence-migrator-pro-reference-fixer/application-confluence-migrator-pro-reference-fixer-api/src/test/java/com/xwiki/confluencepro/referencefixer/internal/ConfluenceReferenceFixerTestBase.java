@@ -26,6 +26,8 @@ import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.web.XWikiDefaultURLFactory;
 import com.xpn.xwiki.web.XWikiURLFactory;
+import com.xwiki.pro.internal.resolvers.LinkMappingBulkResolver;
+import com.xwiki.pro.internal.resolvers.LinkMappingStore;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.common.SolrDocument;
@@ -106,6 +108,13 @@ class ConfluenceReferenceFixerTestBase
     @MockComponent
     private ConfluenceSpaceKeyResolver confluenceSpaceKeyResolver;
 
+    @MockComponent
+    @Named("prolinkmapping")
+    private LinkMappingBulkResolver linkMappingBulkResolver;
+
+    @MockComponent
+    private LinkMappingStore linkMappingStore;
+
     @MockComponent
     @Named("embedded")
     private Solr solr;
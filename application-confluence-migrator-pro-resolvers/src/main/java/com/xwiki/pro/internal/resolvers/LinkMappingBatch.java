@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The link mapping of the pages loaded by the bulk lookups done by the current thread, from which the following
+ * lookups of these pages are answered, including when the link mapping cache is disabled. Get an instance using
+ * {@link LinkMappingStore#openBatch()}; it is used until it is closed, or until the link mapping is modified.
+ * @since 1.44.0
+ * @version $Id$
+ */
+public final class LinkMappingBatch implements AutoCloseable
+{
+    // A batch holds the pages referenced by a document, this bound is only reached by unusual documents
+    static final int MAX_ENTRIES = 10000;
+
+    private final LinkMappingStore store;
+
+    private final long modificationCount;
+
+    // Null values record pages which are not in the link mapping
+    private final Map<String, String> references = new HashMap<>();
+
+    LinkMappingBatch(LinkMappingStore store, long modificationCount)
+    {
+        // store is null when this batch doesn't own the batch of the thread (nested batch)
+        this.store = store;
+        this.modificationCount = modificationCount;
+    }
+
+    long getModificationCount()
+    {
+        return modificationCount;
+    }
+
+    void put(String key, String reference)
+    {
+        if (references.size() < MAX_ENTRIES) {
+            references.put(key, reference);
+        }
+    }
+
+    boolean contains(String key)
+    {
+        return references.containsKey(key);
+    }
+
+    String get(String key)
+    {
+        return references.get(key);
+    }
+
+    @Override
+    public void close()
+    {
+        if (store != null) {
+            store.closeBatch();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.Session;
+
+import com.xpn.xwiki.store.DatabaseProduct;
+
+/**
+ * Buffers link mapping rows and writes them using JDBC batches, with an upsert statement when the database supports
+ * one, instead of a delete and an insert statement per row.
+ * Get an instance using {@link LinkMappingStore#openBatchWriter(Session, int)} and close it before ending the
+ * transaction.
+ * @since 1.44.0
+ * @version $Id$
+ */
+public final class LinkMappingBatchWriter implements AutoCloseable
+{
+    // 1: table, 2: value placeholders, 3: columns, 4: match condition, 5: inserted values
+    private static final String MERGE_USING_VALUES = "merge into %1$s t using (values (%2$s)) as v (%3$s) on %4$s "
+        + "when matched then update set reference = v.reference "
+        + "when not matched then insert (%3$s) values (%5$s)";
+
+    private static final String BY_ID_COLUMNS = "pageId, reference";
+
+    private static final String BY_TITLE_COLUMNS = "spaceKey, pageTitle, reference";
+
+    private static final String CAST_REFERENCE = "cast(? as varchar(768))";
+
+    private static final String CAST_VARCHAR = "cast(? as varchar(255)), ";
+
+    private static final String MSSQL_TERMINATOR = ";";
+
+    private final LinkMappingStore store;
+
+    private final Session session;
+
+    private final int flushSize;
+
+    private final LinkMappingMetrics metrics;
+
+    private final String upsertById;
+
+    private final String upsertByTitle;
+
+    private final Map<Long, String> byId = new LinkedHashMap<>();
+
+    private final Map<Pair<String, String>, String> byTitle = new LinkedHashMap<>();
+
+    LinkMappingBatchWriter(LinkMappingStore store, Session session, DatabaseProduct db, int flushSize,
+        LinkMappingMetrics metrics)
+    {
+        this.store = store;
+        this.session = session;
+        this.flushSize = Math.max(1, flushSize);
+        this.metrics = metrics;
+        this.upsertById = getUpsertById(db);
+        this.upsertByTitle = getUpsertByTitle(db);
+    }
+
+    /**
+     * @return the number of rows after which the buffered rows are sent to the database
+     */
+    public int getFlushSize()
+    {
+        return flushSize;
+    }
+
+    /**
+     * Add the following page to the link mapping table.
+     * @param pageId the page id
+     * @param reference the XWiki reference
+     */
+    public void add(long pageId, String reference)
+    {
+        byId.put(pageId, reference);
+        maybeFlush();
+    }
+
+    /**
+     * Add the following page to the link mapping table.
+     * @param spaceKey the space key
+     * @param pageTitle the page title
+     * @param reference the XWiki reference
+     */
+    public void add(String spaceKey, String pageTitle, String reference)
+    {
+        byTitle.put(Pair.of(spaceKey, pageTitle), reference);
+        maybeFlush();
+    }
+
+    private void maybeFlush()
+    {
+        if (byId.size() + byTitle.size() >= flushSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the buffered rows to the database. They are committed with the transaction of the session.
+     */
+    public void flush()
+    {
+        if (byId.isEmpty() && byTitle.isEmpty()) {
+            return;
+        }
+
+        long start = metrics.start();
+        store.prepareWrite(session);
+        session.doWork(connection -> {
+            writeById(connection);
+            writeByTitle(connection);
+        });
+        updateSpaceRoots();
+        metrics.record(LinkMappingOperation.ADD, start, 0, 0);
+        byId.clear();
+        byTitle.clear();
+    }
+
+    @Override
+    public void close()
+    {
+        flush();
+    }
+
+    private void updateSpaceRoots()
+    {
+        Map<String, String> roots = new HashMap<>();
+        for (Map.Entry<Pair<String, String>, String> row : byTitle.entrySet()) {
+            roots.merge(row.getKey().getLeft(), row.getValue(), (a, b) -> b.length() < a.length() ? b : a);
+        }
+
+        for (Map.Entry<String, String> root : roots.entrySet()) {
+            store.updateSpaceRoot(session, root.getKey(), root.getValue());
+        }
+    }
+
+    private void writeById(Connection connection) throws SQLException
+    {
+        if (byId.isEmpty()) {
+            return;
+        }
+
+        if (upsertById == null) {
+            try (PreparedStatement delete = connection.prepareStatement(
+                LinkMappingStore.DELETE_FROM + LinkMappingStore.TABLE_BY_ID + LinkMappingStore.WHERE_PAGE_ID)) {
+                for (Long pageId : byId.keySet()) {
+                    delete.setLong(1, pageId);
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+            }
+        }
+
+        String sql = upsertById == null
+            ? LinkMappingStore.INSERT_INTO + LinkMappingStore.TABLE_BY_ID + " (" + BY_ID_COLUMNS + ") values (?, ?)"
+            : upsertById;
+
+        try (PreparedStatement insert = connection.prepareStatement(sql)) {
+            for (Map.Entry<Long, String> row : byId.entrySet()) {
+                insert.setLong(1, row.getKey());
+                insert.setString(2, row.getValue());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private void writeByTitle(Connection connection) throws SQLException
+    {
+        if (byTitle.isEmpty()) {
+            return;
+        }
+
+        if (upsertByTitle == null) {
+            try (PreparedStatement delete = connection.prepareStatement(LinkMappingStore.DELETE_FROM
+                + LinkMappingStore.TABLE_BY_TITLE + LinkMappingStore.WHERE_SPACE_KEY_AND_PAGE_TITLE)) {
+                for (Pair<String, String> key : byTitle.keySet()) {
+                    delete.setString(1, key.getLeft());
+                    delete.setString(2, key.getRight());
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+            }
+        }
+
+        String sql = upsertByTitle == null
+            ? LinkMappingStore.INSERT_INTO + LinkMappingStore.TABLE_BY_TITLE + " (" + BY_TITLE_COLUMNS
+                + ") values (?, ?, ?)"
+            : upsertByTitle;
+
+        try (PreparedStatement insert = connection.prepareStatement(sql)) {
+            for (Map.Entry<Pair<String, String>, String> row : byTitle.entrySet()) {
+                insert.setString(1, row.getKey().getLeft());
+                insert.setString(2, row.getKey().getRight());
+                insert.setString(3, row.getValue());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private static String getUpsertById(DatabaseProduct db)
+    {
+        String table = LinkMappingStore.TABLE_BY_ID;
+        if (LinkMappingStore.isMySQLLike(db)) {
+            return LinkMappingStore.INSERT_INTO + table + " (" + BY_ID_COLUMNS + ") values (?, ?) "
+                + "on duplicate key update reference = values(reference)";
+        }
+
+        if (DatabaseProduct.POSTGRESQL.equals(db)) {
+            return LinkMappingStore.INSERT_INTO + table + " (" + BY_ID_COLUMNS + ") values (?, ?) "
+                + "on conflict (pageId) do update set reference = excluded.reference";
+        }
+
+        if (DatabaseProduct.H2.equals(db)) {
+            return "merge into " + table + " (" + BY_ID_COLUMNS + ") key (pageId) values (?, ?)";
+        }
+
+        if (DatabaseProduct.HSQLDB.equals(db) || DatabaseProduct.DB2.equals(db) || DatabaseProduct.MSSQL.equals(db)) {
+            String merge = String.format(MERGE_USING_VALUES, table, "cast(? as bigint), " + CAST_REFERENCE,
+                BY_ID_COLUMNS, "t.pageId = v.pageId", "v.pageId, v.reference");
+            return DatabaseProduct.MSSQL.equals(db) ? merge + MSSQL_TERMINATOR : merge;
+        }
+
+        // Derby and unknown databases: delete, then insert
+        return null;
+    }
+
+    private static String getUpsertByTitle(DatabaseProduct db)
+    {
+        // There is no unique constraint on (spaceKey, pageTitle), so "on conflict" and "on duplicate key" can't be
+        // used. Only MERGE statements work without one.
+        String table = LinkMappingStore.TABLE_BY_TITLE;
+        if (DatabaseProduct.H2.equals(db)) {
+            return "merge into " + table + " (" + BY_TITLE_COLUMNS + ") key (spaceKey, pageTitle) values (?, ?, ?)";
+        }
+
+        if (DatabaseProduct.HSQLDB.equals(db) || DatabaseProduct.DB2.equals(db) || DatabaseProduct.MSSQL.equals(db)) {
+            String merge = String.format(MERGE_USING_VALUES, table, CAST_VARCHAR + CAST_VARCHAR + CAST_REFERENCE,
+                BY_TITLE_COLUMNS, "t.spaceKey = v.spaceKey and t.pageTitle = v.pageTitle",
+                "v.spaceKey, v.pageTitle, v.reference");
+            return DatabaseProduct.MSSQL.equals(db) ? merge + MSSQL_TERMINATOR : merge;
+        }
+
+        return null;
+    }
+}
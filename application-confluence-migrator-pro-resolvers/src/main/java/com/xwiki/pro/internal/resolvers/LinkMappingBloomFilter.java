@@ -0,0 +1,201 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bloom filter over the keys of the link mapping, used to skip the lookups of pages which are certainly not in the
+ * link mapping without querying the database. Get an instance using {@link LinkMappingStore#openBloomFilter()}; the
+ * filter is shared by the callers which opened it, and used by the store until all of them closed it, or until the
+ * link mapping is modified. The skipped and false positive counts are the ones of all its users.
+ * @since 1.44.0
+ * @version $Id$
+ */
+public final class LinkMappingBloomFilter implements AutoCloseable
+{
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private static final int MAX_HASHES = 16;
+
+    private static final long ID_SEED = 0x9e3779b97f4a7c15L;
+
+    private final LinkMappingStore store;
+
+    private final long[] bits;
+
+    private final long bitCount;
+
+    private final int hashCount;
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    // Guarded by the store
+    private int users = 1;
+
+    LinkMappingBloomFilter(LinkMappingStore store, long expectedEntries)
+    {
+        this.store = store;
+        long n = Math.max(1, expectedEntries);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-n * Math.log(FALSE_POSITIVE_PROBABILITY) / (ln2 * ln2));
+        // Bit count rounded up to a multiple of 64, and limited by the maximum size of an array
+        this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (m + 63) / 64))];
+        this.bitCount = (long) bits.length * 64;
+        this.hashCount = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) bitCount / n * ln2)));
+    }
+
+    void add(long pageId)
+    {
+        addHash(idHash(pageId));
+    }
+
+    void add(String spaceKey, String pageTitle)
+    {
+        addHash(LinkMappingSnapshot.hash(spaceKey, pageTitle));
+    }
+
+    private void addHash(long hash)
+    {
+        long h2 = mix(hash);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash + i * h2, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(long pageId)
+    {
+        return count(mayContain(pageId));
+    }
+
+    boolean mightContain(String spaceKey, String pageTitle)
+    {
+        return count(mayContain(spaceKey, pageTitle));
+    }
+
+    /**
+     * Same as {@link #mightContain(long)}, without counting the lookup as skipped. Used by the bulk lookups, whose
+     * pages are looked up again one by one.
+     */
+    boolean mayContain(long pageId)
+    {
+        return containsHash(idHash(pageId));
+    }
+
+    /**
+     * Same as {@link #mightContain(String, String)}, without counting the lookup as skipped.
+     */
+    boolean mayContain(String spaceKey, String pageTitle)
+    {
+        return containsHash(LinkMappingSnapshot.hash(spaceKey, pageTitle));
+    }
+
+    private boolean count(boolean found)
+    {
+        if (!found) {
+            skipped.incrementAndGet();
+        }
+        return found;
+    }
+
+    private boolean containsHash(long hash)
+    {
+        long h2 = mix(hash);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash + i * h2, bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record lookups which were let through by the filter but did not find anything.
+     * @param count the number of such lookups
+     */
+    void addFalsePositives(long count)
+    {
+        falsePositives.addAndGet(count);
+    }
+
+    void retain()
+    {
+        users++;
+    }
+
+    /**
+     * @return whether the filter has no users anymore
+     */
+    boolean release()
+    {
+        return --users == 0;
+    }
+
+    private static long idHash(long pageId)
+    {
+        return mix(pageId ^ ID_SEED);
+    }
+
+    private static long mix(long value)
+    {
+        // splitmix64 finalizer
+        long z = value;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return the number of lookups which were skipped because the page is certainly not in the link mapping
+     */
+    public long getSkippedCount()
+    {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of lookups which were let through by the filter but did not find anything
+     */
+    public long getFalsePositiveCount()
+    {
+        return falsePositives.get();
+    }
+
+    /**
+     * @return the observed false positive rate: the proportion of the lookups of pages which are not in the link
+     *     mapping that the filter did not skip
+     */
+    public double getFalsePositiveRate()
+    {
+        long fp = falsePositives.get();
+        long negatives = fp + skipped.get();
+        return negatives == 0 ? 0 : (double) fp / negatives;
+    }
+
+    @Override
+    public void close()
+    {
+        store.closeBloomFilter(this);
+    }
+}
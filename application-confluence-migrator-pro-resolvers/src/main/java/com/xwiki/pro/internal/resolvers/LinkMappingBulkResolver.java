@@ -0,0 +1,58 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Resolves many Confluence pages at once using the link mapping, issuing a few chunked queries instead of one query
+ * per page.
+ * @since 1.44.0
+ * @version $Id$
+ */
+@Role
+public interface LinkMappingBulkResolver
+{
+    /**
+     * @param ids the ids of the pages to resolve
+     * @return the documents of the pages which are in the link mapping, by page id
+     */
+    Map<Long, EntityReference> getDocumentsById(Collection<Long> ids);
+
+    /**
+     * @param pages the (space key, page title) pairs of the pages to resolve
+     * @return the documents of the pages which are in the link mapping, by (space key, page title) pair
+     */
+    Map<Pair<String, String>, EntityReference> getDocumentsByTitle(Collection<Pair<String, String>> pages);
+
+    /**
+     * Load the link mapping of the given pages in a batch, from which the following lookups of these pages done by
+     * the current thread are answered until it is closed, whether the link mapping cache is enabled or not.
+     * @param ids the ids of the pages which are about to be resolved
+     * @param pages the (space key, page title) pairs of the pages which are about to be resolved
+     * @return the batch, to close when done, typically using a try-with-resources statement
+     */
+    LinkMappingBatch prefetch(Collection<Long> ids, Collection<Pair<String, String>> pages);
+}
@@ -0,0 +1,245 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Bounded read-through cache in front of the link mapping store lookups. Negative results are cached too, since most
+ * lookups done while fixing references are for pages which are not in the link mapping.
+ * The size and the maximum idle time of the entries can be set in xwiki.properties using
+ * {@code confluencemigratorpro.linkmapping.cache.size} and {@code confluencemigratorpro.linkmapping.cache.maxIdle}
+ * (in seconds, 0 meaning no limit). The hits and misses are counted, in total and per operation in
+ * {@link LinkMappingMetrics}, so the cache can be sized.
+ * @since 1.44.0
+ * @version $Id$
+ */
+@Component(roles = LinkMappingCache.class)
+@Singleton
+public class LinkMappingCache implements Initializable, Disposable
+{
+    private static final String CONFIG_PREFIX = "confluencemigratorpro.linkmapping.cache.";
+
+    private static final int DEFAULT_SIZE = 100000;
+
+    private static final int DEFAULT_MAX_IDLE = 3600;
+
+    // References are never empty, so the empty string is used to remember that a lookup did not find anything.
+    private static final String NOT_FOUND = "";
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private LinkMappingMetrics metrics;
+
+    private Cache<String> cache;
+
+    private boolean empty = true;
+
+    // Incremented by each invalidation, so values loaded before an invalidation are not cached after it
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int size = configuration.getProperty(CONFIG_PREFIX + "size", DEFAULT_SIZE);
+        int maxIdle = configuration.getProperty(CONFIG_PREFIX + "maxIdle", DEFAULT_MAX_IDLE);
+        if (size <= 0) {
+            logger.info("The link mapping cache is disabled");
+            return;
+        }
+
+        try {
+            cache = cacheManager.createNewCache(
+                new LRUCacheConfiguration("confluencemigratorpro.linkmapping", size, maxIdle));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the link mapping cache", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (cache != null) {
+            cache.dispose();
+        }
+    }
+
+    /**
+     * Get the cached value for the given key, or compute it and cache it.
+     * @param operation the operation doing the lookup, for the metrics
+     * @param key the cache key, including the type of lookup
+     * @param loader the function computing the value from the database on a cache miss. It may return null.
+     * @return the cached or computed value
+     */
+    String get(LinkMappingOperation operation, String key, Supplier<String> loader)
+    {
+        if (cache == null) {
+            recordLookup(operation, false);
+            return loader.get();
+        }
+
+        String value = cache.get(key);
+        recordLookup(operation, value != null);
+        if (value != null) {
+            return NOT_FOUND.equals(value) ? null : value;
+        }
+
+        long loadGeneration = getGeneration();
+        value = loader.get();
+        put(loadGeneration, Map.of(key, value == null ? NOT_FOUND : value));
+        return value;
+    }
+
+    /**
+     * Get the values of the given keys, computing the ones which are not cached in one go and caching them.
+     * @param operation the operation doing the lookups, for the metrics
+     * @param keys the keys to look up
+     * @param cacheKey the function giving the cache key of a key, consistent with the one used with
+     *     {@link #get(LinkMappingOperation, String, Supplier)}
+     * @param loader the function computing the values of the keys which are not cached. Keys without value are
+     *     absent from the returned map.
+     * @param <K> the type of the keys
+     * @return the values of the keys, keys without value being absent
+     * @since 1.44.0
+     */
+    <K> Map<K, String> getAll(LinkMappingOperation operation, Collection<K> keys, Function<K, String> cacheKey,
+        Function<Collection<K>, Map<K, String>> loader)
+    {
+        Map<K, String> result = new HashMap<>(keys.size());
+        List<K> missing = new ArrayList<>();
+        for (K key : keys) {
+            String value = cache == null ? null : cache.get(cacheKey.apply(key));
+            recordLookup(operation, value != null);
+            if (value == null) {
+                missing.add(key);
+            } else if (!NOT_FOUND.equals(value)) {
+                result.put(key, value);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        long loadGeneration = getGeneration();
+        Map<K, String> loaded = loader.apply(missing);
+        if (cache != null) {
+            Map<String, String> entries = new HashMap<>(missing.size());
+            for (K key : missing) {
+                entries.put(cacheKey.apply(key), loaded.getOrDefault(key, NOT_FOUND));
+            }
+            put(loadGeneration, entries);
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    private void recordLookup(LinkMappingOperation operation, boolean hit)
+    {
+        (hit ? hits : misses).incrementAndGet();
+        metrics.recordCacheLookup(operation, hit);
+    }
+
+    private synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    private synchronized void put(long loadGeneration, Map<String, String> entries)
+    {
+        // The values were possibly read before the link mapping was modified, they must not be cached.
+        if (loadGeneration != generation) {
+            return;
+        }
+
+        empty = false;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            cache.set(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Forget everything. To be called whenever the link mapping is modified, and again once the modification is
+     * committed, so values read in between are dropped too.
+     */
+    synchronized void invalidate()
+    {
+        generation++;
+        // The link mapping phase adds pages one by one while nothing is read, we don't want to clear an already empty
+        // cache for each of them.
+        if (cache != null && !empty) {
+            empty = true;
+            cache.removeAll();
+        }
+    }
+
+    /**
+     * @return the number of lookups that were answered from the cache
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that needed to query the database, including all the lookups when the cache is
+     *     disabled
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+}
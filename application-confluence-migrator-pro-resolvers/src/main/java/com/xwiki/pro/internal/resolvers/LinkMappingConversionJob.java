@@ -0,0 +1,318 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Session;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.environment.Environment;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.DefaultRequest;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The job converting the link mapping documents of Confluence Migrator Pro versions older than 1.28.0 to the SQL
+ * storage. The documents are browsed a page at a time and converted one by one, each in its own transaction, and the
+ * last converted document is recorded in the permanent directory so an interrupted conversion resumes where it
+ * stopped.
+ * @since 1.44.0
+ * @version $Id$
+ */
+@Component
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+@Named(LinkMappingConversionJob.JOBTYPE)
+public class LinkMappingConversionJob extends AbstractJob<DefaultRequest, DefaultJobStatus<DefaultRequest>>
+    implements GroupedJob
+{
+    static final String JOBTYPE = "confluence.linkmappingconversion";
+
+    static final List<String> JOB_ID = List.of("confluence", "linkmappingconversion");
+
+    private static final JobGroupPath GROUP =
+        new JobGroupPath(Arrays.asList("confluencemigratorpro", "linkmappingconversion"));
+
+    private static final String OLD_MAPPING_CLASS = "ConfluenceMigratorPro.Code.LinkMappingStateSpaceClass";
+
+    private static final String OLD_MAPPINGS_WHERE = "where "
+        + "doc.fullName = o.name and "
+        + "o.className = :className and "
+        + "o.id = spaceProp.id.id and "
+        + "spaceProp.id.name = 'spaceKey' ";
+
+    private static final String CLASS_NAME = "className";
+
+    private static final String IDS_SUFFIX = ":ids";
+
+    private static final String PROGRESS_PATH = "confluence-migrator-pro/linkmapping-conversion.progress";
+
+    private static final int PAGE_SIZE = 100;
+
+    private static final int FLUSH_SIZE = 1000;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Provider<LinkMappingStore> linkMappingStoreProvider;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private Environment environment;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * @param queryManager the query manager
+     * @return whether there are link mapping documents to convert
+     * @throws QueryException if the query fails
+     */
+    static boolean hasOldMappings(QueryManager queryManager) throws QueryException
+    {
+        return !queryManager.createQuery("select 1 from BaseObject o where o.className = :className", Query.HQL)
+            .bindValue(CLASS_NAME, OLD_MAPPING_CLASS)
+            .setLimit(1)
+            .execute()
+            .isEmpty();
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        LinkMappingStore store = linkMappingStoreProvider.get();
+        File progressFile = new File(environment.getPermanentDirectory(), PROGRESS_PATH);
+        String last = readProgress(progressFile);
+        if (last != null) {
+            logger.info("Resuming the conversion of the old link mapping documents after [{}]", last);
+        }
+
+        long total = countOldMappings();
+        logger.info("Migrating [{}] old link mapping documents to the new SQL storage", total);
+        progressManager.pushLevelProgress((int) Math.min(total, Integer.MAX_VALUE), this);
+        try {
+            long i = 0;
+            List<Object[]> page = getOldMappings(last);
+            while (!page.isEmpty()) {
+                for (Object[] line : page) {
+                    progressManager.startStep(this);
+                    i++;
+                    XWikiDocument d = (XWikiDocument) line[0];
+                    logger.info("Converting [{}] ({}/{})", d, i, total);
+                    convert(store, d, (String) line[1]);
+                    last = d.getFullName();
+                    writeProgress(progressFile, last);
+                    progressManager.endStep(this);
+                }
+                page = getOldMappings(last);
+            }
+        } finally {
+            progressManager.popLevelProgress(this);
+        }
+
+        // The next conversion, if any, will start from the beginning, retrying the documents which failed
+        Files.deleteIfExists(progressFile.toPath());
+        logger.info("Finished migrating old link mapping documents");
+    }
+
+    private long countOldMappings() throws QueryException
+    {
+        List<Object> res = queryManager.createQuery("select count(doc) from "
+                + "XWikiDocument doc, BaseObject o, StringProperty spaceProp " + OLD_MAPPINGS_WHERE, Query.HQL)
+            .bindValue(CLASS_NAME, OLD_MAPPING_CLASS)
+            .execute();
+        return res.isEmpty() ? 0 : ((Number) res.get(0)).longValue();
+    }
+
+    private List<Object[]> getOldMappings(String after) throws QueryException
+    {
+        // Keyset pagination: converted documents are deleted, so offsets would skip documents
+        Query query = queryManager.createQuery("select doc, spaceProp.value from "
+                + "XWikiDocument doc, BaseObject o, StringProperty spaceProp " + OLD_MAPPINGS_WHERE
+                + (after == null ? "" : "and doc.fullName > :after ")
+                + "order by doc.fullName", Query.HQL)
+            .bindValue(CLASS_NAME, OLD_MAPPING_CLASS)
+            .setLimit(PAGE_SIZE);
+        if (after != null) {
+            query.bindValue("after", after);
+        }
+        return query.execute();
+    }
+
+    private String getMapping(XWikiDocument d) throws QueryException
+    {
+        List<String> res = queryManager.createQuery("select mappingProp.value from "
+                + "BaseObject o, LargeStringProperty mappingProp where "
+                + "o.name = :name and "
+                + "o.className = :className and "
+                + "o.id = mappingProp.id.id and "
+                + "mappingProp.id.name = 'mapping'", Query.HQL)
+            .bindValue("name", d.getFullName())
+            .bindValue(CLASS_NAME, OLD_MAPPING_CLASS)
+            .setLimit(1)
+            .execute();
+        return res.isEmpty() ? null : res.get(0);
+    }
+
+    private void convert(LinkMappingStore store, XWikiDocument d, String spaceProp)
+    {
+        String spaceKey = StringUtils.removeEnd(spaceProp, IDS_SUFFIX);
+        if (isSpaceFoundInConfluencePageClassObj(spaceKey)) {
+            logger.info("ConfluencePageClass objects found for the related space, skipping import of [{}]", d);
+            removeOldMapping(d);
+            return;
+        }
+
+        boolean converted = false;
+        Session session = store.beginTransaction();
+        try {
+            String mapping = getMapping(d);
+            if (session != null && mapping != null) {
+                LinkMappingBatchWriter writer = store.openBatchWriter(session, FLUSH_SIZE);
+                parseOldMapping(writer, mapping, spaceKey, d.getDocumentReference().getName().endsWith(IDS_SUFFIX));
+                writer.close();
+                converted = true;
+            }
+        } catch (QueryException | IOException | RuntimeException e) {
+            logger.error("Failed to convert [{}], the document will not be removed", d, e);
+        } finally {
+            store.endTransaction(converted);
+        }
+
+        if (converted) {
+            removeOldMapping(d);
+        }
+    }
+
+    private void parseOldMapping(LinkMappingBatchWriter writer, String mapping, String spaceKey, boolean pageIds)
+        throws IOException
+    {
+        // The mapping of a space can be huge, it is read entry by entry instead of as a whole map
+        try (JsonParser parser = jsonFactory.createParser(mapping)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The link mapping is not a JSON object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                if (parser.nextToken() != JsonToken.VALUE_STRING) {
+                    throw new IOException("Unexpected value for [" + key + "] in the link mapping");
+                }
+
+                if (pageIds) {
+                    writer.add(Long.parseLong(key), parser.getText());
+                } else {
+                    writer.add(spaceKey, key, parser.getText());
+                }
+            }
+        }
+    }
+
+    private void removeOldMapping(XWikiDocument notLoadedDocument)
+    {
+        XWikiContext context = contextProvider.get();
+        try {
+            // We can't delete the XWikiDocument we have directly because it's not loaded, we need to load it
+            XWikiDocument d = context.getWiki().getDocument(notLoadedDocument.getDocumentReference(), context);
+            context.getWiki().deleteDocument(d, context);
+        } catch (XWikiException e) {
+            logger.error("Could not remove old mapping document [{}]", notLoadedDocument, e);
+        }
+    }
+
+    private boolean isSpaceFoundInConfluencePageClassObj(String spaceKey)
+    {
+        try {
+            return !queryManager.createQuery(
+                "select 1 from BaseObject o, StringProperty p "
+                    + "where o.className = 'Confluence.Code.ConfluencePageClass' and "
+                    + "o.id = p.id.id and "
+                    + "p.id.name = 'space' and "
+                    + "p.value = :space", Query.HQL
+            ).setLimit(1).bindValue("space", spaceKey).execute().isEmpty();
+        } catch (QueryException e) {
+            logger.error("Failed to determine whether data on space [{}] is already present in the wiki", spaceKey, e);
+        }
+        // Let's assume it's not there
+        return false;
+    }
+
+    private String readProgress(File progressFile)
+    {
+        if (!progressFile.exists()) {
+            return null;
+        }
+
+        try {
+            return StringUtils.defaultIfEmpty(
+                new String(Files.readAllBytes(progressFile.toPath()), StandardCharsets.UTF_8), null);
+        } catch (IOException e) {
+            logger.warn("Failed to read the link mapping conversion progress, starting from the beginning", e);
+            return null;
+        }
+    }
+
+    private void writeProgress(File progressFile, String last)
+    {
+        try {
+            Files.createDirectories(progressFile.getParentFile().toPath());
+            Files.write(progressFile.toPath(), last.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Failed to record the link mapping conversion progress", e);
+        }
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        return GROUP;
+    }
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * Counts the calls, found and not found keys, cache lookups and database queries of the link mapping operations, and
+ * their latency. The metrics of all the operations since the start (or the last reset) are published over JMX as
+ * {@code com.xwiki.confluencepro:type=LinkMappingMetrics}. The metrics of the operations done by a job, summarized in
+ * the migration and reference fixing reports, are collected in a {@link Scope}.
+ * @since 1.44.0
+ * @version $Id$
+ */
+@Component(roles = LinkMappingMetrics.class)
+@Singleton
+public class LinkMappingMetrics implements LinkMappingMetricsMXBean, Initializable, Disposable
+{
+    /**
+     * The upper bounds, in microseconds, of the latency histogram buckets.
+     */
+    static final long[] LATENCY_BUCKET_BOUNDS_MICROS = { 10, 100, 1000, 10000, 100000, 1000000 };
+
+    private static final String[] LATENCY_BUCKET_LABELS = {
+        "<10us", "<100us", "<1ms", "<10ms", "<100ms", "<1s", ">=1s"
+    };
+
+    private static final String OBJECT_NAME = "com.xwiki.confluencepro:type=LinkMappingMetrics";
+
+    private static final long NANOS_PER_MICRO = 1000;
+
+    @Inject
+    private Logger logger;
+
+    private final OperationsMetrics metrics = new OperationsMetrics();
+
+    // Inherited, so the threads started by a job record their operations in its scope
+    private final InheritableThreadLocal<Scope> currentScope = new InheritableThreadLocal<>();
+
+    private ObjectName objectName;
+
+    /**
+     * Snapshot of the metrics of all the operations.
+     */
+    public static final class Snapshot
+    {
+        private final Map<LinkMappingOperation, LinkMappingOperationStats> stats;
+
+        private Snapshot(Map<LinkMappingOperation, LinkMappingOperationStats> stats)
+        {
+            this.stats = stats;
+        }
+
+        /**
+         * @param operation the operation
+         * @return the metrics of the given operation
+         */
+        public LinkMappingOperationStats get(LinkMappingOperation operation)
+        {
+            return stats.get(operation);
+        }
+
+        /**
+         * @return the metrics of the operations which were called, as a map to be serialized in reports
+         */
+        public Map<String, Object> toMap()
+        {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<LinkMappingOperation, LinkMappingOperationStats> op : stats.entrySet()) {
+                if (op.getValue().getCalls() > 0) {
+                    map.put(op.getKey().getId(), op.getValue().toMap());
+                }
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Collects the metrics of the operations done by the thread which opened it, and by the threads it starts while
+     * the scope is open, typically the operations of a job. Get an instance using {@link #openScope()}.
+     */
+    public final class Scope implements AutoCloseable
+    {
+        private final OperationsMetrics scopeMetrics = new OperationsMetrics();
+
+        private final Scope parent;
+
+        private volatile boolean closed;
+
+        private Scope(Scope parent)
+        {
+            this.parent = parent;
+        }
+
+        /**
+         * @return the metrics of the operations done in this scope so far
+         */
+        public Snapshot snapshot()
+        {
+            return scopeMetrics.snapshot();
+        }
+
+        @Override
+        public void close()
+        {
+            // Threads started in this scope and still running keep a reference to it, they must not record anything
+            // in it anymore.
+            closed = true;
+            if (currentScope.get() == this) {
+                currentScope.set(parent);
+            }
+        }
+    }
+
+    private static final class OperationMetrics
+    {
+        private final LongAdder calls = new LongAdder();
+
+        private final LongAdder found = new LongAdder();
+
+        private final LongAdder notFound = new LongAdder();
+
+        private final LongAdder latencyNanos = new LongAdder();
+
+        private final LongAdder queries = new LongAdder();
+
+        private final LongAdder queryLatencyNanos = new LongAdder();
+
+        private final LongAdder cacheHits = new LongAdder();
+
+        private final LongAdder cacheMisses = new LongAdder();
+
+        private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKET_LABELS.length);
+
+        private LinkMappingOperationStats getStats()
+        {
+            long[] histogram = new long[latencyHistogram.length()];
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = latencyHistogram.get(i);
+            }
+            return new LinkMappingOperationStats(calls.sum(), found.sum(), notFound.sum(), latencyNanos.sum(),
+                queries.sum(), queryLatencyNanos.sum(), cacheHits.sum(), cacheMisses.sum(), histogram);
+        }
+
+        private void reset()
+        {
+            calls.reset();
+            found.reset();
+            notFound.reset();
+            latencyNanos.reset();
+            queries.reset();
+            queryLatencyNanos.reset();
+            cacheHits.reset();
+            cacheMisses.reset();
+            for (int i = 0; i < latencyHistogram.length(); i++) {
+                latencyHistogram.set(i, 0);
+            }
+        }
+    }
+
+    private static final class OperationsMetrics
+    {
+        // Never modified after construction, so it can be read concurrently
+        private final Map<LinkMappingOperation, OperationMetrics> operations;
+
+        private OperationsMetrics()
+        {
+            Map<LinkMappingOperation, OperationMetrics> map = new EnumMap<>(LinkMappingOperation.class);
+            for (LinkMappingOperation op : LinkMappingOperation.values()) {
+                map.put(op, new OperationMetrics());
+            }
+            this.operations = Collections.unmodifiableMap(map);
+        }
+
+        private void record(LinkMappingOperation operation, long nanos, long found, long notFound)
+        {
+            OperationMetrics m = operations.get(operation);
+            m.calls.increment();
+            m.found.add(found);
+            m.notFound.add(notFound);
+            m.latencyNanos.add(nanos);
+            m.latencyHistogram.incrementAndGet(getLatencyBucket(nanos / NANOS_PER_MICRO));
+        }
+
+        private void recordQuery(LinkMappingOperation operation, long nanos)
+        {
+            OperationMetrics m = operations.get(operation);
+            m.queries.increment();
+            m.queryLatencyNanos.add(nanos);
+        }
+
+        private void recordCacheLookup(LinkMappingOperation operation, boolean hit)
+        {
+            OperationMetrics m = operations.get(operation);
+            (hit ? m.cacheHits : m.cacheMisses).increment();
+        }
+
+        private LinkMappingOperationStats getStats(LinkMappingOperation operation)
+        {
+            return operations.get(operation).getStats();
+        }
+
+        private Snapshot snapshot()
+        {
+            Map<LinkMappingOperation, LinkMappingOperationStats> stats = new EnumMap<>(LinkMappingOperation.class);
+            for (Map.Entry<LinkMappingOperation, OperationMetrics> op : operations.entrySet()) {
+                stats.put(op.getKey(), op.getValue().getStats());
+            }
+            return new Snapshot(stats);
+        }
+
+        private void reset()
+        {
+            for (OperationMetrics m : operations.values()) {
+                m.reset();
+            }
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // Left by a previous instance of the component, for instance after an extension upgrade
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException | SecurityException e) {
+            logger.warn("Failed to publish the link mapping metrics over JMX", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Failed to unpublish the link mapping metrics", e);
+            }
+        }
+    }
+
+    /**
+     * Start collecting the metrics of the operations done by the current thread and by the threads it starts, until
+     * the returned scope is closed.
+     * @return the scope, to close when done, typically using a try-with-resources statement
+     */
+    public Scope openScope()
+    {
+        Scope scope = new Scope(currentScope.get());
+        currentScope.set(scope);
+        return scope;
+    }
+
+    /**
+     * @return the start time of a call, to pass to {@link #record(LinkMappingOperation, long, long, long)}
+     */
+    long start()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a call.
+     * @param operation the operation
+     * @param start the start time of the call, as returned by {@link #start()}
+     * @param found the number of looked up keys which were found
+     * @param notFound the number of looked up keys which were not found
+     */
+    void record(LinkMappingOperation operation, long start, long found, long notFound)
+    {
+        long nanos = System.nanoTime() - start;
+        metrics.record(operation, nanos, found, notFound);
+        for (Scope scope = currentScope.get(); scope != null; scope = scope.parent) {
+            if (!scope.closed) {
+                scope.scopeMetrics.record(operation, nanos, found, notFound);
+            }
+        }
+    }
+
+    /**
+     * Record a database query done for an operation.
+     * @param operation the operation
+     * @param start the start time of the query, as returned by {@link #start()}
+     */
+    void recordQuery(LinkMappingOperation operation, long start)
+    {
+        long nanos = System.nanoTime() - start;
+        metrics.recordQuery(operation, nanos);
+        for (Scope scope = currentScope.get(); scope != null; scope = scope.parent) {
+            if (!scope.closed) {
+                scope.scopeMetrics.recordQuery(operation, nanos);
+            }
+        }
+    }
+
+    /**
+     * Record a lookup in the link mapping cache done for an operation.
+     * @param operation the operation
+     * @param hit whether the value was found in the cache
+     */
+    void recordCacheLookup(LinkMappingOperation operation, boolean hit)
+    {
+        metrics.recordCacheLookup(operation, hit);
+        for (Scope scope = currentScope.get(); scope != null; scope = scope.parent) {
+            if (!scope.closed) {
+                scope.scopeMetrics.recordCacheLookup(operation, hit);
+            }
+        }
+    }
+
+    private static int getLatencyBucket(long micros)
+    {
+        int i = 0;
+        while (i < LATENCY_BUCKET_BOUNDS_MICROS.length && micros >= LATENCY_BUCKET_BOUNDS_MICROS[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    static String getLatencyBucketLabel(int bucket)
+    {
+        return LATENCY_BUCKET_LABELS[bucket];
+    }
+
+    /**
+     * @return the current metrics of all the operations since the start or the last reset
+     */
+    public Snapshot snapshot()
+    {
+        return metrics.snapshot();
+    }
+
+    @Override
+    public LinkMappingOperationStats getById()
+    {
+        return metrics.getStats(LinkMappingOperation.BY_ID);
+    }
+
+    @Override
+    public LinkMappingOperationStats getByTitle()
+    {
+        return metrics.getStats(LinkMappingOperation.BY_TITLE);
+    }
+
+    @Override
+    public LinkMappingOperationStats getSpaceByKey()
+    {
+        return metrics.getStats(LinkMappingOperation.SPACE_BY_KEY);
+    }
+
+    @Override
+    public LinkMappingOperationStats getSpaceByReference()
+    {
+        return metrics.getStats(LinkMappingOperation.SPACE_BY_REFERENCE);
+    }
+
+    @Override
+    public LinkMappingOperationStats getAdd()
+    {
+        return metrics.getStats(LinkMappingOperation.ADD);
+    }
+
+    @Override
+    public long[] getLatencyBucketBoundsMicros()
+    {
+        return LATENCY_BUCKET_BOUNDS_MICROS.clone();
+    }
+
+    @Override
+    public void reset()
+    {
+        // The metrics of the open scopes are not affected
+        metrics.reset();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+/**
+ * The JMX interface of {@link LinkMappingMetrics}.
+ * @since 1.44.0
+ * @version $Id$
+ */
+public interface LinkMappingMetricsMXBean
+{
+    /**
+     * @return the metrics of the lookups of pages by id
+     */
+    LinkMappingOperationStats getById();
+
+    /**
+     * @return the metrics of the lookups of pages by space key and title
+     */
+    LinkMappingOperationStats getByTitle();
+
+    /**
+     * @return the metrics of the lookups of spaces by key
+     */
+    LinkMappingOperationStats getSpaceByKey();
+
+    /**
+     * @return the metrics of the lookups of spaces by page reference
+     */
+    LinkMappingOperationStats getSpaceByReference();
+
+    /**
+     * @return the metrics of the additions to the link mapping
+     */
+    LinkMappingOperationStats getAdd();
+
+    /**
+     * @return the upper bounds, in microseconds, of the latency histogram buckets. The last bucket has no bound.
+     */
+    long[] getLatencyBucketBoundsMicros();
+
+    /**
+     * Reset all the metrics.
+     */
+    void reset();
+}
@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+/**
+ * The link mapping operations for which metrics are collected by {@link LinkMappingMetrics}.
+ * @since 1.44.0
+ * @version $Id$
+ */
+public enum LinkMappingOperation
+{
+    /**
+     * Resolving a page from its id.
+     */
+    BY_ID("byId"),
+
+    /**
+     * Resolving a page from its space key and title.
+     */
+    BY_TITLE("byTitle"),
+
+    /**
+     * Resolving a space from its key.
+     */
+    SPACE_BY_KEY("spaceByKey"),
+
+    /**
+     * Resolving a space, or its key, from the reference of one of its pages.
+     */
+    SPACE_BY_REFERENCE("spaceByReference"),
+
+    /**
+     * Adding pages to the link mapping.
+     */
+    ADD("add");
+
+    private final String id;
+
+    LinkMappingOperation(String id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * @return the identifier of the operation, as used in reports
+     */
+    public String getId()
+    {
+        return id;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The metrics of a link mapping operation at a given time.
+ * @since 1.44.0
+ * @version $Id$
+ */
+public final class LinkMappingOperationStats
+{
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final long calls;
+
+    private final long found;
+
+    private final long notFound;
+
+    private final long latencyNanos;
+
+    private final long queries;
+
+    private final long queryLatencyNanos;
+
+    private final long cacheHits;
+
+    private final long cacheMisses;
+
+    private final long[] latencyHistogram;
+
+    LinkMappingOperationStats(long calls, long found, long notFound, long latencyNanos, long queries,
+        long queryLatencyNanos, long cacheHits, long cacheMisses, long[] latencyHistogram)
+    {
+        this.calls = calls;
+        this.found = found;
+        this.notFound = notFound;
+        this.latencyNanos = latencyNanos;
+        this.queries = queries;
+        this.queryLatencyNanos = queryLatencyNanos;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    /**
+     * @return the number of calls
+     */
+    public long getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * @return the number of looked up keys which were found
+     */
+    public long getFound()
+    {
+        return found;
+    }
+
+    /**
+     * @return the number of looked up keys which were not found
+     */
+    public long getNotFound()
+    {
+        return notFound;
+    }
+
+    /**
+     * @return the proportion of looked up keys which were found, 0 if no key was looked up
+     */
+    public double getFoundRatio()
+    {
+        long lookups = found + notFound;
+        return lookups == 0 ? 0 : (double) found / lookups;
+    }
+
+    /**
+     * @return the mean duration of a call, in microseconds
+     */
+    public double getMeanLatencyMicros()
+    {
+        return calls == 0 ? 0 : (double) latencyNanos / calls / NANOS_PER_MICRO;
+    }
+
+    /**
+     * @return the number of database queries
+     */
+    public long getQueries()
+    {
+        return queries;
+    }
+
+    /**
+     * @return the total time spent in database queries, in milliseconds
+     */
+    public long getQueryTimeMillis()
+    {
+        return queryLatencyNanos / NANOS_PER_MICRO / NANOS_PER_MICRO;
+    }
+
+    /**
+     * @return the number of lookups answered from the link mapping cache
+     */
+    public long getCacheHits()
+    {
+        return cacheHits;
+    }
+
+    /**
+     * @return the number of lookups which were not in the link mapping cache, including all the lookups when the
+     *     cache is disabled
+     */
+    public long getCacheMisses()
+    {
+        return cacheMisses;
+    }
+
+    /**
+     * @return the proportion of the cache lookups answered from the cache, 0 if the cache was not used
+     */
+    public double getCacheHitRatio()
+    {
+        long lookups = cacheHits + cacheMisses;
+        return lookups == 0 ? 0 : (double) cacheHits / lookups;
+    }
+
+    /**
+     * @return the total time spent in calls, in milliseconds, database queries included
+     */
+    public long getTimeMillis()
+    {
+        return latencyNanos / NANOS_PER_MICRO / NANOS_PER_MICRO;
+    }
+
+    /**
+     * @return the number of calls in each latency bucket, see
+     *     {@link LinkMappingMetricsMXBean#getLatencyBucketBoundsMicros()}
+     */
+    public long[] getLatencyHistogram()
+    {
+        return latencyHistogram.clone();
+    }
+
+    /**
+     * @return these metrics as a map, to be serialized in reports
+     */
+    public Map<String, Object> toMap()
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("calls", calls);
+        map.put("found", found);
+        map.put("notFound", notFound);
+        if (found + notFound > 0) {
+            // Not reported for the operations which don't look anything up
+            map.put("foundRatio", getFoundRatio());
+        }
+        map.put("meanLatencyMicros", getMeanLatencyMicros());
+        map.put("timeMillis", getTimeMillis());
+        map.put("queries", queries);
+        map.put("queryTimeMillis", getQueryTimeMillis());
+        if (cacheHits + cacheMisses > 0) {
+            // Not reported for the operations which don't use the cache
+            map.put("cacheHits", cacheHits);
+            map.put("cacheMisses", cacheMisses);
+            map.put("cacheHitRatio", getCacheHitRatio());
+        }
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < latencyHistogram.length; i++) {
+            histogram.put(LinkMappingMetrics.getLatencyBucketLabel(i), latencyHistogram[i]);
+        }
+        map.put("latencyHistogram", histogram);
+        return map;
+    }
+}
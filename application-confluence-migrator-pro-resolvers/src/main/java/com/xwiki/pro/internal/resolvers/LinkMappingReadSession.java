@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+/**
+ * A scope in which the link mapping lookups of the current thread share a single database session.
+ * Get an instance using {@link LinkMappingStore#openReadSession()}.
+ * @since 1.44.0
+ * @version $Id$
+ */
+public final class LinkMappingReadSession implements AutoCloseable
+{
+    private final LinkMappingStore store;
+
+    LinkMappingReadSession(LinkMappingStore store)
+    {
+        // store is null when this read session doesn't own the session (nested or failed read session)
+        this.store = store;
+    }
+
+    @Override
+    public void close()
+    {
+        if (store != null) {
+            store.closeReadSession();
+        }
+    }
+}
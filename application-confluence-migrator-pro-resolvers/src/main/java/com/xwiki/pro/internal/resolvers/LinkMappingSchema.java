@@ -0,0 +1,297 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+import org.hibernate.Session;
+
+import com.xpn.xwiki.store.DatabaseProduct;
+
+import static com.xwiki.pro.internal.resolvers.LinkMappingStore.CREATE_TABLE;
+import static com.xwiki.pro.internal.resolvers.LinkMappingStore.DELETE_FROM;
+import static com.xwiki.pro.internal.resolvers.LinkMappingStore.INSERT_INTO;
+import static com.xwiki.pro.internal.resolvers.LinkMappingStore.SELECT_SHORTEST_REFERENCE;
+import static com.xwiki.pro.internal.resolvers.LinkMappingStore.TABLE_BY_ID;
+import static com.xwiki.pro.internal.resolvers.LinkMappingStore.TABLE_BY_TITLE;
+import static com.xwiki.pro.internal.resolvers.LinkMappingStore.TABLE_SPACE_ROOT;
+
+/**
+ * Versioning of the link mapping tables. Versions:
+ * <ol>
+ *     <li>the tables and an index on the space key, before the schema was versioned</li>
+ *     <li>a (spaceKey, pageTitle) index replaces the space key index</li>
+ *     <li>the reference columns are indexed</li>
+ *     <li>the shortest reference of each space is stored in its own table</li>
+ *     <li>the revision of the link mapping, incremented by each modification, is stored in its own table</li>
+ * </ol>
+ * The reference indexes are dropped during bulk loads without changing the version, so they are recreated by each
+ * upgrade if missing. Creating and dropping indexes is idempotent, so an upgrade interrupted in the middle, or run
+ * concurrently by another node of a cluster, can be run again.
+ * @since 1.44.0
+ * @version $Id$
+ */
+final class LinkMappingSchema
+{
+    static final int VERSION = 5;
+
+    private static final String TABLE_SCHEMA = "confluencepro_linkmapping_schema";
+
+    private static final String TABLE_REVISION = "confluencepro_linkmapping_revision";
+
+    private static final String INDEX_SPACE_KEY = "confluencepro_linkmapping_spacekey_idx";
+
+    private static final String INDEX_TITLE = "confluencepro_linkmapping_title_idx";
+
+    private static final String INDEX_TITLE_REFERENCE = "confluencepro_linkmapping_ref_idx";
+
+    private static final String INDEX_ID_REFERENCE = "confluencepro_linkmapping_id_ref_idx";
+
+    private static final String CREATE_TABLE_IF_NOT_EXISTS = "create table if not exists ";
+
+    private static final String CREATE_SCHEMA_TABLE = CREATE_TABLE_IF_NOT_EXISTS + TABLE_SCHEMA
+        + " (version integer)";
+
+    private static final String REFERENCE = "reference";
+
+    private static final String DROP_TABLE = "drop table if exists ";
+
+    private static final String SPACE_KEY_AND_PAGE_TITLE = "spaceKey, pageTitle";
+
+    private LinkMappingSchema()
+    {
+        // utility class
+    }
+
+    /**
+     * Create the indexes of freshly created tables and record the schema version.
+     * @param session the session to use
+     */
+    static void initialize(Session session)
+    {
+        createIndex(session, INDEX_TITLE, TABLE_BY_TITLE, SPACE_KEY_AND_PAGE_TITLE);
+        createReferenceIndexes(session);
+        createSpaceRootTable(session);
+        createRevisionTable(session);
+        setVersion(session, VERSION);
+    }
+
+    /**
+     * Bring existing tables to the current schema version.
+     * @param session the session to use
+     * @param db the database product
+     * @return whether the schema was changed
+     */
+    static boolean upgrade(Session session, DatabaseProduct db)
+    {
+        int version = getVersion(session);
+        if (version < 2) {
+            // The composite index also serves the lookups on the space key only
+            createIndex(session, INDEX_TITLE, TABLE_BY_TITLE, SPACE_KEY_AND_PAGE_TITLE);
+            dropIndex(session, db, INDEX_SPACE_KEY, TABLE_BY_TITLE);
+        }
+
+        // Needed since version 3, and after each bulk load
+        boolean changed = createReferenceIndexes(session);
+
+        if (version < 4) {
+            createSpaceRootTable(session);
+            fillSpaceRootTable(session);
+        }
+
+        if (version < 5) {
+            createRevisionTable(session);
+        }
+
+        if (version < VERSION) {
+            setVersion(session, VERSION);
+            return true;
+        }
+
+        return changed;
+    }
+
+    /**
+     * Drop the indexes which are not used when writing the link mapping.
+     * @param session the session to use
+     * @param db the database product
+     */
+    static void dropReferenceIndexes(Session session, DatabaseProduct db)
+    {
+        if (getVersion(session) < 3) {
+            return;
+        }
+
+        dropIndex(session, db, INDEX_ID_REFERENCE, TABLE_BY_ID);
+        dropIndex(session, db, INDEX_TITLE_REFERENCE, TABLE_BY_TITLE);
+    }
+
+    /**
+     * Drop the schema version table, to call when dropping the link mapping tables.
+     * @param session the session to use
+     */
+    static void drop(Session session)
+    {
+        session.createNativeQuery(DROP_TABLE + TABLE_SCHEMA).executeUpdate();
+        session.createNativeQuery(DROP_TABLE + TABLE_REVISION).executeUpdate();
+    }
+
+    /**
+     * @param session the session to use
+     * @return the revision of the link mapping, which changes each time it is modified
+     */
+    static long getRevision(Session session)
+    {
+        Optional<?> revision = session.createNativeQuery("select revision from " + TABLE_REVISION)
+            .getResultStream()
+            .findFirst();
+        return revision.isPresent() ? ((Number) revision.get()).longValue() : 0;
+    }
+
+    /**
+     * Increment the revision of the link mapping. To call in each transaction modifying it.
+     * @param session the session to use
+     */
+    static void incrementRevision(Session session)
+    {
+        if (session.createNativeQuery("update " + TABLE_REVISION + " set revision = revision + 1").executeUpdate()
+            == 0) {
+            session.createNativeQuery(INSERT_INTO + TABLE_REVISION + " (revision) values (1)").executeUpdate();
+        }
+    }
+
+    private static boolean createReferenceIndexes(Session session)
+    {
+        boolean created = createIndex(session, INDEX_ID_REFERENCE, TABLE_BY_ID, REFERENCE);
+        return createIndex(session, INDEX_TITLE_REFERENCE, TABLE_BY_TITLE, REFERENCE) || created;
+    }
+
+    private static void createSpaceRootTable(Session session)
+    {
+        session.createNativeQuery(
+            String.format(CREATE_TABLE, TABLE_SPACE_ROOT, "spaceKey varchar(255) not null unique")).executeUpdate();
+    }
+
+    private static void createRevisionTable(Session session)
+    {
+        session.createNativeQuery(CREATE_TABLE_IF_NOT_EXISTS + TABLE_REVISION + " (revision numeric(19,0))")
+            .executeUpdate();
+    }
+
+    private static void fillSpaceRootTable(Session session)
+    {
+        session.createNativeQuery(DELETE_FROM + TABLE_SPACE_ROOT).executeUpdate();
+        List<?> spaceKeys = session.createNativeQuery("select distinct spaceKey from " + TABLE_BY_TITLE)
+            .getResultList();
+        for (Object spaceKey : spaceKeys) {
+            Optional<?> root = session.createNativeQuery(SELECT_SHORTEST_REFERENCE)
+                .setParameter(1, spaceKey)
+                .getResultStream()
+                .findFirst();
+            if (root.isPresent()) {
+                session.createNativeQuery(INSERT_INTO + TABLE_SPACE_ROOT + " (spaceKey, reference) values (?, ?)")
+                    .setParameter(1, spaceKey)
+                    .setParameter(2, root.get())
+                    .executeUpdate();
+            }
+        }
+    }
+
+    private static boolean createIndex(Session session, String index, String table, String columns)
+    {
+        return session.doReturningWork(connection -> {
+            if (hasIndex(connection, table, index)) {
+                return false;
+            }
+
+            // Not all databases support "create index if not exists", and a failed statement aborts the whole
+            // transaction on some of them, hence the savepoint.
+            Savepoint savepoint = connection.setSavepoint();
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("create index " + index + " on " + table + " (" + columns + ')');
+                return true;
+            } catch (SQLException e) {
+                connection.rollback(savepoint);
+                if (hasIndex(connection, table, index)) {
+                    // Created in the meantime by someone else
+                    return false;
+                }
+                throw e;
+            }
+        });
+    }
+
+    private static void dropIndex(Session session, DatabaseProduct db, String index, String table)
+    {
+        if (!session.doReturningWork(connection -> hasIndex(connection, table, index))) {
+            return;
+        }
+
+        String sql = "drop index " + index;
+        if (LinkMappingStore.isMySQLLike(db) || DatabaseProduct.MSSQL.equals(db)) {
+            sql += " on " + table;
+        }
+        session.createNativeQuery(sql).executeUpdate();
+    }
+
+    private static boolean hasIndex(Connection connection, String table, String index) throws SQLException
+    {
+        DatabaseMetaData metaData = connection.getMetaData();
+        // Depending on the database, unquoted names are stored in lower or in upper case
+        for (String name : List.of(table, table.toUpperCase(Locale.ROOT))) {
+            try (ResultSet indexes =
+                metaData.getIndexInfo(connection.getCatalog(), connection.getSchema(), name, false, true)) {
+                while (indexes.next()) {
+                    if (index.equalsIgnoreCase(indexes.getString("INDEX_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int getVersion(Session session)
+    {
+        session.createNativeQuery(CREATE_SCHEMA_TABLE).executeUpdate();
+        Optional<?> version = session.createNativeQuery("select version from " + TABLE_SCHEMA)
+            .getResultStream()
+            .findFirst();
+        // Tables created before the schema was versioned don't have a version
+        return version.isPresent() ? ((Number) version.get()).intValue() : 1;
+    }
+
+    private static void setVersion(Session session, int version)
+    {
+        session.createNativeQuery(CREATE_SCHEMA_TABLE).executeUpdate();
+        session.createNativeQuery(DELETE_FROM + TABLE_SCHEMA).executeUpdate();
+        session.createNativeQuery(INSERT_INTO + TABLE_SCHEMA + " (version) values (?)")
+            .setParameter(1, version)
+            .executeUpdate();
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only binary snapshot of (a part of) the link mapping, memory-mapped from a file.
+ * <p>
+ * Layout, all numbers being big endian:
+ * <ul>
+ *     <li>header: magic, format version, number of page ids, number of titles (ints), size of the string pool,
+ *     revision of the link mapping the snapshot was exported from (longs)</li>
+ *     <li>the page ids, sorted (longs)</li>
+ *     <li>the 64-bit hashes of the (space key, page title) pairs, sorted (longs)</li>
+ *     <li>the offsets in the string pool of the references of each page id, then of each title (ints)</li>
+ *     <li>the string pool: each distinct reference once, as its length in bytes (int) followed by its UTF-8 bytes</li>
+ * </ul>
+ * Titles whose hashes collide with a different reference are left out, so their lookups go to the database.
+ * Snapshots are memory-mapped in one piece, so they can't be larger than 2GB.
+ * @since 1.44.0
+ * @version $Id$
+ */
+final class LinkMappingSnapshot
+{
+    private static final int MAGIC = 0x434d4c4d;
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int HEADER_SIZE = 4 * Integer.BYTES + 2 * Long.BYTES;
+
+    private static final String TOO_LARGE = "The link mapping is too large for a snapshot";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ByteBuffer buffer;
+
+    private final int idCount;
+
+    private final int titleCount;
+
+    private final int titlesOffset;
+
+    private final int idRefsOffset;
+
+    private final int titleRefsOffset;
+
+    private final int poolOffset;
+
+    private final long revision;
+
+    private LinkMappingSnapshot(ByteBuffer buffer) throws IOException
+    {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not a link mapping snapshot, or unsupported snapshot format version");
+        }
+
+        this.idCount = buffer.getInt(8);
+        this.titleCount = buffer.getInt(12);
+        this.titlesOffset = HEADER_SIZE + idCount * Long.BYTES;
+        this.idRefsOffset = titlesOffset + titleCount * Long.BYTES;
+        this.titleRefsOffset = idRefsOffset + idCount * Integer.BYTES;
+        this.poolOffset = titleRefsOffset + titleCount * Integer.BYTES;
+        if (poolOffset + buffer.getLong(16) != buffer.capacity()) {
+            throw new IOException("Truncated link mapping snapshot");
+        }
+        this.revision = buffer.getLong(24);
+    }
+
+    /**
+     * Memory-map the given snapshot file.
+     * @param file the snapshot file
+     * @return the snapshot
+     * @throws IOException if the file can't be read, is not a valid snapshot or is too large to be mapped
+     */
+    static LinkMappingSnapshot open(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(TOO_LARGE);
+            }
+            // The mapping stays valid after the channel is closed
+            return new LinkMappingSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @param pageId the page id
+     * @return the reference of the page, or null if it is not in the snapshot
+     */
+    String get(long pageId)
+    {
+        int i = search(0, idCount, pageId);
+        return i < 0 ? null : readString(buffer.getInt(idRefsOffset + i * Integer.BYTES));
+    }
+
+    /**
+     * @param spaceKey the space key
+     * @param pageTitle the page title
+     * @return the reference of the page, or null if it is not in the snapshot
+     */
+    String get(String spaceKey, String pageTitle)
+    {
+        int i = search(titlesOffset, titleCount, hash(spaceKey, pageTitle));
+        return i < 0 ? null : readString(buffer.getInt(titleRefsOffset + i * Integer.BYTES));
+    }
+
+    /**
+     * @return the revision of the link mapping this snapshot was exported from
+     */
+    long getRevision()
+    {
+        return revision;
+    }
+
+    /**
+     * @return the number of entries in this snapshot
+     */
+    long size()
+    {
+        return (long) idCount + titleCount;
+    }
+
+    private int search(int offset, int count, long key)
+    {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = buffer.getLong(offset + mid * Long.BYTES);
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private String readString(int offset)
+    {
+        int length = buffer.getInt(poolOffset + offset);
+        byte[] bytes = new byte[length];
+        // Absolute bulk gets are not available in Java 11, and the position of the shared buffer must not change
+        ByteBuffer b = buffer.duplicate();
+        b.position(poolOffset + offset + Integer.BYTES);
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static long hash(String spaceKey, String pageTitle)
+    {
+        // FNV-1a, with a separator which can't appear in space keys
+        long h = FNV_OFFSET_BASIS;
+        for (int i = 0; i < spaceKey.length(); i++) {
+            h = (h ^ spaceKey.charAt(i)) * FNV_PRIME;
+        }
+        h = (h ^ ':') * FNV_PRIME;
+        for (int i = 0; i < pageTitle.length(); i++) {
+            h = (h ^ pageTitle.charAt(i)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * Accumulates link mapping entries and writes them as a snapshot file. The string pool is written to a temporary
+     * file while the entries are added, to close once the snapshot is written.
+     */
+    static final class Writer implements Closeable
+    {
+        private final Map<String, Integer> pool = new HashMap<>();
+
+        private final File poolFile;
+
+        private final DataOutputStream poolOut;
+
+        private long poolSize;
+
+        private long revision;
+
+        private long[] ids = new long[1024];
+
+        private int[] idRefs = new int[1024];
+
+        private int idCount;
+
+        private long[] titles = new long[1024];
+
+        private int[] titleRefs = new int[1024];
+
+        private int titleCount;
+
+        /**
+         * @param directory the directory in which to write the temporary string pool file
+         * @throws IOException if the temporary file can't be created
+         */
+        Writer(File directory) throws IOException
+        {
+            this.poolFile = Files.createTempFile(directory.toPath(), "linkmapping", ".pool").toFile();
+            this.poolOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(poolFile.toPath())));
+        }
+
+        /**
+         * @param revision the revision of the link mapping the entries are read from
+         */
+        void setRevision(long revision)
+        {
+            this.revision = revision;
+        }
+
+        void add(long pageId, String reference) throws IOException
+        {
+            if (idCount == ids.length) {
+                ids = Arrays.copyOf(ids, idCount * 2);
+                idRefs = Arrays.copyOf(idRefs, idCount * 2);
+            }
+            ids[idCount] = pageId;
+            idRefs[idCount] = intern(reference);
+            idCount++;
+        }
+
+        void add(String spaceKey, String pageTitle, String reference) throws IOException
+        {
+            if (titleCount == titles.length) {
+                titles = Arrays.copyOf(titles, titleCount * 2);
+                titleRefs = Arrays.copyOf(titleRefs, titleCount * 2);
+            }
+            titles[titleCount] = hash(spaceKey, pageTitle);
+            titleRefs[titleCount] = intern(reference);
+            titleCount++;
+        }
+
+        private int intern(String reference) throws IOException
+        {
+            Integer offset = pool.get(reference);
+            if (offset == null) {
+                byte[] bytes = reference.getBytes(StandardCharsets.UTF_8);
+                if (poolSize + Integer.BYTES + bytes.length > Integer.MAX_VALUE) {
+                    throw new IOException(TOO_LARGE);
+                }
+                offset = (int) poolSize;
+                poolOut.writeInt(bytes.length);
+                poolOut.write(bytes);
+                poolSize += Integer.BYTES + bytes.length;
+                pool.put(reference, offset);
+            }
+            return offset;
+        }
+
+        /**
+         * Write the snapshot to the given file.
+         * @param file the file to write
+         * @return the number of written entries
+         * @throws IOException if the file can't be written, or if the snapshot would be too large to be mapped
+         */
+        long write(File file) throws IOException
+        {
+            sort(ids, idRefs, 0, idCount - 1);
+            sort(titles, titleRefs, 0, titleCount - 1);
+            // Page ids are unique in the link mapping, but keep the checks simple and handle both the same way
+            idCount = removeCollisions(ids, idRefs, idCount);
+            titleCount = removeCollisions(titles, titleRefs, titleCount);
+            if (HEADER_SIZE + ((long) idCount + titleCount) * (Long.BYTES + Integer.BYTES) + poolSize
+                > Integer.MAX_VALUE) {
+                throw new IOException(TOO_LARGE);
+            }
+
+            poolOut.close();
+            try (OutputStream os = Files.newOutputStream(file.toPath());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(idCount);
+                out.writeInt(titleCount);
+                out.writeLong(poolSize);
+                out.writeLong(revision);
+                writeLongs(out, ids, idCount);
+                writeLongs(out, titles, titleCount);
+                writeInts(out, idRefs, idCount);
+                writeInts(out, titleRefs, titleCount);
+                Files.copy(poolFile.toPath(), out);
+            }
+            return (long) idCount + titleCount;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try {
+                poolOut.close();
+            } finally {
+                Files.deleteIfExists(poolFile.toPath());
+            }
+        }
+
+        private static void writeLongs(DataOutputStream out, long[] values, int count) throws IOException
+        {
+            for (int i = 0; i < count; i++) {
+                out.writeLong(values[i]);
+            }
+        }
+
+        private static void writeInts(DataOutputStream out, int[] values, int count) throws IOException
+        {
+            for (int i = 0; i < count; i++) {
+                out.writeInt(values[i]);
+            }
+        }
+
+        private static int removeCollisions(long[] keys, int[] refs, int count)
+        {
+            // Keys are sorted. Runs of equal keys are kept once if they all map to the same reference, and dropped
+            // otherwise.
+            int n = 0;
+            int i = 0;
+            while (i < count) {
+                int j = i + 1;
+                boolean sameRef = true;
+                while (j < count && keys[j] == keys[i]) {
+                    sameRef = sameRef && refs[j] == refs[i];
+                    j++;
+                }
+                if (sameRef) {
+                    keys[n] = keys[i];
+                    refs[n] = refs[i];
+                    n++;
+                }
+                i = j;
+            }
+            return n;
+        }
+
+        private static void sort(long[] keys, int[] values, int from, int to)
+        {
+            // Quicksort sorting the values along with the keys. The smaller half is handled recursively to bound the
+            // stack depth.
+            int low = from;
+            int high = to;
+            while (low < high) {
+                long pivot = keys[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (keys[i] < pivot) {
+                        i++;
+                    }
+                    while (keys[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(keys, values, i++, j--);
+                    }
+                }
+                if (j - low < high - i) {
+                    sort(keys, values, low, j);
+                    low = i;
+                } else {
+                    sort(keys, values, i, high);
+                    high = j;
+                }
+            }
+        }
+
+        private static void swap(long[] keys, int[] values, int i, int j)
+        {
+            long k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+            int v = values[i];
+            values[i] = values[j];
+            values[j] = v;
+        }
+    }
+}
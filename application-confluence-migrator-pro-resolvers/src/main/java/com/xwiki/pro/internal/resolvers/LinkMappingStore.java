@@ -19,33 +19,46 @@
  */
 package com.xwiki.pro.internal.resolvers;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
-import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.store.DatabaseProduct;
 import com.xpn.xwiki.store.XWikiHibernateStore;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
+import org.xwiki.environment.Environment;
+import org.xwiki.job.DefaultRequest;
+import org.xwiki.job.JobException;
+import org.xwiki.job.JobExecutor;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
-import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
 
 /**
  * Link mapping store.
@@ -66,21 +79,27 @@ public class LinkMappingStore implements Initializable
         DatabaseProduct.MSSQL
     );
 
-    private static final TypeReference<Map<String, String>> LM_TYPE_REF = new TypeReference<Map<String, String>>() { };
-    private static final String IDS_SUFFIX = ":ids";
-    private static final String CREATE_TABLE = "create table if not exists %s (%s, reference VARCHAR(768))";
+    static final String CREATE_TABLE = "create table if not exists %s (%s, reference VARCHAR(768))";
 
-    private static final String TABLE_BY_TITLE = "confluencepro_linkmapping_by_title";
-    private static final String TABLE_BY_ID = "confluencepro_linkmapping_by_id";
-    private static final String DELETE_FROM = "delete from ";
-    private static final String INSERT_INTO = "insert into ";
+    static final String TABLE_BY_TITLE = "confluencepro_linkmapping_by_title";
+    static final String TABLE_BY_ID = "confluencepro_linkmapping_by_id";
+    static final String TABLE_SPACE_ROOT = "confluencepro_linkmapping_space_root";
+    static final String DELETE_FROM = "delete from ";
+    static final String INSERT_INTO = "insert into ";
     private static final String SELECT_REFERENCE_FROM = "select reference from ";
-    private static final String WHERE_PAGE_ID = " where pageId = ?";
-    private static final String WHERE_SPACE_KEY_AND_PAGE_TITLE = " where spaceKey = ? and pageTitle = ?";
-    private static final String DROP_TABLE = "drop table ";
+    static final String WHERE_PAGE_ID = " where pageId = ?";
+    private static final String WHERE_SPACE_KEY = " where spaceKey = ?";
+    private static final String WHERE_SPACE_KEY_IN = " where spaceKey in (:spaces)";
+    static final String WHERE_SPACE_KEY_AND_PAGE_TITLE = " where spaceKey = ? and pageTitle = ?";
+    static final String SELECT_SHORTEST_REFERENCE = "select reference from (select reference from " + TABLE_BY_TITLE
+        + " where spaceKey = ? order by length(reference) asc limit 1) sub";
+    private static final String DROP_TABLE = "drop table if exists ";
     private static final String SELECT_1_FROM = "select 1 from ";
     private static final String LIMIT_1 = " limit 1";
     private static final String SPACES = "spaces";
+    // Oracle doesn't support more than 1000 elements in an IN clause
+    private static final int IN_CHUNK_SIZE = 500;
+    private static final String SNAPSHOT_PATH = "confluence-migrator-pro/linkmapping.snapshot";
 
     @Inject
     private Provider<XWikiContext> contextProvider;
@@ -94,40 +113,373 @@ public class LinkMappingStore implements Initializable
     @Inject
     private QueryManager queryManager;
 
+    @Inject
+    private LinkMappingCache cache;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private JobExecutor jobExecutor;
+
+    @Inject
+    private LinkMappingMetrics metrics;
+
     private boolean initialized;
 
-    private boolean dontExist;
+    private volatile boolean dontExist;
 
-    private boolean needsConversion = true;
+    private volatile boolean needsConversion = true;
 
     private boolean supported = true;
 
+    private final ThreadLocal<Session> readSession = new ThreadLocal<>();
+
+    private final ThreadLocal<LinkMappingBatch> batch = new ThreadLocal<>();
+
+    private volatile LinkMappingSnapshot snapshot;
+
+    private volatile LinkMappingBloomFilter bloomFilter;
+
+    private final AtomicLong modifications = new AtomicLong();
+
+    // Whether the link mapping was modified in the transaction of the current thread
+    private final ThreadLocal<Boolean> modifiedInTransaction = new ThreadLocal<>();
+
     @Override
     public void initialize()
     {
         if (contextProvider.get() != null) {
             try {
-                convertOldMappings();
+                startOldMappingsConversion();
             } catch (Exception e) {
-                logger.error("Failed to convert old mappings. Link mapping issues may arise. ", e);
+                logger.error("Failed to start converting old mappings. Link mapping issues may arise. ", e);
+            }
+
+            try {
+                upgradeSchema();
+            } catch (Exception e) {
+                logger.error("Failed to upgrade the link mapping tables. Link mapping lookups may be slow. ", e);
+            }
+
+            // Checking that the snapshot is up to date needs the database
+            try {
+                loadSnapshot();
+            } catch (Exception e) {
+                logger.error("Failed to load the link mapping snapshot. Link mapping lookups may be slow. ", e);
             }
         }
     }
 
-    private boolean areTableAbsent()
+    private void upgradeSchema()
     {
         if (!supported) {
-            return true;
+            return;
         }
 
-        boolean res;
+        boolean upgraded = false;
         Session session = beginTransaction();
         try {
-            res = areTableAbsent(session);
+            if (!areTableAbsent(session)) {
+                upgraded = LinkMappingSchema.upgrade(session, getDatabaseProduct());
+            }
         } finally {
-            endTransaction(false);
+            endTransaction(upgraded);
         }
-        return res;
+
+        if (upgraded) {
+            logger.info("Upgraded the link mapping tables to schema version [{}]", LinkMappingSchema.VERSION);
+        }
+    }
+
+    /**
+     * Prepare the link mapping tables for storing the link mapping of whole spaces: the indexes on references,
+     * which are only useful for reading, are dropped so the insertions are faster. Call {@link #endBulkLoad()}
+     * afterwards to rebuild them.
+     * @since 1.44.0
+     */
+    public void beginBulkLoad()
+    {
+        if (!supported) {
+            return;
+        }
+
+        Session session = beginTransaction();
+        try {
+            createTableIfNotExists(session);
+            LinkMappingSchema.dropReferenceIndexes(session, getDatabaseProduct());
+        } finally {
+            endTransaction(true);
+        }
+    }
+
+    /**
+     * Create the link mapping tables if they don't exist yet. To be called before writing the link mapping from
+     * several threads, so they don't all try to create them.
+     * @since 1.44.0
+     */
+    public void createTables()
+    {
+        if (!supported) {
+            return;
+        }
+
+        Session session = beginTransaction();
+        try {
+            createTableIfNotExists(session);
+        } finally {
+            endTransaction(true);
+        }
+    }
+
+    /**
+     * Rebuild the indexes dropped by {@link #beginBulkLoad()}.
+     * @since 1.44.0
+     */
+    public void endBulkLoad()
+    {
+        upgradeSchema();
+    }
+
+    private File getSnapshotFile()
+    {
+        return new File(environment.getPermanentDirectory(), SNAPSHOT_PATH);
+    }
+
+    private void loadSnapshot()
+    {
+        File file = getSnapshotFile();
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            LinkMappingSnapshot s = LinkMappingSnapshot.open(file);
+            // The link mapping may have been modified after the export, by another cluster node for instance
+            if (areTableAbsent() || read(LinkMappingSchema::getRevision) != s.getRevision()) {
+                logger.info("The link mapping snapshot [{}] is outdated, removing it", file);
+                deleteSnapshotFile(file);
+                return;
+            }
+            snapshot = s;
+            logger.info("Loaded [{}] link mapping entries from [{}]", s.size(), file);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Failed to load the link mapping snapshot [{}], removing it", file, e);
+            deleteSnapshotFile(file);
+        }
+    }
+
+    /**
+     * Write the link mapping of the given spaces to a compact, memory-mapped snapshot file, from which lookups are
+     * answered without querying the database, including after a restart. The snapshot is dropped as soon as the link
+     * mapping is modified.
+     * @param spaceKeys the spaces to include in the snapshot, or null to include the whole link mapping
+     * @return the number of entries in the snapshot, or -1 if it could not be written
+     * @since 1.44.0
+     */
+    public long exportSnapshot(Collection<String> spaceKeys)
+    {
+        if (needsConversion) {
+            startOldMappingsConversion();
+        }
+
+        if (areTableAbsent()) {
+            return 0;
+        }
+
+        File file = getSnapshotFile();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        long modificationCount = modifications.get();
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            long count;
+            try (LinkMappingSnapshot.Writer writer = new LinkMappingSnapshot.Writer(file.getParentFile())) {
+                read(session -> {
+                    writer.setRevision(LinkMappingSchema.getRevision(session));
+                    fillSnapshot(session, writer, spaceKeys);
+                    return null;
+                });
+                count = writer.write(tmp);
+            }
+            // Stop using the current snapshot while its file is replaced
+            snapshot = null;
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            LinkMappingSnapshot s = LinkMappingSnapshot.open(file);
+            if (modificationCount != modifications.get()) {
+                // The link mapping changed during the export, the snapshot may be missing the changes
+                deleteSnapshotFile(file);
+                return -1;
+            }
+            snapshot = s;
+            logger.info("Exported [{}] link mapping entries to [{}]", count, file);
+            return count;
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            logger.error("Failed to export the link mapping snapshot to [{}], lookups will use the database", file,
+                e);
+            deleteSnapshotFile(tmp);
+            return -1;
+        }
+    }
+
+    private void fillSnapshot(Session session, LinkMappingSnapshot.Writer writer, Collection<String> spaceKeys)
+    {
+        String byIdQuery = "select pageId, reference from " + TABLE_BY_ID;
+        String byTitleQuery = "select spaceKey, pageTitle, reference from " + TABLE_BY_TITLE;
+        if (spaceKeys != null) {
+            byIdQuery += " where reference in (select reference from " + TABLE_BY_TITLE + WHERE_SPACE_KEY_IN + ')';
+            byTitleQuery += WHERE_SPACE_KEY_IN;
+        }
+
+        try {
+            Iterator<?> rows = getRows(session, byIdQuery, spaceKeys);
+            while (rows.hasNext()) {
+                Object[] r = (Object[]) rows.next();
+                writer.add(((Number) r[0]).longValue(), (String) r[1]);
+            }
+
+            rows = getRows(session, byTitleQuery, spaceKeys);
+            while (rows.hasNext()) {
+                Object[] r = (Object[]) rows.next();
+                writer.add((String) r[0], (String) r[1], (String) r[2]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Iterator<?> getRows(Session session, String sql, Collection<String> spaceKeys)
+    {
+        org.hibernate.query.Query<?> q = session.createNativeQuery(sql).setFetchSize(IN_CHUNK_SIZE);
+        if (spaceKeys != null) {
+            q.setParameterList(SPACES, spaceKeys);
+        }
+        return q.getResultStream().iterator();
+    }
+
+    /**
+     * Build a Bloom filter over the keys of the link mapping, so lookups of pages which are certainly not in the link
+     * mapping don't query the database. If a filter is already open, it is shared with the new caller. The filter is
+     * used until all its callers closed it, or until the link mapping is modified.
+     * @return the filter, to close when done, or null if there is no link mapping or the filter could not be built
+     * @since 1.44.0
+     */
+    public synchronized LinkMappingBloomFilter openBloomFilter()
+    {
+        if (needsConversion) {
+            startOldMappingsConversion();
+        }
+
+        if (areTableAbsent()) {
+            return null;
+        }
+
+        LinkMappingBloomFilter current = bloomFilter;
+        if (current != null) {
+            current.retain();
+            return current;
+        }
+
+        long modificationCount = modifications.get();
+        long entryCount = getEntryCount();
+        LinkMappingBloomFilter filter = new LinkMappingBloomFilter(this, entryCount);
+        try {
+            read(session -> {
+                Iterator<?> rows = getRows(session, "select pageId from " + TABLE_BY_ID, null);
+                while (rows.hasNext()) {
+                    filter.add(((Number) rows.next()).longValue());
+                }
+
+                rows = getRows(session, "select spaceKey, pageTitle from " + TABLE_BY_TITLE, null);
+                while (rows.hasNext()) {
+                    Object[] r = (Object[]) rows.next();
+                    filter.add((String) r[0], (String) r[1]);
+                }
+                return null;
+            });
+        } catch (HibernateException e) {
+            logger.warn("Failed to build the link mapping Bloom filter, all lookups will query the database", e);
+            return null;
+        }
+
+        if (modificationCount != modifications.get()) {
+            // The link mapping changed while the filter was built, it may miss entries
+            return null;
+        }
+
+        bloomFilter = filter;
+        logger.info("Built the link mapping Bloom filter over [{}] entries", entryCount);
+        return filter;
+    }
+
+    synchronized void closeBloomFilter(LinkMappingBloomFilter filter)
+    {
+        if (filter.release() && bloomFilter == filter) {
+            bloomFilter = null;
+        }
+    }
+
+    private void invalidate(Session session)
+    {
+        if (modifiedInTransaction.get() == null) {
+            // Snapshots exported from a previous revision won't be used anymore, including by other cluster nodes
+            LinkMappingSchema.incrementRevision(session);
+        }
+        invalidate();
+    }
+
+    private void invalidate()
+    {
+        modifiedInTransaction.set(Boolean.TRUE);
+        forgetLinkMapping();
+    }
+
+    private void forgetLinkMapping()
+    {
+        modifications.incrementAndGet();
+        bloomFilter = null;
+        cache.invalidate();
+        dropSnapshot();
+    }
+
+    /**
+     * Remove the link mapping snapshot, if any. Called whenever the link mapping is modified.
+     */
+    private void dropSnapshot()
+    {
+        if (snapshot == null) {
+            return;
+        }
+
+        snapshot = null;
+        deleteSnapshotFile(getSnapshotFile());
+    }
+
+    private void deleteSnapshotFile(File file)
+    {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            logger.warn("Failed to remove the link mapping snapshot file [{}]", file, e);
+        }
+    }
+
+    private DatabaseProduct getDatabaseProduct()
+    {
+        return contextProvider.get().getWiki().getHibernateStore().getDatabaseProductName();
+    }
+
+    private boolean areTableAbsent()
+    {
+        if (!supported || dontExist) {
+            return true;
+        }
+
+        if (initialized) {
+            return false;
+        }
+
+        return read(this::areTableAbsent);
     }
 
     private boolean areTableAbsent(Session session)
@@ -161,6 +513,121 @@ public class LinkMappingStore implements Initializable
         return true;
     }
 
+    /**
+     * Open a session on which all the link mapping lookups of the current thread run until it is closed, instead of
+     * beginning and ending a transaction for each of them. Writes still use their own transactions. Opening a read
+     * session while one is already open in the current thread reuses the existing one.
+     * @return the read session, to close when done, typically using a try-with-resources statement
+     * @since 1.44.0
+     */
+    public LinkMappingReadSession openReadSession()
+    {
+        if (!isSupported() || readSession.get() != null) {
+            return new LinkMappingReadSession(null);
+        }
+
+        Session session;
+        try {
+            session = openMainWikiSession();
+        } catch (XWikiException | HibernateException e) {
+            logger.warn("Failed to open a link mapping read session, lookups will use their own transactions", e);
+            return new LinkMappingReadSession(null);
+        }
+
+        readSession.set(session);
+        return new LinkMappingReadSession(this);
+    }
+
+    private Session openMainWikiSession() throws XWikiException
+    {
+        // A separate session, so the documents saved while the read session is open are not part of its
+        // transaction
+        XWikiContext context = contextProvider.get();
+        XWikiHibernateStore store = XWiki.getMainXWiki(context).getHibernateStore();
+        Session session = store.getSessionFactory().openSession();
+        String wikiId = context.getWikiId();
+        try {
+            context.setWikiId(context.getMainXWiki());
+            store.setDatabase(session, context);
+            session.setDefaultReadOnly(true);
+            session.beginTransaction();
+        } catch (XWikiException | HibernateException e) {
+            session.close();
+            throw e;
+        } finally {
+            context.setWikiId(wikiId);
+        }
+        return session;
+    }
+
+    void closeReadSession()
+    {
+        Session session = readSession.get();
+        readSession.remove();
+        if (session != null) {
+            try {
+                session.getTransaction().rollback();
+            } finally {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Open a batch in which the link mapping loaded by the bulk lookups of the current thread is kept, so the
+     * following lookups of the same pages don't query the database, even when the link mapping cache is disabled.
+     * Opening a batch while one is already open in the current thread reuses the existing one.
+     * @return the batch, to close when done, typically using a try-with-resources statement
+     * @since 1.44.0
+     */
+    public LinkMappingBatch openBatch()
+    {
+        if (batch.get() != null) {
+            return new LinkMappingBatch(null, 0);
+        }
+
+        LinkMappingBatch b = new LinkMappingBatch(this, modifications.get());
+        batch.set(b);
+        return b;
+    }
+
+    void closeBatch()
+    {
+        batch.remove();
+    }
+
+    private LinkMappingBatch getBatch()
+    {
+        LinkMappingBatch b = batch.get();
+        // The link mapping was modified since the batch was opened, its content can't be trusted anymore
+        return b == null || b.getModificationCount() != modifications.get() ? null : b;
+    }
+
+    private <T> T timedRead(LinkMappingOperation operation, Function<Session, T> query)
+    {
+        long start = metrics.start();
+        try {
+            return read(query);
+        } finally {
+            metrics.recordQuery(operation, start);
+        }
+    }
+
+    private <T> T read(Function<Session, T> query)
+    {
+        Session session = readSession.get();
+        if (session != null) {
+            return query.apply(session);
+        }
+
+        session = beginTransaction();
+        try {
+            return query.apply(session);
+        } finally {
+            endTransaction(false);
+        }
+    }
+
     /**
      * Begin a hibernate transaction.
      * @return a Session
@@ -195,7 +662,15 @@ public class LinkMappingStore implements Initializable
 
         XWikiContext context = contextProvider.get();
         XWikiHibernateStore store = context.getWiki().getHibernateStore();
-        store.endTransaction(context, commit);
+        try {
+            store.endTransaction(context, commit);
+        } finally {
+            if (modifiedInTransaction.get() != null) {
+                modifiedInTransaction.remove();
+                // Lookups done by other threads before the commit may have cached the previous link mapping
+                forgetLinkMapping();
+            }
+        }
     }
 
     private void createTableIfNotExists(Session session)
@@ -204,7 +679,7 @@ public class LinkMappingStore implements Initializable
             return;
         }
 
-        String sqlLong = getSQLLongType(contextProvider.get().getWiki().getHibernateStore().getDatabaseProductName());
+        String sqlLong = getSQLLongType(getDatabaseProduct());
 
         session.createNativeQuery(String.format(
             CREATE_TABLE,
@@ -216,19 +691,21 @@ public class LinkMappingStore implements Initializable
             TABLE_BY_TITLE,
             "spaceKey varchar(255), pageTitle varchar(255)")).executeUpdate();
 
-        session.createNativeQuery(
-            "create index confluencepro_linkmapping_spacekey_idx on " + TABLE_BY_TITLE + " (spaceKey)"
-            ).executeUpdate();
+        LinkMappingSchema.initialize(session);
 
         dontExist = false;
         initialized = true;
     }
 
+    static boolean isMySQLLike(DatabaseProduct databaseProductName)
+    {
+        return DatabaseProduct.MYSQL.equals(databaseProductName)
+            || "MariaDB".equals(databaseProductName.getProductName());
+    }
+
     private String getSQLLongType(DatabaseProduct databaseProductName)
     {
-        if (DATABASES_SUPPORTING_BIGINT.contains(databaseProductName)
-            || "MariaDB".equals(databaseProductName.getProductName())
-        ) {
+        if (DATABASES_SUPPORTING_BIGINT.contains(databaseProductName) || isMySQLLike(databaseProductName)) {
             return "bigint";
         }
 
@@ -242,112 +719,324 @@ public class LinkMappingStore implements Initializable
     String get(long pageId)
     {
         if (needsConversion) {
-            convertOldMappings();
+            startOldMappingsConversion();
+        }
+
+        LinkMappingSnapshot s = snapshot;
+        String ref = s == null ? null : s.get(pageId);
+        if (ref != null) {
+            return ref;
         }
 
         if (areTableAbsent()) {
             return null;
         }
 
-        String ref;
-        Session session = beginTransaction();
-        try {
-            ref = getOneString(
-                session.createNativeQuery(SELECT_REFERENCE_FROM + TABLE_BY_ID + WHERE_PAGE_ID)
-                    .setParameter(1, pageId));
-        } finally {
-            endTransaction(false);
+        LinkMappingBloomFilter filter = bloomFilter;
+        if (filter != null && !filter.mightContain(pageId)) {
+            return null;
+        }
+
+        String key = idKey(pageId);
+        LinkMappingBatch b = getBatch();
+        if (b != null && b.contains(key)) {
+            return countFalsePositive(filter, b.get(key));
         }
-        return ref;
+
+        return countFalsePositive(filter, cache.get(LinkMappingOperation.BY_ID, key, () -> queryById(pageId)));
+    }
+
+    private String queryById(long pageId)
+    {
+        return timedRead(LinkMappingOperation.BY_ID, session -> getOneString(
+            session.createNativeQuery(SELECT_REFERENCE_FROM + TABLE_BY_ID + WHERE_PAGE_ID)
+                .setParameter(1, pageId)));
     }
 
     String get(String spaceKey, String pageTitle)
     {
         if (needsConversion) {
-            convertOldMappings();
+            startOldMappingsConversion();
+        }
+
+        LinkMappingSnapshot s = snapshot;
+        String ref = s == null ? null : s.get(spaceKey, pageTitle);
+        if (ref != null) {
+            return ref;
         }
 
         if (areTableAbsent()) {
             return null;
         }
 
-        String ref;
-        Session session = beginTransaction();
-        try {
-            ref = getOneString(session.createNativeQuery(
-                    SELECT_REFERENCE_FROM + TABLE_BY_TITLE + WHERE_SPACE_KEY_AND_PAGE_TITLE)
-                .setParameter(1, spaceKey)
-                .setParameter(2, pageTitle));
-        } finally {
-            endTransaction(false);
+        LinkMappingBloomFilter filter = bloomFilter;
+        if (filter != null && !filter.mightContain(spaceKey, pageTitle)) {
+            return null;
+        }
+
+        String key = titleKey(spaceKey, pageTitle);
+        LinkMappingBatch b = getBatch();
+        if (b != null && b.contains(key)) {
+            return countFalsePositive(filter, b.get(key));
+        }
+
+        return countFalsePositive(filter,
+            cache.get(LinkMappingOperation.BY_TITLE, key, () -> queryByTitle(spaceKey, pageTitle)));
+    }
+
+    private static String countFalsePositive(LinkMappingBloomFilter filter, String reference)
+    {
+        if (filter != null && reference == null) {
+            filter.addFalsePositives(1);
+        }
+        return reference;
+    }
+
+    private String queryByTitle(String spaceKey, String pageTitle)
+    {
+        return timedRead(LinkMappingOperation.BY_TITLE, session -> getOneString(session.createNativeQuery(
+                SELECT_REFERENCE_FROM + TABLE_BY_TITLE + WHERE_SPACE_KEY_AND_PAGE_TITLE)
+            .setParameter(1, spaceKey)
+            .setParameter(2, pageTitle)));
+    }
+
+    /**
+     * Get the link mapping of the given pages in one go, using chunked IN queries for the pages which are neither in
+     * the snapshot nor in the cache. If a batch is open (see {@link #openBatch()}), the result is also kept in it.
+     * @param pageIds the ids of the pages
+     * @return the references of the pages which are in the link mapping
+     * @since 1.44.0
+     */
+    Map<Long, String> getByIds(Collection<Long> pageIds)
+    {
+        return getAll(LinkMappingOperation.BY_ID, pageIds, LinkMappingStore::idKey, (s, pageId) -> s.get(pageId),
+            (f, pageId) -> f.mayContain(pageId), this::queryByIds);
+    }
+
+    /**
+     * Get the link mapping of the given pages in one go, using chunked IN queries for the pages which are neither in
+     * the snapshot nor in the cache. If a batch is open (see {@link #openBatch()}), the result is also kept in it.
+     * @param pages the (space key, page title) pairs of the pages
+     * @return the references of the pages which are in the link mapping
+     * @since 1.44.0
+     */
+    Map<Pair<String, String>, String> getByTitles(Collection<Pair<String, String>> pages)
+    {
+        return getAll(LinkMappingOperation.BY_TITLE, pages, p -> titleKey(p.getLeft(), p.getRight()),
+            (s, p) -> s.get(p.getLeft(), p.getRight()), (f, p) -> f.mayContain(p.getLeft(), p.getRight()),
+            this::queryByTitles);
+    }
+
+    private <K> Map<K, String> getAll(LinkMappingOperation operation, Collection<K> keys,
+        Function<K, String> cacheKey, BiFunction<LinkMappingSnapshot, K, String> snapshotLookup,
+        BiPredicate<LinkMappingBloomFilter, K> filterLookup, Function<Collection<K>, Map<K, String>> loader)
+    {
+        if (needsConversion) {
+            startOldMappingsConversion();
+        }
+
+        Map<K, String> refs = new HashMap<>(keys.size());
+        if (keys.isEmpty() || areTableAbsent()) {
+            return refs;
+        }
+
+        LinkMappingSnapshot s = snapshot;
+        LinkMappingBloomFilter filter = bloomFilter;
+        List<K> missing = new ArrayList<>();
+        for (K key : new LinkedHashSet<>(keys)) {
+            String ref = s == null ? null : snapshotLookup.apply(s, key);
+            if (ref != null) {
+                refs.put(key, ref);
+            } else if (filter == null || filterLookup.test(filter, key)) {
+                missing.add(key);
+            }
+            // Pages rejected by the filter are not in the link mapping
+        }
+
+        if (!missing.isEmpty()) {
+            Map<K, String> found = cache.getAll(operation, missing, cacheKey, loader);
+            LinkMappingBatch b = getBatch();
+            if (b != null) {
+                for (K key : missing) {
+                    b.put(cacheKey.apply(key), found.get(key));
+                }
+            }
+            refs.putAll(found);
+        }
+        return refs;
+    }
+
+    private Map<Long, String> queryByIds(Collection<Long> pageIds)
+    {
+        Map<Long, String> refs = new HashMap<>(pageIds.size());
+        return timedRead(LinkMappingOperation.BY_ID, session -> {
+            for (List<Long> chunk : partition(new ArrayList<>(pageIds))) {
+                List<?> rows = session.createNativeQuery(
+                        "select pageId, reference from " + TABLE_BY_ID + " where pageId in (:ids)")
+                    .setParameterList("ids", chunk)
+                    .getResultList();
+                for (Object row : rows) {
+                    Object[] r = (Object[]) row;
+                    refs.put(((Number) r[0]).longValue(), (String) r[1]);
+                }
+            }
+            return refs;
+        });
+    }
+
+    private Map<Pair<String, String>, String> queryByTitles(Collection<Pair<String, String>> pages)
+    {
+        // A tuple IN clause is not supported by all databases, so we query the titles of each space separately.
+        Map<String, List<String>> titlesBySpace = new HashMap<>();
+        for (Pair<String, String> page : pages) {
+            titlesBySpace.computeIfAbsent(page.getLeft(), k -> new ArrayList<>()).add(page.getRight());
+        }
+
+        Map<Pair<String, String>, String> refs = new HashMap<>(pages.size());
+        return timedRead(LinkMappingOperation.BY_TITLE, session -> {
+            for (Map.Entry<String, List<String>> titles : titlesBySpace.entrySet()) {
+                String spaceKey = titles.getKey();
+                for (List<String> chunk : partition(titles.getValue())) {
+                    List<?> rows = session.createNativeQuery(
+                            "select pageTitle, reference from " + TABLE_BY_TITLE
+                                + " where spaceKey = :spaceKey and pageTitle in (:titles)")
+                        .setParameter("spaceKey", spaceKey)
+                        .setParameterList("titles", chunk)
+                        .getResultList();
+                    for (Object row : rows) {
+                        Object[] r = (Object[]) row;
+                        refs.putIfAbsent(Pair.of(spaceKey, (String) r[0]), (String) r[1]);
+                    }
+                }
+            }
+            return refs;
+        });
+    }
+
+    private static <T> List<List<T>> partition(List<T> list)
+    {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += IN_CHUNK_SIZE) {
+            chunks.add(list.subList(i, Math.min(list.size(), i + IN_CHUNK_SIZE)));
         }
-        return ref;
+        return chunks;
+    }
+
+    private static String idKey(long pageId)
+    {
+        return "id:" + pageId;
+    }
+
+    private static String titleKey(String spaceKey, String pageTitle)
+    {
+        // Space keys don't contain colons, so this key is not ambiguous
+        return "title:" + spaceKey + ':' + pageTitle;
     }
 
     String getSpaceForReference(String reference)
     {
         if (needsConversion) {
-            convertOldMappings();
+            startOldMappingsConversion();
         }
 
         if (areTableAbsent()) {
             return null;
         }
 
-        String ref;
-        Session session = beginTransaction();
-        try {
-            ref = getOneString(session.createNativeQuery(
-                    "select spaceKey from " + TABLE_BY_TITLE + " where reference = ?")
-                .setParameter(1, reference));
-        } finally {
-            endTransaction(false);
-        }
-        return ref;
+        return cache.get(LinkMappingOperation.SPACE_BY_REFERENCE, "spaceByRef:" + reference,
+            () -> querySpaceForReference(reference));
+    }
+
+    private String querySpaceForReference(String reference)
+    {
+        return timedRead(LinkMappingOperation.SPACE_BY_REFERENCE, session -> getOneString(session.createNativeQuery(
+                "select spaceKey from " + TABLE_BY_TITLE + " where reference = ?")
+            .setParameter(1, reference)));
     }
 
     String getShortestReferenceForSpace(String spaceKey)
     {
         if (needsConversion) {
-            convertOldMappings();
+            startOldMappingsConversion();
         }
 
-        Session session = beginTransaction();
-        try {
-            if (areTableAbsent(session)) {
-                return null;
+        if (areTableAbsent()) {
+            return null;
+        }
+
+        return cache.get(LinkMappingOperation.SPACE_BY_KEY, "rootBySpace:" + spaceKey,
+            () -> queryShortestReferenceForSpace(spaceKey));
+    }
+
+    private String queryShortestReferenceForSpace(String spaceKey)
+    {
+        return timedRead(LinkMappingOperation.SPACE_BY_KEY, session -> getSpaceRoot(session, spaceKey));
+    }
+
+    private static String getSpaceRoot(Session session, String spaceKey)
+    {
+        return getOneString(session.createNativeQuery(SELECT_REFERENCE_FROM + TABLE_SPACE_ROOT + WHERE_SPACE_KEY)
+            .setParameter(1, spaceKey));
+    }
+
+    /**
+     * Record the given reference as the root of its space if it is shorter than the current one. If the current root
+     * is not a page of the space anymore, because its page was mapped to another reference, the root is computed again
+     * from the pages of the space.
+     * @param session the session to use
+     * @param spaceKey the space key
+     * @param reference a reference of a page of the space, already written to the link mapping
+     */
+    void updateSpaceRoot(Session session, String spaceKey, String reference)
+    {
+        String root = getSpaceRoot(session, spaceKey);
+        String newRoot = reference;
+        if (root != null) {
+            boolean stale = !isReferenceInSpace(session, spaceKey, root);
+            if (!stale && root.length() <= reference.length()) {
+                return;
             }
 
-            return getOneString(session.createNativeQuery(
-                    "select reference from (select reference from " + TABLE_BY_TITLE
-                        + " where spaceKey = ? order by length(reference) asc limit 1) sub")
-                .setParameter(1, spaceKey));
-        } finally {
-            endTransaction(false);
+            session.createNativeQuery(DELETE_FROM + TABLE_SPACE_ROOT + WHERE_SPACE_KEY)
+                .setParameter(1, spaceKey)
+                .executeUpdate();
+
+            if (stale) {
+                newRoot = getOneString(session.createNativeQuery(SELECT_SHORTEST_REFERENCE).setParameter(1, spaceKey));
+            }
+        }
+
+        if (newRoot != null) {
+            session.createNativeQuery(INSERT_INTO + TABLE_SPACE_ROOT + " (spaceKey, reference) values (?, ?)")
+                .setParameter(1, spaceKey)
+                .setParameter(2, newRoot)
+                .executeUpdate();
         }
     }
 
+    private static boolean isReferenceInSpace(Session session, String spaceKey, String reference)
+    {
+        return session.createNativeQuery(SELECT_1_FROM + TABLE_BY_TITLE + WHERE_SPACE_KEY + " and reference = ?")
+            .setParameter(1, spaceKey)
+            .setParameter(2, reference)
+            .setMaxResults(1)
+            .getResultStream()
+            .findFirst()
+            .isPresent();
+    }
+
     String getShortestReferenceForSpaceByReference(String reference)
     {
         if (needsConversion) {
-            convertOldMappings();
+            startOldMappingsConversion();
         }
 
         if (areTableAbsent()) {
             return null;
         }
 
-        String ref;
-        Session session = beginTransaction();
-        try {
-            ref = getOneString(session.createNativeQuery(
-                    SELECT_REFERENCE_FROM + TABLE_BY_TITLE + " where spaceKey in (select spaceKey from "
-                        + TABLE_BY_TITLE + " where reference = ? limit 1) order by length(reference) asc limit 1")
-                .setParameter(1, reference));
-        } finally {
-            endTransaction(false);
-        }
-        return ref;
+        String spaceKey = getSpaceForReference(reference);
+        return spaceKey == null ? null : getShortestReferenceForSpace(spaceKey);
     }
 
     private static String getOneString(org.hibernate.query.Query<?> q)
@@ -375,16 +1064,21 @@ public class LinkMappingStore implements Initializable
 
         Session session = beginTransaction();
         try {
+            invalidate(session);
             session.createNativeQuery(
                     DELETE_FROM + TABLE_BY_ID + " where reference in (select reference from " + TABLE_BY_TITLE
                         + " where spaceKey in (:spaces))")
                 .setParameterList(SPACES, spaces)
                 .executeUpdate();
 
-            session.createNativeQuery(DELETE_FROM + TABLE_BY_TITLE + " where spaceKey in (:spaces)")
+            session.createNativeQuery(DELETE_FROM + TABLE_BY_TITLE + WHERE_SPACE_KEY_IN)
                 .setParameter(SPACES, spaces)
                 .executeUpdate();
 
+            session.createNativeQuery(DELETE_FROM + TABLE_SPACE_ROOT + WHERE_SPACE_KEY_IN)
+                .setParameterList(SPACES, spaces)
+                .executeUpdate();
+
             maybeDropTables(session);
         } finally {
             endTransaction(true);
@@ -463,12 +1157,38 @@ public class LinkMappingStore implements Initializable
 
     private void empty(Session session)
     {
+        invalidate();
         session.createNativeQuery(DROP_TABLE + TABLE_BY_ID).executeUpdate();
         session.createNativeQuery(DROP_TABLE + TABLE_BY_TITLE).executeUpdate();
+        session.createNativeQuery(DROP_TABLE + TABLE_SPACE_ROOT).executeUpdate();
+        LinkMappingSchema.drop(session);
 
         dontExist = true;
     }
 
+    /**
+     * Open a writer which sends link mapping rows to the database in JDBC batches. This is much faster than calling
+     * the add methods for each page when storing the link mapping of a whole package.
+     * @param session a hibernate session retrieved using #beginTransaction()
+     * @param flushSize the number of rows after which the buffered rows are written
+     * @return the batch writer, to close before ending the transaction, or null if the link mapping is not supported
+     * @since 1.44.0
+     */
+    public LinkMappingBatchWriter openBatchWriter(Session session, int flushSize)
+    {
+        if (!supported || session == null) {
+            return null;
+        }
+
+        return new LinkMappingBatchWriter(this, session, getDatabaseProduct(), flushSize, metrics);
+    }
+
+    void prepareWrite(Session session)
+    {
+        createTableIfNotExists(session);
+        invalidate(session);
+    }
+
     /**
      * Add the following page to the link mapping table.
      * @param session a hibernate session retrieved using #beginTransaction()
@@ -500,7 +1220,8 @@ public class LinkMappingStore implements Initializable
             return;
         }
 
-        createTableIfNotExists(session);
+        long start = metrics.start();
+        prepareWrite(session);
 
         session.createNativeQuery(DELETE_FROM + TABLE_BY_ID + WHERE_PAGE_ID)
             .setParameter(1, pageId)
@@ -510,6 +1231,7 @@ public class LinkMappingStore implements Initializable
             .setParameter(1, pageId)
             .setParameter(2, reference)
             .executeUpdate();
+        metrics.record(LinkMappingOperation.ADD, start, 0, 0);
     }
 
     /**
@@ -525,7 +1247,8 @@ public class LinkMappingStore implements Initializable
             return;
         }
 
-        createTableIfNotExists(session);
+        long start = metrics.start();
+        prepareWrite(session);
 
         session.createNativeQuery(DELETE_FROM + TABLE_BY_TITLE + WHERE_SPACE_KEY_AND_PAGE_TITLE)
             .setParameter(1, spaceKey)
@@ -537,133 +1260,33 @@ public class LinkMappingStore implements Initializable
             .setParameter(2, pageTitle)
             .setParameter(3, reference)
             .executeUpdate();
+
+        updateSpaceRoot(session, spaceKey, reference);
+        metrics.record(LinkMappingOperation.ADD, start, 0, 0);
     }
 
-    private void convertOldMappings()
+    private synchronized void startOldMappingsConversion()
     {
-        DatabaseProduct p = contextProvider.get().getWiki().getHibernateStore().getDatabaseProductName();
-        supported = !p.equals(DatabaseProduct.ORACLE);
-        if (!supported) {
-            needsConversion = false;
-            return;
-        }
-
-        List<Object[]> res = getOldMappings();
-        if (res == null || res.isEmpty()) {
-            needsConversion = false;
+        if (!needsConversion) {
             return;
         }
 
-        List<XWikiDocument> documentsToDelete = new ArrayList<>(res.size());
-        Session session = beginTransaction();
-        try {
-            logger.info("Migrating old link mapping documents to the new SQL storage");
-            int i = 0;
-            for (Object[] line : res) {
-                i++;
-                XWikiDocument d = (XWikiDocument) line[0];
-                logger.info("Converting [{}] ({}/{})", d, i, res.size());
-                String spaceKey = getSpaceKey(line);
-                if (isSpaceFoundInConfluencePageClassObj(spaceKey)) {
-                    logger.info("ConfluencePageClass objects found for the related space, skipping import of [{}]", d);
-                    documentsToDelete.add(d);
-                } else {
-                    try {
-                        boolean isPageIdMapping = d.getDocumentReference().getName().endsWith(IDS_SUFFIX);
-                        parseOldMapping(session, (String) line[2], spaceKey, isPageIdMapping);
-                        documentsToDelete.add(d);
-                    } catch (Exception e) {
-                        logger.error("Failed to convert [{}], the document will not be removed", d);
-                    }
-                }
-            }
-        } finally {
-            endTransaction(true);
-        }
-        removeOldMappings(documentsToDelete);
         needsConversion = false;
-    }
-
-    private void removeOldMappings(List<XWikiDocument> documentsToDelete)
-    {
-        XWikiContext context = contextProvider.get();
-        logger.info("Removing the [{}] old link mapping documents we managed to convert", documentsToDelete.size());
-        int i = 0;
-        for (XWikiDocument notLoadedDocument : documentsToDelete) {
-            i++;
-            logger.info("Removing [{}] ({}/{})", notLoadedDocument, i, documentsToDelete.size());
-            try {
-                // We can't add the XWikiDocument we have directly because it's not loaded, we need to load it
-                XWikiDocument d = context.getWiki().getDocument(notLoadedDocument.getDocumentReference(), context);
-                context.getWiki().deleteDocument(d, context);
-            } catch (XWikiException e) {
-                logger.error("Could not remove old mapping document [{}]", notLoadedDocument, e);
-            }
-        }
-        logger.info("Finished removing old link mapping documents");
-    }
-
-    private static String getSpaceKey(Object[] line)
-    {
-        String spaceKey = (String) line[1];
-        if (spaceKey.endsWith(IDS_SUFFIX)) {
-            spaceKey = spaceKey.substring(0, spaceKey.length() - 4);
-        }
-        return spaceKey;
-    }
-
-    private List<Object[]> getOldMappings()
-    {
-        try {
-            return queryManager.createQuery(
-                "select doc, spaceProp.value, mappingProp.value from "
-                    + "XWikiDocument doc, BaseObject o, StringProperty spaceProp, LargeStringProperty mappingProp "
-                    + "where "
-                    + "doc.fullName = o.name and "
-                    + "o.className = 'ConfluenceMigratorPro.Code.LinkMappingStateSpaceClass' and "
-                    + "o.id = spaceProp.id.id and "
-                    + "spaceProp.id.name = 'spaceKey' and "
-                    + "o.id = mappingProp.id.id and "
-                    + "mappingProp.id.name = 'mapping' "
-                    + "order by doc.fullName",
-                Query.HQL).execute();
-        } catch (QueryException e) {
-            logger.error("Failed to find the old mappings", e);
-        }
-        return null;
-    }
-
-    private boolean isSpaceFoundInConfluencePageClassObj(String spaceKey)
-    {
-        try {
-            return !queryManager.createQuery(
-                "select 1 from BaseObject o, StringProperty p "
-                    + "where o.className = 'Confluence.Code.ConfluencePageClass' and "
-                    + "o.id = p.id.id and "
-                    + "p.id.name = 'space' and "
-                    + "p.value = :space", Query.HQL
-            ).setLimit(1).bindValue("space", spaceKey).execute().isEmpty();
-        } catch (QueryException e) {
-            logger.error("Failed to determine whether data on space [{}] is already present in the wiki", spaceKey, e);
+        DatabaseProduct p = getDatabaseProduct();
+        supported = !p.equals(DatabaseProduct.ORACLE);
+        if (!supported) {
+            return;
         }
-        // Let's assume it's not there
-        return false;
-    }
 
-    private void parseOldMapping(Session session, String mapping, String spaceKey, boolean pageIds)
-    {
         try {
-            Map<String, String> m = (new ObjectMapper()).readValue(mapping, LM_TYPE_REF);
-            for (Map.Entry<String, String> entry : m.entrySet()) {
-                String ref = entry.getValue();
-                if (pageIds) {
-                    add(session, Long.parseLong(entry.getKey()), ref);
-                } else {
-                    add(session, spaceKey, entry.getKey(), ref);
-                }
+            if (LinkMappingConversionJob.hasOldMappings(queryManager)) {
+                // Converting can take a long time, it must not block the startup nor the lookups
+                DefaultRequest request = new DefaultRequest();
+                request.setId(LinkMappingConversionJob.JOB_ID);
+                jobExecutor.execute(LinkMappingConversionJob.JOBTYPE, request);
             }
-        } catch (JsonProcessingException e) {
-            logger.error("Failed to parse old mapping", e);
+        } catch (QueryException | JobException e) {
+            logger.error("Failed to start the conversion of the old link mapping documents", e);
         }
     }
 
@@ -673,7 +1296,7 @@ public class LinkMappingStore implements Initializable
     public boolean isSupported()
     {
         if (needsConversion) {
-            convertOldMappings();
+            startOldMappingsConversion();
         }
         return supported;
     }
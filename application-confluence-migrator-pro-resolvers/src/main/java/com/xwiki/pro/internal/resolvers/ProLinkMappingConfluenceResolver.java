@@ -19,6 +19,7 @@
  */
 package com.xwiki.pro.internal.resolvers;
 
+import org.apache.commons.lang3.tuple.Pair;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.confluence.resolvers.ConfluencePageIdResolver;
 import org.xwiki.contrib.confluence.resolvers.ConfluencePageTitleResolver;
@@ -33,6 +34,11 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Confluence Migrator Pro Link Mapping Confluence resolver.
  * @since 1.28.0
@@ -42,7 +48,7 @@ import javax.inject.Singleton;
 @Singleton
 @Named("prolinkmapping")
 public class ProLinkMappingConfluenceResolver implements ConfluencePageIdResolver, ConfluencePageTitleResolver,
-    ConfluenceSpaceKeyResolver, ConfluenceSpaceResolver
+    ConfluenceSpaceKeyResolver, ConfluenceSpaceResolver, LinkMappingBulkResolver
 {
     @Inject
     private EntityReferenceResolver<String> resolver;
@@ -53,18 +59,77 @@ public class ProLinkMappingConfluenceResolver implements ConfluencePageIdResolve
     @Inject
     private LinkMappingStore store;
 
+    @Inject
+    private LinkMappingMetrics metrics;
+
     @Override
     public EntityReference getDocumentById(long id)
     {
+        long start = metrics.start();
         String ref = store.get(id);
-        return resolveDocument(ref);
+        return record(LinkMappingOperation.BY_ID, start, resolveDocument(ref));
     }
 
     @Override
     public EntityReference getDocumentByTitle(String spaceKey, String title)
     {
+        long start = metrics.start();
         String ref = store.get(spaceKey, title);
-        return resolveDocument(ref);
+        return record(LinkMappingOperation.BY_TITLE, start, resolveDocument(ref));
+    }
+
+    @Override
+    public Map<Long, EntityReference> getDocumentsById(Collection<Long> ids)
+    {
+        long start = metrics.start();
+        Map<Long, EntityReference> documents = resolveDocuments(store.getByIds(ids));
+        return recordAll(LinkMappingOperation.BY_ID, start, ids, documents);
+    }
+
+    @Override
+    public Map<Pair<String, String>, EntityReference> getDocumentsByTitle(Collection<Pair<String, String>> pages)
+    {
+        long start = metrics.start();
+        Map<Pair<String, String>, EntityReference> documents = resolveDocuments(store.getByTitles(pages));
+        return recordAll(LinkMappingOperation.BY_TITLE, start, pages, documents);
+    }
+
+    @Override
+    public LinkMappingBatch prefetch(Collection<Long> ids, Collection<Pair<String, String>> pages)
+    {
+        LinkMappingBatch batch = store.openBatch();
+        try {
+            // Not recorded as calls: the lookups of the prefetched pages are recorded when they are resolved
+            store.getByIds(ids);
+            store.getByTitles(pages);
+        } catch (RuntimeException e) {
+            batch.close();
+            throw e;
+        }
+        return batch;
+    }
+
+    private <K> Map<K, EntityReference> resolveDocuments(Map<K, String> refs)
+    {
+        Map<K, EntityReference> documents = new LinkedHashMap<>(refs.size());
+        for (Map.Entry<K, String> ref : refs.entrySet()) {
+            documents.put(ref.getKey(), resolveDocument(ref.getValue()));
+        }
+        return documents;
+    }
+
+    private <K> Map<K, EntityReference> recordAll(LinkMappingOperation operation, long start, Collection<K> keys,
+        Map<K, EntityReference> documents)
+    {
+        int lookups = new HashSet<>(keys).size();
+        metrics.record(operation, start, documents.size(), (long) lookups - documents.size());
+        return documents;
+    }
+
+    private <T> T record(LinkMappingOperation operation, long start, T result)
+    {
+        metrics.record(operation, start, result == null ? 0 : 1, result == null ? 1 : 0);
+        return result;
     }
 
     private EntityReference resolveDocument(String ref)
@@ -88,20 +153,24 @@ public class ProLinkMappingConfluenceResolver implements ConfluencePageIdResolve
     @Override
     public EntityReference getSpaceByKey(String spaceKey)
     {
+        long start = metrics.start();
         String ref = store.getShortestReferenceForSpace(spaceKey);
-        return resolveSpace(ref);
+        return record(LinkMappingOperation.SPACE_BY_KEY, start, resolveSpace(ref));
     }
 
     @Override
     public EntityReference getSpace(EntityReference reference)
     {
+        long start = metrics.start();
         String ref = store.getShortestReferenceForSpaceByReference(this.serializer.serialize(reference));
-        return resolveSpace(ref);
+        return record(LinkMappingOperation.SPACE_BY_REFERENCE, start, resolveSpace(ref));
     }
 
     @Override
     public String getSpaceKey(EntityReference reference)
     {
-        return store.getSpaceForReference(this.serializer.serialize(reference));
+        long start = metrics.start();
+        String spaceKey = store.getSpaceForReference(this.serializer.serialize(reference));
+        return record(LinkMappingOperation.SPACE_BY_REFERENCE, start, spaceKey);
     }
 }
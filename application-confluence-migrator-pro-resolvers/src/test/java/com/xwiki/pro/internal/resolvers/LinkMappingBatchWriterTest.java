@@ -0,0 +1,168 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xpn.xwiki.store.DatabaseProduct;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LinkMappingBatchWriterTest
+{
+    private static final String SPACE = "SPACE";
+
+    private static final String OTHER = "OTHER";
+
+    private final LinkMappingStore store = mock(LinkMappingStore.class);
+
+    private final Session session = mock(Session.class);
+
+    private final Connection connection = mock(Connection.class);
+
+    // SQL -> number of rows added to its batches
+    private final Map<String, Integer> batches = new HashMap<>();
+
+    private final List<String> executed = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws SQLException
+    {
+        doAnswer(i -> {
+            ((Work) i.getArgument(0)).execute(connection);
+            return null;
+        }).when(session).doWork(any());
+        when(connection.prepareStatement(anyString())).thenAnswer(i -> {
+            String sql = i.getArgument(0);
+            PreparedStatement statement = mock(PreparedStatement.class);
+            doAnswer(j -> batches.merge(sql, 1, Integer::sum)).when(statement).addBatch();
+            when(statement.executeBatch()).thenAnswer(j -> {
+                executed.add(sql);
+                return new int[0];
+            });
+            return statement;
+        });
+    }
+
+    private LinkMappingBatchWriter writer(DatabaseProduct db, int flushSize)
+    {
+        return new LinkMappingBatchWriter(store, session, db, flushSize, new LinkMappingMetrics());
+    }
+
+    @Test
+    void upsertsOnH2()
+    {
+        try (LinkMappingBatchWriter writer = writer(DatabaseProduct.H2, 100)) {
+            writer.add(1, "xwiki:Space.WebHome");
+            writer.add(SPACE, "Home", "xwiki:Space.WebHome");
+            writer.add(SPACE, "Page", "xwiki:Space.Page.WebHome");
+            writer.add(OTHER, "Home", "xwiki:Other.WebHome");
+            assertTrue(executed.isEmpty());
+        }
+
+        assertEquals(List.of(
+            "merge into confluencepro_linkmapping_by_id (pageId, reference) key (pageId) values (?, ?)",
+            "merge into confluencepro_linkmapping_by_title (spaceKey, pageTitle, reference) "
+                + "key (spaceKey, pageTitle) values (?, ?, ?)"), executed);
+        assertEquals(3, batches.get(executed.get(1)));
+        verify(store).prepareWrite(session);
+        verify(store).updateSpaceRoot(session, SPACE, "xwiki:Space.WebHome");
+        verify(store).updateSpaceRoot(session, OTHER, "xwiki:Other.WebHome");
+    }
+
+    @Test
+    void upsertsOnPostgreSQL()
+    {
+        try (LinkMappingBatchWriter writer = writer(DatabaseProduct.POSTGRESQL, 100)) {
+            writer.add(1, "xwiki:Space.WebHome");
+            writer.add(SPACE, "Home", "xwiki:Space.WebHome");
+        }
+
+        assertEquals(List.of(
+            "insert into confluencepro_linkmapping_by_id (pageId, reference) values (?, ?) "
+                + "on conflict (pageId) do update set reference = excluded.reference",
+            // No unique constraint on the titles, so they are deleted first
+            "delete from confluencepro_linkmapping_by_title where spaceKey = ? and pageTitle = ?",
+            "insert into confluencepro_linkmapping_by_title (spaceKey, pageTitle, reference) values (?, ?, ?)"),
+            executed);
+    }
+
+    @Test
+    void mergeOnMSSQL()
+    {
+        try (LinkMappingBatchWriter writer = writer(DatabaseProduct.MSSQL, 100)) {
+            writer.add(1, "xwiki:Space.WebHome");
+        }
+
+        assertEquals(1, executed.size());
+        assertTrue(executed.get(0).startsWith("merge into confluencepro_linkmapping_by_id t using (values ("));
+        assertTrue(executed.get(0).endsWith(";"));
+    }
+
+    @Test
+    void deleteAndInsertOnDerby()
+    {
+        try (LinkMappingBatchWriter writer = writer(DatabaseProduct.DERBY, 100)) {
+            writer.add(1, "xwiki:Space.WebHome");
+            // Only the last reference of a page is written
+            writer.add(1, "xwiki:Space.Page.WebHome");
+        }
+
+        assertEquals(List.of(
+            "delete from confluencepro_linkmapping_by_id where pageId = ?",
+            "insert into confluencepro_linkmapping_by_id (pageId, reference) values (?, ?)"), executed);
+        assertEquals(1, batches.get(executed.get(1)));
+        verify(store, never()).updateSpaceRoot(any(), anyString(), anyString());
+    }
+
+    @Test
+    void flushesEveryFlushSizeRows()
+    {
+        try (LinkMappingBatchWriter writer = writer(DatabaseProduct.H2, 2)) {
+            for (long i = 0; i < 5; i++) {
+                writer.add(i, "xwiki:Space.Page" + i);
+            }
+            assertEquals(2, executed.size());
+        }
+
+        assertEquals(3, executed.size());
+        verify(store, times(3)).prepareWrite(session);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class LinkMappingBloomFilterTest
+{
+    private static final int ENTRIES = 10000;
+
+    private static final String SPACE = "SPACE";
+
+    private final LinkMappingStore store = mock(LinkMappingStore.class);
+
+    @Test
+    void noFalseNegatives()
+    {
+        LinkMappingBloomFilter filter = new LinkMappingBloomFilter(store, 2 * ENTRIES);
+        for (long i = 0; i < ENTRIES; i++) {
+            filter.add(i * 7);
+            filter.add(SPACE, "Page " + i);
+        }
+
+        for (long i = 0; i < ENTRIES; i++) {
+            assertTrue(filter.mightContain(i * 7));
+            assertTrue(filter.mightContain(SPACE, "Page " + i));
+        }
+        assertEquals(0, filter.getSkippedCount());
+    }
+
+    @Test
+    void falsePositiveRate()
+    {
+        LinkMappingBloomFilter filter = new LinkMappingBloomFilter(store, ENTRIES);
+        for (long i = 0; i < ENTRIES; i++) {
+            filter.add(i);
+        }
+
+        int falsePositives = 0;
+        int lookups = 100000;
+        for (long i = ENTRIES; i < ENTRIES + lookups; i++) {
+            if (filter.mightContain(i)) {
+                falsePositives++;
+            }
+        }
+        filter.addFalsePositives(falsePositives);
+
+        // The filter is sized for 1%
+        assertTrue(falsePositives < lookups * 0.03, "Too many false positives: " + falsePositives);
+        assertEquals(lookups - falsePositives, filter.getSkippedCount());
+        assertEquals((double) falsePositives / lookups, filter.getFalsePositiveRate(), 1e-9);
+    }
+
+    @Test
+    void emptyFilter()
+    {
+        LinkMappingBloomFilter filter = new LinkMappingBloomFilter(store, 0);
+
+        assertFalse(filter.mightContain(42));
+        assertFalse(filter.mightContain(SPACE, "Home"));
+        assertEquals(2, filter.getSkippedCount());
+        assertEquals(0, filter.getFalsePositiveRate());
+    }
+
+    @Test
+    void mayContainDoesNotCount()
+    {
+        LinkMappingBloomFilter filter = new LinkMappingBloomFilter(store, 1);
+        filter.add(42);
+
+        assertTrue(filter.mayContain(42));
+        assertFalse(filter.mayContain(SPACE, "Home"));
+        assertEquals(0, filter.getSkippedCount());
+    }
+
+    @Test
+    void close()
+    {
+        LinkMappingBloomFilter filter = new LinkMappingBloomFilter(store, 1);
+        filter.close();
+
+        verify(store).closeBloomFilter(filter);
+    }
+}
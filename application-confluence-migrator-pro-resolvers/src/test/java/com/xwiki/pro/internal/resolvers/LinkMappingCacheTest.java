@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class LinkMappingCacheTest
+{
+    private static final String KEY = "id:42";
+
+    private static final String MISSING_KEY = "title:S:Missing";
+
+    private static final String REFERENCE = "Space.Page";
+
+    @InjectMockComponents
+    private LinkMappingCache linkMappingCache;
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    private final Map<String, String> entries = new HashMap<>();
+
+    private final LinkMappingMetrics metrics = new LinkMappingMetrics();
+
+    private int loads;
+
+    @BeforeComponent
+    @SuppressWarnings("unchecked")
+    void configure() throws Exception
+    {
+        when(configuration.getProperty(anyString(), any(Integer.class)))
+            .thenAnswer(invocation -> invocation.getArgument(1));
+        Cache<String> cache = mock(Cache.class);
+        when(cache.get(anyString())).thenAnswer(invocation -> entries.get(invocation.getArgument(0)));
+        doAnswer(invocation -> entries.put(invocation.getArgument(0), invocation.getArgument(1)))
+            .when(cache).set(anyString(), any());
+        doAnswer(invocation -> {
+            entries.clear();
+            return null;
+        }).when(cache).removeAll();
+        when(cacheManager.<String>createNewCache(any(CacheConfiguration.class))).thenReturn(cache);
+    }
+
+    @BeforeEach
+    void setUp()
+    {
+        ReflectionUtils.setFieldValue(linkMappingCache, "metrics", metrics);
+    }
+
+    private String load()
+    {
+        loads++;
+        return REFERENCE;
+    }
+
+    @Test
+    void countsHitsAndMisses()
+    {
+        assertEquals(REFERENCE, linkMappingCache.get(LinkMappingOperation.BY_ID, KEY, this::load));
+        assertEquals(REFERENCE, linkMappingCache.get(LinkMappingOperation.BY_ID, KEY, this::load));
+        // Negative results are cached too
+        assertNull(linkMappingCache.get(LinkMappingOperation.BY_TITLE, MISSING_KEY, () -> null));
+        assertNull(linkMappingCache.get(LinkMappingOperation.BY_TITLE, MISSING_KEY, this::load));
+
+        assertEquals(1, loads);
+        assertEquals(2, linkMappingCache.getHitCount());
+        assertEquals(2, linkMappingCache.getMissCount());
+        LinkMappingOperationStats byId = metrics.getById();
+        assertEquals(1, byId.getCacheHits());
+        assertEquals(1, byId.getCacheMisses());
+        assertEquals(0.5, byId.getCacheHitRatio());
+        assertEquals(0.5, metrics.getByTitle().toMap().get("cacheHitRatio"));
+    }
+
+    @Test
+    void invalidateForgetsTheValues()
+    {
+        linkMappingCache.get(LinkMappingOperation.BY_ID, KEY, this::load);
+        linkMappingCache.invalidate();
+        linkMappingCache.get(LinkMappingOperation.BY_ID, KEY, this::load);
+
+        assertEquals(2, loads);
+        assertEquals(0, linkMappingCache.getHitCount());
+        assertEquals(2, linkMappingCache.getMissCount());
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import javax.inject.Provider;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.environment.Environment;
+import org.xwiki.job.event.status.JobProgressManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.DatabaseProduct;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class LinkMappingConversionJobTest
+{
+    private static final String WIKI = "xwiki";
+
+    private static final String SPACE = "LinkMapping";
+
+    private static final String PROGRESS_PATH = "confluence-migrator-pro/linkmapping-conversion.progress";
+
+    private static final String FIRST = "SPACEA";
+
+    private static final String SECOND = "SPACEB:ids";
+
+    @InjectMockComponents
+    private LinkMappingConversionJob job;
+
+    @MockComponent
+    private Provider<XWikiContext> contextProvider;
+
+    @MockComponent
+    private Provider<LinkMappingStore> storeProvider;
+
+    @MockComponent
+    private QueryManager queryManager;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private JobProgressManager progressManager;
+
+    private File permanentDirectory;
+
+    private final LinkMappingStore store = mock(LinkMappingStore.class);
+
+    private final Session session = mock(Session.class);
+
+    // Full name of the old link mapping documents -> (space key property, mapping)
+    private final Map<String, String[]> oldMappings = new TreeMap<>();
+
+    private int rows;
+
+    @BeforeEach
+    void setUp(@TempDir File tmpDir) throws Exception
+    {
+        permanentDirectory = tmpDir;
+        oldMappings.put(fullName(FIRST), new String[] { FIRST, "{\"Home\": \"SpaceA.WebHome\"}" });
+        oldMappings.put(fullName(SECOND),
+            new String[] { SECOND, "{\"1\": \"SpaceB.WebHome\", \"2\": \"SpaceB.Page.WebHome\"}" });
+
+        when(environment.getPermanentDirectory()).thenReturn(permanentDirectory);
+        when(storeProvider.get()).thenReturn(store);
+        when(store.beginTransaction()).thenReturn(session);
+        when(store.openBatchWriter(eq(session), anyInt())).thenAnswer(invocation ->
+            new LinkMappingBatchWriter(store, session, DatabaseProduct.H2, invocation.getArgument(1),
+                new LinkMappingMetrics()));
+        Connection connection = mock(Connection.class);
+        PreparedStatement statement = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        doAnswer(invocation -> rows++).when(statement).addBatch();
+        doAnswer(invocation -> {
+            ((Work) invocation.getArgument(0)).execute(connection);
+            return null;
+        }).when(session).doWork(any());
+
+        XWikiContext context = mock(XWikiContext.class);
+        XWiki wiki = mock(XWiki.class);
+        when(contextProvider.get()).thenReturn(context);
+        when(context.getWiki()).thenReturn(wiki);
+        when(wiki.getDocument(any(DocumentReference.class), eq(context)))
+            .thenAnswer(invocation -> document(((DocumentReference) invocation.getArgument(0)).getName()));
+        doAnswer(invocation -> oldMappings.remove(((XWikiDocument) invocation.getArgument(0)).getFullName()))
+            .when(wiki).deleteDocument(any(XWikiDocument.class), eq(context));
+
+        when(queryManager.createQuery(anyString(), eq(Query.HQL)))
+            .thenAnswer(invocation -> createQuery(invocation.getArgument(0)));
+    }
+
+    private Query createQuery(String statement) throws QueryException
+    {
+        Map<String, Object> values = new HashMap<>();
+        Query query = mock(Query.class, RETURNS_SELF);
+        when(query.bindValue(anyString(), any())).thenAnswer(invocation -> {
+            values.put(invocation.getArgument(0), invocation.getArgument(1));
+            return query;
+        });
+        when(query.execute()).thenAnswer(invocation -> execute(statement, values));
+        return query;
+    }
+
+    private List<?> execute(String statement, Map<String, Object> values)
+    {
+        if (statement.startsWith("select count(doc)")) {
+            return List.of((long) oldMappings.size());
+        }
+
+        if (statement.startsWith("select doc, spaceProp.value")) {
+            String after = (String) values.get("after");
+            return oldMappings.entrySet().stream()
+                .filter(e -> after == null || e.getKey().compareTo(after) > 0)
+                .map(e -> new Object[] { document(e.getKey().substring(SPACE.length() + 1)), e.getValue()[0] })
+                .collect(Collectors.toList());
+        }
+
+        if (statement.startsWith("select mappingProp.value")) {
+            String[] mapping = oldMappings.get(values.get("name"));
+            return mapping == null ? List.of() : List.of(mapping[1]);
+        }
+
+        // No ConfluencePageClass objects for the spaces
+        return List.of();
+    }
+
+    private static String fullName(String name)
+    {
+        return SPACE + '.' + name;
+    }
+
+    private static XWikiDocument document(String name)
+    {
+        XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(new DocumentReference(WIKI, SPACE, name));
+        when(document.getFullName()).thenReturn(fullName(name));
+        return document;
+    }
+
+    private File getProgressFile()
+    {
+        return new File(permanentDirectory, PROGRESS_PATH);
+    }
+
+    @Test
+    void convertsAndReportsProgress() throws Exception
+    {
+        job.runInternal();
+
+        verify(progressManager).pushLevelProgress(2, job);
+        verify(progressManager, times(2)).startStep(job);
+        verify(progressManager, times(2)).endStep(job);
+        verify(progressManager).popLevelProgress(job);
+        verify(store, times(2)).endTransaction(true);
+        verify(store).updateSpaceRoot(session, FIRST, "SpaceA.WebHome");
+        assertEquals(3, rows);
+        assertTrue(oldMappings.isEmpty());
+        // The conversion is complete, the next one starts from the beginning
+        assertFalse(getProgressFile().exists());
+    }
+
+    @Test
+    void rerunOnConvertedData() throws Exception
+    {
+        job.runInternal();
+        job.runInternal();
+
+        verify(progressManager).pushLevelProgress(0, job);
+        verify(progressManager, times(2)).startStep(job);
+        verify(store, times(2)).beginTransaction();
+        assertEquals(3, rows);
+    }
+
+    @Test
+    void resumesAfterTheRecordedProgress() throws Exception
+    {
+        File progressFile = getProgressFile();
+        Files.createDirectories(progressFile.getParentFile().toPath());
+        // The first document was converted, but could not be removed
+        Files.write(progressFile.toPath(), fullName(FIRST).getBytes(StandardCharsets.UTF_8));
+
+        job.runInternal();
+
+        verify(progressManager).startStep(job);
+        verify(store, never()).updateSpaceRoot(session, FIRST, "SpaceA.WebHome");
+        assertEquals(2, rows);
+        assertEquals(List.of(fullName(FIRST)), new ArrayList<>(oldMappings.keySet()));
+        assertFalse(progressFile.exists());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinkMappingMetricsTest
+{
+    private static final String FOUND_RATIO = "foundRatio";
+
+    private final LinkMappingMetrics metrics = new LinkMappingMetrics();
+
+    @Test
+    void scopesAreSeparate() throws Exception
+    {
+        metrics.record(LinkMappingOperation.BY_ID, metrics.start(), 1, 0);
+        try (LinkMappingMetrics.Scope scope = metrics.openScope()) {
+            metrics.record(LinkMappingOperation.BY_ID, metrics.start(), 1, 1);
+            // Threads started in the scope record in it
+            Thread thread = new Thread(() -> metrics.recordQuery(LinkMappingOperation.BY_ID, metrics.start()));
+            thread.start();
+            thread.join();
+
+            LinkMappingOperationStats stats = scope.snapshot().get(LinkMappingOperation.BY_ID);
+            assertEquals(1, stats.getCalls());
+            assertEquals(1, stats.getQueries());
+            assertEquals(0.5, stats.getFoundRatio());
+
+            scope.close();
+            metrics.record(LinkMappingOperation.BY_ID, metrics.start(), 1, 0);
+            assertEquals(1, scope.snapshot().get(LinkMappingOperation.BY_ID).getCalls());
+        }
+
+        assertEquals(3, metrics.getById().getCalls());
+        assertEquals(1, metrics.getById().getQueries());
+    }
+
+    @Test
+    void resetKeepsScopes()
+    {
+        try (LinkMappingMetrics.Scope scope = metrics.openScope()) {
+            metrics.record(LinkMappingOperation.ADD, metrics.start(), 0, 0);
+            metrics.reset();
+            metrics.record(LinkMappingOperation.ADD, metrics.start(), 0, 0);
+
+            assertEquals(1, metrics.getAdd().getCalls());
+            assertEquals(2, scope.snapshot().get(LinkMappingOperation.ADD).getCalls());
+            assertEquals(1, Arrays.stream(metrics.getAdd().getLatencyHistogram()).sum());
+        }
+    }
+
+    @Test
+    void noFoundRatioWithoutLookups()
+    {
+        metrics.record(LinkMappingOperation.ADD, metrics.start(), 0, 0);
+        metrics.record(LinkMappingOperation.BY_TITLE, metrics.start(), 0, 2);
+
+        assertEquals(0, metrics.getAdd().getFoundRatio());
+        assertFalse(metrics.getAdd().toMap().containsKey(FOUND_RATIO));
+        assertTrue(metrics.getByTitle().toMap().containsKey(FOUND_RATIO));
+        assertFalse(metrics.snapshot().toMap().containsKey(LinkMappingOperation.SPACE_BY_KEY.getId()));
+    }
+}
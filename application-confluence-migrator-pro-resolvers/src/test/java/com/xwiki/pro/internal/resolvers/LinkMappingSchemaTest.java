@@ -0,0 +1,214 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.query.NativeQuery;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xpn.xwiki.store.DatabaseProduct;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LinkMappingSchemaTest
+{
+    private static final String SPACE_KEY_INDEX = "confluencepro_linkmapping_spacekey_idx";
+
+    private static final String TITLE_INDEX = "confluencepro_linkmapping_title_idx";
+
+    private static final String TITLE_REFERENCE_INDEX = "confluencepro_linkmapping_ref_idx";
+
+    private static final String ID_REFERENCE_INDEX = "confluencepro_linkmapping_id_ref_idx";
+
+    private static final String FILL_SPACE_ROOT = "delete from " + LinkMappingStore.TABLE_SPACE_ROOT;
+
+    private final Session session = mock(Session.class);
+
+    private final Connection connection = mock(Connection.class);
+
+    private final Statement statement = mock(Statement.class);
+
+    // index name -> table name
+    private final Map<String, String> indexes = new HashMap<>();
+
+    private final List<String> queries = new ArrayList<>();
+
+    private Integer version;
+
+    @BeforeEach
+    void setUp() throws SQLException
+    {
+        when(session.createNativeQuery(anyString())).thenAnswer(i -> query(i.getArgument(0)));
+        when(session.doReturningWork(any()))
+            .thenAnswer(i -> ((ReturningWork<?>) i.getArgument(0)).execute(connection));
+
+        DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        when(connection.getMetaData()).thenReturn(metaData);
+        when(metaData.getIndexInfo(any(), any(), anyString(), anyBoolean(), anyBoolean()))
+            .thenAnswer(i -> getIndexInfo(i.getArgument(2)));
+        when(connection.createStatement()).thenReturn(statement);
+        when(statement.executeUpdate(anyString())).thenAnswer(i -> {
+            // create index <name> on <table> (<columns>)
+            String[] words = ((String) i.getArgument(0)).split(" ");
+            indexes.put(words[2], words[4]);
+            return 0;
+        });
+    }
+
+    private NativeQuery<?> query(String sql)
+    {
+        queries.add(sql);
+        NativeQuery<?> query = mock(NativeQuery.class, RETURNS_SELF);
+        List<Object> parameters = new ArrayList<>();
+        when(query.setParameter(anyInt(), any())).thenAnswer(i -> {
+            parameters.add(i.getArgument(1));
+            return query;
+        });
+        when(query.getResultStream()).thenAnswer(i -> sql.startsWith("select version") && version != null
+            ? Stream.of(version)
+            : Stream.empty());
+        when(query.getResultList()).thenReturn(List.of());
+        when(query.executeUpdate()).thenAnswer(i -> {
+            if (sql.startsWith("insert into confluencepro_linkmapping_schema")) {
+                version = (Integer) parameters.get(0);
+            } else if (sql.startsWith("drop index")) {
+                indexes.remove(sql.split(" ")[2]);
+            }
+            return 0;
+        });
+        return query;
+    }
+
+    private ResultSet getIndexInfo(String table) throws SQLException
+    {
+        Iterator<String> names = indexes.entrySet().stream()
+            .filter(index -> index.getValue().equals(table))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList())
+            .iterator();
+        String[] current = new String[1];
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.next()).thenAnswer(i -> {
+            current[0] = names.hasNext() ? names.next() : null;
+            return current[0] != null;
+        });
+        when(resultSet.getString("INDEX_NAME")).thenAnswer(i -> current[0]);
+        return resultSet;
+    }
+
+    private void givenAllIndexes()
+    {
+        indexes.put(TITLE_INDEX, LinkMappingStore.TABLE_BY_TITLE);
+        indexes.put(TITLE_REFERENCE_INDEX, LinkMappingStore.TABLE_BY_TITLE);
+        indexes.put(ID_REFERENCE_INDEX, LinkMappingStore.TABLE_BY_ID);
+    }
+
+    @Test
+    void upgradeUnversionedTables()
+    {
+        indexes.put(SPACE_KEY_INDEX, LinkMappingStore.TABLE_BY_TITLE);
+
+        assertTrue(LinkMappingSchema.upgrade(session, DatabaseProduct.H2));
+
+        assertEquals(LinkMappingSchema.VERSION, version);
+        assertEquals(Map.of(
+            TITLE_INDEX, LinkMappingStore.TABLE_BY_TITLE,
+            TITLE_REFERENCE_INDEX, LinkMappingStore.TABLE_BY_TITLE,
+            ID_REFERENCE_INDEX, LinkMappingStore.TABLE_BY_ID), indexes);
+        assertTrue(queries.contains(FILL_SPACE_ROOT));
+    }
+
+    @Test
+    void upgradeUpToDateTables() throws SQLException
+    {
+        version = LinkMappingSchema.VERSION;
+        givenAllIndexes();
+
+        assertFalse(LinkMappingSchema.upgrade(session, DatabaseProduct.H2));
+
+        verify(connection, never()).createStatement();
+        assertFalse(queries.contains(FILL_SPACE_ROOT));
+    }
+
+    @Test
+    void bulkLoadKeepsTheVersion()
+    {
+        version = LinkMappingSchema.VERSION;
+        givenAllIndexes();
+
+        LinkMappingSchema.dropReferenceIndexes(session, DatabaseProduct.H2);
+
+        assertEquals(Map.of(TITLE_INDEX, LinkMappingStore.TABLE_BY_TITLE), indexes);
+        assertEquals(LinkMappingSchema.VERSION, version);
+
+        // Dropping them again does nothing
+        LinkMappingSchema.dropReferenceIndexes(session, DatabaseProduct.H2);
+
+        // The upgrade at the end of the bulk load only recreates the indexes
+        assertTrue(LinkMappingSchema.upgrade(session, DatabaseProduct.H2));
+        assertEquals(3, indexes.size());
+        assertFalse(queries.contains(FILL_SPACE_ROOT));
+    }
+
+    @Test
+    void indexCreatedConcurrently() throws SQLException
+    {
+        version = LinkMappingSchema.VERSION;
+        indexes.put(TITLE_INDEX, LinkMappingStore.TABLE_BY_TITLE);
+        when(statement.executeUpdate(anyString())).thenAnswer(i -> {
+            // Another node created the index in the meantime
+            String[] words = ((String) i.getArgument(0)).split(" ");
+            indexes.put(words[2], words[4]);
+            throw new SQLException("Index already exists");
+        });
+
+        LinkMappingSchema.upgrade(session, DatabaseProduct.H2);
+
+        assertEquals(3, indexes.size());
+        verify(connection, times(2)).rollback(any());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinkMappingSnapshotTest
+{
+    private static final String SPACE = "SPACE";
+
+    private static final String HOME_REFERENCE = "xwiki:Space.WebHome";
+
+    private static final String PAGE_REFERENCE = "xwiki:Space.Page.WebHome";
+
+    @TempDir
+    private Path tmp;
+
+    @Test
+    void roundTrip() throws IOException
+    {
+        File file = tmp.resolve("snapshot").toFile();
+        try (LinkMappingSnapshot.Writer writer = new LinkMappingSnapshot.Writer(tmp.toFile())) {
+            writer.setRevision(42);
+            writer.add(3, PAGE_REFERENCE);
+            writer.add(1, HOME_REFERENCE);
+            for (long i = 100; i < 5000; i++) {
+                writer.add(i, "xwiki:Space.Page " + i + ".WebHome");
+            }
+            writer.add(SPACE, "Home", HOME_REFERENCE);
+            writer.add(SPACE, "Page", PAGE_REFERENCE);
+            assertEquals(4904, writer.write(file));
+        }
+
+        // The temporary string pool file is removed
+        assertEquals(1, tmp.toFile().list().length);
+
+        LinkMappingSnapshot snapshot = LinkMappingSnapshot.open(file);
+        assertEquals(42, snapshot.getRevision());
+        assertEquals(4904, snapshot.size());
+        assertEquals(HOME_REFERENCE, snapshot.get(1));
+        assertEquals(PAGE_REFERENCE, snapshot.get(3));
+        assertEquals("xwiki:Space.Page 4999.WebHome", snapshot.get(4999));
+        assertNull(snapshot.get(2));
+        assertEquals(HOME_REFERENCE, snapshot.get(SPACE, "Home"));
+        assertEquals(PAGE_REFERENCE, snapshot.get(SPACE, "Page"));
+        assertNull(snapshot.get(SPACE, "Missing"));
+        assertNull(snapshot.get("OTHER", "Page"));
+    }
+
+    @Test
+    void conflictingEntriesAreLeftOut() throws IOException
+    {
+        File file = tmp.resolve("snapshot").toFile();
+        try (LinkMappingSnapshot.Writer writer = new LinkMappingSnapshot.Writer(tmp.toFile())) {
+            writer.add(1, HOME_REFERENCE);
+            writer.add(1, PAGE_REFERENCE);
+            writer.add(2, PAGE_REFERENCE);
+            writer.add(2, PAGE_REFERENCE);
+            assertEquals(1, writer.write(file));
+        }
+
+        LinkMappingSnapshot snapshot = LinkMappingSnapshot.open(file);
+        assertNull(snapshot.get(1));
+        assertEquals(PAGE_REFERENCE, snapshot.get(2));
+    }
+
+    @Test
+    void invalidFile() throws IOException
+    {
+        File file = tmp.resolve("snapshot").toFile();
+        Files.writeString(file.toPath(), "not a snapshot, but long enough to hold a header");
+
+        assertThrows(IOException.class, () -> LinkMappingSnapshot.open(file));
+    }
+
+    @Test
+    void tooLargeFile() throws IOException
+    {
+        File file = tmp.resolve("snapshot").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Sparse on most file systems
+            raf.setLength(Integer.MAX_VALUE + 1L);
+        }
+
+        IOException e = assertThrows(IOException.class, () -> LinkMappingSnapshot.open(file));
+        assertTrue(e.getMessage().contains("too large"));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.pro.internal.resolvers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.hibernate.Session;
+import org.hibernate.query.NativeQuery;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ComponentTest
+class LinkMappingStoreTest
+{
+    private static final int PAGES = 1200;
+
+    @InjectMockComponents
+    private LinkMappingStore store;
+
+    private final Session session = mock(Session.class);
+
+    private final List<String> queries = new ArrayList<>();
+
+    private final List<Integer> chunkSizes = new ArrayList<>();
+
+    private final LinkMappingMetrics metrics = new LinkMappingMetrics();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp()
+    {
+        // The link mapping cache is disabled: its cache is never created
+        LinkMappingCache cache = new LinkMappingCache();
+        ReflectionUtils.setFieldValue(cache, "metrics", metrics);
+        ReflectionUtils.setFieldValue(store, "cache", cache);
+        ReflectionUtils.setFieldValue(store, "metrics", metrics);
+        ReflectionUtils.setFieldValue(store, "needsConversion", false);
+        ReflectionUtils.setFieldValue(store, "initialized", true);
+        ((ThreadLocal<Session>) ReflectionUtils.getFieldValue(store, "readSession")).set(session);
+
+        when(session.createNativeQuery(anyString())).thenAnswer(invocation -> {
+            queries.add(invocation.getArgument(0));
+            return createQuery();
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private NativeQuery<Object> createQuery()
+    {
+        NativeQuery<Object> query = mock(NativeQuery.class, RETURNS_SELF);
+        List<Object> rows = new ArrayList<>();
+        doAnswer(invocation -> {
+            Collection<Long> chunk = invocation.getArgument(1);
+            chunkSizes.add(chunk.size());
+            // Only the even pages are in the link mapping
+            chunk.stream().filter(id -> id % 2 == 0).forEach(id -> rows.add(new Object[] { id, reference(id) }));
+            return query;
+        }).when(query).setParameterList(eq("ids"), anyCollection());
+        doAnswer(invocation -> {
+            long id = invocation.getArgument(1);
+            if (id % 2 == 0) {
+                rows.add(reference(id));
+            }
+            return query;
+        }).when(query).setParameter(anyInt(), any());
+        when(query.getResultList()).thenReturn(rows);
+        when(query.getResultStream()).thenAnswer(invocation -> rows.stream());
+        return query;
+    }
+
+    private static String reference(long id)
+    {
+        return "Space.Page" + id;
+    }
+
+    private static List<Long> ids()
+    {
+        return LongStream.range(0, PAGES).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    void getByIdsUsesChunkedInQueries()
+    {
+        Map<Long, String> refs = store.getByIds(ids());
+
+        // Oracle doesn't support more than 1000 elements in an IN clause
+        assertEquals(List.of(500, 500, 200), chunkSizes);
+        assertEquals(PAGES / 2, refs.size());
+        assertEquals(reference(42), refs.get(42L));
+        assertNull(refs.get(43L));
+        // All the lookups missed the disabled cache
+        assertEquals(PAGES, metrics.getById().getCacheMisses());
+    }
+
+    @Test
+    void batchAnswersLookupsWhenTheCacheIsDisabled()
+    {
+        try (LinkMappingBatch batch = store.openBatch()) {
+            store.getByIds(ids());
+            int bulkQueries = queries.size();
+
+            assertEquals(reference(42), store.get(42));
+            assertNull(store.get(43));
+            assertEquals(bulkQueries, queries.size());
+        }
+
+        // Without a batch, each lookup queries the database
+        int queryCount = queries.size();
+        assertEquals(reference(42), store.get(42));
+        assertEquals(queryCount + 1, queries.size());
+    }
+
+    @Test
+    void batchIsDroppedWhenTheLinkMappingIsModified()
+    {
+        try (LinkMappingBatch batch = store.openBatch()) {
+            store.getByIds(ids());
+            int queryCount = queries.size();
+            ((AtomicLong) ReflectionUtils.getFieldValue(store, "modifications")).incrementAndGet();
+
+            assertEquals(reference(42), store.get(42));
+            assertEquals(queryCount + 1, queries.size());
+        }
+    }
+
+    @Test
+    void bloomFilterCountsEachLookupOnce()
+    {
+        LinkMappingBloomFilter filter = new LinkMappingBloomFilter(store, PAGES);
+        ids().stream().filter(id -> id % 2 == 0).forEach(filter::add);
+        ReflectionUtils.setFieldValue(store, "bloomFilter", filter);
+        long letThrough = ids().stream().filter(id -> id % 2 == 1 && filter.mayContain(id)).count();
+
+        try (LinkMappingBatch batch = store.openBatch()) {
+            store.getByIds(ids());
+            assertEquals(0, filter.getSkippedCount());
+            assertEquals(0, filter.getFalsePositiveCount());
+
+            for (long id : ids()) {
+                store.get(id);
+            }
+        }
+
+        assertEquals(PAGES / 2 - letThrough, filter.getSkippedCount());
+        assertEquals(letThrough, filter.getFalsePositiveCount());
+        // The lookups answered by the batch are not cache lookups
+        assertEquals(PAGES / 2 + letThrough, metrics.getById().getCacheMisses());
+        assertEquals(0, metrics.getById().getCacheHits());
+    }
+
+    @Test
+    void bloomFilterIsSharedUntilAllUsersClosedIt()
+    {
+        LinkMappingBloomFilter filter = new LinkMappingBloomFilter(store, PAGES);
+        ReflectionUtils.setFieldValue(store, "bloomFilter", filter);
+
+        LinkMappingBloomFilter shared = store.openBloomFilter();
+        assertSame(filter, shared);
+
+        filter.close();
+        assertSame(filter, ReflectionUtils.getFieldValue(store, "bloomFilter"));
+
+        shared.close();
+        assertNull(ReflectionUtils.getFieldValue(store, "bloomFilter"));
+    }
+}